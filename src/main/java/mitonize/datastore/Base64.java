@@ -163,4 +163,50 @@ public class Base64 {
 		b.flip();
 		return b;
 	}
+
+	/**
+	 * Base64エンコードされたバイト列をデコードし、指定した配列に書き込む。途中のバッファを確保しない。
+	 * @param src エンコードされたバイト列
+	 * @param offset src の開始位置
+	 * @param length src の長さ
+	 * @param dst 書き込む配列。{@link #decodedLength(int)} 以上の空きが必要
+	 * @param dstOffset 書き込む開始位置
+	 * @return 書き込んだバイト数
+	 */
+	public static int decode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+		int pos = dstOffset;
+		int bits = 0;
+		int bc = 0;
+		for (int i = offset; i < offset + length; ++i) {
+			byte c = src[i];
+			if (c == '=') {
+				// '=' はパディングなので以降は読み込まない
+				break;
+			}
+			bits = (bits << 6) | map_decode[c & 0xff];
+			if (++bc == 4) {
+				dst[pos++] = (byte) (bits >>> 16);
+				dst[pos++] = (byte) (bits >>> 8);
+				dst[pos++] = (byte) bits;
+				bits = 0;
+				bc = 0;
+			}
+		}
+		if (bc == 2) {
+			dst[pos++] = (byte) (bits >>> 4);
+		} else if (bc == 3) {
+			dst[pos++] = (byte) (bits >>> 10);
+			dst[pos++] = (byte) (bits >>> 2);
+		}
+		return pos - dstOffset;
+	}
+
+	/**
+	 * Base64エンコードされたバイト列をデコードした長さの上限を返す。
+	 * @param length エンコードされたバイト列の長さ
+	 * @return デコードした長さの上限
+	 */
+	public static int decodedLength(int length) {
+		return (length + 3) / 4 * 3;
+	}
 }
@@ -0,0 +1,17 @@
+package mitonize.datastore;
+
+/**
+ * キャッシュにない値をデータベースなどの元データから読み込む。
+ *
+ * @param <K> キーの型
+ * @param <V> 値の型
+ */
+public interface CacheLoader<K, V> {
+	/**
+	 * キーに対応する値を読み込む。
+	 * @param key キー
+	 * @return 値。存在しない場合は null
+	 * @throws Exception 読み込みに失敗した場合
+	 */
+	V load(K key) throws Exception;
+}
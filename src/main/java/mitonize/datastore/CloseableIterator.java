@@ -0,0 +1,17 @@
+package mitonize.datastore;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * 通信などの資源を保持したまま要素を順に返すイテレータ。最後まで読み出さずに終える場合は {@link #close()} すること。
+ * 要素の読み出しに失敗した場合は {@link StreamReadException} をスローする。
+ * @param <T> 要素の型
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+	/**
+	 * 保持している資源を解放する。既に解放していれば何もしない。
+	 */
+	@Override
+	void close();
+}
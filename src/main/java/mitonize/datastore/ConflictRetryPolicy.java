@@ -0,0 +1,216 @@
+package mitonize.datastore;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * バージョンを確認する楽観的な更新で競合した場合の再試行の方針と、競合の統計情報。
+ * <p>再試行までの待ち時間は {@link #getBackoffBaseInMillis()} を試行ごとに倍にした値を上限とする乱数とし(フルジッタ)、
+ * {@link #getBackoffMaxInMillis()} を超えない。同時に競合したクライアントの再試行が重ならないようにするため。</p>
+ * <p>競合の多いキーを調べられるように、競合したキーごとの回数を最大 {@link #getMaxTrackedKeys()} 件まで記録する。</p>
+ * <p>このクラスはスレッドセーフである。</p>
+ */
+public class ConflictRetryPolicy {
+	private final Random random = new Random();
+	private final int maxTrackedKeys;
+	private final LinkedHashMap<String, AtomicLong> conflictsByKey;
+	private final AtomicLong updateCount = new AtomicLong();
+	private final AtomicLong conflictCount = new AtomicLong();
+	private final AtomicLong exhaustedCount = new AtomicLong();
+	private volatile int maxAttempts = 10;
+	private volatile long backoffBaseInMillis = 5;
+	private volatile long backoffMaxInMillis = 200;
+
+	/**
+	 * 競合したキーを1000件まで記録する方針を生成する。
+	 */
+	public ConflictRetryPolicy() {
+		this(1000);
+	}
+
+	/**
+	 * 方針を生成する。
+	 * @param maxTrackedKeys 競合の回数を記録するキーの最大数。超えた場合は最も長く競合していないキーの記録を破棄する
+	 */
+	public ConflictRetryPolicy(final int maxTrackedKeys) {
+		this.maxTrackedKeys = maxTrackedKeys;
+		this.conflictsByKey = new LinkedHashMap<String, AtomicLong>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, AtomicLong> eldest) {
+				return size() > maxTrackedKeys;
+			}
+		};
+	}
+
+	/**
+	 * 最大の試行回数を取得する。
+	 * @return 最大の試行回数
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * 最大の試行回数を設定する。デフォルトは10回。
+	 * @param maxAttempts 最大の試行回数。1以上
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts <= 0) {
+			throw new IllegalArgumentException("maxAttempts must be positive");
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * 最初の再試行までの待ち時間の上限(ミリ秒)を取得する。
+	 * @return 待ち時間の上限(ミリ秒)
+	 */
+	public long getBackoffBaseInMillis() {
+		return backoffBaseInMillis;
+	}
+
+	/**
+	 * 最初の再試行までの待ち時間の上限(ミリ秒)を設定する。デフォルトは5ミリ秒。0の場合は待たずに再試行する。
+	 * @param backoffBaseInMillis 待ち時間の上限(ミリ秒)
+	 */
+	public void setBackoffBaseInMillis(long backoffBaseInMillis) {
+		this.backoffBaseInMillis = backoffBaseInMillis;
+	}
+
+	/**
+	 * 再試行までの待ち時間の最大値(ミリ秒)を取得する。
+	 * @return 待ち時間の最大値(ミリ秒)
+	 */
+	public long getBackoffMaxInMillis() {
+		return backoffMaxInMillis;
+	}
+
+	/**
+	 * 再試行までの待ち時間の最大値(ミリ秒)を設定する。デフォルトは200ミリ秒。
+	 * @param backoffMaxInMillis 待ち時間の最大値(ミリ秒)
+	 */
+	public void setBackoffMaxInMillis(long backoffMaxInMillis) {
+		this.backoffMaxInMillis = backoffMaxInMillis;
+	}
+
+	/**
+	 * 競合の回数を記録するキーの最大数を取得する。
+	 * @return キーの最大数
+	 */
+	public int getMaxTrackedKeys() {
+		return maxTrackedKeys;
+	}
+
+	/**
+	 * 競合した後、再試行するまでの待ち時間を求める。
+	 * @param attempt 競合した試行の回数(1から)
+	 * @return 待ち時間(ミリ秒)
+	 */
+	public long backoff(int attempt) {
+		long base = backoffBaseInMillis;
+		if (base <= 0) {
+			return 0;
+		}
+		long ceiling = Math.min(backoffMaxInMillis, base << Math.min(attempt - 1, 20));
+		if (ceiling <= 0) {
+			return 0;
+		}
+		synchronized (random) {
+			return (long) (random.nextDouble() * (ceiling + 1));
+		}
+	}
+
+	/**
+	 * 更新を開始したことを記録する。
+	 */
+	public void updated() {
+		updateCount.incrementAndGet();
+	}
+
+	/**
+	 * 競合したことを記録する。
+	 * @param key 競合したキー
+	 */
+	public void conflicted(String key) {
+		conflictCount.incrementAndGet();
+		synchronized (conflictsByKey) {
+			AtomicLong count = conflictsByKey.get(key);
+			if (count == null) {
+				count = new AtomicLong();
+				conflictsByKey.put(key, count);
+			}
+			count.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 最大の試行回数まで競合して更新を諦めたことを記録する。
+	 */
+	public void exhausted() {
+		exhaustedCount.incrementAndGet();
+	}
+
+	/**
+	 * 更新した回数を取得する。
+	 * @return 更新した回数
+	 */
+	public long getUpdateCount() {
+		return updateCount.get();
+	}
+
+	/**
+	 * 競合した回数を取得する。
+	 * @return 競合した回数
+	 */
+	public long getConflictCount() {
+		return conflictCount.get();
+	}
+
+	/**
+	 * 最大の試行回数まで競合して更新を諦めた回数を取得する。
+	 * @return 更新を諦めた回数
+	 */
+	public long getExhaustedCount() {
+		return exhaustedCount.get();
+	}
+
+	/**
+	 * 更新1回あたりの競合の回数を取得する。
+	 * @return 競合の割合。更新していなければ0
+	 */
+	public double getConflictRate() {
+		long updates = updateCount.get();
+		return updates == 0 ? 0.0 : (double) conflictCount.get() / updates;
+	}
+
+	/**
+	 * 競合の多いキーを回数の多い順に取得する。
+	 * @param limit 取得する最大数
+	 * @return キーと競合の回数。回数の多い順
+	 */
+	public List<Map.Entry<String, Long>> getHottestKeys(int limit) {
+		ArrayList<Map.Entry<String, Long>> list;
+		synchronized (conflictsByKey) {
+			list = new ArrayList<Map.Entry<String, Long>>(conflictsByKey.size());
+			for (Map.Entry<String, AtomicLong> e: conflictsByKey.entrySet()) {
+				list.add(new AbstractMap.SimpleImmutableEntry<String, Long>(e.getKey(), e.getValue().get()));
+			}
+		}
+		Collections.sort(list, new Comparator<Map.Entry<String, Long>>() {
+			@Override
+			public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+				return o2.getValue().compareTo(o1.getValue());
+			}
+		});
+		return list.size() > limit ? new ArrayList<Map.Entry<String, Long>>(list.subList(0, limit)) : list;
+	}
+}
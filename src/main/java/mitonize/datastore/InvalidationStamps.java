@@ -0,0 +1,43 @@
+package mitonize.datastore;
+
+/**
+ * キーのハッシュ値で分けたストライプごとの無効化の回数。取得中に無効化されたキーの古い値を格納しないために使う。
+ * 無効化の影響は同じストライプのキーに限られるため、他のキーへの書き込みが続いても格納が拒否され続けることはない。
+ * <p>このクラスはスレッドセーフではない。呼び出し側で同期すること。</p>
+ */
+final class InvalidationStamps {
+	private static final int STRIPES = 256;
+
+	private final long[] counts = new long[STRIPES];
+
+	/**
+	 * キーのストライプの現在のスタンプを返す。
+	 * @param key キー文字列
+	 * @return スタンプ
+	 */
+	long stamp(String key) {
+		return counts[stripe(key)];
+	}
+
+	/**
+	 * キーのストライプのスタンプを進める。
+	 * @param key キー文字列
+	 */
+	void invalidate(String key) {
+		++counts[stripe(key)];
+	}
+
+	/**
+	 * すべてのストライプのスタンプを進める。
+	 */
+	void invalidateAll() {
+		for (int i = 0; i < STRIPES; ++i) {
+			++counts[i];
+		}
+	}
+
+	private static int stripe(String key) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & (STRIPES - 1);
+	}
+}
@@ -0,0 +1,167 @@
+package mitonize.datastore;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * キーのUTF-8のバイト列を1つの配列に詰めて保持するキーのリスト。
+ * キーごとに String を生成しないため、数百万のキーを持つタグでもオブジェクトヘッダのためのメモリを消費しない。
+ * <p>{@link #array()}、{@link #offsetAt(int)}、{@link #lengthAt(int)} を用いるとオブジェクトを生成せずに走査できる。
+ * {@link #get(int)} は呼び出すたびに String を生成し、生成した String は保持しない。</p>
+ * <p>生成した後は変更できない。</p>
+ */
+public final class KeyList extends AbstractList<String> implements RandomAccess {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final byte[] data;
+	/** キーの開始位置。末尾に最後のキーの終了位置を持つため、要素数はキーの数 + 1 */
+	private final int[] offsets;
+	private final int size;
+
+	KeyList(byte[] data, int[] offsets, int size) {
+		this.data = data;
+		this.offsets = offsets;
+		this.size = size;
+	}
+
+	/**
+	 * キーの数を返す。
+	 * @return キーの数
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * キーを String として返す。呼び出すたびに生成する。
+	 * @param index 位置
+	 * @return キー文字列
+	 */
+	@Override
+	public String get(int index) {
+		checkIndex(index);
+		return new String(data, offsets[index], offsets[index + 1] - offsets[index], UTF8);
+	}
+
+	/**
+	 * キーのバイト列を参照する読み取り専用のバッファを返す。
+	 * @param index 位置
+	 * @return キーのUTF-8のバイト列
+	 */
+	public ByteBuffer bytesAt(int index) {
+		checkIndex(index);
+		return ByteBuffer.wrap(data, offsets[index], offsets[index + 1] - offsets[index]).asReadOnlyBuffer();
+	}
+
+	/**
+	 * キーのバイト列を詰めた配列を返す。配列は共有しているため変更しないこと。
+	 * @return キーのバイト列を詰めた配列
+	 */
+	public byte[] array() {
+		return data;
+	}
+
+	/**
+	 * キーの {@link #array()} での開始位置を返す。
+	 * @param index 位置
+	 * @return 開始位置
+	 */
+	public int offsetAt(int index) {
+		checkIndex(index);
+		return offsets[index];
+	}
+
+	/**
+	 * キーのバイト数を返す。
+	 * @param index 位置
+	 * @return バイト数
+	 */
+	public int lengthAt(int index) {
+		checkIndex(index);
+		return offsets[index + 1] - offsets[index];
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+
+	/**
+	 * 文字列の配列から生成する。
+	 * @param keys キー文字列
+	 * @return キーのリスト
+	 */
+	public static KeyList of(String... keys) {
+		Builder builder = new Builder();
+		for (String key: keys) {
+			byte[] b = key.getBytes(UTF8);
+			builder.add(b, 0, b.length);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * キーのリストを組み立てる。
+	 */
+	public static final class Builder {
+		private byte[] data = new byte[4096];
+		private int[] offsets = new int[256];
+		private int size = 0;
+
+		/**
+		 * キーのバイト列を追加する。
+		 * @param b バイト列
+		 * @param offset 開始位置
+		 * @param length バイト数
+		 * @return この Builder
+		 */
+		public Builder add(byte[] b, int offset, int length) {
+			ensureData(length);
+			System.arraycopy(b, offset, data, offsets[size], length);
+			next(length);
+			return this;
+		}
+
+		/**
+		 * Base64エンコードされたキーのバイト列をデコードして追加する。
+		 * @param b エンコードされたバイト列
+		 * @param offset 開始位置
+		 * @param length バイト数
+		 * @return この Builder
+		 */
+		public Builder addBase64(byte[] b, int offset, int length) {
+			ensureData(Base64.decodedLength(length));
+			int decoded = Base64.decode(b, offset, length, data, offsets[size]);
+			next(decoded);
+			return this;
+		}
+
+		private void ensureData(int length) {
+			int required = offsets[size] + length;
+			if (required > data.length) {
+				data = Arrays.copyOf(data, Math.max(required, data.length * 2));
+			}
+		}
+
+		private void next(int length) {
+			if (size + 2 > offsets.length) {
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			}
+			offsets[size + 1] = offsets[size] + length;
+			++size;
+		}
+
+		/**
+		 * 追加したキーのリストを生成する。余分な領域は切り詰める。
+		 * @return キーのリスト
+		 */
+		public KeyList build() {
+			return new KeyList(Arrays.copyOf(data, offsets[size]), Arrays.copyOf(offsets, size + 1), size);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package mitonize.datastore;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * エンドポイントの死活監視、ソケットプールの整理、統計情報の出力などの保守タスクを実行する共有スケジューラ。
+ * <p>スレッドはプロセス内のすべての{@link SocketManager}やファクトリで共有され、スレッド数には上限がある。
+ * スレッドはデーモンスレッドとして稼働するため、JVMの終了を妨げない。</p>
+ * <p>スケジュールされるタスクは短時間で終了しなければならない。ソケットの接続待ちやスリープなどで
+ * スレッドをブロックすると、他のタスクの実行が遅延する。</p>
+ * <p>スレッド数はシステムプロパティ {@value #POOL_SIZE_PROPERTY} で指定できる(デフォルト:2)。</p>
+ */
+public final class MaintenanceScheduler {
+	/** スレッド数を指定するシステムプロパティ名 */
+	public static final String POOL_SIZE_PROPERTY = "mitonize.datastore.maintenanceThreads";
+
+	private static final int DEFAULT_POOL_SIZE = 2;
+
+	private static ScheduledThreadPoolExecutor shared;
+
+	private MaintenanceScheduler() {
+	}
+
+	/**
+	 * 共有の保守用スケジューラを取得する。初回呼び出し時に生成される。
+	 * 返却されたスケジューラは共有されているため、利用側で shutdown してはならない。
+	 * 不要になったタスクはスケジュール時に返却される ScheduledFuture でキャンセルすること。
+	 *
+	 * @return 共有の保守用スケジューラ
+	 */
+	public static synchronized ScheduledExecutorService getSharedExecutor() {
+		if (shared == null) {
+			int poolSize = Integer.getInteger(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE);
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(Math.max(1, poolSize), new DaemonThreadFactory());
+			// キャンセルされたタスクをキューに残さない
+			executor.setRemoveOnCancelPolicy(true);
+			executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+			shared = executor;
+		}
+		return shared;
+	}
+
+	/**
+	 * 保守用のデーモンスレッドを生成する。
+	 */
+	static class DaemonThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "okuyama-maintenance-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,754 @@
+package mitonize.datastore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * データストアから取得した値をプロセス内に保持するニアキャッシュ。
+ * <p>エントリ数あるいは値の容量(バイト)で上限を設定できる。上限に達した場合は参照頻度を考慮して追い出すエントリを決める
+ * (W-TinyLFU)。新しいエントリはまず小さなウィンドウ領域に格納され、ウィンドウから溢れたエントリは
+ * 主領域で最も長く参照されていないエントリと参照頻度を比較して、頻度の高い方が残される。
+ * これにより一度しか参照されないキーの大量読み出しでキャッシュ全体が置き換わることを防ぐ。</p>
+ * <p>有効期間はキーの接頭辞ごとに設定できる。また、キーが存在しないことも短時間キャッシュする(ネガティブキャッシュ)。</p>
+ * <p>キャッシュされた値のインスタンスは参照するスレッド間で共有されるため、取得した値を変更してはならない。</p>
+ * <p>再検証の間隔を設定すると、エントリと共にデータストア上のバージョンを保持し、参照頻度の高いエントリから順に
+ * バックグラウンドでバージョンを再検証する。バージョンが変わっていれば値を更新し、削除されていればエントリを破棄する。
+ * 他のプロセスによる更新が反映されるまでの時間は有効期間ではなく再検証の間隔で抑えられる。</p>
+ */
+public class NearCache {
+	/** 最大のセグメント数 */
+	private static final int MAX_SEGMENTS = 16;
+	/** 1セグメントあたりの最小エントリ数。これを下回る場合はセグメント数を減らす。 */
+	private static final int MIN_ENTRIES_PER_SEGMENT = 64;
+	/** ウィンドウ領域に割り当てるエントリ数の割合(%) */
+	private static final int WINDOW_PERCENTAGE = 1;
+	/** 1エントリあたりに見積もる管理領域の容量(バイト) */
+	static final int ENTRY_OVERHEAD = 64;
+
+	/**
+	 * キャッシュのエントリ。
+	 */
+	public static class Entry {
+		final String key;
+		final Object value;
+		final boolean negative;
+		final int weight;
+		final long expiresAt;
+		final String version;
+
+		Entry(String key, Object value, boolean negative, int weight, long expiresAt, String version) {
+			this.key = key;
+			this.value = value;
+			this.negative = negative;
+			this.weight = weight;
+			this.expiresAt = expiresAt;
+			this.version = version;
+		}
+
+		/**
+		 * キーを取得する。
+		 * @return キー
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * キャッシュされた値を取得する。
+		 * @return キャッシュされた値。ネガティブキャッシュの場合は null
+		 */
+		public Object getValue() {
+			return value;
+		}
+
+		/**
+		 * キーが存在しないことをキャッシュしたエントリかを返す。
+		 * @return ネガティブキャッシュならtrue
+		 */
+		public boolean isNegative() {
+			return negative;
+		}
+
+		/**
+		 * エントリの有効期限(エポックミリ秒)を取得する。
+		 * @return 有効期限(エポックミリ秒)
+		 */
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+
+		/**
+		 * 値を取得した時点のデータストア上のバージョンを取得する。
+		 * @return バージョン文字列。バージョンを保持していない場合は null
+		 */
+		public String getVersion() {
+			return version;
+		}
+	}
+
+	final Segment[] segments;
+	private final int segmentMask;
+	private final int maxEntries;
+	private long maxWeight = 0;
+
+	/** 接頭辞ごとの有効期間。デフォルト値は60000ミリ秒 */
+	private final TimeToLiveRules timeToLiveRules = new TimeToLiveRules(60 * 1000);
+	/** キーが存在しないことをキャッシュする期間(ミリ秒) */
+	private volatile long negativeTimeToLiveInMillis = 1000;
+
+	/** バージョンを再検証する間隔(ミリ秒)。0なら再検証しない。 */
+	private long revalidationIntervalInMillis = 0;
+	/** 1回の再検証で対象とする最大エントリ数 */
+	private int revalidationMaxEntries = 1000;
+	/** 再検証でまとめて問い合わせるエントリ数 */
+	private int revalidationBatchSize = 100;
+
+	final NearCacheStatistics statistics = new NearCacheStatistics();
+
+	/**
+	 * 最大エントリ数を指定してニアキャッシュを生成する。
+	 * @param maxEntries 最大エントリ数
+	 * @throws IllegalArgumentException 最大エントリ数が1未満の場合
+	 */
+	public NearCache(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be positive. " + maxEntries);
+		}
+		int count = 1;
+		while (count < MAX_SEGMENTS && count * 2 * MIN_ENTRIES_PER_SEGMENT <= maxEntries) {
+			count <<= 1;
+		}
+		this.maxEntries = maxEntries;
+		this.segments = new Segment[count];
+		this.segmentMask = count - 1;
+		for (int i = 0; i < count; ++i) {
+			segments[i] = new Segment((maxEntries + count - 1) / count);
+		}
+	}
+
+	/**
+	 * 最大エントリ数を取得する。
+	 * @return 最大エントリ数
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * 値の容量の上限(バイト)を取得する。
+	 * @return 値の容量の上限(バイト)。0なら容量による制限なし
+	 */
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	/**
+	 * 値の容量の上限(バイト)を設定する。容量はデータストア上のペイロードの大きさで見積もる。(デフォルト:0)
+	 * @param maxWeight 値の容量の上限(バイト)。0なら容量による制限なし
+	 */
+	public void setMaxWeight(long maxWeight) {
+		this.maxWeight = maxWeight;
+		long perSegment = maxWeight <= 0 ? 0 : Math.max(1, maxWeight / segments.length);
+		for (Segment segment: segments) {
+			segment.setMaxWeight(perSegment);
+		}
+	}
+
+	/**
+	 * 有効期間のデフォルト値(ミリ秒)を取得する。
+	 * @return 有効期間のデフォルト値(ミリ秒)
+	 */
+	public long getDefaultTimeToLiveInMillis() {
+		return timeToLiveRules.getDefault();
+	}
+
+	/**
+	 * 有効期間のデフォルト値(ミリ秒)を設定する。接頭辞で指定した有効期間に一致しないキーに適用される。(デフォルト:60000ミリ秒)
+	 * @param defaultTimeToLiveInMillis 有効期間のデフォルト値(ミリ秒)。0ならキャッシュしない
+	 */
+	public void setDefaultTimeToLiveInMillis(long defaultTimeToLiveInMillis) {
+		timeToLiveRules.setDefault(defaultTimeToLiveInMillis);
+	}
+
+	/**
+	 * キーが存在しないことをキャッシュする期間(ミリ秒)を取得する。
+	 * @return キーが存在しないことをキャッシュする期間(ミリ秒)
+	 */
+	public long getNegativeTimeToLiveInMillis() {
+		return negativeTimeToLiveInMillis;
+	}
+
+	/**
+	 * キーが存在しないことをキャッシュする期間(ミリ秒)を設定する。(デフォルト:1000ミリ秒)
+	 * @param negativeTimeToLiveInMillis キーが存在しないことをキャッシュする期間(ミリ秒)。0ならキャッシュしない
+	 */
+	public void setNegativeTimeToLiveInMillis(long negativeTimeToLiveInMillis) {
+		this.negativeTimeToLiveInMillis = negativeTimeToLiveInMillis;
+	}
+
+	/**
+	 * 指定した接頭辞で始まるキーの有効期間(ミリ秒)を設定する。複数の接頭辞に一致する場合は最も長い接頭辞の設定が適用される。
+	 * @param keyPrefix キーの接頭辞
+	 * @param timeToLiveInMillis 有効期間(ミリ秒)。0ならキャッシュしない
+	 */
+	public void setTimeToLiveInMillis(String keyPrefix, long timeToLiveInMillis) {
+		timeToLiveRules.set(keyPrefix, timeToLiveInMillis);
+	}
+
+	/**
+	 * キーに適用される有効期間(ミリ秒)を取得する。
+	 * @param key キー
+	 * @return 有効期間(ミリ秒)
+	 */
+	public long getTimeToLiveInMillis(String key) {
+		return timeToLiveRules.get(key);
+	}
+
+	/**
+	 * バージョンを再検証する間隔(ミリ秒)を取得する。
+	 * @return バージョンを再検証する間隔(ミリ秒)。0なら再検証しない
+	 */
+	public long getRevalidationIntervalInMillis() {
+		return revalidationIntervalInMillis;
+	}
+
+	/**
+	 * バージョンを再検証する間隔(ミリ秒)を設定する。0より大きい値を設定すると、値と共にバージョンを取得して保持し、
+	 * 定期的に再検証する。ファクトリに設定する前に指定すること。(デフォルト:0)
+	 * @param revalidationIntervalInMillis バージョンを再検証する間隔(ミリ秒)。0なら再検証しない
+	 */
+	public void setRevalidationIntervalInMillis(long revalidationIntervalInMillis) {
+		this.revalidationIntervalInMillis = revalidationIntervalInMillis;
+	}
+
+	/**
+	 * バージョンを保持して再検証するモードかを返す。
+	 * @return 再検証の間隔が設定されていればtrue
+	 */
+	public boolean isRevalidationEnabled() {
+		return revalidationIntervalInMillis > 0;
+	}
+
+	/**
+	 * 1回の再検証で対象とする最大エントリ数を取得する。
+	 * @return 1回の再検証で対象とする最大エントリ数
+	 */
+	public int getRevalidationMaxEntries() {
+		return revalidationMaxEntries;
+	}
+
+	/**
+	 * 1回の再検証で対象とする最大エントリ数を設定する。参照頻度の高いエントリから順に対象とする。(デフォルト:1000)
+	 * @param revalidationMaxEntries 1回の再検証で対象とする最大エントリ数
+	 */
+	public void setRevalidationMaxEntries(int revalidationMaxEntries) {
+		this.revalidationMaxEntries = revalidationMaxEntries;
+	}
+
+	/**
+	 * 再検証でまとめて問い合わせるエントリ数を取得する。
+	 * @return 再検証でまとめて問い合わせるエントリ数
+	 */
+	public int getRevalidationBatchSize() {
+		return revalidationBatchSize;
+	}
+
+	/**
+	 * 再検証でまとめて問い合わせるエントリ数を設定する。1つの接続でこの件数のリクエストを続けて送信してから応答を読み取る。(デフォルト:100)
+	 * @param revalidationBatchSize 再検証でまとめて問い合わせるエントリ数
+	 */
+	public void setRevalidationBatchSize(int revalidationBatchSize) {
+		this.revalidationBatchSize = revalidationBatchSize;
+	}
+
+	/**
+	 * 統計情報を取得する。
+	 * @return 統計情報
+	 */
+	public NearCacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	Segment segmentFor(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & segmentMask];
+	}
+
+	/**
+	 * キーに対応するエントリを参照する。有効期限切れのエントリは破棄され、null を返す。
+	 * @param key キー
+	 * @return エントリ。キャッシュされていない場合は null
+	 */
+	public Entry lookup(String key) {
+		Entry entry = segmentFor(key).get(key, System.currentTimeMillis());
+		if (entry == null) {
+			statistics.missCount.incrementAndGet();
+		} else {
+			statistics.hitCount.incrementAndGet();
+			if (entry.negative) {
+				statistics.negativeHitCount.incrementAndGet();
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * キーに対応するスタンプを取得する。データストアから値を読み出す前に取得して {@link #put(String, Object, int, long)} に渡すと、
+	 * 読み出し中に無効化された場合に古い値を格納することを防げる。
+	 * @param key キー
+	 * @return スタンプ
+	 */
+	public long stamp(String key) {
+		return segmentFor(key).stamp();
+	}
+
+	/**
+	 * 値をキャッシュに格納する。
+	 * @param key キー
+	 * @param value 値
+	 * @param weight 値の容量(バイト)の見積もり
+	 */
+	public void put(String key, Object value, int weight) {
+		put(key, value, weight, segmentFor(key).stamp());
+	}
+
+	/**
+	 * スタンプの取得後に無効化されていなければ値をキャッシュに格納する。
+	 * @param key キー
+	 * @param value 値
+	 * @param weight 値の容量(バイト)の見積もり
+	 * @param stamp {@link #stamp(String)}で取得したスタンプ
+	 * @return 格納した場合は true
+	 */
+	public boolean put(String key, Object value, int weight, long stamp) {
+		return put(key, value, weight, null, stamp);
+	}
+
+	/**
+	 * スタンプの取得後に無効化されていなければ値をバージョンと共にキャッシュに格納する。
+	 * @param key キー
+	 * @param value 値
+	 * @param weight 値の容量(バイト)の見積もり
+	 * @param version データストア上のバージョン。保持しない場合は null
+	 * @param stamp {@link #stamp(String)}で取得したスタンプ
+	 * @return 格納した場合は true
+	 */
+	public boolean put(String key, Object value, int weight, String version, long stamp) {
+		long ttl = getTimeToLiveInMillis(key);
+		if (ttl <= 0) {
+			return false;
+		}
+		Entry entry = new Entry(key, value, false, weight + key.length() * 2 + ENTRY_OVERHEAD, System.currentTimeMillis() + ttl, version);
+		return store(entry, stamp);
+	}
+
+	/**
+	 * スタンプの取得後に無効化されていなければ、キーが存在しないことをキャッシュに格納する。
+	 * @param key キー
+	 * @param stamp {@link #stamp(String)}で取得したスタンプ
+	 * @return 格納した場合は true
+	 */
+	public boolean putNegative(String key, long stamp) {
+		long ttl = Math.min(negativeTimeToLiveInMillis, getTimeToLiveInMillis(key));
+		if (ttl <= 0) {
+			return false;
+		}
+		Entry entry = new Entry(key, null, true, key.length() * 2 + ENTRY_OVERHEAD, System.currentTimeMillis() + ttl, null);
+		return store(entry, stamp);
+	}
+
+	boolean store(Entry entry, long stamp) {
+		if (segmentFor(entry.key).put(entry, stamp)) {
+			statistics.putCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * キーに対応するエントリを無効化する。
+	 * @param key キー
+	 */
+	public void invalidate(String key) {
+		segmentFor(key).remove(key);
+		statistics.invalidationCount.incrementAndGet();
+	}
+
+	/**
+	 * すべてのエントリを無効化する。
+	 */
+	public void invalidateAll() {
+		for (Segment segment: segments) {
+			segment.clear();
+		}
+		statistics.invalidationCount.incrementAndGet();
+	}
+
+	/**
+	 * バージョンを保持しているエントリのうち、参照頻度の高いものから順に取得する。
+	 * @param limit 取得する最大件数
+	 * @return 参照頻度の高い順に並べたエントリのリスト
+	 */
+	public List<Entry> hottestEntries(int limit) {
+		if (limit <= 0) {
+			return Collections.emptyList();
+		}
+		// 参照頻度の低いものが先頭になるヒープで上位 limit 件を保持する
+		PriorityQueue<RankedEntry> heap = new PriorityQueue<RankedEntry>(limit + 1);
+		for (Segment segment: segments) {
+			segment.collectVersioned(heap, limit);
+		}
+		ArrayList<Entry> list = new ArrayList<Entry>(heap.size());
+		while (!heap.isEmpty()) {
+			list.add(heap.poll().entry);
+		}
+		Collections.reverse(list);
+		return list;
+	}
+
+	/**
+	 * 再検証の結果、バージョンが変わっていなかったエントリの有効期限を延長する。
+	 * 再検証中に値が置き換えられたり無効化された場合は何もしない。
+	 * @param entry 再検証したエントリ
+	 * @param stamp 再検証の前に{@link #stamp(String)}で取得したスタンプ
+	 * @return 延長した場合は true
+	 */
+	public boolean renew(Entry entry, long stamp) {
+		statistics.revalidationCount.incrementAndGet();
+		Entry renewed = new Entry(entry.key, entry.value, false, entry.weight,
+				System.currentTimeMillis() + getTimeToLiveInMillis(entry.key), entry.version);
+		return segmentFor(entry.key).replace(entry, renewed, stamp);
+	}
+
+	/**
+	 * 再検証の結果、バージョンが変わっていたエントリを新しい値で置き換える。
+	 * 再検証中に値が置き換えられたり無効化された場合は何もしない。
+	 * @param entry 再検証したエントリ
+	 * @param value 新しい値
+	 * @param weight 新しい値の容量(バイト)の見積もり
+	 * @param version 新しいバージョン
+	 * @param stamp 再検証の前に{@link #stamp(String)}で取得したスタンプ
+	 * @return 置き換えた場合は true
+	 */
+	public boolean refresh(Entry entry, Object value, int weight, String version, long stamp) {
+		statistics.revalidationCount.incrementAndGet();
+		Entry refreshed = new Entry(entry.key, value, false, weight + entry.key.length() * 2 + ENTRY_OVERHEAD,
+				System.currentTimeMillis() + getTimeToLiveInMillis(entry.key), version);
+		if (segmentFor(entry.key).replace(entry, refreshed, stamp)) {
+			statistics.staleCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 再検証の結果、データストアから削除されていたエントリを破棄する。
+	 * @param entry 再検証したエントリ
+	 * @param stamp 再検証の前に{@link #stamp(String)}で取得したスタンプ
+	 * @return 破棄した場合は true
+	 */
+	public boolean discard(Entry entry, long stamp) {
+		statistics.revalidationCount.incrementAndGet();
+		if (segmentFor(entry.key).replace(entry, null, stamp)) {
+			statistics.staleCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 参照頻度で順位付けしたエントリ。
+	 */
+	static class RankedEntry implements Comparable<RankedEntry> {
+		final Entry entry;
+		final int frequency;
+
+		RankedEntry(Entry entry, int frequency) {
+			this.entry = entry;
+			this.frequency = frequency;
+		}
+
+		@Override
+		public int compareTo(RankedEntry o) {
+			return frequency < o.frequency ? -1 : (frequency == o.frequency ? 0 : 1);
+		}
+	}
+
+	/**
+	 * キャッシュされているエントリ数を取得する。有効期限切れで未破棄のエントリも含む。
+	 * @return エントリ数
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment: segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/**
+	 * キャッシュされている値の容量(バイト)の見積もりを取得する。
+	 * @return 値の容量(バイト)の見積もり
+	 */
+	public long weight() {
+		long weight = 0;
+		for (Segment segment: segments) {
+			weight += segment.weight();
+		}
+		return weight;
+	}
+
+	/**
+	 * キャッシュを分割した単位。セグメントごとに排他制御を行う。
+	 */
+	class Segment {
+		final LinkedHashMap<String, Entry> window = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		final LinkedHashMap<String, Entry> main = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		final FrequencySketch sketch;
+		final int windowMaxEntries;
+		final int mainMaxEntries;
+		private long maxWeight = 0;
+		private long weight = 0;
+		/** 無効化されるたびに増加する */
+		private long invalidations = 0;
+
+		Segment(int maxEntries) {
+			this.windowMaxEntries = Math.max(1, maxEntries * WINDOW_PERCENTAGE / 100);
+			this.mainMaxEntries = Math.max(0, maxEntries - windowMaxEntries);
+			this.sketch = new FrequencySketch(maxEntries);
+		}
+
+		synchronized void setMaxWeight(long maxWeight) {
+			this.maxWeight = maxWeight;
+			evict();
+		}
+
+		synchronized long stamp() {
+			return invalidations;
+		}
+
+		synchronized int size() {
+			return window.size() + main.size();
+		}
+
+		synchronized long weight() {
+			return weight;
+		}
+
+		synchronized Entry get(String key, long now) {
+			sketch.increment(key.hashCode());
+			Entry entry = window.get(key);
+			if (entry == null) {
+				entry = main.get(key);
+			}
+			if (entry == null) {
+				return null;
+			}
+			if (entry.expiresAt <= now) {
+				removeEntry(key);
+				statistics.expirationCount.incrementAndGet();
+				return null;
+			}
+			return entry;
+		}
+
+		synchronized boolean put(Entry entry, long stamp) {
+			if (stamp != invalidations) {
+				return false;
+			}
+			Entry old = main.remove(entry.key);
+			if (old != null) {
+				weight -= old.weight;
+				main.put(entry.key, entry);
+			} else {
+				old = window.remove(entry.key);
+				if (old != null) {
+					weight -= old.weight;
+				}
+				window.put(entry.key, entry);
+			}
+			weight += entry.weight;
+			evict();
+			return true;
+		}
+
+		synchronized void remove(String key) {
+			removeEntry(key);
+			++invalidations;
+		}
+
+		/**
+		 * 現在のエントリが expected と同一であれば replacement で置き換える。replacement が null なら除去する。
+		 */
+		synchronized boolean replace(Entry expected, Entry replacement, long stamp) {
+			if (stamp != invalidations) {
+				return false;
+			}
+			LinkedHashMap<String, Entry> map = window;
+			Entry current = window.get(expected.key);
+			if (current == null) {
+				map = main;
+				current = main.get(expected.key);
+			}
+			if (current != expected) {
+				return false;
+			}
+			weight -= current.weight;
+			if (replacement == null) {
+				map.remove(expected.key);
+			} else {
+				map.put(expected.key, replacement);
+				weight += replacement.weight;
+				evict();
+			}
+			return true;
+		}
+
+		synchronized void collectVersioned(PriorityQueue<RankedEntry> heap, int limit) {
+			collectVersioned(window, heap, limit);
+			collectVersioned(main, heap, limit);
+		}
+
+		private void collectVersioned(LinkedHashMap<String, Entry> map, PriorityQueue<RankedEntry> heap, int limit) {
+			for (Entry entry: map.values()) {
+				if (entry.version == null || entry.negative) {
+					continue;
+				}
+				int frequency = sketch.frequency(entry.key.hashCode());
+				if (heap.size() < limit) {
+					heap.add(new RankedEntry(entry, frequency));
+				} else if (heap.peek().frequency < frequency) {
+					heap.poll();
+					heap.add(new RankedEntry(entry, frequency));
+				}
+			}
+		}
+
+		synchronized void clear() {
+			window.clear();
+			main.clear();
+			weight = 0;
+			++invalidations;
+		}
+
+		private void removeEntry(String key) {
+			Entry old = window.remove(key);
+			if (old == null) {
+				old = main.remove(key);
+			}
+			if (old != null) {
+				weight -= old.weight;
+			}
+		}
+
+		/**
+		 * ウィンドウ領域から溢れたエントリを主領域に移す。主領域が一杯なら参照頻度の低い方を追い出す。
+		 * その後、容量の上限を超えていれば最も長く参照されていないエントリから追い出す。
+		 */
+		private void evict() {
+			while (window.size() > windowMaxEntries) {
+				Entry candidate = removeEldest(window);
+				if (main.size() < mainMaxEntries) {
+					main.put(candidate.key, candidate);
+					continue;
+				}
+				Entry victim = mainMaxEntries > 0 ? eldest(main) : null;
+				if (victim != null && sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+					main.remove(victim.key);
+					weight -= victim.weight;
+					main.put(candidate.key, candidate);
+				} else {
+					weight -= candidate.weight;
+				}
+				statistics.evictionCount.incrementAndGet();
+			}
+			while (maxWeight > 0 && weight > maxWeight && (!main.isEmpty() || !window.isEmpty())) {
+				Entry victim = removeEldest(main.isEmpty() ? window : main);
+				weight -= victim.weight;
+				statistics.evictionCount.incrementAndGet();
+			}
+		}
+
+		private Entry eldest(LinkedHashMap<String, Entry> map) {
+			return map.values().iterator().next();
+		}
+
+		private Entry removeEldest(LinkedHashMap<String, Entry> map) {
+			Iterator<Entry> it = map.values().iterator();
+			Entry entry = it.next();
+			it.remove();
+			return entry;
+		}
+	}
+
+	/**
+	 * キーの参照頻度を概算する Count-Min Sketch。
+	 * 一定回数記録するたびにすべてのカウンタを半減させ、過去の参照頻度の影響を減衰させる。
+	 */
+	static class FrequencySketch {
+		private static final int[] SEEDS = { 0x97cb3127, 0xbd5ed6b5, 0xc2b2ae35, 0x27d4eb2f };
+		private static final int MAX_COUNT = 15;
+
+		private final int[] table;
+		private final int mask;
+		private final int sampleSize;
+		private int size = 0;
+
+		FrequencySketch(int maxEntries) {
+			int length = 16;
+			while (length < maxEntries && length < (1 << 24)) {
+				length <<= 1;
+			}
+			this.table = new int[length];
+			this.mask = length - 1;
+			this.sampleSize = Math.max(10 * maxEntries, 16);
+		}
+
+		private int indexOf(int hash, int i) {
+			long h = (hash + SEEDS[i]) * (long) SEEDS[i];
+			h += h >>> 32;
+			return (int) h & mask;
+		}
+
+		private static int spread(int hash) {
+			hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+			return (hash >>> 16) ^ hash;
+		}
+
+		void increment(int hash) {
+			hash = spread(hash);
+			boolean added = false;
+			for (int i = 0; i < SEEDS.length; ++i) {
+				int index = indexOf(hash, i);
+				if (table[index] < MAX_COUNT) {
+					table[index]++;
+					added = true;
+				}
+			}
+			if (added && ++size >= sampleSize) {
+				reset();
+			}
+		}
+
+		int frequency(int hash) {
+			hash = spread(hash);
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < SEEDS.length; ++i) {
+				frequency = Math.min(frequency, table[indexOf(hash, i)]);
+			}
+			return frequency;
+		}
+
+		private void reset() {
+			for (int i = 0; i < table.length; ++i) {
+				table[i] >>>= 1;
+			}
+			size /= 2;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package mitonize.datastore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link NearCache}のヒット率などの統計情報。値は随時更新される。
+ */
+public class NearCacheStatistics {
+	final AtomicLong hitCount = new AtomicLong();
+	final AtomicLong negativeHitCount = new AtomicLong();
+	final AtomicLong missCount = new AtomicLong();
+	final AtomicLong putCount = new AtomicLong();
+	final AtomicLong evictionCount = new AtomicLong();
+	final AtomicLong expirationCount = new AtomicLong();
+	final AtomicLong invalidationCount = new AtomicLong();
+	final AtomicLong revalidationCount = new AtomicLong();
+	final AtomicLong staleCount = new AtomicLong();
+
+	/**
+	 * キャッシュにヒットした回数を取得する。存在しないことをキャッシュしていた場合(ネガティブキャッシュ)も含む。
+	 * @return キャッシュにヒットした回数
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * 存在しないことをキャッシュしていたエントリにヒットした回数を取得する。
+	 * @return ネガティブキャッシュにヒットした回数
+	 */
+	public long getNegativeHitCount() {
+		return negativeHitCount.get();
+	}
+
+	/**
+	 * キャッシュにヒットしなかった回数を取得する。
+	 * @return キャッシュにヒットしなかった回数
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * キャッシュに格納した回数を取得する。
+	 * @return キャッシュに格納した回数
+	 */
+	public long getPutCount() {
+		return putCount.get();
+	}
+
+	/**
+	 * 容量の上限によって追い出された、あるいは格納が見送られたエントリの数を取得する。
+	 * @return 追い出されたエントリの数
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * 有効期限切れで破棄されたエントリの数を取得する。
+	 * @return 有効期限切れで破棄されたエントリの数
+	 */
+	public long getExpirationCount() {
+		return expirationCount.get();
+	}
+
+	/**
+	 * 書き込みなどによって無効化された回数を取得する。
+	 * @return 無効化された回数
+	 */
+	public long getInvalidationCount() {
+		return invalidationCount.get();
+	}
+
+	/**
+	 * バージョンを再検証したエントリの数を取得する。
+	 * @return 再検証したエントリの数
+	 */
+	public long getRevalidationCount() {
+		return revalidationCount.get();
+	}
+
+	/**
+	 * 再検証でバージョンが変わっていた、あるいは削除されていたために置き換えたエントリの数を取得する。
+	 * @return 再検証で古いと判明したエントリの数
+	 */
+	public long getStaleCount() {
+		return staleCount.get();
+	}
+
+	/**
+	 * 参照の総数を取得する。
+	 * @return ヒットした回数とヒットしなかった回数の和
+	 */
+	public long getRequestCount() {
+		return getHitCount() + getMissCount();
+	}
+
+	/**
+	 * ヒット率を取得する。
+	 * @return ヒット率(0.0～1.0)。参照が1度もない場合は0.0
+	 */
+	public double getHitRate() {
+		long hit = getHitCount();
+		long total = hit + getMissCount();
+		return total == 0 ? 0.0 : (double) hit / total;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("NearCacheStatistics(hit:").append(getHitCount());
+		builder.append(", negativeHit:").append(getNegativeHitCount());
+		builder.append(", miss:").append(getMissCount());
+		builder.append(", put:").append(getPutCount());
+		builder.append(", eviction:").append(getEvictionCount());
+		builder.append(", expiration:").append(getExpirationCount());
+		builder.append(", invalidation:").append(getInvalidationCount());
+		builder.append(", revalidation:").append(getRevalidationCount());
+		builder.append(", stale:").append(getStaleCount());
+		builder.append(", hitRate:").append(String.format("%.3f", getHitRate()));
+		builder.append(")");
+		return builder.toString();
+	}
+}
@@ -0,0 +1,345 @@
+package mitonize.datastore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Javaヒープの外(ダイレクトバッファ)にデータストアから取得したバイト列を保持するキャッシュ。
+ * <p>値はデシリアライズせずに圧縮されたままのバイト列で保持するため、{@link NearCache}よりも
+ * 多くのエントリをGCの負荷をかけずに保持できる。値の復元はヒットした時に呼び出し側で行う。</p>
+ * <p>メモリは固定長のスラブ単位で確保し、スラブはサイズクラス(64バイトから2倍ずつ)ごとの
+ * チャンクに分割して割り当てる。確保したスラブは解放しない。メモリの上限に達した後は
+ * 同じサイズクラスの中で最も長く参照されていないエントリを追い出して領域を再利用する。
+ * 同じサイズクラスに追い出せるエントリがない場合は格納しない。</p>
+ * <p>スラブの大きさを超えるバイト列は格納しない。</p>
+ * <p>このクラスはスレッドセーフである。</p>
+ */
+public class OffHeapCache implements RawValueCache {
+	/** 最小のチャンクの大きさ(バイト) */
+	static final int MIN_CHUNK_SIZE = 64;
+	/** スラブの大きさ(バイト)のデフォルト値 */
+	static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+	/**
+	 * 格納したバイト列の位置と属性。
+	 */
+	static class Slot {
+		final String key;
+		final SizeClass sizeClass;
+		final long address;
+		final int length;
+		final long expiresAt;
+		final String version;
+
+		Slot(String key, SizeClass sizeClass, long address, int length, long expiresAt, String version) {
+			this.key = key;
+			this.sizeClass = sizeClass;
+			this.address = address;
+			this.length = length;
+			this.expiresAt = expiresAt;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * 同じ大きさのチャンクの空きリストと、チャンクを利用しているエントリの参照順序。
+	 */
+	static class SizeClass {
+		final int chunkSize;
+		/** 空いているチャンクのアドレス(スラブ番号×スラブの大きさ＋オフセット) */
+		final ArrayDeque<Long> freeChunks = new ArrayDeque<Long>();
+		/** 参照順に並べたエントリ。先頭が最も長く参照されていない。 */
+		final LinkedHashMap<String, Slot> entries = new LinkedHashMap<String, Slot>(16, 0.75f, true);
+
+		SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+	}
+
+	private final long maxMemory;
+	private final int slabSize;
+	private final int maxSlabs;
+	private final SizeClass[] sizeClasses;
+	private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	private final HashMap<String, Slot> index = new HashMap<String, Slot>();
+	private final TimeToLiveRules timeToLiveRules = new TimeToLiveRules(60 * 1000);
+	private final NearCacheStatistics statistics = new NearCacheStatistics();
+	/** 取得中に無効化されたキーを格納しないための、キーごとのスタンプ */
+	private final InvalidationStamps invalidations = new InvalidationStamps();
+	private long usedBytes = 0;
+
+	/**
+	 * スラブの大きさを1MBとしてキャッシュを生成する。
+	 * @param maxMemory 確保するメモリの上限(バイト)
+	 */
+	public OffHeapCache(long maxMemory) {
+		this(maxMemory, DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * キャッシュを生成する。
+	 * @param maxMemory 確保するメモリの上限(バイト)
+	 * @param slabSize スラブの大きさ(バイト)。格納できるバイト列の最大長でもある。
+	 */
+	public OffHeapCache(long maxMemory, int slabSize) {
+		if (slabSize < MIN_CHUNK_SIZE) {
+			throw new IllegalArgumentException("slabSize must be greater than or equal to " + MIN_CHUNK_SIZE);
+		}
+		if (maxMemory < slabSize) {
+			throw new IllegalArgumentException("maxMemory must be greater than or equal to slabSize");
+		}
+		this.maxMemory = maxMemory;
+		this.slabSize = slabSize;
+		this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, maxMemory / slabSize);
+
+		ArrayList<SizeClass> classes = new ArrayList<SizeClass>();
+		for (int size = MIN_CHUNK_SIZE; size < slabSize; size *= 2) {
+			classes.add(new SizeClass(size));
+		}
+		classes.add(new SizeClass(slabSize));
+		this.sizeClasses = classes.toArray(new SizeClass[classes.size()]);
+	}
+
+	/**
+	 * 確保するメモリの上限を取得する。
+	 * @return メモリの上限(バイト)
+	 */
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+
+	/**
+	 * スラブの大きさを取得する。
+	 * @return スラブの大きさ(バイト)
+	 */
+	public int getSlabSize() {
+		return slabSize;
+	}
+
+	/**
+	 * 有効期間(ミリ秒)のデフォルト値を取得する。
+	 * @return 有効期間(ミリ秒)
+	 */
+	public long getDefaultTimeToLiveInMillis() {
+		return timeToLiveRules.getDefault();
+	}
+
+	/**
+	 * 有効期間(ミリ秒)のデフォルト値を設定する。デフォルトは60000ミリ秒。
+	 * @param defaultTimeToLiveInMillis 有効期間(ミリ秒)。0の場合はキャッシュしない
+	 */
+	public void setDefaultTimeToLiveInMillis(long defaultTimeToLiveInMillis) {
+		timeToLiveRules.setDefault(defaultTimeToLiveInMillis);
+	}
+
+	/**
+	 * キーの接頭辞ごとに有効期間を設定する。複数の接頭辞に一致する場合は最も長い接頭辞の設定が適用される。
+	 * @param keyPrefix キーの接頭辞
+	 * @param timeToLiveInMillis 有効期間(ミリ秒)。0の場合はキャッシュしない
+	 */
+	public void setTimeToLiveInMillis(String keyPrefix, long timeToLiveInMillis) {
+		timeToLiveRules.set(keyPrefix, timeToLiveInMillis);
+	}
+
+	/**
+	 * キーに適用される有効期間(ミリ秒)を取得する。
+	 * @param key キー文字列
+	 * @return 有効期間(ミリ秒)
+	 */
+	public long getTimeToLiveInMillis(String key) {
+		return timeToLiveRules.get(key);
+	}
+
+	/**
+	 * キャッシュからバイト列を取得する。返却されるバイト列はヒープ上へのコピーである。
+	 * @param key キー文字列
+	 * @return バイト列(ByteBuffer)とバージョン。キャッシュにない場合は null
+	 */
+	@Override
+	public synchronized VersionedValue get(String key) {
+		Slot slot = index.get(key);
+		if (slot == null) {
+			statistics.missCount.incrementAndGet();
+			return null;
+		}
+		if (slot.expiresAt <= System.currentTimeMillis()) {
+			release(slot);
+			statistics.expirationCount.incrementAndGet();
+			statistics.missCount.incrementAndGet();
+			return null;
+		}
+		// 参照順序を更新する
+		slot.sizeClass.entries.get(key);
+
+		byte[] bytes = new byte[slot.length];
+		ByteBuffer slab = slabs.get((int) (slot.address / slabSize)).duplicate();
+		slab.position((int) (slot.address % slabSize));
+		slab.get(bytes);
+		statistics.hitCount.incrementAndGet();
+		return new VersionedValue(ByteBuffer.wrap(bytes), slot.version);
+	}
+
+	/**
+	 * 値を取得する前にキーのスタンプを取得する。取得後に{@link #put(String, ByteBuffer, String, long)}に渡すと、
+	 * 取得中に無効化されたキーの古い値を格納しない。
+	 * @param key キー文字列
+	 * @return スタンプ
+	 */
+	@Override
+	public synchronized long stamp(String key) {
+		return invalidations.stamp(key);
+	}
+
+	/**
+	 * バイト列をキャッシュに格納する。既存のエントリは置き換える。
+	 * @param key キー文字列
+	 * @param raw バイト列。position から limit までを格納する
+	 * @param version バージョン。保持しない場合は null
+	 * @param stamp 値を取得する前に{@link #stamp(String)}で得たスタンプ
+	 * @return 格納した場合は true
+	 */
+	@Override
+	public synchronized boolean put(String key, ByteBuffer raw, String version, long stamp) {
+		if (stamp != invalidations.stamp(key)) {
+			return false;
+		}
+		long ttl = getTimeToLiveInMillis(key);
+		if (ttl <= 0) {
+			return false;
+		}
+		Slot old = index.get(key);
+		if (old != null) {
+			release(old);
+		}
+		int length = raw.remaining();
+		if (length > slabSize) {
+			statistics.evictionCount.incrementAndGet();
+			return false;
+		}
+		SizeClass sizeClass = sizeClassFor(length);
+		Long address = allocate(sizeClass);
+		if (address == null) {
+			statistics.evictionCount.incrementAndGet();
+			return false;
+		}
+		ByteBuffer slab = slabs.get((int) (address / slabSize)).duplicate();
+		slab.position((int) (address % slabSize));
+		slab.put(raw.duplicate());
+
+		Slot slot = new Slot(key, sizeClass, address, length, System.currentTimeMillis() + ttl, version);
+		index.put(key, slot);
+		sizeClass.entries.put(key, slot);
+		usedBytes += sizeClass.chunkSize;
+		statistics.putCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * キーをキャッシュから除去する。
+	 * @param key キー文字列
+	 */
+	@Override
+	public synchronized void invalidate(String key) {
+		invalidations.invalidate(key);
+		Slot slot = index.get(key);
+		if (slot != null) {
+			release(slot);
+		}
+		statistics.invalidationCount.incrementAndGet();
+	}
+
+	/**
+	 * すべてのエントリをキャッシュから除去する。確保済みのメモリは解放しない。
+	 */
+	@Override
+	public synchronized void invalidateAll() {
+		invalidations.invalidateAll();
+		Iterator<Slot> it = index.values().iterator();
+		while (it.hasNext()) {
+			Slot slot = it.next();
+			slot.sizeClass.entries.remove(slot.key);
+			slot.sizeClass.freeChunks.push(slot.address);
+			it.remove();
+		}
+		usedBytes = 0;
+		statistics.invalidationCount.incrementAndGet();
+	}
+
+	/**
+	 * 格納しているエントリの数を取得する。
+	 * @return エントリの数
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * エントリが利用しているチャンクの大きさの合計を取得する。
+	 * @return 利用しているメモリ(バイト)
+	 */
+	public synchronized long getUsedMemory() {
+		return usedBytes;
+	}
+
+	/**
+	 * 確保したスラブの大きさの合計を取得する。
+	 * @return 確保したメモリ(バイト)
+	 */
+	public synchronized long getAllocatedMemory() {
+		return (long) slabs.size() * slabSize;
+	}
+
+	/**
+	 * 統計情報を取得する。
+	 * @return 統計情報
+	 */
+	@Override
+	public NearCacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	SizeClass sizeClassFor(int length) {
+		for (SizeClass sizeClass: sizeClasses) {
+			if (length <= sizeClass.chunkSize) {
+				return sizeClass;
+			}
+		}
+		throw new IllegalArgumentException("length exceeds slab size:" + length);
+	}
+
+	/**
+	 * チャンクを割り当てる。空きがなければスラブを確保し、上限に達していれば同じサイズクラスのエントリを追い出す。
+	 * @param sizeClass サイズクラス
+	 * @return チャンクのアドレス。割り当てられない場合は null
+	 */
+	private Long allocate(SizeClass sizeClass) {
+		if (sizeClass.freeChunks.isEmpty() && slabs.size() < maxSlabs) {
+			long base = (long) slabs.size() * slabSize;
+			slabs.add(ByteBuffer.allocateDirect(slabSize));
+			int chunks = slabSize / sizeClass.chunkSize;
+			for (int i = chunks - 1; i >= 0; --i) {
+				sizeClass.freeChunks.push(base + (long) i * sizeClass.chunkSize);
+			}
+		}
+		if (sizeClass.freeChunks.isEmpty()) {
+			Iterator<Slot> it = sizeClass.entries.values().iterator();
+			if (!it.hasNext()) {
+				return null;
+			}
+			release(it.next());
+			statistics.evictionCount.incrementAndGet();
+		}
+		return sizeClass.freeChunks.pop();
+	}
+
+	private void release(Slot slot) {
+		index.remove(slot.key);
+		slot.sizeClass.entries.remove(slot.key);
+		slot.sizeClass.freeChunks.push(slot.address);
+		usedBytes -= slot.sizeClass.chunkSize;
+	}
+}
@@ -0,0 +1,582 @@
+package mitonize.datastore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * データストアから取得したバイト列とバージョンをファイルに保持し、プロセスを再起動しても利用できるキャッシュ。
+ * <p>ディレクトリ内の固定長のセグメントファイルをメモリマップし、レコードを追記する。
+ * 最後のセグメントが一杯になると最も古いセグメントを再利用し、そのセグメントにあったエントリは破棄される。
+ * 無効化も削除レコードとして追記するため、再起動後に古い値が復活することはない。</p>
+ * <p>起動時にセグメントを読み込んで索引を再構築する。読み込んだエントリは未検証として扱い、
+ * 参照されたものから順に{@link #pollUnverifiedKeys(int)}で取り出してバージョンを再検証する。
+ * 再検証するまでは前回のプロセスで格納した値を返す。
+ * バージョンを持たずに格納したエントリは、再検証の際にデータストアの値で置き換える。</p>
+ * <p>同じディレクトリを複数のプロセスで同時に利用することはできない。</p>
+ * <p>このクラスはスレッドセーフである。</p>
+ */
+public class PersistentCache implements RawValueCache, Closeable {
+	static final Logger logger = LoggerFactory.getLogger(PersistentCache.class);
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	/** セグメントファイルの識別子 'OKPC' */
+	static final int SEGMENT_MAGIC = 0x4f4b5043;
+	static final int FORMAT_VERSION = 1;
+	/** セグメントヘッダの長さ。識別子、形式のバージョン、世代 */
+	static final int SEGMENT_HEADER_SIZE = 16;
+	/** レコードヘッダの長さ。レコード長、CRC、有効期限、キー長、バージョン長、値の長さ */
+	static final int RECORD_HEADER_SIZE = 24;
+	/** 削除レコードを表す値の長さ */
+	static final int TOMBSTONE = -1;
+	/** セグメント数のデフォルト値 */
+	static final int DEFAULT_SEGMENT_COUNT = 4;
+
+	/**
+	 * 値の格納位置と属性。
+	 */
+	static class Location {
+		final int segment;
+		final int offset;
+		final int length;
+		final long expiresAt;
+		final String version;
+		boolean verified;
+
+		Location(int segment, int offset, int length, long expiresAt, String version, boolean verified) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.expiresAt = expiresAt;
+			this.version = version;
+			this.verified = verified;
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+	private final MappedByteBuffer[] segments;
+	private final long[] generations;
+	private final HashMap<String, Location> index = new HashMap<String, Location>();
+	/** 参照された未検証のキー。参照された順に並べる。 */
+	private final LinkedHashSet<String> unverifiedKeys = new LinkedHashSet<String>();
+	private final TimeToLiveRules timeToLiveRules = new TimeToLiveRules(60 * 60 * 1000);
+	private final NearCacheStatistics statistics = new NearCacheStatistics();
+	private volatile long revalidationIntervalInMillis = 1000;
+	private volatile int revalidationBatchSize = 100;
+	/** 取得中に無効化されたキーを格納しないための、キーごとのスタンプ */
+	private final InvalidationStamps invalidations = new InvalidationStamps();
+	private int currentSegment;
+	private int writePosition;
+	private boolean closed = false;
+
+	/**
+	 * セグメント数を4としてキャッシュを開く。
+	 * @param directory セグメントファイルを置くディレクトリ。存在しなければ作成する
+	 * @param maxSize セグメントファイルの大きさの合計(バイト)
+	 * @throws IOException ファイルを開けない場合、あるいは他のプロセスが利用している場合
+	 */
+	public PersistentCache(File directory, long maxSize) throws IOException {
+		this(directory, maxSize, DEFAULT_SEGMENT_COUNT);
+	}
+
+	/**
+	 * キャッシュを開く。既存のセグメントファイルがあれば読み込む。
+	 * セグメントの大きさが異なる既存のファイルは初期化する。
+	 * @param directory セグメントファイルを置くディレクトリ。存在しなければ作成する
+	 * @param maxSize セグメントファイルの大きさの合計(バイト)
+	 * @param segmentCount セグメント数(2以上)
+	 * @throws IOException ファイルを開けない場合、あるいは他のプロセスが利用している場合
+	 */
+	public PersistentCache(File directory, long maxSize, int segmentCount) throws IOException {
+		if (segmentCount < 2) {
+			throw new IllegalArgumentException("segmentCount must be greater than or equal to 2");
+		}
+		long size = maxSize / segmentCount;
+		if (size <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE || size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Illegal segment size:" + size);
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory:" + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = (int) size;
+		this.segments = new MappedByteBuffer[segmentCount];
+		this.generations = new long[segmentCount];
+
+		lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+		FileLock fileLock = null;
+		try {
+			fileLock = lockFile.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			// 同じプロセス内で既に開いている
+			fileLock = null;
+		} catch (IOException e) {
+			lockFile.close();
+			throw e;
+		}
+		if (fileLock == null) {
+			lockFile.close();
+			throw new IOException("Directory is used by another process:" + directory);
+		}
+		this.lock = fileLock;
+		try {
+			for (int i = 0; i < segmentCount; ++i) {
+				segments[i] = map(new File(directory, "segment-" + i + ".dat"));
+			}
+			load();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			boolean resized = raf.length() != segmentSize;
+			raf.setLength(segmentSize);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			if (resized) {
+				// 大きさの異なるファイルは以前の内容を破棄する
+				buffer.putInt(0, 0);
+			}
+			return buffer;
+		} finally {
+			// マップしたバッファはチャネルを閉じても有効
+			raf.close();
+		}
+	}
+
+	/**
+	 * セグメントを世代の古い順に読み込んで索引を再構築する。
+	 */
+	private void load() {
+		Integer[] order = new Integer[segments.length];
+		for (int i = 0; i < segments.length; ++i) {
+			order[i] = i;
+			ByteBuffer segment = segments[i];
+			if (segment.getInt(0) == SEGMENT_MAGIC && segment.getInt(4) == FORMAT_VERSION) {
+				generations[i] = segment.getLong(8);
+			} else {
+				generations[i] = -1;
+			}
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Long.compare(generations[o1], generations[o2]);
+			}
+		});
+
+		long now = System.currentTimeMillis();
+		int newest = -1;
+		int newestEnd = SEGMENT_HEADER_SIZE;
+		for (int i: order) {
+			if (generations[i] < 0) {
+				continue;
+			}
+			int end = scan(i, now);
+			newest = i;
+			newestEnd = end;
+		}
+		if (newest < 0) {
+			currentSegment = 0;
+			startSegment(0, 1);
+		} else {
+			currentSegment = newest;
+			writePosition = newestEnd;
+		}
+		logger.info("Loaded {} entries from {}", index.size(), directory);
+	}
+
+	/**
+	 * セグメントのレコードを索引に反映する。
+	 * @return 最後の有効なレコードの終端
+	 */
+	private int scan(int segmentIndex, long now) {
+		ByteBuffer segment = segments[segmentIndex].duplicate();
+		int position = SEGMENT_HEADER_SIZE;
+		CRC32 crc = new CRC32();
+		while (position + RECORD_HEADER_SIZE <= segmentSize) {
+			int recordLength = segment.getInt(position);
+			if (recordLength < RECORD_HEADER_SIZE || position + recordLength > segmentSize) {
+				break;
+			}
+			crc.reset();
+			byte[] body = new byte[recordLength - 8];
+			segment.position(position + 8);
+			segment.get(body);
+			crc.update(body);
+			if ((int) crc.getValue() != segment.getInt(position + 4)) {
+				// 書き込み途中で中断したレコード
+				logger.warn("Broken record found in segment-{} at {}", segmentIndex, position);
+				break;
+			}
+			ByteBuffer header = ByteBuffer.wrap(body);
+			long expiresAt = header.getLong();
+			int keyLength = header.getShort() & 0xffff;
+			int versionLength = header.getShort() & 0xffff;
+			int payloadLength = header.getInt();
+			String key = new String(body, 16, keyLength, UTF8);
+			String version = versionLength == 0 ? null : new String(body, 16 + keyLength, versionLength, UTF8);
+
+			if (payloadLength == TOMBSTONE || expiresAt <= now) {
+				index.remove(key);
+			} else {
+				int offset = position + RECORD_HEADER_SIZE + keyLength + versionLength;
+				index.put(key, new Location(segmentIndex, offset, payloadLength, expiresAt, version, false));
+			}
+			position += recordLength;
+		}
+		return position;
+	}
+
+	private void startSegment(int segmentIndex, long generation) {
+		// 再利用するセグメントにあったエントリを破棄する。再検証を待つキーからも除く
+		Iterator<Map.Entry<String, Location>> it = index.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Location> e = it.next();
+			if (e.getValue().segment == segmentIndex) {
+				it.remove();
+				unverifiedKeys.remove(e.getKey());
+				statistics.evictionCount.incrementAndGet();
+			}
+		}
+		ByteBuffer segment = segments[segmentIndex];
+		segment.putInt(SEGMENT_HEADER_SIZE, 0);
+		segment.putInt(0, SEGMENT_MAGIC);
+		segment.putInt(4, FORMAT_VERSION);
+		segment.putLong(8, generation);
+		generations[segmentIndex] = generation;
+		writePosition = SEGMENT_HEADER_SIZE;
+	}
+
+	/**
+	 * レコードを追記する。
+	 * @return 値の格納位置。セグメントに収まらない場合は null
+	 */
+	private Location append(String key, ByteBuffer raw, String version, long expiresAt) {
+		byte[] keyBytes = key.getBytes(UTF8);
+		byte[] versionBytes = version == null ? new byte[0] : version.getBytes(UTF8);
+		int payloadLength = raw == null ? 0 : raw.remaining();
+		int recordLength = RECORD_HEADER_SIZE + keyBytes.length + versionBytes.length + payloadLength;
+		if (keyBytes.length > 0xffff || versionBytes.length > 0xffff
+				|| SEGMENT_HEADER_SIZE + recordLength > segmentSize) {
+			return null;
+		}
+		if (writePosition + recordLength > segmentSize) {
+			long generation = generations[currentSegment] + 1;
+			currentSegment = (currentSegment + 1) % segments.length;
+			startSegment(currentSegment, generation);
+		}
+		ByteBuffer body = ByteBuffer.allocate(recordLength - 8);
+		body.putLong(expiresAt);
+		body.putShort((short) keyBytes.length);
+		body.putShort((short) versionBytes.length);
+		body.putInt(raw == null ? TOMBSTONE : payloadLength);
+		body.put(keyBytes);
+		body.put(versionBytes);
+		if (raw != null) {
+			body.put(raw.duplicate());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(body.array());
+
+		int position = writePosition;
+		ByteBuffer segment = segments[currentSegment].duplicate();
+		segment.position(position + 8);
+		segment.put(body.array());
+		if (position + recordLength + 4 <= segmentSize) {
+			// 以前の世代のレコードを読み込まないように終端を書き込む
+			segment.putInt(position + recordLength, 0);
+		}
+		segment.putInt(position + 4, (int) crc.getValue());
+		// レコード長は最後に書き込む
+		segment.putInt(position, recordLength);
+		writePosition = position + recordLength;
+		return new Location(currentSegment, position + recordLength - payloadLength, payloadLength, expiresAt, version, true);
+	}
+
+	/**
+	 * 有効期間(ミリ秒)のデフォルト値を取得する。
+	 * @return 有効期間(ミリ秒)
+	 */
+	public long getDefaultTimeToLiveInMillis() {
+		return timeToLiveRules.getDefault();
+	}
+
+	/**
+	 * 有効期間(ミリ秒)のデフォルト値を設定する。デフォルトは3600000ミリ秒。
+	 * 有効期間はプロセスを再起動しても引き継がれる。
+	 * @param defaultTimeToLiveInMillis 有効期間(ミリ秒)。0の場合はキャッシュしない
+	 */
+	public void setDefaultTimeToLiveInMillis(long defaultTimeToLiveInMillis) {
+		timeToLiveRules.setDefault(defaultTimeToLiveInMillis);
+	}
+
+	/**
+	 * キーの接頭辞ごとに有効期間を設定する。複数の接頭辞に一致する場合は最も長い接頭辞の設定が適用される。
+	 * @param keyPrefix キーの接頭辞
+	 * @param timeToLiveInMillis 有効期間(ミリ秒)。0の場合はキャッシュしない
+	 */
+	public void setTimeToLiveInMillis(String keyPrefix, long timeToLiveInMillis) {
+		timeToLiveRules.set(keyPrefix, timeToLiveInMillis);
+	}
+
+	/**
+	 * キーに適用される有効期間(ミリ秒)を取得する。
+	 * @param key キー文字列
+	 * @return 有効期間(ミリ秒)
+	 */
+	public long getTimeToLiveInMillis(String key) {
+		return timeToLiveRules.get(key);
+	}
+
+	/**
+	 * 未検証のエントリを再検証する間隔(ミリ秒)を取得する。
+	 * @return 再検証の間隔(ミリ秒)
+	 */
+	public long getRevalidationIntervalInMillis() {
+		return revalidationIntervalInMillis;
+	}
+
+	/**
+	 * 未検証のエントリを再検証する間隔(ミリ秒)を設定する。デフォルトは1000ミリ秒。
+	 * ファクトリに設定する前に指定すること。
+	 * @param revalidationIntervalInMillis 再検証の間隔(ミリ秒)。0の場合は再検証しない
+	 */
+	public void setRevalidationIntervalInMillis(long revalidationIntervalInMillis) {
+		this.revalidationIntervalInMillis = revalidationIntervalInMillis;
+	}
+
+	/**
+	 * 1回の再検証で問い合わせるエントリの最大数を取得する。
+	 * @return 1回の再検証で問い合わせるエントリの最大数
+	 */
+	public int getRevalidationBatchSize() {
+		return revalidationBatchSize;
+	}
+
+	/**
+	 * 1回の再検証で問い合わせるエントリの最大数を設定する。デフォルトは100。
+	 * 再起動直後の問い合わせが集中しないように、間隔と合わせて調整する。
+	 * @param revalidationBatchSize 1回の再検証で問い合わせるエントリの最大数
+	 */
+	public void setRevalidationBatchSize(int revalidationBatchSize) {
+		this.revalidationBatchSize = revalidationBatchSize;
+	}
+
+	/**
+	 * キャッシュからバイト列を取得する。未検証のエントリであれば再検証の対象に加える。
+	 * @param key キー文字列
+	 * @return バイト列(ByteBuffer)とバージョン。キャッシュにない場合は null
+	 */
+	@Override
+	public synchronized VersionedValue get(String key) {
+		Location location = closed ? null : index.get(key);
+		if (location == null) {
+			statistics.missCount.incrementAndGet();
+			return null;
+		}
+		if (location.expiresAt <= System.currentTimeMillis()) {
+			index.remove(key);
+			unverifiedKeys.remove(key);
+			statistics.expirationCount.incrementAndGet();
+			statistics.missCount.incrementAndGet();
+			return null;
+		}
+		if (!location.verified) {
+			unverifiedKeys.add(key);
+		}
+		byte[] bytes = new byte[location.length];
+		ByteBuffer segment = segments[location.segment].duplicate();
+		segment.position(location.offset);
+		segment.get(bytes);
+		statistics.hitCount.incrementAndGet();
+		return new VersionedValue(ByteBuffer.wrap(bytes), location.version);
+	}
+
+	@Override
+	public synchronized long stamp(String key) {
+		return invalidations.stamp(key);
+	}
+
+	/**
+	 * バイト列をキャッシュに追記する。格納したエントリは検証済みとして扱う。
+	 */
+	@Override
+	public synchronized boolean put(String key, ByteBuffer raw, String version, long stamp) {
+		if (closed || stamp != invalidations.stamp(key)) {
+			return false;
+		}
+		long ttl = getTimeToLiveInMillis(key);
+		if (ttl <= 0) {
+			return false;
+		}
+		Location location = append(key, raw, version, System.currentTimeMillis() + ttl);
+		if (location == null) {
+			statistics.evictionCount.incrementAndGet();
+			return false;
+		}
+		index.put(key, location);
+		unverifiedKeys.remove(key);
+		statistics.putCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * キーをキャッシュから除去する。再起動後にも除去されたままとなるように削除レコードを追記する。
+	 */
+	@Override
+	public synchronized void invalidate(String key) {
+		invalidations.invalidate(key);
+		statistics.invalidationCount.incrementAndGet();
+		unverifiedKeys.remove(key);
+		if (!closed && index.remove(key) != null) {
+			append(key, null, null, 0);
+		}
+	}
+
+	/**
+	 * すべてのエントリをキャッシュから除去する。すべてのセグメントを初期化する。
+	 */
+	@Override
+	public synchronized void invalidateAll() {
+		invalidations.invalidateAll();
+		statistics.invalidationCount.incrementAndGet();
+		unverifiedKeys.clear();
+		if (closed) {
+			return;
+		}
+		long generation = generations[currentSegment] + 1;
+		index.clear();
+		for (int i = 0; i < segments.length; ++i) {
+			segments[i].putInt(0, 0);
+		}
+		currentSegment = 0;
+		startSegment(0, generation);
+	}
+
+	/**
+	 * 参照された未検証のキーを取り出す。取り出したキーは再検証するまで未検証のままとなるが、
+	 * 再び参照されるまでは取り出されない。
+	 * @param limit 取り出す最大数
+	 * @return 未検証のキー
+	 */
+	public synchronized List<String> pollUnverifiedKeys(int limit) {
+		ArrayList<String> keys = new ArrayList<String>(Math.min(limit, unverifiedKeys.size()));
+		Iterator<String> it = unverifiedKeys.iterator();
+		while (it.hasNext() && keys.size() < limit) {
+			keys.add(it.next());
+			it.remove();
+		}
+		return keys;
+	}
+
+	/**
+	 * 未検証のエントリのバージョンがデータストアと一致したことを記録する。
+	 * @param key キー文字列
+	 * @param version データストアのバージョン。削除されていた場合は null
+	 * @param stamp 問い合わせる前に{@link #stamp(String)}で得たスタンプ
+	 * @return バージョンが一致して検証済みとなった場合は true
+	 */
+	public synchronized boolean verify(String key, String version, long stamp) {
+		statistics.revalidationCount.incrementAndGet();
+		Location location = index.get(key);
+		if (stamp != invalidations.stamp(key) || location == null) {
+			return false;
+		}
+		if (location.version == null) {
+			// バージョンを持たないエントリは比較できないため、取得し直した値で置き換える
+			return false;
+		}
+		if (location.version.equals(version)) {
+			location.verified = true;
+			return true;
+		}
+		statistics.staleCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * 未検証のまま残っているエントリの数を取得する。
+	 * @return 未検証のエントリの数
+	 */
+	public synchronized int getUnverifiedCount() {
+		int count = 0;
+		for (Location location: index.values()) {
+			if (!location.verified) {
+				++count;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 格納しているエントリの数を取得する。
+	 * @return エントリの数
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	@Override
+	public NearCacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * 書き込んだ内容をファイルに反映する。
+	 */
+	public synchronized void flush() {
+		if (closed) {
+			return;
+		}
+		for (MappedByteBuffer segment: segments) {
+			if (segment != null) {
+				segment.force();
+			}
+		}
+	}
+
+	/**
+	 * 書き込んだ内容をファイルに反映し、ディレクトリのロックを解放する。以降はすべての参照がヒットしない。
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		flush();
+		closed = true;
+		index.clear();
+		unverifiedKeys.clear();
+		try {
+			lock.release();
+		} finally {
+			lockFile.close();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package mitonize.datastore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * データストアから取得したバイト列を、展開やデシリアライズをせずに保持するキャッシュ。
+ * 値の復元はヒットした時に呼び出し側で行う。
+ */
+public interface RawValueCache {
+	/**
+	 * キャッシュからバイト列を取得する。
+	 * @param key キー文字列
+	 * @return バイト列(ByteBuffer)とバージョン。キャッシュにない場合は null
+	 */
+	VersionedValue get(String key);
+
+	/**
+	 * 値を取得する前にキーのスタンプを取得する。取得後に{@link #put(String, ByteBuffer, String, long)}に渡すと、
+	 * 取得中に無効化されたキーの古い値を格納しない。他のキーの無効化で格納が拒否されることは少ない。
+	 * @param key キー文字列
+	 * @return スタンプ
+	 */
+	long stamp(String key);
+
+	/**
+	 * バイト列をキャッシュに格納する。既存のエントリは置き換える。
+	 * @param key キー文字列
+	 * @param raw バイト列。position から limit までを格納する
+	 * @param version バージョン。保持しない場合は null
+	 * @param stamp 値を取得する前に{@link #stamp(String)}で得たスタンプ
+	 * @return 格納した場合は true
+	 */
+	boolean put(String key, ByteBuffer raw, String version, long stamp);
+
+	/**
+	 * キーをキャッシュから除去する。
+	 * @param key キー文字列
+	 */
+	void invalidate(String key);
+
+	/**
+	 * すべてのエントリをキャッシュから除去する。
+	 */
+	void invalidateAll();
+
+	/**
+	 * 統計情報を取得する。
+	 * @return 統計情報
+	 */
+	NearCacheStatistics getStatistics();
+}
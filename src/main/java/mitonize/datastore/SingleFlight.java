@@ -0,0 +1,131 @@
+package mitonize.datastore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 同じ要求が同時に実行されている場合に、後から来た呼び出しを先行する要求の完了まで待たせて結果を共有する。
+ * <p>人気のあるキーの有効期限が切れた直後などに、多数のスレッドが同じ値をそれぞれ取得しに行くことを防ぐ。
+ * 結果は呼び出し元の間で共有されるため、変更可能なオブジェクトを返す場合は呼び出し元で複製すること。
+ * 先行する要求が例外で終了した場合は、待っていた呼び出しにも同じ例外をスローする。</p>
+ * <p>書き込みの前に始まった読み出しに、書き込みの後に来た呼び出しが合流すると書き込み前の値を受け取ってしまう。
+ * 書き込む側は書き込みの後に {@link #forget(String)} を呼び出して実行中の要求を切り離すこと。</p>
+ * <p>このクラスはスレッドセーフである。</p>
+ */
+public class SingleFlight {
+	/**
+	 * 共有される要求。
+	 * @param <V> 結果の型
+	 */
+	public interface Call<V> {
+		/**
+		 * 要求を実行する。
+		 * @return 結果
+		 * @throws IOException 通信時の例外
+		 * @throws OperationFailedException 操作が成功しなかった場合
+		 */
+		V call() throws IOException, OperationFailedException;
+	}
+
+	/**
+	 * 実行中の要求。
+	 */
+	static class Flight {
+		final CountDownLatch done = new CountDownLatch(1);
+		Object result;
+		Throwable error;
+	}
+
+	private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+	private final AtomicLong executionCount = new AtomicLong();
+	private final AtomicLong sharedCount = new AtomicLong();
+
+	/**
+	 * 要求を実行する。同じ識別子の要求が実行中であればその完了を待って結果を返す。
+	 * @param id 要求の識別子。同じ識別子の要求は同じ結果を返すものでなければならない
+	 * @param call 要求
+	 * @return 結果
+	 * @throws IOException 通信時の例外。待機中に割り込まれた場合は InterruptedIOException
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	@SuppressWarnings("unchecked")
+	public <V> V execute(String id, Call<V> call) throws IOException, OperationFailedException {
+		Flight flight = new Flight();
+		Flight running = flights.putIfAbsent(id, flight);
+		if (running != null) {
+			sharedCount.incrementAndGet();
+			try {
+				running.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " + id);
+			}
+			if (running.error != null) {
+				rethrow(running.error);
+			}
+			return (V) running.result;
+		}
+
+		executionCount.incrementAndGet();
+		try {
+			V result = call.call();
+			flight.result = result;
+			return result;
+		} catch (IOException e) {
+			flight.error = e;
+			throw e;
+		} catch (OperationFailedException e) {
+			flight.error = e;
+			throw e;
+		} catch (RuntimeException e) {
+			flight.error = e;
+			throw e;
+		} catch (Error e) {
+			flight.error = e;
+			throw e;
+		} finally {
+			// 完了後に来た呼び出しは新たに実行する
+			flights.remove(id, flight);
+			flight.done.countDown();
+		}
+	}
+
+	/**
+	 * 実行中の要求を切り離し、以降の呼び出しが新たに実行するようにする。既に待っている呼び出しには実行中の要求の結果を返す。
+	 * @param id 要求の識別子
+	 */
+	public void forget(String id) {
+		flights.remove(id);
+	}
+
+	private static void rethrow(Throwable error) throws IOException, OperationFailedException {
+		if (error instanceof IOException) {
+			throw (IOException) error;
+		} else if (error instanceof OperationFailedException) {
+			throw (OperationFailedException) error;
+		} else if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		} else {
+			throw (Error) error;
+		}
+	}
+
+	/**
+	 * 実際に実行した要求の数を取得する。
+	 * @return 実行した要求の数
+	 */
+	public long getExecutionCount() {
+		return executionCount.get();
+	}
+
+	/**
+	 * 実行中の要求の結果を共有した呼び出しの数を取得する。
+	 * @return 結果を共有した呼び出しの数
+	 */
+	public long getSharedCount() {
+		return sharedCount.get();
+	}
+}
@@ -5,13 +5,14 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -36,6 +37,8 @@ public class SocketManager {
 		private boolean offline = false;
 		/** for canceling on being online */
 		ScheduledFuture<Object> offlineManagementFuture;
+		/** オフラインの間、復帰を確認するタスク */
+		OfflineManagementTask offlineManagementTask;
 
 		/**
 		 * 指定したエンドポイントのオフライン状態を設定する。
@@ -47,17 +50,25 @@ public class SocketManager {
 			if (offline) {
 				if (!this.offline) {
 					OfflineManagementTask task = new OfflineManagementTask(this);
+					this.offlineManagementTask = task;
 					this.offlineManagementFuture =
-							(ScheduledFuture<Object>) offlineManagementService.scheduleWithFixedDelay(task, 0, 5, TimeUnit.SECONDS);
+							(ScheduledFuture<Object>) maintenanceService.scheduleWithFixedDelay(task, 0, 5, TimeUnit.SECONDS);
 					this.offline = true;
 					logger.warn("Mark offline - {}:{}", this.address.getHostName(), this.port);
 				}
 			} else {
+				// 共有スケジューラのスレッドに割り込まないように、実行中のタスクは完了させる
 				ScheduledFuture<Object> future = this.offlineManagementFuture;
 				if (future != null) {
-					future.cancel(true);
+					future.cancel(false);
 					this.offlineManagementFuture = null;
 				}
+				// 復帰の確認を待たずにオンラインになった場合は、待っているオンラインにするタスクも取り消す
+				OfflineManagementTask task = this.offlineManagementTask;
+				if (task != null) {
+					task.cancel();
+					this.offlineManagementTask = null;
+				}
 				this.offline = false;
 				logger.warn("Mark online  - {}:{}", this.address.getHostName(), this.port);
 			}
@@ -94,9 +105,25 @@ public class SocketManager {
 	int maxCountOfCoucurrentSockets = 0;
 
 	/**
-	 * オフライン状態になったエンドポイントがオンラインになったかをバックグラウンドで検査してオンライン状態にするExecutor。
+	 * オフライン状態になったエンドポイントの検査や、プール中の期限切れソケットの整理を行うExecutor。
+	 * {@link MaintenanceScheduler}の共有スケジューラを用いる。
+	 */
+	final ScheduledExecutorService maintenanceService;
+
+	/**
+	 * プール中の期限切れソケットを整理するタスクのFuture。
+	 */
+	private ScheduledFuture<?> poolReaperFuture;
+
+	/**
+	 * オフライン状態のエンドポイントへの接続試行で、接続完了を確認する間隔(ミリ秒)。
+	 */
+	private static final int PROBE_POLL_INTERVAL_MILLIS = 20;
+
+	/**
+	 * プール中の期限切れソケットを整理する間隔(ミリ秒)。
 	 */
-	final ScheduledExecutorService offlineManagementService;
+	private static final long POOL_REAP_INTERVAL_MILLIS = 30 * 1000;
 
 	/**
 	 * オフライン状態からTCP接続が確立してからオンラインにするまでに待つ時間(ミリ秒)。
@@ -136,12 +163,17 @@ public class SocketManager {
 		if (masternodes.length == 0) {
 			throw new IllegalStateException("No connection endpoint setting specified.");
 		}
-		this.offlineManagementService = Executors.newSingleThreadScheduledExecutor();
+		this.maintenanceService = MaintenanceScheduler.getSharedExecutor();
 		this.queue = new ArrayBlockingQueue<SocketStreams>(maxPoolSize);
 		this.activeSocketCount = new AtomicInteger(0);
 		this.currentEndpointIndex = new AtomicInteger(0);
 		this.maxPoolSize = maxPoolSize;
 		setEndpoints(masternodes);
+
+		PoolReaperTask reaper = new PoolReaperTask(this);
+		this.poolReaperFuture = maintenanceService.scheduleWithFixedDelay(reaper,
+				POOL_REAP_INTERVAL_MILLIS, POOL_REAP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		reaper.future = this.poolReaperFuture;
 	}
 
 	private void setEndpoints(String[] nodes) throws UnknownHostException {
@@ -212,35 +244,176 @@ public class SocketManager {
 	}
 
 	/**
-	 * オフラインとマークされたエンドポイントを定期的にチェックして復帰していればオフラインとしてマークする。
+	 * オフラインとマークされたエンドポイントを定期的にチェックして復帰していればオンラインとしてマークする。
+	 * 共有スケジューラのスレッドをブロックしないように、ノンブロッキングで接続を試行して
+	 * 短い間隔で接続完了を確認する。1つのエンドポイントの応答が無くても他のエンドポイントの検査は遅延しない。
 	 */
 	class OfflineManagementTask implements Runnable {
 		private Endpoint endpoint;
+		/** 接続試行中のチャネル。試行中でなければnull */
+		private SocketChannel channel;
+		/** 接続試行を打ち切る時刻 */
+		private long deadline;
+		/** 接続に成功してオンラインにするのを待っている間はtrue */
+		private boolean markingOnline = false;
+		/** オンラインにするタスク。待っていなければnull */
+		private ScheduledFuture<?> markOnlineFuture;
+		/** 取り消された場合はtrue */
+		private boolean cancelled = false;
+
 		public OfflineManagementTask(Endpoint endpoint) {
 			this.endpoint = endpoint;
 		}
+
 		@Override
-		public void run() {
-			int timeout = getTimeoutToConnectInMillis();
-			int delay = getDelayToMarkOnlineInMillis();
+		public synchronized void run() {
+			if (channel != null || markingOnline || cancelled) {
+				// 前回の試行が継続中
+				return;
+			}
 			InetSocketAddress address = new InetSocketAddress(endpoint.address, endpoint.port);
-			Socket socket = new Socket();
 			try {
-				// 接続に成功したらオフラインマークをクリアする。
-				socket.connect(address, timeout);
-				Thread.sleep(delay);
-				endpoint.markEndpointOffline(false);
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				deadline = System.currentTimeMillis() + getTimeoutToConnectInMillis();
+				if (channel.connect(address)) {
+					connected();
+				} else {
+					scheduleCheck();
+				}
+			} catch (IOException e) {
+				failed();
+			} catch (UnresolvedAddressException e) {
+				failed();
+			}
+		}
+
+		/**
+		 * 接続が完了したかを確認する。タイムアウトするまで繰り返し確認する。
+		 */
+		synchronized void check() {
+			if (channel == null) {
+				return;
+			}
+			try {
+				if (channel.finishConnect()) {
+					connected();
+				} else if (System.currentTimeMillis() > deadline) {
+					failed();
+				} else {
+					scheduleCheck();
+				}
 			} catch (IOException e) {
-			} catch (InterruptedException e) {
-			} finally {
+				failed();
+			}
+		}
+
+		private void scheduleCheck() {
+			maintenanceService.schedule(new Runnable() {
+				@Override
+				public void run() {
+					check();
+				}
+			}, PROBE_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * 接続に成功したら待ち時間の経過後にオフラインマークをクリアする。
+		 */
+		private void connected() {
+			closeChannel();
+			markingOnline = true;
+			markOnlineFuture = maintenanceService.schedule(new Runnable() {
+				@Override
+				public void run() {
+					markOnline();
+				}
+			}, getDelayToMarkOnlineInMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * オフラインマークをクリアする。以降に再びオフラインになった場合も復帰を確認できるように待ち状態を解除する。
+		 */
+		void markOnline() {
+			synchronized (this) {
+				markingOnline = false;
+				markOnlineFuture = null;
+			}
+			endpoint.markEndpointOffline(false);
+		}
+
+		/**
+		 * 接続の試行とオンラインにするのを待っているタスクを取り消す。
+		 */
+		synchronized void cancel() {
+			cancelled = true;
+			closeChannel();
+			if (markOnlineFuture != null) {
+				markOnlineFuture.cancel(false);
+				markOnlineFuture = null;
+			}
+			markingOnline = false;
+		}
+
+		private void failed() {
+			closeChannel();
+		}
+
+		private void closeChannel() {
+			if (channel != null) {
 				try {
-					socket.close();
+					channel.close();
 				} catch (IOException e) {
 				}
+				channel = null;
+			}
+		}
+	}
+
+	/**
+	 * プール中のソケットのうち生存期間を過ぎたものを定期的に閉じる。
+	 * SocketManagerへの参照は弱参照で保持し、shutdownされずに破棄された場合は自身をキャンセルする。
+	 */
+	static class PoolReaperTask implements Runnable {
+		private final WeakReference<SocketManager> ref;
+		volatile ScheduledFuture<?> future;
+
+		PoolReaperTask(SocketManager manager) {
+			this.ref = new WeakReference<SocketManager>(manager);
+		}
+
+		@Override
+		public void run() {
+			SocketManager manager = ref.get();
+			if (manager == null) {
+				ScheduledFuture<?> f = future;
+				if (f != null) {
+					f.cancel(false);
+				}
+				return;
 			}
+			manager.reapExpiredSockets();
 		}
 	}
 
+	/**
+	 * プール中のソケットのうち生存期間を過ぎたものを閉じる。
+	 * @return 閉じたソケットの数
+	 */
+	int reapExpiredSockets() {
+		int count = 0;
+		for (SocketStreams socket: queue) {
+			if (socket.isExpired() && queue.remove(socket)) {
+				closeSocket(socket);
+				++count;
+			}
+		}
+		if (count > 0 && logger.isDebugEnabled()) {
+			logger.debug("Reaped expired sockets - count:{}", count);
+		}
+		return count;
+	}
+
 	/**
 	 * 指定したインデックスのエンドポイント情報を取得する。
 	 * @return エンドポイント情報。
@@ -450,7 +623,27 @@ public class SocketManager {
 		this.socketTimeToLiveInMilli = socketTimeToLiveInMilli;
 	}
 
+	/**
+	 * バックグラウンドで実行しているタスクを停止する。共有スケジューラ自体は停止しない。
+	 */
 	public void shutdown() {
-		this.offlineManagementService.shutdown();
+		if (poolReaperFuture != null) {
+			poolReaperFuture.cancel(false);
+			poolReaperFuture = null;
+		}
+		for (Endpoint endpoint: endpoints) {
+			synchronized (endpoint) {
+				ScheduledFuture<Object> future = endpoint.offlineManagementFuture;
+				if (future != null) {
+					future.cancel(false);
+					endpoint.offlineManagementFuture = null;
+				}
+				OfflineManagementTask task = endpoint.offlineManagementTask;
+				if (task != null) {
+					task.cancel();
+					endpoint.offlineManagementTask = null;
+				}
+			}
+		}
 	}
 }
@@ -0,0 +1,18 @@
+package mitonize.datastore;
+
+import java.io.IOException;
+
+/**
+ * {@link CloseableIterator} で要素を読み出せなかったことを表す例外。原因は IOException か OperationFailedException となる。
+ */
+public class StreamReadException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public StreamReadException(IOException cause) {
+		super(cause);
+	}
+
+	public StreamReadException(OperationFailedException cause) {
+		super(cause);
+	}
+}
@@ -0,0 +1,71 @@
+package mitonize.datastore;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * キーの接頭辞ごとの有効期間の設定。複数の接頭辞に一致する場合は最も長い接頭辞の設定が適用される。
+ */
+class TimeToLiveRules {
+	/**
+	 * 接頭辞と有効期間の組。
+	 */
+	static class Rule {
+		final String prefix;
+		final long timeToLiveInMillis;
+
+		Rule(String prefix, long timeToLiveInMillis) {
+			this.prefix = prefix;
+			this.timeToLiveInMillis = timeToLiveInMillis;
+		}
+	}
+
+	/** 有効期間(ミリ秒)のデフォルト値 */
+	private volatile long defaultTimeToLiveInMillis;
+	/** 接頭辞ごとの有効期間。接頭辞の長い順に並べる。 */
+	private volatile Rule[] rules = new Rule[0];
+
+	TimeToLiveRules(long defaultTimeToLiveInMillis) {
+		this.defaultTimeToLiveInMillis = defaultTimeToLiveInMillis;
+	}
+
+	long getDefault() {
+		return defaultTimeToLiveInMillis;
+	}
+
+	void setDefault(long defaultTimeToLiveInMillis) {
+		this.defaultTimeToLiveInMillis = defaultTimeToLiveInMillis;
+	}
+
+	synchronized void set(String keyPrefix, long timeToLiveInMillis) {
+		Rule[] current = rules;
+		Rule[] newRules = null;
+		for (int i = 0; i < current.length; ++i) {
+			if (current[i].prefix.equals(keyPrefix)) {
+				newRules = current.clone();
+				newRules[i] = new Rule(keyPrefix, timeToLiveInMillis);
+				break;
+			}
+		}
+		if (newRules == null) {
+			newRules = Arrays.copyOf(current, current.length + 1);
+			newRules[current.length] = new Rule(keyPrefix, timeToLiveInMillis);
+		}
+		Arrays.sort(newRules, new Comparator<Rule>() {
+			@Override
+			public int compare(Rule o1, Rule o2) {
+				return o2.prefix.length() - o1.prefix.length();
+			}
+		});
+		this.rules = newRules;
+	}
+
+	long get(String key) {
+		for (Rule rule: rules) {
+			if (key.startsWith(rule.prefix)) {
+				return rule.timeToLiveInMillis;
+			}
+		}
+		return defaultTimeToLiveInMillis;
+	}
+}
@@ -0,0 +1,251 @@
+package mitonize.datastore;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * キーごとに最後に書き込んだ、あるいは読み出した値のバイト列の指紋(64ビットのハッシュと長さ)を保持し、
+ * 変更のない値の書き込みを省略するための判定を行う。
+ * <p>指紋はシリアライズ(および圧縮)した後の、Base64エンコードする前のバイト列から求める。
+ * 書き込む値の指紋、タグ、有効時間が前回の書き込みと同じで、有効時間の更新が必要ない場合に書き込みを省略できる。
+ * 有効時間の更新が必要かは、前回の書き込みから有効時間の {@link #getRefreshRatio()} 倍の時間が経過したかで判断する。</p>
+ * <p>読み出した値の指紋は有効時間やタグがわからないため、それだけでは書き込みを省略しない。
+ * 前回の書き込みと異なる値を読み出した場合は他のプロセスが書き換えたものとみなし、書き込みの記録を破棄する。</p>
+ * <p>他のプロセスによる書き込みは検知できないため、前回の書き込みから {@link #getMaxTrustInMillis()} を経過した場合は
+ * 省略しない。同じキーを複数のプロセスで書き換える場合は利用しないこと。</p>
+ * <p>このクラスはスレッドセーフである。</p>
+ */
+public class ValueFingerprints {
+	/** 書き込みの時刻がわからないことを表す値 */
+	private static final long UNKNOWN = -1;
+
+	static class Fingerprint {
+		final long hash;
+		final int length;
+		final long tagsHash;
+		final long age;
+		final long writtenAt;
+
+		Fingerprint(long hash, int length, long tagsHash, long age, long writtenAt) {
+			this.hash = hash;
+			this.length = length;
+			this.tagsHash = tagsHash;
+			this.age = age;
+			this.writtenAt = writtenAt;
+		}
+
+		boolean sameValue(long hash, int length) {
+			return this.hash == hash && this.length == length;
+		}
+	}
+
+	private final int maxEntries;
+	private final LinkedHashMap<String, Fingerprint> fingerprints;
+	private final AtomicLong checkCount = new AtomicLong();
+	private final AtomicLong suppressedCount = new AtomicLong();
+	private volatile double refreshRatio = 0.5;
+	private volatile long maxTrustInMillis = 60000;
+
+	/**
+	 * 指紋を保持するキーの最大数を指定して生成する。超えた場合は最も長く参照されていないキーの指紋を破棄する。
+	 * @param maxEntries 指紋を保持するキーの最大数
+	 */
+	public ValueFingerprints(final int maxEntries) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+		this.maxEntries = maxEntries;
+		this.fingerprints = new LinkedHashMap<String, Fingerprint>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Fingerprint> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * 指紋を保持するキーの最大数を取得する。
+	 * @return 指紋を保持するキーの最大数
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * 有効時間のうち、どれだけ経過したら同じ値でも書き込み直すかの割合を取得する。
+	 * @return 書き込み直すまでの割合
+	 */
+	public double getRefreshRatio() {
+		return refreshRatio;
+	}
+
+	/**
+	 * 有効時間のうち、どれだけ経過したら同じ値でも書き込み直すかの割合を設定する。デフォルトは0.5。
+	 * @param refreshRatio 書き込み直すまでの割合(0より大きく1以下)
+	 */
+	public void setRefreshRatio(double refreshRatio) {
+		if (refreshRatio <= 0.0 || refreshRatio > 1.0) {
+			throw new IllegalArgumentException("refreshRatio must be between 0 and 1");
+		}
+		this.refreshRatio = refreshRatio;
+	}
+
+	/**
+	 * 前回の書き込みから、書き込みを省略する最大時間(ミリ秒)を取得する。
+	 * @return 書き込みを省略する最大時間(ミリ秒)
+	 */
+	public long getMaxTrustInMillis() {
+		return maxTrustInMillis;
+	}
+
+	/**
+	 * 前回の書き込みから、書き込みを省略する最大時間(ミリ秒)を設定する。有効時間のない値にも適用される。デフォルトは60000ミリ秒。
+	 * @param maxTrustInMillis 書き込みを省略する最大時間(ミリ秒)
+	 */
+	public void setMaxTrustInMillis(long maxTrustInMillis) {
+		this.maxTrustInMillis = maxTrustInMillis;
+	}
+
+	/**
+	 * 書き込もうとしている値が前回の書き込みと同じで、書き込みを省略できるかを判定する。
+	 * @param key キー文字列
+	 * @param encoded シリアライズした値のバイト列
+	 * @param tags タグ文字列の配列
+	 * @param age 有効時間(秒)
+	 * @return 書き込みを省略できる場合は true
+	 */
+	public boolean isUnchanged(String key, ByteBuffer encoded, String[] tags, long age) {
+		checkCount.incrementAndGet();
+		Fingerprint fp;
+		synchronized (fingerprints) {
+			fp = fingerprints.get(key);
+		}
+		if (fp == null || fp.writtenAt == UNKNOWN || fp.age != age || fp.tagsHash != hash(tags)
+				|| !fp.sameValue(hash(encoded), encoded.remaining())) {
+			return false;
+		}
+		long limit = maxTrustInMillis;
+		if (age > 0) {
+			limit = Math.min(limit, (long) (age * 1000 * refreshRatio));
+		}
+		if (System.currentTimeMillis() - fp.writtenAt >= limit) {
+			return false;
+		}
+		suppressedCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * 書き込んだ値の指紋を記録する。
+	 * @param key キー文字列
+	 * @param encoded シリアライズした値のバイト列
+	 * @param tags タグ文字列の配列
+	 * @param age 有効時間(秒)
+	 */
+	public void written(String key, ByteBuffer encoded, String[] tags, long age) {
+		Fingerprint fp = new Fingerprint(hash(encoded), encoded.remaining(), hash(tags), age, System.currentTimeMillis());
+		synchronized (fingerprints) {
+			fingerprints.put(key, fp);
+		}
+	}
+
+	/**
+	 * 読み出した値の指紋を記録する。前回の書き込みと同じ値であれば書き込みの記録を残す。
+	 * @param key キー文字列
+	 * @param raw 読み出した値のバイト列。存在しない場合は null
+	 */
+	public void read(String key, ByteBuffer raw) {
+		if (raw == null) {
+			invalidate(key);
+			return;
+		}
+		long hash = hash(raw);
+		int length = raw.remaining();
+		synchronized (fingerprints) {
+			Fingerprint fp = fingerprints.get(key);
+			if (fp == null || !fp.sameValue(hash, length)) {
+				fingerprints.put(key, new Fingerprint(hash, length, 0, 0, UNKNOWN));
+			}
+		}
+	}
+
+	/**
+	 * キーの指紋を破棄する。
+	 * @param key キー文字列
+	 */
+	public void invalidate(String key) {
+		synchronized (fingerprints) {
+			fingerprints.remove(key);
+		}
+	}
+
+	/**
+	 * すべての指紋を破棄する。
+	 */
+	public void invalidateAll() {
+		synchronized (fingerprints) {
+			fingerprints.clear();
+		}
+	}
+
+	/**
+	 * 指紋を保持しているキーの数を取得する。
+	 * @return キーの数
+	 */
+	public int size() {
+		synchronized (fingerprints) {
+			return fingerprints.size();
+		}
+	}
+
+	/**
+	 * 書き込みを省略できるか判定した回数を取得する。
+	 * @return 判定した回数
+	 */
+	public long getCheckCount() {
+		return checkCount.get();
+	}
+
+	/**
+	 * 書き込みを省略した回数を取得する。
+	 * @return 省略した回数
+	 */
+	public long getSuppressedCount() {
+		return suppressedCount.get();
+	}
+
+	/**
+	 * バイト列の64ビットハッシュ値(FNV-1a)を求める。バッファの位置は変更しない。
+	 * @param b バイト列
+	 * @return ハッシュ値
+	 */
+	static long hash(ByteBuffer b) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = b.position(); i < b.limit(); ++i) {
+			h ^= b.get(i) & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	static long hash(String[] tags) {
+		if (tags == null) {
+			return 0;
+		}
+		long h = 0xcbf29ce484222325L;
+		for (String tag: tags) {
+			for (int i = 0; i < tag.length(); ++i) {
+				h ^= tag.charAt(i);
+				h *= 0x100000001b3L;
+			}
+			// タグの区切り
+			h ^= 0xffff;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+}
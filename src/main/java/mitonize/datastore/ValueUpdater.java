@@ -0,0 +1,14 @@
+package mitonize.datastore;
+
+/**
+ * 現在の値から新しい値を求める。楽観的な更新で競合した場合は最新の値で繰り返し呼び出されるため、副作用を持たないこと。
+ */
+public interface ValueUpdater {
+	/**
+	 * 現在の値から新しい値を求める。
+	 * @param current 現在の値。存在しない場合は null
+	 * @return 新しい値。null の場合は更新しない
+	 * @throws Exception 新しい値を求められない場合
+	 */
+	Object update(Object current) throws Exception;
+}
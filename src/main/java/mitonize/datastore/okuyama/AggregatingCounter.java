@@ -0,0 +1,253 @@
+package mitonize.datastore.okuyama;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mitonize.datastore.MaintenanceScheduler;
+import mitonize.datastore.OperationFailedException;
+
+/**
+ * カウンタへの加算をプロセス内で集計し、定期的にまとめてOkuyamaに反映するカウンタ。
+ * <p>加算はキーごとに{@link AtomicLong}で集計し、{@link #getFlushIntervalInMillis()} ごとに
+ * キーごとの合計を incrValue / decrValue(プロトコル13、14)として1つのソケットでパイプライン化して送信する。
+ * 高頻度の加算でもサーバへのリクエスト数は集計期間あたりのキーの数に抑えられる。</p>
+ * <p>反映されるまでの間、他のプロセスからは加算前の値が見える。また、プロセスが異常終了した場合は
+ * 反映前の加算は失われる。通信エラーの場合、演算は冪等でないためリトライせず、その集計分は警告をログに出力して破棄する。</p>
+ * <p>一度加算したキーの集計領域は保持し続けるため、キーの種類が限られるカウンタに用いること。</p>
+ * <p>このクラスはスレッドセーフである。</p>
+ *
+ * <pre>
+ * AggregatingCounter counter = factory.createAggregatingCounter();
+ * counter.increment("pv:top");
+ * </pre>
+ */
+public class AggregatingCounter implements Closeable {
+	private final Logger logger = LoggerFactory.getLogger(AggregatingCounter.class);
+
+	private final OkuyamaClientFactory factory;
+	private final ConcurrentHashMap<String, AtomicLong> deltas = new ConcurrentHashMap<String, AtomicLong>();
+	/** 定期実行と明示的な反映が重ならないようにするロック */
+	private final Object flushLock = new Object();
+	private final AtomicLong addCount = new AtomicLong();
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+	private volatile long flushIntervalInMillis = 1000;
+	private ScheduledFuture<?> flushFuture;
+
+	/**
+	 * カウンタを生成する。定期的な反映は {@link #start()} で開始する。
+	 * @param factory 反映に用いるクライアントのファクトリ
+	 */
+	public AggregatingCounter(OkuyamaClientFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * 集計した加算を反映する間隔(ミリ秒)を取得する。
+	 * @return 反映する間隔(ミリ秒)
+	 */
+	public long getFlushIntervalInMillis() {
+		return flushIntervalInMillis;
+	}
+
+	/**
+	 * 集計した加算を反映する間隔(ミリ秒)を設定する。{@link #start()} の前に設定すること。デフォルトは1000ミリ秒。
+	 * @param flushIntervalInMillis 反映する間隔(ミリ秒)。1以上
+	 */
+	public void setFlushIntervalInMillis(long flushIntervalInMillis) {
+		if (flushIntervalInMillis <= 0) {
+			throw new IllegalArgumentException("flushIntervalInMillis must be positive");
+		}
+		this.flushIntervalInMillis = flushIntervalInMillis;
+	}
+
+	/**
+	 * 定期的な反映を開始する。既に開始していれば何もしない。
+	 */
+	public synchronized void start() {
+		if (flushFuture != null) {
+			return;
+		}
+		flushFuture = MaintenanceScheduler.getSharedExecutor().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (RuntimeException e) {
+					logger.warn("Failed to flush counters. cause:{}", e.getMessage());
+				}
+			}
+		}, flushIntervalInMillis, flushIntervalInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * カウンタに加算する。
+	 * @param key キー文字列
+	 * @param delta 加算する値。負の値であれば減算する
+	 */
+	public void add(String key, long delta) {
+		if (key == null) {
+			throw new IllegalArgumentException("Key must not be null.");
+		}
+		addCount.incrementAndGet();
+		AtomicLong counter = deltas.get(key);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = deltas.putIfAbsent(key, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.addAndGet(delta);
+	}
+
+	/**
+	 * カウンタに1を加算する。
+	 * @param key キー文字列
+	 */
+	public void increment(String key) {
+		add(key, 1);
+	}
+
+	/**
+	 * カウンタから1を減算する。
+	 * @param key キー文字列
+	 */
+	public void decrement(String key) {
+		add(key, -1);
+	}
+
+	/**
+	 * まだ反映していない加算の合計を取得する。
+	 * @param key キー文字列
+	 * @return 反映していない加算の合計
+	 */
+	public long getPendingDelta(String key) {
+		AtomicLong counter = deltas.get(key);
+		return counter == null ? 0 : counter.get();
+	}
+
+	/**
+	 * 集計した加算を呼び出したスレッドで反映する。
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			ArrayList<String> keys = new ArrayList<String>();
+			ArrayList<Long> sums = new ArrayList<Long>();
+			for (Map.Entry<String, AtomicLong> e: deltas.entrySet()) {
+				long sum = e.getValue().getAndSet(0);
+				if (sum != 0) {
+					keys.add(e.getKey());
+					sums.add(sum);
+				}
+			}
+			if (!keys.isEmpty()) {
+				write(keys, sums);
+			}
+		}
+	}
+
+	/**
+	 * 定期的な反映を停止し、集計した加算を反映する。
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (flushFuture != null) {
+				flushFuture.cancel(false);
+				flushFuture = null;
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * 加算した回数を取得する。
+	 * @return 加算した回数
+	 */
+	public long getAddCount() {
+		return addCount.get();
+	}
+
+	/**
+	 * Okuyamaに送信した加算、減算のリクエスト数を取得する。
+	 * @return 送信したリクエスト数
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * 反映に失敗して破棄したキーの数を取得する。
+	 * @return 失敗したキーの数
+	 */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	 * まとめて反映する。OkuyamaClientImpl2 の場合はパイプライン化し、それ以外は1件ずつ反映する。
+	 * パイプライン化した演算が失敗したキーは、存在しないキーの初期化を含む incrValue / decrValue でやり直す。
+	 */
+	void write(List<String> keys, List<Long> sums) {
+		OkuyamaClient client = factory.createClient();
+		ArrayList<Integer> retries = new ArrayList<Integer>();
+		if (client instanceof OkuyamaClientImpl2) {
+			OkuyamaClientImpl2 impl = (OkuyamaClientImpl2) client;
+			ArrayList<OkuyamaClientImpl2.CalcRequest> requests = new ArrayList<OkuyamaClientImpl2.CalcRequest>(keys.size());
+			for (int i = 0; i < keys.size(); ++i) {
+				long sum = sums.get(i);
+				requests.add(impl.new CalcRequest(sum > 0 ? 13 : 14, keys.get(i), Math.abs(sum)));
+			}
+			try {
+				requestCount.addAndGet(requests.size());
+				Object[] results = impl.calcValues(requests);
+				for (int i = 0; i < results.length; ++i) {
+					if (results[i] instanceof OperationFailedException) {
+						retries.add(i);
+					}
+				}
+			} catch (IOException e) {
+				failed(keys.size(), e);
+				return;
+			} catch (OperationFailedException e) {
+				failed(keys.size(), e);
+				return;
+			}
+		} else {
+			for (int i = 0; i < keys.size(); ++i) {
+				retries.add(i);
+			}
+		}
+		for (int i: retries) {
+			long sum = sums.get(i);
+			try {
+				requestCount.incrementAndGet();
+				if (sum > 0) {
+					client.incrValue(keys.get(i), sum);
+				} else {
+					client.decrValue(keys.get(i), -sum);
+				}
+			} catch (IOException e) {
+				failed(1, e);
+			} catch (OperationFailedException e) {
+				failed(1, e);
+			}
+		}
+	}
+
+	private void failed(int count, Exception e) {
+		failureCount.addAndGet(count);
+		logger.warn("Failed to flush {} counters. cause:{}", count, e.getMessage());
+	}
+}
@@ -0,0 +1,152 @@
+package mitonize.datastore.okuyama;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * {@link OkuyamaBulkTool} が用いるダンプファイルの書式。
+ * <p>ヘッダ(マジックナンバー "OKDP" とバージョン)に続けてレコードを並べ、末尾にキーの長さとして -1 を置く。
+ * 数値はすべてビッグエンディアンで、文字列はUTF-8のバイト列に長さを前置する。</p>
+ * <pre>
+ * record  := key tagCount tag* age payload
+ * key     := int32 length, bytes
+ * tag     := int32 length, bytes
+ * age     := int64 (秒。0は無期限)
+ * payload := int32 length, bytes (格納されたバイト列。シリアライズや圧縮を解かない)
+ * </pre>
+ * <p>終端が無いファイルは途中で切れたものとして読み取りを失敗させる。</p>
+ */
+final class BulkDumpFile {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	static final int MAGIC = 0x4f4b4450; // "OKDP"
+	static final int VERSION = 1;
+	private static final int END = -1;
+
+	private BulkDumpFile() {
+	}
+
+	/**
+	 * ダンプファイルの1件分のレコード。
+	 */
+	static final class Record {
+		final String key;
+		final String[] tags;
+		final long age;
+		final ByteBuffer payload;
+
+		Record(String key, String[] tags, long age, ByteBuffer payload) {
+			this.key = key;
+			this.tags = tags;
+			this.age = age;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * レコードを書き込む。
+	 */
+	static final class Writer {
+		private final DataOutputStream out;
+		private long count = 0;
+
+		Writer(OutputStream os) throws IOException {
+			out = new DataOutputStream(os);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+		}
+
+		void write(Record record) throws IOException {
+			writeBytes(record.key.getBytes(UTF8));
+			String[] tags = record.tags == null ? new String[0] : record.tags;
+			out.writeInt(tags.length);
+			for (String tag: tags) {
+				writeBytes(tag.getBytes(UTF8));
+			}
+			out.writeLong(record.age);
+			ByteBuffer payload = record.payload;
+			out.writeInt(payload.remaining());
+			out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+			++count;
+		}
+
+		/**
+		 * 終端を書き込んでフラッシュする。出力ストリームは閉じない。
+		 */
+		void finish() throws IOException {
+			out.writeInt(END);
+			out.flush();
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		private void writeBytes(byte[] b) throws IOException {
+			out.writeInt(b.length);
+			out.write(b);
+		}
+	}
+
+	/**
+	 * レコードを読み取る。
+	 */
+	static final class Reader {
+		private final DataInputStream in;
+		private byte[] scratch = new byte[256];
+
+		Reader(InputStream is) throws IOException {
+			in = new DataInputStream(is);
+			int magic = in.readInt();
+			if (magic != MAGIC) {
+				throw new IOException("Not a dump file");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported dump file version:" + version);
+			}
+		}
+
+		/**
+		 * 次のレコードを読み取る。
+		 * @return レコード。終端に達した場合は null
+		 * @throws EOFException 終端の前にファイルが終わった場合
+		 */
+		Record read() throws IOException {
+			int length = in.readInt();
+			if (length == END) {
+				return null;
+			}
+			String key = readString(length);
+			int tagCount = in.readInt();
+			String[] tags = null;
+			if (tagCount > 0) {
+				tags = new String[tagCount];
+				for (int i = 0; i < tagCount; ++i) {
+					tags[i] = readString(in.readInt());
+				}
+			}
+			long age = in.readLong();
+			byte[] payload = new byte[in.readInt()];
+			in.readFully(payload);
+			return new Record(key, tags, age, ByteBuffer.wrap(payload));
+		}
+
+		private String readString(int length) throws IOException {
+			if (length < 0) {
+				throw new IOException("Broken dump file");
+			}
+			if (length > scratch.length) {
+				scratch = Arrays.copyOf(scratch, Math.max(length, scratch.length * 2));
+			}
+			in.readFully(scratch, 0, length);
+			return new String(scratch, 0, length, UTF8);
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package mitonize.datastore.okuyama;
+
+/**
+ * 一括操作の進捗を受け取るリスナー。
+ * <p>バッチが完了するたびに呼び出される。並行して実行する場合は複数のスレッドから呼び出されるが、
+ * 呼び出しは直列化されるため同時には呼び出されない。呼び出している間は他のバッチの完了の通知が待たされるため、
+ * 時間のかかる処理は行わないこと。</p>
+ */
+public interface BulkProgressListener {
+	/**
+	 * 進捗を通知する。
+	 * @param processed 処理したキーの数
+	 * @param succeeded 処理したキーのうち操作が成功したキーの数
+	 */
+	void progress(long processed, long succeeded);
+}
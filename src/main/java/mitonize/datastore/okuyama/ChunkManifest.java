@@ -0,0 +1,109 @@
+package mitonize.datastore.okuyama;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * 分割して格納した値の目録。値のキーにはこの目録を格納し、分割した断片はキーに書き込みごとのバージョンを付加した
+ * 断片用のキーに格納する。断片のキーがバージョンごとに異なるため、読み出し側が異なる書き込みの断片を混ぜることはない。
+ */
+final class ChunkManifest implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** 断片のキーの接頭辞。値のキーとバージョンから成る */
+	final String prefix;
+	/** 書き込みごとに一意なバージョン */
+	final String version;
+	/** 断片の数 */
+	final int count;
+	/** 分割する前のバイト列の長さ */
+	final int length;
+	/** 分割する前のバイト列の CRC32 */
+	final long crc;
+
+	/**
+	 * バイト列を分割して格納するための目録を生成する。
+	 * @param key 値のキー文字列
+	 * @param encoded 分割する前のバイト列
+	 * @param chunkSize 断片の最大バイト数
+	 */
+	ChunkManifest(String key, ByteBuffer encoded, int chunkSize) {
+		this.version = UUID.randomUUID().toString();
+		this.prefix = key + "#chunk#" + version + "#";
+		this.length = encoded.remaining();
+		this.count = (length + chunkSize - 1) / chunkSize;
+		this.crc = checksum(encoded);
+	}
+
+	/**
+	 * 値のキー文字列を返す。
+	 * @return 目録を格納した値のキー文字列
+	 */
+	String key() {
+		return prefix.substring(0, prefix.length() - ("#chunk#" + version + "#").length());
+	}
+
+	/**
+	 * 断片のキー文字列を返す。
+	 * @return 断片の順に並べたキー文字列
+	 */
+	String[] chunkKeys() {
+		String[] keys = new String[count];
+		for (int i = 0; i < count; ++i) {
+			keys[i] = prefix + i;
+		}
+		return keys;
+	}
+
+	/**
+	 * 分割する前のバイト列から断片を切り出す。
+	 * @param encoded 分割する前のバイト列
+	 * @param index 断片の番号
+	 * @return 断片のバイト列。encoded と内容を共有する
+	 */
+	ByteBuffer chunk(ByteBuffer encoded, int index) {
+		int chunkSize = (length + count - 1) / count;
+		ByteBuffer chunk = encoded.duplicate();
+		int from = encoded.position() + chunkSize * index;
+		chunk.position(from);
+		chunk.limit(Math.min(encoded.limit(), from + chunkSize));
+		return chunk.slice();
+	}
+
+	/**
+	 * 断片を連結し、長さとチェックサムを確認する。
+	 * @param chunks 断片の順に並べたバイト列
+	 * @return 連結したバイト列。長さかチェックサムが一致しない場合は null
+	 */
+	ByteBuffer assemble(ByteBuffer[] chunks) {
+		ByteBuffer assembled = ByteBuffer.allocate(length);
+		for (ByteBuffer chunk: chunks) {
+			if (chunk.remaining() > assembled.remaining()) {
+				return null;
+			}
+			assembled.put(chunk.duplicate());
+		}
+		if (assembled.hasRemaining()) {
+			return null;
+		}
+		assembled.flip();
+		if (checksum(assembled) != crc) {
+			return null;
+		}
+		return assembled;
+	}
+
+	static long checksum(ByteBuffer b) {
+		CRC32 crc32 = new CRC32();
+		if (b.hasArray()) {
+			crc32.update(b.array(), b.arrayOffset() + b.position(), b.remaining());
+		} else {
+			byte[] bytes = new byte[b.remaining()];
+			b.duplicate().get(bytes);
+			crc32.update(bytes);
+		}
+		return crc32.getValue();
+	}
+}
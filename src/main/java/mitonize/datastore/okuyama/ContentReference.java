@@ -0,0 +1,51 @@
+package mitonize.datastore.okuyama;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 内容のハッシュ値から導いたキーに1つだけ格納した値への参照。値のキーにはこの参照を格納する。
+ * 同じバイト列の値は同じキーを参照するため、サーバには1つだけ格納される。
+ */
+final class ContentReference implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** 内容を格納するキーの接頭辞 */
+	static final String KEY_PREFIX = "blob#sha256#";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** 内容を格納したキー */
+	final String blobKey;
+	/** 内容のバイト数 */
+	final int length;
+
+	/**
+	 * バイト列の内容への参照を生成する。
+	 * @param encoded 値を変換したバイト列
+	 */
+	ContentReference(ByteBuffer encoded) {
+		this.blobKey = KEY_PREFIX + sha256(encoded);
+		this.length = encoded.remaining();
+	}
+
+	static String sha256(ByteBuffer b) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 はすべてのJava実装で利用できる
+			throw new IllegalStateException(e);
+		}
+		digest.update(b.duplicate());
+		byte[] hash = digest.digest();
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; ++i) {
+			hex[i * 2] = HEX[(hash[i] >> 4) & 0x0f];
+			hex[i * 2 + 1] = HEX[hash[i] & 0x0f];
+		}
+		return new String(hex);
+	}
+}
@@ -0,0 +1,76 @@
+package mitonize.datastore.okuyama;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import mitonize.datastore.OperationFailedException;
+
+/**
+ * 取得した値を最初に参照するまで復元しない値。Base64デコードしたバイト列を保持し、
+ * {@link #get()} で初めて展開とデシリアライズを行って結果を保持する。
+ * <p>分割して格納した値や内容を共有して格納した値は、復元する際に取得したクライアントで断片や内容を読み出す。
+ * クライアントはスレッドセーフではないため、そのような値は取得したスレッドで復元すること。</p>
+ */
+public final class LazyValue {
+	private final OkuyamaClientImpl2 client;
+	private ByteBuffer raw;
+	private int encodedLength;
+	private Object value;
+
+	/**
+	 * バイト列を保持する値を生成する。
+	 * @param client 復元に用いるクライアント
+	 * @param raw Base64デコードしたバイト列
+	 */
+	LazyValue(OkuyamaClientImpl2 client, ByteBuffer raw) {
+		this.client = client;
+		this.raw = raw;
+		this.encodedLength = raw.remaining();
+	}
+
+	private LazyValue(Object value) {
+		this.client = null;
+		this.raw = null;
+		this.encodedLength = -1;
+		this.value = value;
+	}
+
+	/**
+	 * 復元済みの値を保持する値を生成する。ニアキャッシュから取得した値などに用いる。
+	 * @param value 値
+	 * @return 復元済みの値
+	 */
+	static LazyValue of(Object value) {
+		return new LazyValue(value);
+	}
+
+	/**
+	 * 値を取得する。初めて参照した時に復元し、以降は同じインスタンスを返す。
+	 * @return 値。デシリアライズできなかった場合は ClassNotFoundException のインスタンス
+	 * @throws IOException デシリアライズに失敗した場合、断片などの読み出しで通信エラーが発生した場合
+	 * @throws OperationFailedException 圧縮形式が不正な場合
+	 */
+	public synchronized Object get() throws IOException, OperationFailedException {
+		if (raw != null) {
+			value = client.decodeValue(raw.duplicate());
+			raw = null;
+		}
+		return value;
+	}
+
+	/**
+	 * 値を復元済みかを判定する。
+	 * @return 復元済みなら true
+	 */
+	public synchronized boolean isDecoded() {
+		return raw == null;
+	}
+
+	/**
+	 * 復元する前のバイト列の長さを取得する。
+	 * @return Base64デコードしたバイト数。キャッシュから取得した値など、バイト列を持たない場合は -1
+	 */
+	public int getEncodedLength() {
+		return encodedLength;
+	}
+}
@@ -0,0 +1,106 @@
+package mitonize.datastore.okuyama;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mitonize.datastore.NearCache;
+import mitonize.datastore.OperationFailedException;
+import mitonize.datastore.RawValueCache;
+import mitonize.datastore.VersionedValue;
+
+/**
+ * ニアキャッシュのエントリのうち参照頻度の高いものから順に、データストア上のバージョンを再検証するタスク。
+ * バージョンの取得(プロトコル15)はまとめてパイプライン化して送信する。
+ * バージョンが変わっていたエントリは新しい値で置き換え、削除されていたエントリは破棄し、
+ * 変わっていなかったエントリは有効期限を延長する。
+ */
+class NearCacheRevalidator implements Runnable {
+	private final Logger logger = LoggerFactory.getLogger(NearCacheRevalidator.class);
+
+	private final OkuyamaClientFactoryImpl factory;
+	private final NearCache cache;
+
+	NearCacheRevalidator(OkuyamaClientFactoryImpl factory, NearCache cache) {
+		this.factory = factory;
+		this.cache = cache;
+	}
+
+	@Override
+	public void run() {
+		try {
+			int count = revalidate();
+			if (count > 0 && logger.isDebugEnabled()) {
+				logger.debug("Revalidated near cache entries - count:{} {}", count, cache.getStatistics());
+			}
+		} catch (IOException e) {
+			logger.warn("Failed to revalidate near cache. {}", e.getMessage());
+		} catch (OperationFailedException e) {
+			logger.warn("Failed to revalidate near cache. {}", e.getMessage());
+		} catch (RuntimeException e) {
+			// 定期実行が止まらないように例外は外に出さない
+			logger.error("Failed to revalidate near cache.", e);
+		}
+	}
+
+	/**
+	 * 参照頻度の高いエントリを再検証する。
+	 * @return 再検証したエントリの数
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 期待した応答でなかった場合
+	 */
+	int revalidate() throws IOException, OperationFailedException {
+		List<NearCache.Entry> entries = cache.hottestEntries(cache.getRevalidationMaxEntries());
+		if (entries.isEmpty()) {
+			return 0;
+		}
+		OkuyamaClientImpl2 client = (OkuyamaClientImpl2) factory.createClient();
+		int batchSize = Math.max(1, cache.getRevalidationBatchSize());
+		for (int from = 0; from < entries.size(); from += batchSize) {
+			revalidate(client, entries.subList(from, Math.min(entries.size(), from + batchSize)));
+		}
+		return entries.size();
+	}
+
+	void revalidate(OkuyamaClientImpl2 client, List<NearCache.Entry> entries) throws IOException, OperationFailedException {
+		ArrayList<OkuyamaClientImpl2.GetVersionCheckRequest> requests = new ArrayList<OkuyamaClientImpl2.GetVersionCheckRequest>(entries.size());
+		long[] stamps = new long[entries.size()];
+		for (int i = 0; i < entries.size(); ++i) {
+			String key = entries.get(i).getKey();
+			stamps[i] = cache.stamp(key);
+			requests.add(client.new GetVersionCheckRequest(key));
+		}
+		Object[] results = client.executePipelined(requests);
+		for (int i = 0; i < results.length; ++i) {
+			NearCache.Entry entry = entries.get(i);
+			if (results[i] instanceof OperationFailedException) {
+				// 確認できなかったエントリはそのままとし、有効期限に任せる
+				continue;
+			}
+			VersionedValue versioned = (VersionedValue) results[i];
+			if (versioned == null || !entry.getVersion().equals(versioned.getVersion())) {
+				// オフヒープキャッシュなどにも古い値が残っている可能性がある
+				for (RawValueCache tier: client.rawCaches) {
+					tier.invalidate(entry.getKey());
+				}
+			}
+			if (versioned == null) {
+				cache.discard(entry, stamps[i]);
+			} else if (versioned.getVersion() != null && versioned.getVersion().equals(entry.getVersion())) {
+				cache.renew(entry, stamps[i]);
+			} else {
+				ByteBuffer raw = (ByteBuffer) versioned.getValue();
+				Object value = client.decodeValue(raw);
+				if (raw == null || value instanceof ClassNotFoundException) {
+					cache.discard(entry, stamps[i]);
+				} else {
+					cache.refresh(entry, value, raw.remaining(), versioned.getVersion(), stamps[i]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package mitonize.datastore.okuyama;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mitonize.datastore.CloseableIterator;
+import mitonize.datastore.OperationFailedException;
+import mitonize.datastore.Pair;
+import mitonize.datastore.StreamReadException;
+
+/**
+ * タグで到達できる値をダンプファイルに書き出し(export)、ダンプファイルの値を格納する(load)コマンドラインツール。
+ * クラスタの移行や障害復旧の訓練に用いる。
+ * <p>値は格納されたバイト列(Base64デコードしたもの)のまま扱い、展開やデシリアライズを行わないため、
+ * 値のクラスがクラスパスに無くても移せる。書式は {@link BulkDumpFile} を参照。</p>
+ * <p>export はタグごとにキーを取得してキーとタグの対応を作ってから、タグごとに値を読み取りながら書き出す。
+ * 複数のタグを持つキーは1回だけ書き出す。キーとタグの対応はメモリに保持する。
+ * Okuyamaのプロトコルでは値の有効時間を取得できないため、有効時間はコマンドラインで指定した値を記録する。
+ * 分割して格納した値の目録や内容への参照はそのまま書き出し、タグで到達できる値を書き出した後に、
+ * それらが指す断片と共有する内容をタグなしで書き出す。指す先が存在しないキーは警告をログに出力する。</p>
+ * <p>load は {@link OkuyamaClient#setMulti(java.util.Map, String[], long, int, BulkProgressListener)}
+ * と同様に、レコードをバッチにまとめて複数の接続で並行して格納する。</p>
+ *
+ * <pre>
+ * java mitonize.datastore.okuyama.OkuyamaBulkTool export host1:8888,host2:8888 dump.bin tag1,tag2 [age]
+ * java mitonize.datastore.okuyama.OkuyamaBulkTool load host1:8888,host2:8888 dump.bin [concurrency]
+ * </pre>
+ */
+public class OkuyamaBulkTool {
+	private static final Logger logger = LoggerFactory.getLogger(OkuyamaBulkTool.class);
+
+	/** 進捗をログに出力する間隔(キーの数) */
+	private static final long PROGRESS_INTERVAL = 100000;
+	private static final int DEFAULT_CONCURRENCY = 4;
+	private static final int FILE_BUFFER_SIZE = 65536;
+
+	private final OkuyamaClientImpl2 client;
+
+	OkuyamaBulkTool(OkuyamaClientImpl2 client) {
+		this.client = client;
+	}
+
+	public static void main(String[] args) {
+		int status = run(args);
+		if (status != 0) {
+			System.exit(status);
+		}
+	}
+
+	static int run(String[] args) {
+		if (args.length < 3 || !(args[0].equals("export") && args.length >= 4 || args[0].equals("load"))) {
+			System.err.println("Usage: OkuyamaBulkTool export <host:port,...> <file> <tag,...> [age]");
+			System.err.println("       OkuyamaBulkTool load <host:port,...> <file> [concurrency]");
+			return 2;
+		}
+		OkuyamaClientFactoryImpl factory = null;
+		try {
+			factory = new OkuyamaClientFactoryImpl(args[1].split(","), DEFAULT_CONCURRENCY);
+			OkuyamaBulkTool tool = new OkuyamaBulkTool((OkuyamaClientImpl2) factory.createClient());
+			long start = System.currentTimeMillis();
+			long count;
+			if (args[0].equals("export")) {
+				long age = args.length > 4 ? Long.parseLong(args[4]) : 0;
+				OutputStream os = new BufferedOutputStream(new FileOutputStream(args[2]), FILE_BUFFER_SIZE);
+				try {
+					count = tool.export(args[3].split(","), age, os);
+				} finally {
+					os.close();
+				}
+			} else {
+				int concurrency = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_CONCURRENCY;
+				InputStream is = new BufferedInputStream(new FileInputStream(args[2]), FILE_BUFFER_SIZE);
+				try {
+					count = tool.load(is, concurrency);
+				} finally {
+					is.close();
+				}
+			}
+			logger.info("{} {} keys in {}ms", args[0], count, System.currentTimeMillis() - start);
+			return 0;
+		} catch (Exception e) {
+			logger.error("Failed to " + args[0], e);
+			return 1;
+		} finally {
+			if (factory != null) {
+				factory.destroy();
+			}
+		}
+	}
+
+	/**
+	 * タグで到達できる値と、それらが指す断片や共有する内容をダンプファイルの書式で書き出す。出力ストリームは閉じない。
+	 * @param tags タグ文字列の配列
+	 * @param age 記録する有効時間(秒)。0は無期限
+	 * @param os 出力ストリーム
+	 * @return 書き出したキーの数。断片と共有する内容のキーを含む
+	 * @throws IOException 通信エラー、あるいは書き出せなかった場合
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	long export(String[] tags, long age, OutputStream os) throws IOException, OperationFailedException {
+		// キーごとのタグ。タグ文字列はキーの間で共有する
+		HashMap<String, List<String>> keyTags = new HashMap<String, List<String>>();
+		for (String tag: tags) {
+			CloseableIterator<String> keys = client.iterateTagKeys(tag, false);
+			try {
+				while (keys.hasNext()) {
+					String key = keys.next();
+					List<String> list = keyTags.get(key);
+					if (list == null) {
+						list = new ArrayList<String>(1);
+						keyTags.put(key, list);
+					}
+					list.add(tag);
+				}
+			} catch (StreamReadException e) {
+				rethrow(e);
+			} finally {
+				keys.close();
+			}
+		}
+		BulkDumpFile.Writer writer = new BulkDumpFile.Writer(os);
+		// 目録や参照が指すキー。書き出す前に他の値からも指されたキーは1回だけ書き出す
+		LinkedHashSet<String> referenced = new LinkedHashSet<String>();
+		for (String tag: tags) {
+			CloseableIterator<Pair> pairs = client.iterateRawPairsByTag(tag);
+			try {
+				while (pairs.hasNext()) {
+					Pair pair = pairs.next();
+					// 書き出したキーは除くため、複数のタグを持つキーも1回だけ書き出す。
+					// キーを取得した後にタグが付けられたキーは書き出さない
+					List<String> list = keyTags.remove(pair.getKey());
+					if (list == null || pair.getValue() == null) {
+						continue;
+					}
+					ByteBuffer raw = (ByteBuffer) pair.getValue();
+					writer.write(new BulkDumpFile.Record(pair.getKey(), list.toArray(new String[list.size()]), age, raw));
+					addReferencedKeys(raw, referenced);
+					if (writer.getCount() % PROGRESS_INTERVAL == 0) {
+						logger.info("exported {} keys", writer.getCount());
+					}
+				}
+			} catch (StreamReadException e) {
+				rethrow(e);
+			} finally {
+				pairs.close();
+			}
+		}
+		exportReferenced(referenced, age, writer);
+		writer.finish();
+		return writer.getCount();
+	}
+
+	/**
+	 * 目録や参照が指すキーを {@link OkuyamaClientImpl2#BULK_BATCH_SIZE} 件ずつ取得してタグなしで書き出す。
+	 * 共有する内容が分割して格納されている場合は、その断片も書き出す。
+	 * @param referenced 目録や参照が指すキー
+	 * @param age 記録する有効時間(秒)
+	 * @param writer 書き出し先
+	 */
+	private void exportReferenced(Set<String> referenced, long age, BulkDumpFile.Writer writer) throws IOException, OperationFailedException {
+		HashSet<String> exported = new HashSet<String>();
+		ArrayList<String> pending = new ArrayList<String>(referenced);
+		while (!pending.isEmpty()) {
+			LinkedHashSet<String> next = new LinkedHashSet<String>();
+			for (int from = 0; from < pending.size(); from += OkuyamaClientImpl2.BULK_BATCH_SIZE) {
+				List<String> keys = pending.subList(from, Math.min(pending.size(), from + OkuyamaClientImpl2.BULK_BATCH_SIZE));
+				ByteBuffer[] raws = client.getMultiObjectRaw(keys.toArray(new String[keys.size()]));
+				for (int i = 0; i < raws.length; ++i) {
+					if (raws[i] == null) {
+						logger.warn("Referenced key is missing. key:{}", keys.get(i));
+						continue;
+					}
+					writer.write(new BulkDumpFile.Record(keys.get(i), null, age, raws[i]));
+					exported.add(keys.get(i));
+					addReferencedKeys(raws[i], next);
+				}
+			}
+			next.removeAll(exported);
+			pending = new ArrayList<String>(next);
+		}
+	}
+
+	/**
+	 * 値が分割して格納した値の目録であれば断片のキーを、内容への参照であれば共有する内容のキーを追加する。
+	 * それ以外の値は、先頭のバイト列で判別して復元せずに読み飛ばす。
+	 * @param raw Base64デコードしたバイト列
+	 * @param keys キーを追加する集合
+	 */
+	void addReferencedKeys(ByteBuffer raw, Set<String> keys) throws IOException, OperationFailedException {
+		if (!OkuyamaClientImpl2.isReference(raw)) {
+			return;
+		}
+		Object value = client.decodeLocal(raw);
+		if (value instanceof ChunkManifest) {
+			keys.addAll(Arrays.asList(((ChunkManifest) value).chunkKeys()));
+		} else if (value instanceof ContentReference) {
+			keys.add(((ContentReference) value).blobKey);
+		}
+	}
+
+	/**
+	 * ダンプファイルのレコードを格納する。入力ストリームは閉じない。
+	 * @param is 入力ストリーム
+	 * @param concurrency 並行して格納する接続の最大数
+	 * @return 格納できたキーの数
+	 * @throws IOException 通信エラー、あるいは読み取れなかった場合
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	long load(InputStream is, int concurrency) throws IOException, OperationFailedException {
+		BulkDumpFile.Reader reader = new BulkDumpFile.Reader(is);
+		ParallelPipeline pipeline = new ParallelPipeline(client, concurrency, new BulkProgressListener() {
+			private long logged = 0;
+
+			@Override
+			public void progress(long processed, long succeeded) {
+				if (processed / PROGRESS_INTERVAL != logged) {
+					logged = processed / PROGRESS_INTERVAL;
+					logger.info("loaded {} keys", succeeded);
+				}
+			}
+		});
+		ArrayList<BulkDumpFile.Record> batch = new ArrayList<BulkDumpFile.Record>(OkuyamaClientImpl2.BULK_BATCH_SIZE);
+		BulkDumpFile.Record record;
+		while ((record = reader.read()) != null) {
+			batch.add(record);
+			if (batch.size() == OkuyamaClientImpl2.BULK_BATCH_SIZE) {
+				pipeline.submit(new LoadBatch(batch));
+				batch = new ArrayList<BulkDumpFile.Record>(OkuyamaClientImpl2.BULK_BATCH_SIZE);
+			}
+		}
+		if (!batch.isEmpty()) {
+			pipeline.submit(new LoadBatch(batch));
+		}
+		pipeline.await();
+		return pipeline.getSucceeded();
+	}
+
+	private static void rethrow(StreamReadException e) throws IOException, OperationFailedException {
+		if (e.getCause() instanceof IOException) {
+			throw (IOException) e.getCause();
+		}
+		throw (OperationFailedException) e.getCause();
+	}
+
+	/**
+	 * レコードのバイト列をそのまま格納するバッチ。格納は冪等であるため通信エラーの場合は1回だけリトライする。
+	 * 格納できなかったキーは警告をログに出力する。
+	 */
+	static class LoadBatch extends ParallelPipeline.Batch {
+		final List<BulkDumpFile.Record> records;
+
+		LoadBatch(List<BulkDumpFile.Record> records) {
+			super(records.size());
+			this.records = records;
+		}
+
+		@Override
+		int execute(OkuyamaClientImpl2 worker) throws IOException, OperationFailedException {
+			ArrayList<OkuyamaClientImpl2.SetRequest> requests = new ArrayList<OkuyamaClientImpl2.SetRequest>(records.size());
+			String[] lastTags = null;
+			byte[] encodedTags = null;
+			for (int i = 0; i < records.size(); ++i) {
+				BulkDumpFile.Record record = records.get(i);
+				OkuyamaClientImpl2.SetRequest request = worker.new SetRequest(record.key, record.payload, record.tags, record.age);
+				request.encoded = record.payload;
+				// 同じタグのレコードは続けて現れるため、直前と同じタグは変換したものを共用する
+				if (i == 0 || !Arrays.equals(lastTags, record.tags)) {
+					lastTags = record.tags;
+					encodedTags = worker.encodeStringList(record.tags);
+				}
+				request.encodedTags = encodedTags;
+				requests.add(request);
+			}
+			Object[] results;
+			try {
+				results = worker.executePipelined(requests);
+			} catch (IOException e) {
+				// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+				logger.debug("retry once cause:{}", e.getMessage());
+				results = worker.executePipelined(requests);
+			}
+			int stored = 0;
+			for (int i = 0; i < results.length; ++i) {
+				if (Boolean.TRUE.equals(results[i])) {
+					++stored;
+				} else if (results[i] instanceof OperationFailedException) {
+					logger.warn("Failed to load. key:{} cause:{}", records.get(i).key, ((OperationFailedException) results[i]).getMessage());
+				}
+			}
+			return stored;
+		}
+	}
+}
@@ -1,10 +1,15 @@
 package mitonize.datastore.okuyama;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 
 import mitonize.datastore.KeyValueConsistencyException;
 import mitonize.datastore.OperationFailedException;
+import mitonize.datastore.CloseableIterator;
+import mitonize.datastore.KeyList;
 import mitonize.datastore.Pair;
+import mitonize.datastore.ValueUpdater;
 import mitonize.datastore.VersionedValue;
 
 
@@ -72,6 +77,86 @@ public interface OkuyamaClient {
 	 */
 	Object removeObjectValue(String key) throws IOException, OperationFailedException;
 
+	/**
+	 * 複数の値をOkuyamaに保存する。値を一定数ごとのバッチにまとめ、バッチごとに1つの接続でパイプライン化して送信する。
+	 * バッチは最大 concurrency 個の接続で並行して実行し、値のシリアライズもバッチを実行するスレッドで行う。
+	 * タグと有効時間はすべての値で共通とし、タグの変換は1回だけ行う。
+	 * 分割して格納する値や内容を共有する値は、他の値を格納した後に呼び出したスレッドで1件ずつ格納する。
+	 * 分割して格納されていた値をパイプライン化して上書きした場合、古い断片は削除せず有効時間が切れるまで残る。
+	 * 通信エラーの場合はバッチごとに1回だけリトライする。途中で失敗した場合、それまでのバッチの値は格納されている。
+	 *
+	 * @param entries キーと値の組。null の値は指定できない
+	 * @param tags タグ文字列の配列。未設定の場合はnullを指定。
+	 * @param age 値の有効時間(秒)。0を指定すると無期限。
+	 * @param concurrency 並行して格納する接続の最大数。1の場合は呼び出したスレッドで格納する
+	 * @param listener バッチごとに進捗を受け取るリスナー。受け取らない場合は null
+	 * @return entries の順に並べたキーと格納できたかの組。キーごとの失敗は false とし、警告をログに出力する
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 * @throws IllegalArgumentException キー文字列にコントロール文字を含む場合、値が null の場合
+	 */
+	Map<String, Boolean> setMulti(Map<String, ?> entries, String[] tags, long age, int concurrency, BulkProgressListener listener) throws IOException, OperationFailedException;
+
+	/**
+	 * 複数の値を、存在しない場合に限りOkuyamaに保存する。{@link #setMulti(Map, String[], long, int, BulkProgressListener)}
+	 * と同様にバッチにまとめて並行して送信する。値は分割や共有をせずに格納する。
+	 * 通信エラーでリトライした場合、既に存在するとされたキーの値を読み出し、送信した値と一致すれば格納できたものとする。
+	 *
+	 * @param entries キーと値の組。null の値は指定できない
+	 * @param tags タグ文字列の配列。未設定の場合はnullを指定。
+	 * @param age 値の有効時間(秒)。0を指定すると無期限。
+	 * @param concurrency 並行して格納する接続の最大数。1の場合は呼び出したスレッドで格納する
+	 * @param listener バッチごとに進捗を受け取るリスナー。受け取らない場合は null
+	 * @return entries の順に並べたキーと格納できたかの組。既に存在した場合は false
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 * @throws IllegalArgumentException キー文字列にコントロール文字を含む場合、値が null の場合
+	 */
+	Map<String, Boolean> addMulti(Map<String, ?> entries, String[] tags, long age, int concurrency, BulkProgressListener listener) throws IOException, OperationFailedException;
+
+	/**
+	 * キーを指定してOkuyamaから値を削除する。{@link #removeObjectValue(String)} と異なり削除前の値を復元しないため、
+	 * デシリアライズや展開の負荷がかからない。
+	 * 分割して格納した値の断片は削除しない。
+	 *
+	 * @param key キー文字列。コントロール文字を含む場合は例外
+	 * @return キーが存在して削除した場合は true
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 * @throws IllegalArgumentException キー文字列にコントロール文字を含む場合
+	 */
+	boolean deleteObjectValue(String key) throws IOException, OperationFailedException;
+
+	/**
+	 * 複数のキーをOkuyamaから削除する。キーを一定数ごとのバッチにまとめ、バッチごとに1つの接続でパイプライン化して送信する。
+	 * バッチは最大 concurrency 個の接続で並行して実行する。削除前の値は読み取らない。
+	 * 分割して格納した値の断片は削除しない。
+	 * 通信エラーの場合はバッチごとに1回だけリトライする。途中で失敗した場合、それまでのバッチのキーは削除されている。
+	 *
+	 * @param keys キー文字列のコレクション
+	 * @param concurrency 並行して削除する接続の最大数。1の場合は呼び出したスレッドで削除する
+	 * @param listener バッチごとに進捗を受け取るリスナー。受け取らない場合は null
+	 * @return 存在して削除したキーの数
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 * @throws IllegalArgumentException キー文字列にコントロール文字を含む場合
+	 */
+	long removeAll(Collection<String> keys, int concurrency, BulkProgressListener listener) throws IOException, OperationFailedException;
+
+	/**
+	 * タグに対応するキーをOkuyamaから削除する。キーは応答を読み取りながら {@link #removeAll(Collection, int, BulkProgressListener)}
+	 * と同様にバッチにまとめて削除するため、キーの数によらずメモリの使用量は一定となる。
+	 * キーの読み取りに1つ、削除に最大 concurrency 個の接続を用いる。キーの読み取りはリトライしない。
+	 *
+	 * @param tag タグ文字列
+	 * @param concurrency 並行して削除する接続の最大数。1の場合は呼び出したスレッドで削除する
+	 * @param listener バッチごとに進捗を受け取るリスナー。受け取らない場合は null
+	 * @return 存在して削除したキーの数
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	long removeByTag(String tag, int concurrency, BulkProgressListener listener) throws IOException, OperationFailedException;
+
 	/**
 	 * 新たにOkuyamaに値を保存する。既に存在する場合は失敗する。
 	 * キー及び値は内部的に Base64エンコードされる。
@@ -123,6 +208,114 @@ public interface OkuyamaClient {
 	 */
 	Pair[] getPairsByTag(String tag) throws IOException, OperationFailedException;
 
+	/**
+	 * 複数のキーを指定してOkuyamaから値を取得し、最初に参照するまで復元しない {@link LazyValue} として返す。
+	 * 展開やデシリアライズは {@link LazyValue#get()} を呼び出したときに行う。
+	 * ニアキャッシュにある値は参照するが、取得した値はニアキャッシュに格納しない。
+	 *
+	 * @param keys キー文字列(可変引数)。コントロール文字を含む場合は例外
+	 * @return キーの順に並べた値の配列。存在しない要素は null
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 * @throws IllegalArgumentException キー文字列にコントロール文字を含む場合
+	 */
+	LazyValue[] getMultiLazyValues(String ... keys) throws IOException, OperationFailedException;
+
+	/**
+	 * タグを指定してOkuyamaから値を取得し、値を最初に参照するまで復元しない {@link LazyValue} として返す。
+	 * キーだけを参照する場合や一部の値だけを参照する場合に、参照しない値のデシリアライズを省略できる。
+	 *
+	 * @param tag タグ文字列
+	 * @return キーと値の組の配列。値は LazyValue のインスタンス
+	 * @throws IOException 通信エラーが発生した場合
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	Pair[] getLazyPairsByTag(String tag) throws IOException, OperationFailedException;
+
+	/**
+	 * タグを指定してOkuyamaから値を取得し、応答を読み取りながら1件ずつ返す。
+	 * 応答全体をヒープに展開しないため、タグに対応するキーが多い場合に用いる。読み出している間はソケットを1つ占有し、
+	 * 最後まで読み出さずに終える場合は close すること。読み出し中の通信エラーは StreamReadException としてスローする。
+	 *
+	 * @param tag タグ文字列
+	 * @return キーと値の組のイテレータ
+	 * @throws IOException リクエストの送信で通信エラーが発生した場合
+	 */
+	CloseableIterator<Pair> iteratePairsByTag(String tag) throws IOException;
+
+	/**
+	 * タグを指定してOkuyamaからキーを取得し、応答を読み取りながら1件ずつ返す。
+	 * 最後まで読み出さずに終える場合は close すること。
+	 *
+	 * @param tag タグ文字列
+	 * @param withDeletedKeys 削除されたキーを含める場合は true
+	 * @return キー文字列のイテレータ
+	 * @throws IOException リクエストの送信で通信エラーが発生した場合
+	 */
+	CloseableIterator<String> iterateTagKeys(String tag, boolean withDeletedKeys) throws IOException;
+
+	/**
+	 * 複数のキーを指定してOkuyamaから値を取得し、応答を読み取りながらキーの順に1件ずつ返す。
+	 * 存在しないキーは値を null とした組を返す。最後まで読み出さずに終える場合は close すること。
+	 *
+	 * @param keys キー文字列(可変引数)。コントロール文字を含む場合は例外
+	 * @return キーと値の組のイテレータ
+	 * @throws IOException リクエストの送信で通信エラーが発生した場合
+	 * @throws IllegalArgumentException キー文字列にコントロール文字を含む場合
+	 */
+	CloseableIterator<Pair> iterateMultiObjectValues(String ... keys) throws IOException;
+
+	/**
+	 * タグを指定してOkuyamaからキーを取得し、キーごとに String を生成しない {@link KeyList} として返す。
+	 * 数百万のキーを持つタグで getTagKeys よりメモリの使用量を抑えられる。タグのキャッシュは参照しない。
+	 *
+	 * @param tag タグ文字列
+	 * @param withDeletedKeys 削除されたキーを含める場合は true
+	 * @return キーのリスト
+	 * @throws IOException 通信エラーが発生した場合
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	KeyList getTagKeyList(String tag, boolean withDeletedKeys) throws IOException, OperationFailedException;
+
+	/**
+	 * 複数のタグを指定してOkuyamaからキーを取得する。タグごとのキーの取得を1つのソケットでパイプライン化して送信し、
+	 * 応答を読み取りながら積集合(and が true)または和集合にまとめる。削除されたキーは含めない。
+	 *
+	 * @param tags タグ文字列の配列
+	 * @param and 全てのタグを持つキーを返す場合は true、いずれかのタグを持つキーを返す場合は false
+	 * @return キー文字列の配列。最初のタグのキーの順に並べる
+	 * @throws IOException 通信エラーが発生した場合
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	String[] getMultiTagKeys(String[] tags, boolean and) throws IOException, OperationFailedException;
+
+	/**
+	 * 複数のタグを指定してOkuyamaから値を取得する。{@link #getMultiTagKeys(String[], boolean)} で取得したキーの値を
+	 * まとめて取得する。
+	 * シリアライズされたオブジェクトがクラスが見つからないなどの原因でデシリアライズできなかった場合は
+	 * ClassNotFoundException を値として返す。
+	 *
+	 * @param tags タグ文字列の配列
+	 * @param and 全てのタグを持つキーの値を返す場合は true、いずれかのタグを持つキーの値を返す場合は false
+	 * @return キーと値の組の配列。キーを取得した後に削除された値は含めない
+	 * @throws IOException 通信エラーが発生した場合
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	Pair[] getMultiTagPairs(String[] tags, boolean and) throws IOException, OperationFailedException;
+
+	/**
+	 * {@link KeyList} の範囲のキーを指定してOkuyamaから値を取得する。キーのバイト列から String を生成せずに送信する。
+	 * ニアキャッシュなどは参照しない。
+	 *
+	 * @param keys キーのリスト
+	 * @param from 開始位置(含む)
+	 * @param to 終了位置(含まない)
+	 * @return キーの順に並べた値の配列。存在しない要素は null
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	Object[] getMultiObjectValues(KeyList keys, int from, int to) throws IOException, OperationFailedException;
+
 	/**
 	 * キーを指定してOkuyamaから値とバージョン情報を取得する。
 	 * シリアライズされたオブジェクトがクラスが見つからないなどの原因でデシリアライズできなかった場合は
@@ -136,6 +329,20 @@ public interface OkuyamaClient {
 	 */
 	VersionedValue getObjectValueVersionCheck(String key) throws IOException, OperationFailedException;
 
+	/**
+	 * 複数のキーを指定してOkuyamaから値とバージョン情報を取得する。
+	 * 1つの接続でキーごとのリクエストを続けて送信(パイプライン化)してから応答を読み取るため、往復は1回で済む。
+	 * シリアライズされたオブジェクトがクラスが見つからないなどの原因でデシリアライズできなかった場合は
+	 * ClassNotFoundException をオブジェクトとして返す。
+	 *
+	 * @param keys キー文字列(可変引数)。コントロール文字を含む場合は例外
+	 * @return キーの順に並べたバージョン情報と値オブジェクトのペアの配列。キーが存在しない要素は null となる。
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 * @throws IllegalArgumentException キー文字列にコントロール文字を含む場合
+	 */
+	VersionedValue[] getMultiObjectValuesVersionCheck(String ... keys) throws IOException, OperationFailedException;
+
 	/**
 	 * Okuyamaに値を保存する。キー及び値は内部的に Base64エンコードされる。
 	 *
@@ -153,4 +360,50 @@ public interface OkuyamaClient {
 	boolean setObjectValueVersionCheck(String key, Object value, String version,
 			String[] tags, long age) throws IOException, OperationFailedException, KeyValueConsistencyException;
 
+	/**
+	 * 値をバージョンと共に読み出し、updater で求めた新しい値をバージョンを確認して格納する(楽観的な更新)。
+	 * 他のクライアントの更新と競合した場合は、待ち時間をおいて読み出しからやり直す。
+	 * キーが存在しない場合は存在しない場合に限り格納する(addObjectValue と同じ)。
+	 * 再試行の回数や待ち時間、競合の統計情報は {@link mitonize.datastore.ConflictRetryPolicy} で扱う。
+	 *
+	 * @param key キー文字列。コントロール文字を含む場合は例外
+	 * @param updater 現在の値から新しい値を求める。競合した場合は繰り返し呼び出される
+	 * @param tags タグ文字列の配列。未設定の場合はnullを指定。
+	 * @param age 値の有効時間(秒)。0を指定すると無期限。
+	 * @return 格納した値。updater が null を返した場合は格納せずに現在の値
+	 * @throws IOException 通信時の例外。書き込みの送信後に発生した場合は更新が反映されている可能性があるため、リトライしない
+	 * @throws OperationFailedException 操作が成功しなかった場合。updater がスローした例外は原因として保持する
+	 * @throws KeyValueConsistencyException 最大の試行回数まで競合した場合
+	 * @throws IllegalArgumentException キー文字列にコントロール文字を含む場合
+	 */
+	Object updateObjectValue(String key, ValueUpdater updater, String[] tags, long age) throws IOException, OperationFailedException;
+
+	/**
+	 * Okuyamaに格納された数値に加算する。加算はサーバ側で行われるため、複数のクライアントから同時に加算しても失われない。
+	 * 数値はシリアライズせずに文字列として格納されるため、getObjectValue では String として取得される。
+	 * キーが存在しない場合は加算する値で初期化する。
+	 * 加算は冪等でないため、通信エラーの場合もリトライしない。
+	 *
+	 * @param key キー文字列。コントロール文字を含む場合は例外
+	 * @param delta 加算する値
+	 * @return 加算後の値
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合。格納された値が数値でない場合を含む
+	 * @throws IllegalArgumentException キー文字列にコントロール文字を含む場合
+	 */
+	long incrValue(String key, long delta) throws IOException, OperationFailedException;
+
+	/**
+	 * Okuyamaに格納された数値から減算する。減算はサーバ側で行われるため、複数のクライアントから同時に減算しても失われない。
+	 * キーが存在しない場合は0で初期化する。
+	 * 減算は冪等でないため、通信エラーの場合もリトライしない。
+	 *
+	 * @param key キー文字列。コントロール文字を含む場合は例外
+	 * @param delta 減算する値
+	 * @return 減算後の値
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合。格納された値が数値でない場合を含む
+	 * @throws IllegalArgumentException キー文字列にコントロール文字を含む場合
+	 */
+	long decrValue(String key, long delta) throws IOException, OperationFailedException;
 }
@@ -1,14 +1,37 @@
 package mitonize.datastore.okuyama;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import mitonize.datastore.CompressionStrategy;
+import mitonize.datastore.ConflictRetryPolicy;
 import mitonize.datastore.DefaultCompressionStrategy;
+import mitonize.datastore.MaintenanceScheduler;
+import mitonize.datastore.NearCache;
+import mitonize.datastore.OffHeapCache;
+import mitonize.datastore.OperationFailedException;
+import mitonize.datastore.PersistentCache;
+import mitonize.datastore.SingleFlight;
 import mitonize.datastore.SocketManager;
 import mitonize.datastore.TextDumpFilterStreamFactory;
+import mitonize.datastore.ValueFingerprints;
 
 public class OkuyamaClientFactoryImpl implements OkuyamaClientFactory {
 	private static CompressionStrategy DEFAULT_COMPRESSION_STRATEGY = new DefaultCompressionStrategy();
+	/** 格納済みとして記憶する内容のキーの最大数 */
+	private static final int MAX_KNOWN_BLOBS = 10000;
 
 	private SocketManager socketManager;
 
@@ -16,16 +39,62 @@ public class OkuyamaClientFactoryImpl implements OkuyamaClientFactory {
 	private CompressionStrategy compressionStrategy = null;
 	private boolean base64key = true;
 	private boolean serializeString = false;
+	private NearCache nearCache = null;
+	private ScheduledFuture<?> nearCacheRevalidationFuture = null;
+	private OffHeapCache offHeapCache = null;
+	private PersistentCache persistentCache = null;
+	private ScheduledFuture<?> persistentCacheRevalidationFuture = null;
+	private SingleFlight singleFlight = null;
+	private NearCache tagCache = null;
+	private final ThreadLocal<OkuyamaRequestScope> requestScope = new ThreadLocal<OkuyamaRequestScope>();
+	private ValueFingerprints valueFingerprints = null;
+	private ConflictRetryPolicy conflictRetryPolicy = new ConflictRetryPolicy();
+	private int chunkSize = 0;
+	private long maxValueSize = 0;
+	private int deduplicationThreshold = 0;
+	private ForkJoinPool decodePool = null;
+	private int parallelDecodeMinBytes = 1024;
+	private Executor bulkExecutor = null;
+	/** bulkExecutor が未設定の場合に生成して、クライアントで共有するエグゼキュータ。destroy で停止する */
+	private ExecutorService ownBulkExecutor = null;
+	/** 格納済みの内容のキー。クライアントで共有する */
+	private final Set<String> knownBlobs = Collections.newSetFromMap(Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_KNOWN_BLOBS;
+		}
+	}));
+	/** destroy で反映を完了させる書き込みバッファやカウンタ */
+	private final List<Closeable> flushOnDestroy = new ArrayList<Closeable>();
 
 	@Override
 	public OkuyamaClient createClient() {
 		OkuyamaClientImpl2 okuyamaClient;
 		okuyamaClient = new OkuyamaClientImpl2(socketManager, base64key, serializeString || compatibilityMode, compressionStrategy);
+		okuyamaClient.setNearCache(nearCache);
+		okuyamaClient.setOffHeapCache(offHeapCache);
+		okuyamaClient.setPersistentCache(persistentCache);
+		okuyamaClient.setSingleFlight(singleFlight);
+		okuyamaClient.setTagCache(tagCache);
+		okuyamaClient.setRequestScope(requestScope);
+		okuyamaClient.setValueFingerprints(valueFingerprints);
+		okuyamaClient.setConflictRetryPolicy(conflictRetryPolicy);
+		okuyamaClient.setChunkSize(chunkSize);
+		okuyamaClient.setMaxValueSize(maxValueSize);
+		okuyamaClient.setDeduplication(deduplicationThreshold, knownBlobs);
+		okuyamaClient.setDecodePool(decodePool, parallelDecodeMinBytes);
+		okuyamaClient.setBulkExecutor(bulkExecutorForClients());
 		return okuyamaClient;
 	}
 
 	@Override
 	public void destroy() {
+		cancelNearCacheRevalidation();
+		cancelPersistentCacheRevalidation();
+		closeFlushOnDestroy();
+		shutdownOwnBulkExecutor();
 		this.socketManager.shutdown();
 	}
 
@@ -219,6 +288,397 @@ public class OkuyamaClientFactoryImpl implements OkuyamaClientFactory {
 		this.serializeString = serializeString;
 	}
 
+	/**
+	 * 読み出しに用いるニアキャッシュを取得する。
+	 * @return ニアキャッシュ。未設定ならnull
+	 */
+	public NearCache getNearCache() {
+		return nearCache;
+	}
+
+	/**
+	 * 読み出しに用いるニアキャッシュを設定する。設定するとgetObjectValue、getMultiObjectValuesで取得した値が
+	 * プロセス内にキャッシュされ、このファクトリで生成したクライアントによる書き込みや削除で無効化される。
+	 * 他のプロセスによる更新は有効期間が過ぎるまで反映されない。ヒット率などの統計情報は{@link NearCache#getStatistics()}で取得できる。
+	 * ニアキャッシュに再検証の間隔が設定されている場合は、その間隔でバージョンを再検証するタスクを開始する。
+	 * 設定を解除する場合はnullを設定する。
+	 * @param nearCache ニアキャッシュ。解除する場合はnull
+	 */
+	public synchronized void setNearCache(NearCache nearCache) {
+		cancelNearCacheRevalidation();
+		this.nearCache = nearCache;
+		if (nearCache != null && nearCache.isRevalidationEnabled()) {
+			long interval = nearCache.getRevalidationIntervalInMillis();
+			nearCacheRevalidationFuture = MaintenanceScheduler.getSharedExecutor().scheduleWithFixedDelay(
+					new NearCacheRevalidator(this, nearCache), interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * 読み出しに用いるオフヒープキャッシュを取得する。
+	 * @return オフヒープキャッシュ。未設定ならnull
+	 */
+	public OffHeapCache getOffHeapCache() {
+		return offHeapCache;
+	}
+
+	/**
+	 * 読み出しに用いるオフヒープキャッシュを設定する。ニアキャッシュになかった値をヒープ外に圧縮されたまま保持し、
+	 * ヒットした時に展開とデシリアライズを行う。ニアキャッシュと併用した場合は、ニアキャッシュの次に参照される。
+	 * 無効化の契機はニアキャッシュと同じである。設定を解除する場合はnullを設定する。
+	 * @param offHeapCache オフヒープキャッシュ。解除する場合はnull
+	 */
+	public void setOffHeapCache(OffHeapCache offHeapCache) {
+		this.offHeapCache = offHeapCache;
+	}
+
+	/**
+	 * 読み出しに用いる永続キャッシュを取得する。
+	 * @return 永続キャッシュ。未設定ならnull
+	 */
+	public PersistentCache getPersistentCache() {
+		return persistentCache;
+	}
+
+	/**
+	 * 読み出しに用いる永続キャッシュを設定する。データストアから取得した値をファイルに保持し、
+	 * プロセスを再起動した後もデータストアに問い合わせずに返す。ニアキャッシュ、オフヒープキャッシュの次に参照される。
+	 * データストアからの取得は通常どおり値だけを問い合わせる(プロトコル2)。再起動前に格納された値は、
+	 * 参照されたものから順に{@link PersistentCache#getRevalidationIntervalInMillis()}の間隔で
+	 * {@link PersistentCacheRevalidator}がバージョンをまとめて問い合わせ(プロトコル15)、再検証する。
+	 * 永続キャッシュはファクトリを破棄しても閉じないため、利用側で閉じること。
+	 * 設定を解除する場合はnullを設定する。
+	 * @param persistentCache 永続キャッシュ。解除する場合はnull
+	 */
+	public synchronized void setPersistentCache(PersistentCache persistentCache) {
+		cancelPersistentCacheRevalidation();
+		this.persistentCache = persistentCache;
+		if (persistentCache != null && persistentCache.getRevalidationIntervalInMillis() > 0) {
+			long interval = persistentCache.getRevalidationIntervalInMillis();
+			persistentCacheRevalidationFuture = MaintenanceScheduler.getSharedExecutor().scheduleWithFixedDelay(
+					new PersistentCacheRevalidator(this, persistentCache), interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * 同時に実行される同じ読み出しを1つにまとめるかを返す。
+	 * @return まとめる場合はtrue
+	 */
+	public boolean isSingleFlightEnabled() {
+		return singleFlight != null;
+	}
+
+	/**
+	 * 同時に実行される同じ読み出しを1つにまとめるかを設定する。(デフォルト:false)
+	 * 有効にすると、このファクトリで生成したクライアントで同じキーに対するgetObjectValue、getObjectValueVersionCheck、
+	 * 同じタグに対するgetTagKeysが同時に呼ばれた場合に、先行する要求の結果を共有してデータストアへの要求を1回にする。
+	 * 値のデシリアライズは呼び出し元ごとに行うため、返却されるオブジェクトは共有されない。
+	 * @param enabled まとめる場合はtrue
+	 */
+	public void setSingleFlightEnabled(boolean enabled) {
+		this.singleFlight = enabled ? new SingleFlight() : null;
+	}
+
+	/**
+	 * 読み出しをまとめるための{@link SingleFlight}を取得する。まとめた回数などの統計情報の取得に用いる。
+	 * @return 無効の場合はnull
+	 */
+	public SingleFlight getSingleFlight() {
+		return singleFlight;
+	}
+
+	/**
+	 * タグに対応するキーの一覧のキャッシュを取得する。
+	 * @return キャッシュ。未設定ならnull
+	 */
+	public NearCache getTagCache() {
+		return tagCache;
+	}
+
+	/**
+	 * タグに対応するキーの一覧(getTagKeysの結果)のキャッシュを設定する。
+	 * このファクトリで生成したクライアントで、タグを指定してsetObjectValue、addObjectValue、setObjectValueVersionCheckを
+	 * 呼び出すと、そのタグの一覧はキャッシュから除去される。削除するとキーのタグが分からないため、すべての一覧が除去される。
+	 * 他のプロセスによる書き込みは有効期間が過ぎるまで反映されない。
+	 * 値の一覧(getPairsByTag)は、タグを指定しない書き込みでも値が変わるため対象としない。
+	 * キャッシュの再検証の設定は利用されない。設定を解除する場合はnullを設定する。
+	 * @param tagCache キャッシュ。ニアキャッシュとは別のインスタンスを指定する。解除する場合はnull
+	 */
+	public void setTagCache(NearCache tagCache) {
+		this.tagCache = tagCache;
+	}
+
+	/**
+	 * 変更のない値の書き込みを省略するための指紋を取得する。
+	 * @return 指紋。未設定ならnull
+	 */
+	public ValueFingerprints getValueFingerprints() {
+		return valueFingerprints;
+	}
+
+	/**
+	 * 変更のない値の書き込みを省略するための指紋を設定する。
+	 * このファクトリで生成したクライアントの setObjectValue は、前回書き込んだ値とシリアライズしたバイト列、タグ、有効時間が
+	 * 同じで、有効時間の更新が必要なければ書き込まずに true を返す。同じキーを他のプロセスからも書き換える場合は設定しないこと。
+	 * @param valueFingerprints 指紋。解除する場合はnull
+	 */
+	public void setValueFingerprints(ValueFingerprints valueFingerprints) {
+		this.valueFingerprints = valueFingerprints;
+	}
+
+	/**
+	 * updateObjectValue で競合した場合の再試行の方針を取得する。競合の回数や競合の多いキーの取得にも用いる。
+	 * @return 再試行の方針
+	 */
+	public ConflictRetryPolicy getConflictRetryPolicy() {
+		return conflictRetryPolicy;
+	}
+
+	/**
+	 * updateObjectValue で競合した場合の再試行の方針を設定する。
+	 * @param conflictRetryPolicy 再試行の方針
+	 */
+	public void setConflictRetryPolicy(ConflictRetryPolicy conflictRetryPolicy) {
+		if (conflictRetryPolicy == null) {
+			throw new IllegalArgumentException("conflictRetryPolicy must not be null");
+		}
+		this.conflictRetryPolicy = conflictRetryPolicy;
+	}
+
+	/**
+	 * 値を分割して格納する断片の最大バイト数を取得する。
+	 * @return 断片の最大バイト数。分割しない場合は0
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * 値を分割して格納する断片の最大バイト数(Base64エンコードする前)を設定する。
+	 * このファクトリで生成したクライアントの setObjectValue、addObjectValue、setObjectValueVersionCheck、updateObjectValue は、
+	 * シリアライズしたバイト列がこの大きさを超える値を断片に分割して別々のキーに格納し、値のキーには断片の目録を格納する。
+	 * トランザクションは値を分割できないため、この大きさを超える値の書き込みを失敗とする。getObjectValue などの読み出しでは
+	 * 断片をまとめて読み出して復元する。断片は Base64 エンコードすると約4/3倍になるため、サーバが格納できる最大の大きさの
+	 * 3/4より小さくすること。分割して格納した値は、このライブラリ以外のクライアントからは読み出せない。
+	 * @param chunkSize 断片の最大バイト数。分割しない場合は0
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize < 0) {
+			throw new IllegalArgumentException("chunkSize must not be negative");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * サーバが格納できる値の最大バイト数を取得する。
+	 * @return 最大バイト数。確認しない場合は0
+	 */
+	public long getMaxValueSize() {
+		return maxValueSize;
+	}
+
+	/**
+	 * サーバが格納できる値の最大バイト数(Base64エンコードした後)を設定する。
+	 * このファクトリで生成したクライアントの値を格納する操作は、送信する前に値の大きさを確認し、超える場合は OperationFailedException をスローする。
+	 * @param maxValueSize 最大バイト数。確認しない場合は0
+	 */
+	public void setMaxValueSize(long maxValueSize) {
+		if (maxValueSize < 0) {
+			throw new IllegalArgumentException("maxValueSize must not be negative");
+		}
+		this.maxValueSize = maxValueSize;
+	}
+
+	/**
+	 * MasterNodeに問い合わせた値の最大バイト数(initClient の返却値)を {@link #setMaxValueSize(long)} に設定する。
+	 * 断片の大きさが未設定であれば、最大バイト数に収まる断片の大きさも設定する。
+	 * @return 値の最大バイト数
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	public long detectMaxValueSize() throws IOException, OperationFailedException {
+		long size = createClient().initClient();
+		setMaxValueSize(size);
+		if (chunkSize == 0 && size > 0) {
+			// Base64エンコードで増える分を除く
+			setChunkSize((int) Math.min(Integer.MAX_VALUE, size / 4 * 3));
+		}
+		return size;
+	}
+
+	/**
+	 * 内容を共有して格納する値の最小バイト数を取得する。
+	 * @return 最小バイト数。共有しない場合は0
+	 */
+	public int getDeduplicationThreshold() {
+		return deduplicationThreshold;
+	}
+
+	/**
+	 * 内容を共有して格納する値の最小バイト数(Base64エンコードする前)を設定する。
+	 * このファクトリで生成したクライアントの setObjectValue は、シリアライズしたバイト列がこの大きさ以上の値を
+	 * 内容の SHA-256 から導いたキーに有効時間を無期限として1つだけ格納し、値のキーには内容への参照を格納する。
+	 * 読み出しでは参照先をニアキャッシュなどを参照して取得するため、同じ内容を持つキーはキャッシュも共有する。
+	 * 一度格納した内容は参照するキーがなくなっても削除しない。内容を共有して格納した値は、このライブラリ以外のクライアントからは読み出せない。
+	 * @param deduplicationThreshold 最小バイト数。共有しない場合は0
+	 */
+	public void setDeduplicationThreshold(int deduplicationThreshold) {
+		if (deduplicationThreshold < 0) {
+			throw new IllegalArgumentException("deduplicationThreshold must not be negative");
+		}
+		this.deduplicationThreshold = deduplicationThreshold;
+	}
+
+	/**
+	 * 複数の値の復元を並列に行うプールを取得する。
+	 * @return プール。未設定ならnull
+	 */
+	public ForkJoinPool getDecodePool() {
+		return decodePool;
+	}
+
+	/**
+	 * 複数の値の復元を並列に行うプールを設定する。
+	 * このファクトリで生成したクライアントの getMultiObjectValues と getPairsByTag は、応答を読み取りながら
+	 * 値のフィールドをプールに渡し、Base64デコード、展開、デシリアライズをプールのスレッドで行う。
+	 * プールの終了はこのファクトリでは行わない。
+	 * @param decodePool プール。読み取るスレッドで復元する場合はnull
+	 */
+	public void setDecodePool(ForkJoinPool decodePool) {
+		this.decodePool = decodePool;
+	}
+
+	/**
+	 * 一括操作(setMulti、addMulti、removeAll、removeByTag)のバッチを並行して実行するエグゼキュータを取得する。
+	 * @return エグゼキュータ。未設定ならnull
+	 */
+	public synchronized Executor getBulkExecutor() {
+		return bulkExecutor;
+	}
+
+	/**
+	 * 一括操作(setMulti、addMulti、removeAll、removeByTag)のバッチを並行して実行するエグゼキュータを設定する。
+	 * 未設定の場合は、このファクトリで生成したクライアントで共有するエグゼキュータを生成し、{@link #destroy()} で停止する。
+	 * 設定したエグゼキュータの終了はこのファクトリでは行わない。設定の変更は以降に生成したクライアントに反映される。
+	 * @param bulkExecutor エグゼキュータ。ファクトリで生成する場合はnull
+	 */
+	public synchronized void setBulkExecutor(Executor bulkExecutor) {
+		this.bulkExecutor = bulkExecutor;
+	}
+
+	/**
+	 * プールで復元する値の最小バイト数を取得する。
+	 * @return 最小バイト数
+	 */
+	public int getParallelDecodeMinBytes() {
+		return parallelDecodeMinBytes;
+	}
+
+	/**
+	 * プールで復元する値の最小バイト数(Base64エンコードされたまま)を設定する。これより小さい値は
+	 * プールに渡す負荷の方が大きいため、応答をすべて読み取った後に読み取ったスレッドで復元する。デフォルトは1024バイト。
+	 * @param parallelDecodeMinBytes 最小バイト数
+	 */
+	public void setParallelDecodeMinBytes(int parallelDecodeMinBytes) {
+		if (parallelDecodeMinBytes < 0) {
+			throw new IllegalArgumentException("parallelDecodeMinBytes must not be negative");
+		}
+		this.parallelDecodeMinBytes = parallelDecodeMinBytes;
+	}
+
+	/**
+	 * 複数のキーをまとめて更新する楽観的なトランザクションを開始する。
+	 * トランザクションはこのファクトリで生成したクライアントを1つ用いるため、開始したスレッドでのみ利用すること。
+	 * @return トランザクション
+	 */
+	public OkuyamaTransaction beginTransaction() {
+		return new OkuyamaTransaction((OkuyamaClientImpl2) createClient());
+	}
+
+	/**
+	 * 現在のスレッドでリクエストスコープを開始する。スコープを閉じるまで、このファクトリで生成したクライアントによる
+	 * 同じキーの読み出しは1回にまとめられる。既に開始していれば入れ子にする。
+	 * @return リクエストスコープ。try-with-resources で閉じること
+	 */
+	public OkuyamaRequestScope openRequestScope() {
+		return OkuyamaRequestScope.open(requestScope);
+	}
+
+	/**
+	 * このファクトリで生成したクライアントで書き込む書き込みバッファを生成し、バックグラウンドの書き込みを開始する。
+	 * バッファは {@link #destroy()} でバッファに残った書き込みを完了してから停止する。
+	 * @param capacity バッファに保持するキーの最大数
+	 * @return 書き込みバッファ
+	 */
+	public WriteBehindBuffer createWriteBehindBuffer(int capacity) {
+		WriteBehindBuffer buffer = new WriteBehindBuffer(this, capacity);
+		synchronized (flushOnDestroy) {
+			flushOnDestroy.add(buffer);
+		}
+		buffer.start();
+		return buffer;
+	}
+
+	/**
+	 * このファクトリで生成したクライアントで反映する集計カウンタを生成し、定期的な反映を開始する。
+	 * カウンタは {@link #destroy()} で集計した加算を反映してから停止する。
+	 * @return 集計カウンタ
+	 */
+	public AggregatingCounter createAggregatingCounter() {
+		AggregatingCounter counter = new AggregatingCounter(this);
+		synchronized (flushOnDestroy) {
+			flushOnDestroy.add(counter);
+		}
+		counter.start();
+		return counter;
+	}
+
+	private void closeFlushOnDestroy() {
+		List<Closeable> list;
+		synchronized (flushOnDestroy) {
+			list = new ArrayList<Closeable>(flushOnDestroy);
+			flushOnDestroy.clear();
+		}
+		for (Closeable c: list) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// 書き込みバッファ、カウンタは例外をスローしない
+			}
+		}
+	}
+
+	private synchronized void cancelPersistentCacheRevalidation() {
+		if (persistentCacheRevalidationFuture != null) {
+			persistentCacheRevalidationFuture.cancel(false);
+			persistentCacheRevalidationFuture = null;
+		}
+	}
+
+	private synchronized Executor bulkExecutorForClients() {
+		if (bulkExecutor != null) {
+			return bulkExecutor;
+		}
+		if (ownBulkExecutor == null) {
+			ownBulkExecutor = ParallelPipeline.newExecutor();
+		}
+		return ownBulkExecutor;
+	}
+
+	private synchronized void shutdownOwnBulkExecutor() {
+		if (ownBulkExecutor != null) {
+			ownBulkExecutor.shutdown();
+			ownBulkExecutor = null;
+		}
+	}
+
+	private synchronized void cancelNearCacheRevalidation() {
+		if (nearCacheRevalidationFuture != null) {
+			nearCacheRevalidationFuture.cancel(false);
+			nearCacheRevalidationFuture = null;
+		}
+	}
+
 	/* DELEGATED METHODS */
 	/**
 	 * 保持するソケットの最大数を取得する。
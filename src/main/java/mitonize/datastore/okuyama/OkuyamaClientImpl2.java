@@ -4,25 +4,53 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
 import java.io.OutputStream;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import mitonize.datastore.Base64;
+import mitonize.datastore.CloseableIterator;
 import mitonize.datastore.CompressionStrategy;
 import mitonize.datastore.Compressor;
+import mitonize.datastore.ConflictRetryPolicy;
+import mitonize.datastore.KeyList;
 import mitonize.datastore.KeyValueConsistencyException;
+import mitonize.datastore.NearCache;
+import mitonize.datastore.OffHeapCache;
+import mitonize.datastore.PersistentCache;
+import mitonize.datastore.RawValueCache;
+import mitonize.datastore.SingleFlight;
 import mitonize.datastore.OperationFailedException;
 import mitonize.datastore.Pair;
 import mitonize.datastore.SocketManager;
 import mitonize.datastore.SocketStreams;
+import mitonize.datastore.StreamReadException;
+import mitonize.datastore.ValueFingerprints;
+import mitonize.datastore.ValueUpdater;
 import mitonize.datastore.VersionedValue;
 
 public class OkuyamaClientImpl2 implements OkuyamaClient {
@@ -30,15 +58,64 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 
 	private static final char VALUE_SEPARATOR = ',';
 	private static final int BLOCK_SIZE = 8192;
+	/** タグで取得したキーの値を1回の複数キー取得で読み出す最大数 */
+	private static final int MULTI_GET_BATCH_SIZE = 1000;
+	/** 一括操作で1つの接続にまとめて送信するキーの最大数 */
+	static final int BULK_BATCH_SIZE = 1000;
+	/** 分割して格納した値の断片が欠けていた場合に、目録を読み直す回数の上限 */
+	static final int CHUNK_READ_RETRIES = 3;
 
 	SocketManager socketManager;
 	Charset cs;
 	boolean base64Key = true;
 	boolean serializeString = false;
 	ByteBuffer buffer;
+	/** 直前に読み取ったフィールドの区切り文字。行末まで読み飛ばす際に用いる。 */
+	byte lastDelimiter = '\n';
 
 	private CompressionStrategy compressionStrategy;
 
+	/** ニアキャッシュ。利用しない場合は null */
+	NearCache nearCache;
+	OffHeapCache offHeapCache;
+	PersistentCache persistentCache;
+	/** ニアキャッシュの次に参照するキャッシュ。参照する順に並べる。 */
+	RawValueCache[] rawCaches = new RawValueCache[0];
+	SingleFlight singleFlight;
+	/** タグに対応するキーの一覧のキャッシュ */
+	NearCache tagCache;
+	/** スレッドごとの{@link OkuyamaRequestScope}。ファクトリと共有する */
+	ThreadLocal<OkuyamaRequestScope> requestScope;
+	/** 変更のない値の書き込みを省略するための指紋。利用しない場合は null */
+	ValueFingerprints valueFingerprints;
+	/** 値を分割して格納する断片の最大バイト数(Base64エンコードする前)。分割しない場合は0 */
+	int chunkSize = 0;
+	/** サーバが格納できる値の最大バイト数(Base64エンコードした後)。確認しない場合は0 */
+	long maxValueSize = 0;
+	/** 内容を共有して格納する値の最小バイト数(Base64エンコードする前)。共有しない場合は0 */
+	int dedupThreshold = 0;
+	/** 目録と参照をシリアライズした列の先頭のバイト列 */
+	private static final byte[][] REFERENCE_HEADERS = {
+		serializedHeader(ChunkManifest.class),
+		serializedHeader(ContentReference.class),
+	};
+
+	/** 格納済みの内容のキー。ファクトリと共有する */
+	Set<String> knownBlobs;
+	/** 楽観的な更新で競合した場合の再試行の方針と統計情報 */
+	ConflictRetryPolicy conflictRetryPolicy = new ConflictRetryPolicy();
+
+	/** 値の復元を並列に行うプール。読み取るスレッドで復元する場合は null */
+	ForkJoinPool decodePool;
+	/** プールで復元するフィールドの最小バイト数(Base64エンコードされたまま) */
+	int parallelDecodeMinBytes = 1024;
+
+	/** 一括操作のバッチを並行して実行するエグゼキュータ。ファクトリと共有する。並行して実行しない場合は null */
+	Executor bulkExecutor;
+
+	/** パイプライン化して送信する際に、応答を読み取らずに続けて送信するリクエストの最大数 */
+	int pipelineWindow = 64;
+
 	/**
 	 * OkuyamaClient インスタンスを生成する。
 	 *
@@ -145,29 +222,83 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 			appendString(os, "(B)", false);
 			return;
 		}
+		appendEncodedValue(os, serializeObject(obj, key));
+	}
+
+	/**
+	 * オブジェクトをシリアライズし、圧縮戦略に従って圧縮したバイト列を返す。
+	 * @param obj オブジェクト
+	 * @param key キー文字列。圧縮方式の選択に用いる
+	 * @return シリアライズしたバイト列
+	 * @throws IOException シリアライズできない場合
+	 */
+	ByteBuffer serializeObject(Object obj, String key) throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		ObjectOutputStream stream = new ObjectOutputStream(baos);
 		stream.writeObject(obj);
 		stream.close();
 
 		byte[] serialized = baos.toByteArray();
-		ByteBuffer b;
 		Compressor compressor = null;
-		if (compressionStrategy != null) {
+		// 目録と参照は、復元せずに先頭のバイト列で判別できるように圧縮しない
+		if (compressionStrategy != null && !(obj instanceof ChunkManifest) && !(obj instanceof ContentReference)) {
 			compressor = compressionStrategy.getSuitableCompressor(key, serialized.length);
 		}
 
 		if (compressor != null) {
-			b = compressor.compress(serialized);
+			return compressor.compress(serialized);
 		} else {
-			b = ByteBuffer.wrap(serialized);
+			return ByteBuffer.wrap(serialized);
+		}
+	}
+
+	/**
+	 * 値を格納する時と同じ形式のバイト列(Base64エンコードする前)に変換する。
+	 * 文字列をシリアライズしない設定の場合、文字列はそのままエンコードする。
+	 * @param value 値
+	 * @param key キー文字列
+	 * @return Base64エンコードする前のバイト列
+	 * @throws IOException シリアライズできない場合
+	 */
+	ByteBuffer encodeValue(Object value, String key) throws IOException {
+		if (!serializeString && (value instanceof String)) {
+			return cs.encode((String) value);
 		}
+		return serializeObject(value, key);
+	}
 
-		ByteBuffer buf = Base64.encodeBuffer(b);
+	/**
+	 * プロトコル書式に合わせて、{@link #encodeValue(Object, String)} で変換したバイト列をBase64エンコードして追加する。
+	 * バッファの位置は変更しない。
+	 * @param os 出力ストリーム
+	 * @param encoded 変換したバイト列
+	 * @throws IOException 通信エラーが発生した場合
+	 */
+	void appendEncodedValue(OutputStream os, ByteBuffer encoded) throws IOException {
+		ByteBuffer buf = Base64.encodeBuffer(encoded.duplicate());
 		os.write(VALUE_SEPARATOR);
 		os.write(buf.array(), buf.position(), buf.limit() - buf.position());
 	}
 
+	/**
+	 * プロトコル書式に合わせて値をバッファに追加する。
+	 * 文字列をシリアライズしない設定の場合、文字列はそのままBase64エンコードして追加する。
+	 * @param os 出力ストリーム
+	 * @param value 値
+	 * @param key キー文字列。圧縮方式の選択に用いる
+	 * @param encoded {@link #encodeValue(Object, String)} で変換済みのバイト列。null の場合は value を変換する
+	 * @throws IOException シリアライズできない場合
+	 */
+	void appendValue(OutputStream os, Object value, String key, ByteBuffer encoded) throws IOException {
+		if (encoded != null) {
+			appendEncodedValue(os, encoded);
+		} else if (!serializeString && (value instanceof String)) {
+			appendString(os, (String) value, true);
+		} else {
+			appendSerializedObjectBase64(os, value, key);
+		}
+	}
+
 	/**
 	 * プロトコル書式に合わせて文字列リストをバッファに追加する。主にタグを指定する場合に用いる。
 	 * リストが空の場合は "(B)" を追加する。
@@ -197,6 +328,19 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 		}
 	}
 
+	/**
+	 * タグの配列を {@link #appendStringList(OutputStream, String[], boolean)} と同じ書式に変換する。
+	 * 多数のリクエストで同じタグを用いる場合に、変換を1回で済ませるために用いる。
+	 * @param strs タグ文字列の配列
+	 * @return 先頭のセパレータを含むバイト列
+	 * @throws IOException 変換できない場合
+	 */
+	byte[] encodeStringList(String[] strs) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		appendStringList(bos, strs, true);
+		return bos.toByteArray();
+	}
+
 	/**
      * 終端が必要なプロトコル番号の場合に末尾にセパレータを付加する。
      * @param buffer ByteBufferオブジェクト
@@ -217,6 +361,42 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 		os.flush();
 	}
 
+	/**
+	 * リクエストの終端を書き込む。パイプライン化して複数のリクエストを続けて送信する場合に用い、フラッシュはしない。
+	 * @param os 出力ストリーム
+	 * @throws IOException 通信に何らかのエラーが発生した場合
+	 */
+	void endRequest(OutputStream os) throws IOException {
+		os.write('\n');
+	}
+
+	/**
+	 * 直前に読み取ったフィールドが行末で終わっていなければ、応答の行末まで読み飛ばす。
+	 * パイプライン化した応答を順に読み取る際に、次の応答の先頭に読み取り位置を合わせるために用いる。
+	 * @param is 入力ストリーム
+	 * @throws IOException 通信に何らかのエラーが発生した場合
+	 */
+	void skipLine(InputStream is) throws IOException {
+		if (lastDelimiter == '\n') {
+			return;
+		}
+		while (true) {
+			while (buffer.hasRemaining()) {
+				if (buffer.get() == '\n') {
+					lastDelimiter = '\n';
+					return;
+				}
+			}
+			buffer.clear();
+			int read = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			if (read < 0) {
+				throw new IOException("No more data on stream");
+			}
+			buffer.position(buffer.position() + read);
+			buffer.flip();
+		}
+	}
+
 	/**
 	 * サーバからのレスポンスをバッファに読み込む。
 	 * @param channel ソケットチャネル
@@ -251,6 +431,7 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 				if ('0' <= ch && ch <= '9') {
 					code = code * 10 + (ch - '0');
 				} else if (ch == VALUE_SEPARATOR || ch == '\n') {
+					lastDelimiter = ch;
 					return (int) code;
 				} else {
 					throw new OperationFailedException(String.format("Format error on expecting digit: %c", ch));
@@ -258,6 +439,9 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 			}
 			buffer.clear();
 			int read = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			if (read < 0) {
+				throw new IOException("No more data on stream");
+			}
 			buffer.position(buffer.position() + read);
 			if (read == 0) {
 				throw new OperationFailedException("buffer underflow");
@@ -282,6 +466,7 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 				while (buffer.hasRemaining()) {
 					byte ch = buffer.get();
 					if (ch == VALUE_SEPARATOR || ch == '\n') {
+						lastDelimiter = ch;
 						strBuffer.flip();
 						if (strBuffer.limit() == 0) {
 							return "";
@@ -307,6 +492,9 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 			}
 			buffer.clear();
 			int read = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			if (read < 0) {
+				throw new IOException("No more data on stream");
+			}
 			buffer.position(buffer.position() + read);
 			if (read == 0) {
 //				throw new OperationFailedException("buffer underflow");
@@ -341,6 +529,7 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 						}
 						strBuffer.clear();
 					} else if (ch == VALUE_SEPARATOR || ch == '\n') {
+						lastDelimiter = ch;
 						strBuffer.flip();
 						if (base64Key) {
 							list.add(cs.decode(Base64.decodeBuffer(strBuffer)).toString());
@@ -361,6 +550,9 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 			}
 			buffer.clear();
 			int read = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			if (read < 0) {
+				throw new IOException("No more data on stream");
+			}
 			buffer.position(buffer.position() + read);
 			if (read == 0) {
 				throw new OperationFailedException("buffer underflow");
@@ -369,6 +561,90 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 		}
 	}
 
+	/**
+	 * レスポンスのバッファから文字列リストを読み取り、キーごとに String を生成せずに {@link KeyList} に詰める。
+	 * @param is 入力ストリーム
+	 * @param base64Key 読み取る文字列がBase64エンコードされている前提でデコードする。
+	 * @return キーのリスト
+	 * @throws IOException 通信に何らかのエラーが発生した場合
+	 * @throws OperationFailedException 期待したフォーマットでない場合
+	 */
+	KeyList nextKeyList(InputStream is, boolean base64Key) throws IOException, OperationFailedException {
+		KeyList.Builder builder = new KeyList.Builder();
+		byte[] item = new byte[256];
+		int length = 0;
+		while (true) {
+			while (buffer.hasRemaining()) {
+				byte ch = buffer.get();
+				if (ch == ':' || ch == VALUE_SEPARATOR || ch == '\n') {
+					if (base64Key) {
+						builder.addBase64(item, 0, length);
+					} else {
+						builder.add(item, 0, length);
+					}
+					length = 0;
+					if (ch != ':') {
+						lastDelimiter = ch;
+						return builder.build();
+					}
+				} else {
+					if (length == item.length) {
+						item = Arrays.copyOf(item, item.length * 2);
+					}
+					item[length++] = ch;
+				}
+			}
+			buffer.clear();
+			int read = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			if (read < 0) {
+				throw new IOException("No more data on stream");
+			}
+			buffer.position(buffer.position() + read);
+			buffer.flip();
+		}
+	}
+
+	/**
+	 * レスポンスのバッファから文字列リストの要素を1つ読み取る。続きの要素があれば {@link #lastDelimiter} は ':' となる。
+	 * @param is 入力ストリーム
+	 * @param base64Key 読み取る文字列がBase64エンコードされている前提でデコードする。
+	 * @return 読み取った文字列
+	 * @throws IOException 通信に何らかのエラーが発生した場合
+	 * @throws OperationFailedException 期待したフォーマットでない場合
+	 */
+	String nextListItem(InputStream is, boolean base64Key) throws IOException, OperationFailedException {
+		ByteBuffer strBuffer = ByteBuffer.allocate(BLOCK_SIZE);
+		while (true) {
+			while (buffer.hasRemaining()) {
+				byte ch = buffer.get();
+				if (ch == ':' || ch == VALUE_SEPARATOR || ch == '\n') {
+					lastDelimiter = ch;
+					strBuffer.flip();
+					if (base64Key) {
+						return cs.decode(Base64.decodeBuffer(strBuffer)).toString();
+					} else {
+						return cs.decode(strBuffer).toString();
+					}
+				}
+				if (!strBuffer.hasRemaining()) {
+					// 足りなくなれば追加
+					ByteBuffer newBytes = ByteBuffer.allocate(strBuffer.capacity() + BLOCK_SIZE);
+					strBuffer.flip();
+					newBytes.put(strBuffer);
+					strBuffer = newBytes;
+				}
+				strBuffer.put(ch);
+			}
+			buffer.clear();
+			int read = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			if (read < 0) {
+				throw new IOException("No more data on stream");
+			}
+			buffer.position(buffer.position() + read);
+			buffer.flip();
+		}
+	}
+
 	/**
 	 * レスポンスのバッファからJavaオブジェクトを読み取る。Base64デコードしたバイト列がシリアライズされた列であれば
 	 * デシリアライズする。シリアライズされたバイト列でなければ文字列オブジェクトとして返す。
@@ -381,6 +657,40 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 	 * @throws {@link OperationFailedException} 期待したフォーマットでない場合
 	 */
 	Object nextObject(InputStream is) throws IOException, ClassNotFoundException, OperationFailedException  {
+		ByteBuffer raw = nextBytes(is);
+		if (raw == null) {
+			return null;
+		}
+		if (!raw.hasRemaining()) {
+			return "";
+		}
+		return decodeObject(raw.array(), raw.arrayOffset() + raw.position(), raw.remaining());
+	}
+
+	/**
+	 * レスポンスのバッファから値のフィールドを読み取り、Base64デコードしたバイト列を返す。
+	 * バイト列の展開やデシリアライズは行わない。
+	 * @param is 入力ストリーム
+	 * @return Base64デコードしたバイト列。値が "(B)" の場合は null、空の場合は要素のないバッファ
+	 * @throws IOException 通信に何らかのエラーが発生した場合
+	 * @throws OperationFailedException 期待したフォーマットでない場合
+	 */
+	ByteBuffer nextBytes(InputStream is) throws IOException, OperationFailedException {
+		ByteBuffer field = nextField(is);
+		if (field == null || !field.hasRemaining()) {
+			return field;
+		}
+		return Base64.decodeBuffer(field);
+	}
+
+	/**
+	 * レスポンスのバッファから値のフィールドを読み取り、Base64エンコードされたままのバイト列を返す。
+	 * @param is 入力ストリーム
+	 * @return フィールドのバイト列。値が "(B)" の場合は null、空の場合は要素のないバッファ
+	 * @throws IOException 通信に何らかのエラーが発生した場合
+	 * @throws OperationFailedException 期待したフォーマットでない場合
+	 */
+	ByteBuffer nextField(InputStream is) throws IOException, OperationFailedException {
 		ByteBuffer bytes = ByteBuffer.allocate(BLOCK_SIZE);
 		byte ch = 0;
 		while (true) {
@@ -388,21 +698,24 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 				while (buffer.hasRemaining()) {
 					ch = buffer.get();
 					if (ch == VALUE_SEPARATOR || ch == '\n') {
+						lastDelimiter = ch;
 						bytes.flip();
 						if (bytes.limit() == 0) {
-							return "";
+							return bytes;
 						}
 						if (isNullString(bytes)) {
 							return null;
 						}
-						ByteBuffer raw = Base64.decodeBuffer(bytes);
-						return decodeObject(raw.array(), raw.position(), raw.limit() - raw.position());
+						return bytes;
 					} else {
 						bytes.put(ch);
 					}
 				}
 				buffer.clear();
 				int read = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				if (read < 0) {
+					throw new IOException("No more data on stream");
+				}
 				buffer.position(buffer.position() + read);
 				if (read == 0) {
 					throw new OperationFailedException("buffer underflow");
@@ -419,6 +732,99 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 		}
 	}
 
+	/**
+	 * Base64デコード済みのバイト列からJavaオブジェクトを復元する。
+	 * デシリアライズできなかった場合は ClassNotFoundException を値として返す。
+	 * 分割して格納した値の目録であれば、断片を読み出して連結した値を返す。内容への参照であれば、参照先の値を返す。
+	 * @param raw {@link #nextBytes(InputStream)}で読み取ったバイト列
+	 * @return 復元したオブジェクト。raw が null なら null、空なら空文字列
+	 * @throws IOException デシリアライズに失敗した場合
+	 * @throws OperationFailedException 圧縮形式が不正な場合
+	 */
+	Object decodeValue(ByteBuffer raw) throws IOException, OperationFailedException {
+		return resolveValue(decodeLocal(raw));
+	}
+
+	/**
+	 * Base64デコード済みのバイト列からJavaオブジェクトを復元する。通信を伴わないため、どのスレッドからでも呼び出せる。
+	 * 分割して格納した値の目録や内容への参照はそのまま返す。
+	 * @param raw {@link #nextBytes(InputStream)}で読み取ったバイト列
+	 * @return 復元したオブジェクト。raw が null なら null、空なら空文字列
+	 * @throws IOException デシリアライズに失敗した場合
+	 * @throws OperationFailedException 圧縮形式が不正な場合
+	 */
+	Object decodeLocal(ByteBuffer raw) throws IOException, OperationFailedException {
+		if (raw == null) {
+			return null;
+		}
+		if (!raw.hasRemaining()) {
+			return "";
+		}
+		try {
+			return decodeObject(raw.array(), raw.arrayOffset() + raw.position(), raw.remaining());
+		} catch (ClassNotFoundException e) {
+			// オブジェクトがデシリアライズできなかった場合は値として ClassNotFoundException インスタンスを設定
+			return e;
+		}
+	}
+
+	/**
+	 * バイト列が分割して格納した値の目録か内容への参照であるかを、復元せずにシリアライズした列の先頭で判別する。
+	 * @param raw Base64デコードしたバイト列
+	 * @return 目録か参照であれば true
+	 */
+	static boolean isReference(ByteBuffer raw) {
+		for (byte[] header: REFERENCE_HEADERS) {
+			if (raw.remaining() < header.length) {
+				continue;
+			}
+			int i = 0;
+			while (i < header.length && raw.get(raw.position() + i) == header[i]) {
+				++i;
+			}
+			if (i == header.length) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * クラスのインスタンスをシリアライズした列の、クラス名までの先頭のバイト列を返す。
+	 * @param c クラス
+	 * @return 先頭のバイト列
+	 */
+	private static byte[] serializedHeader(Class<?> c) {
+		byte[] name = c.getName().getBytes(Charset.forName("UTF-8"));
+		ByteBuffer header = ByteBuffer.allocate(8 + name.length);
+		header.putShort(ObjectStreamConstants.STREAM_MAGIC);
+		header.putShort(ObjectStreamConstants.STREAM_VERSION);
+		header.put(ObjectStreamConstants.TC_OBJECT);
+		header.put(ObjectStreamConstants.TC_CLASSDESC);
+		header.putShort((short) name.length);
+		header.put(name);
+		return header.array();
+	}
+
+	/**
+	 * 分割して格納した値の目録であれば断片を読み出して連結した値を、内容への参照であれば参照先の値を返す。
+	 * それ以外の値はそのまま返す。
+	 * @param value {@link #decodeLocal(ByteBuffer)} で復元した値
+	 * @return 値
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	Object resolveValue(Object value) throws IOException, OperationFailedException {
+		if (value instanceof ChunkManifest) {
+			return readChunkedValue((ChunkManifest) value);
+		}
+		if (value instanceof ContentReference) {
+			// 共有する内容はニアキャッシュなどを参照して取得する
+			return fetchObjectValue(((ContentReference) value).blobKey);
+		}
+		return value;
+	}
+
 	/**
 	 * バイト列からJavaオブジェクトを復元する。バイト列がシリアライズされた列であれば
 	 * デシリアライズする。シリアライズされたバイト列でなければ文字列オブジェクトとして返す。
@@ -463,46 +869,144 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 		}
 	}
 
+	/**
+	 * 応答から読み取った値のフィールドを受け取り、Base64デコード、展開、デシリアライズを行う段。
+	 * {@link #decodePool} が設定されていれば、{@link #parallelDecodeMinBytes} 以上のフィールドはプールのスレッドで復元し、
+	 * ソケットを読み取るスレッドはその間に続きの応答を読み取る。結果は復元が終わった順によらず追加した順に並べる。
+	 * 分割して格納した値や内容への参照は読み出しを伴うため、{@link #finish()} を呼び出したスレッドで復元する。
+	 */
+	class DecodeStage {
+		private final ForkJoinPool pool = decodePool;
+		private final ArrayList<Object> slots = new ArrayList<Object>();
+
+		/**
+		 * 値のフィールドを追加する。
+		 * @param field {@link #nextField(InputStream)} で読み取ったフィールド。存在しない値は null
+		 */
+		void add(ByteBuffer field) {
+			if (field != null && pool != null && field.remaining() >= parallelDecodeMinBytes) {
+				final ByteBuffer f = field;
+				slots.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						return decodeField(f);
+					}
+				}));
+			} else {
+				slots.add(field);
+			}
+		}
 
+		/**
+		 * 追加したフィールドの復元を待ち、追加した順に並べた値を返す。
+		 * @return 値の配列。存在しない要素は null
+		 * @throws IOException デシリアライズに失敗した場合、断片などの読み出しで通信エラーが発生した場合
+		 * @throws OperationFailedException 操作が成功しなかった場合
+		 */
+		Object[] finish() throws IOException, OperationFailedException {
+			Object[] values = new Object[slots.size()];
+			for (int i = 0; i < values.length; ++i) {
+				Object slot = slots.get(i);
+				Object value;
+				if (slot instanceof Future) {
+					value = join((Future<?>) slot);
+				} else {
+					value = decodeField((ByteBuffer) slot);
+				}
+				values[i] = resolveValue(value);
+			}
+			return values;
+		}
 
+		private Object join(Future<?> future) throws IOException, OperationFailedException {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while decoding");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				} else if (cause instanceof OperationFailedException) {
+					throw (OperationFailedException) cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new IOException(cause);
+			}
+		}
+	}
 
-	@Override
-	public String getMasterNodeVersion() throws IOException, OperationFailedException {
-		try {
-			return _getMasterNodeVersion();
-		} catch (IOException e) {
-			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
-			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
-			getLogger().debug("retry once cause:{}", e.getMessage());
-			return _getMasterNodeVersion();
+	/**
+	 * Base64エンコードされたままのフィールドから値を復元する。目録や参照は解決しない。
+	 * @param field {@link #nextField(InputStream)} で読み取ったフィールド
+	 * @return 復元したオブジェクト。field が null なら null、空なら空文字列
+	 */
+	Object decodeField(ByteBuffer field) throws IOException, OperationFailedException {
+		if (field == null || !field.hasRemaining()) {
+			return decodeLocal(field);
 		}
+		return decodeLocal(Base64.decodeBuffer(field));
 	}
 
-	String _getMasterNodeVersion() throws IOException,
-			OperationFailedException {
+	/**
+	 * パイプライン化して送信するリクエスト。{@link OkuyamaClientImpl2#executePipelined(List)}で実行する。
+	 */
+	abstract class PipelinedRequest {
+		/**
+		 * リクエストを書き込む。終端の改行は書き込まない。
+		 * @param os 出力ストリーム
+		 * @throws IOException 通信に何らかのエラーが発生した場合
+		 */
+		abstract void write(OutputStream os) throws IOException;
+
+		/**
+		 * 応答を読み取る。操作が失敗したことを示す応答の場合は例外をスローせずに、
+		 * OperationFailedException のインスタンスを返却値とする。
+		 * @param is 入力ストリーム
+		 * @return 応答から読み取った値
+		 * @throws IOException 通信に何らかのエラーが発生した場合
+		 * @throws OperationFailedException 期待した応答でなく、後続の応答を読み取れない場合
+		 */
+		abstract Object read(InputStream is) throws IOException, OperationFailedException;
+	}
+
+	/**
+	 * 1つのソケットで複数のリクエストを続けて送信してから、応答を順に読み取る。
+	 * サーバ側の送信が詰まらないように、一度に送信するリクエストは {@link #pipelineWindow} 件までとし、
+	 * その応答を読み取ってから続きを送信する。通信エラーの場合もリトライはしない。
+	 *
+	 * @param requests リクエストのリスト
+	 * @return リクエストの順に並べた応答の配列。操作が失敗した要素は OperationFailedException のインスタンス
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 期待した応答でなかった場合
+	 */
+	Object[] executePipelined(List<? extends PipelinedRequest> requests) throws IOException, OperationFailedException {
+		Object[] results = new Object[requests.size()];
+		executePipelined(requests, results);
+		return results;
+	}
+
+	/**
+	 * 1つのソケットで複数のリクエストを続けて送信してから、応答を順に読み取る。
+	 * 通信エラーの場合も、それまでに読み取った応答は results に残る。
+	 *
+	 * @param requests リクエストのリスト
+	 * @param results リクエストの順に応答を格納する配列。操作が失敗した要素は OperationFailedException のインスタンス
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 期待した応答でなかった場合
+	 */
+	void executePipelined(List<? extends PipelinedRequest> requests, Object[] results) throws IOException, OperationFailedException {
+		if (requests.isEmpty()) {
+			return;
+		}
 		SocketStreams socket = null;
 		boolean failed = true;
 		try	{
 			socket = socketManager.aquire();
-
-			OutputStream os = socket.getOutputStream();
-			InputStream is = socket.getInputStream();
-			createBuffer(os, 999);
-			sendRequest(os);
-
-			readResponse(is);
-			long code = nextNumber(is);
-			if (code != 999) {
-				throw new OperationFailedException("Unexprected code:" + code);
-			}
-			String str = nextString(is, false);
-			if (str.startsWith("VERSION ")) {
-				failed = false;
-				str = str.substring("VERSION okuyama-".length());
-				return str;
-			} else {
-				throw new OperationFailedException();
-			}
+			executePipelined(socket, requests, results);
+			failed = false;
 		} finally {
 			if (failed) {
 				socketManager.destroy(socket);
@@ -511,40 +1015,1251 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 		}
 	}
 
-	@Override
-	public long initClient() throws IOException, OperationFailedException {
-		try {
-			return _initClient();
-		} catch (IOException e) {
-			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
-			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
-			getLogger().debug("retry once cause:{}", e.getMessage());
-			return _initClient();
+	/**
+	 * 取得済みのソケットで複数のリクエストを続けて送信してから、応答を順に読み取る。
+	 * ソケットの返却や破棄は呼び出し側で行う。
+	 *
+	 * @param socket ソケット
+	 * @param requests リクエストのリスト
+	 * @param results リクエストの順に応答を格納する配列。操作が失敗した要素は OperationFailedException のインスタンス
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 期待した応答でなかった場合
+	 */
+	void executePipelined(SocketStreams socket, List<? extends PipelinedRequest> requests, Object[] results) throws IOException, OperationFailedException {
+		OutputStream os = socket.getOutputStream();
+		InputStream is = socket.getInputStream();
+
+		// 以前の応答の読み残しを破棄する
+		buffer.clear();
+		buffer.flip();
+		lastDelimiter = '\n';
+		int count = requests.size();
+		int window = Math.max(1, pipelineWindow);
+		for (int from = 0; from < count; from += window) {
+			int to = Math.min(count, from + window);
+			for (int i = from; i < to; ++i) {
+				requests.get(i).write(os);
+				endRequest(os);
+			}
+			os.flush();
+			for (int i = from; i < to; ++i) {
+				results[i] = requests.get(i).read(is);
+				skipLine(is);
+			}
 		}
 	}
 
-	long _initClient() throws IOException, OperationFailedException {
-		SocketStreams socket = null;
-		boolean failed = true;
-		try	{
-			socket = socketManager.aquire();
+	/**
+	 * 取得済みのソケットで1つのリクエストを送信し、応答を読み取る。
+	 * @param socket ソケット
+	 * @param request リクエスト
+	 * @return 応答。操作が失敗した場合は OperationFailedException のインスタンス
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 期待した応答でなかった場合
+	 */
+	Object execute(SocketStreams socket, PipelinedRequest request) throws IOException, OperationFailedException {
+		Object[] results = new Object[1];
+		executePipelined(socket, Collections.singletonList(request), results);
+		return results[0];
+	}
 
-			OutputStream os = socket.getOutputStream();
-			InputStream is = socket.getInputStream();
-			createBuffer(os, 0);
-			sendRequest(os);
+	/**
+	 * バージョン情報と共に値を取得するリクエスト(プロトコル15)。
+	 * 応答は値をBase64デコードしたバイト列(ByteBuffer)とバージョンを組にした VersionedValue で、存在しない場合は null となる。
+	 */
+	class GetVersionCheckRequest extends PipelinedRequest {
+		final String key;
 
-			readResponse(is);
+		GetVersionCheckRequest(String key) {
+			this.key = key;
+		}
+
+		@Override
+		void write(OutputStream os) throws IOException {
+			createBuffer(os, 15);
+			appendString(os, key, base64Key);
+		}
+
+		@Override
+		Object read(InputStream is) throws IOException, OperationFailedException {
 			long code = nextNumber(is);
-			if (code != 0) {
+			if (code != 15) {
 				throw new OperationFailedException("Unexprected code:" + code);
 			}
 			String str = nextString(is, false);
 			if (str.equals("true")) {
-				failed = false;
-				return nextNumber(is);
+				ByteBuffer raw = nextBytes(is);
+				String version = nextString(is, false);
+				return new VersionedValue(raw, version);
+			} else if (str.equals("false")) {
+				/** falseの場合は第三列が文字列を返すときはエラーメッセージを例外とし、空の時は値無しとしてnullを返す。 */
+				String msg = nextString(is, false);
+				if (msg != null && !msg.isEmpty()) {
+					return new OperationFailedException(msg);
+				}
+				return null;
+			} else {
+				String msg = nextString(is, false);
+				throw new OperationFailedException(msg);
+			}
+		}
+	}
+
+	/**
+	 * 値を格納するリクエスト(プロトコル1)。
+	 * 応答は格納できた場合は Boolean.TRUE、失敗した場合はエラーメッセージを持つ OperationFailedException となる。
+	 */
+	class SetRequest extends PipelinedRequest {
+		final String key;
+		final Object value;
+		final String[] tags;
+		final long age;
+		/** {@link #encodeValue(Object, String)} で変換済みのバイト列。null の場合は value を変換する */
+		ByteBuffer encoded;
+		/** {@link #encodeStringList(String[])} で変換済みのタグ。null の場合は tags を変換する */
+		byte[] encodedTags;
+
+		SetRequest(String key, Object value, String[] tags, long age) {
+			if (value == null) {
+				throw new IllegalArgumentException("Okuyama does not allow to store null value.");
+			}
+			validateKey(key);
+			this.key = key;
+			this.value = value;
+			this.tags = tags;
+			this.age = age;
+		}
+
+		@Override
+		void write(OutputStream os) throws IOException {
+			createBuffer(os, 1);
+			appendString(os, key, base64Key);
+			appendTags(os);
+			appendNumber(os, 0);
+			appendValue(os, value, key, encoded);
+			appendNumber(os, age);
+			appendSeparator(os);
+		}
+
+		void appendTags(OutputStream os) throws IOException {
+			if (encodedTags != null) {
+				os.write(encodedTags);
+			} else {
+				appendStringList(os, tags, true);
+			}
+		}
+
+		@Override
+		Object read(InputStream is) throws IOException, OperationFailedException {
+			long code = nextNumber(is);
+			if (code != 1) {
+				throw new OperationFailedException("Unexprected code:" + code);
+			}
+			String str = nextString(is, false);
+			if (str.equals("true")) {
+				return Boolean.TRUE;
+			}
+			String msg = nextString(is, false);
+			return new OperationFailedException(msg);
+		}
+	}
+
+	/**
+	 * 複数の値を1つのソケットでパイプライン化して格納する。同じ値の格納は繰り返しても結果が変わらないため、
+	 * 通信エラーの場合は全体を1回だけリトライする。格納したキーはキャッシュから除去する。
+	 * 値を分割するか大きさを確認する設定の場合、断片の大きさを超える値はパイプライン化した後に1件ずつ分割して格納し、
+	 * サーバが格納できる最大の大きさを超える値は送信せずに失敗とする。
+	 *
+	 * @param requests 格納するリクエストのリスト
+	 * @return リクエストの順に並べた応答の配列。格納できた要素は Boolean.TRUE、失敗した要素は OperationFailedException のインスタンス
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 期待した応答でなかった場合
+	 */
+	Object[] setObjectValues(List<SetRequest> requests) throws IOException, OperationFailedException {
+		Object[] results = new Object[requests.size()];
+		ArrayList<SetRequest> pipelined = new ArrayList<SetRequest>(requests.size());
+		ArrayList<Integer> indexes = new ArrayList<Integer>(requests.size());
+		// 分割して格納する値の結果は null のまま残し、後で1件ずつ格納する
+		for (int i = 0; i < results.length; ++i) {
+			SetRequest request = requests.get(i);
+			if (isValueSizeChecked()) {
+				if (request.encoded == null) {
+					request.encoded = encodeValue(request.value, request.key);
+				}
+				if (needsChunks(request.encoded)) {
+					continue;
+				}
+				try {
+					validateValueSize(request.encoded);
+				} catch (OperationFailedException e) {
+					results[i] = e;
+					continue;
+				}
+			}
+			pipelined.add(request);
+			indexes.add(i);
+		}
+		try {
+			Object[] written;
+			try {
+				written = executePipelined(pipelined);
+			} catch (IOException e) {
+				// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+				// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
+				getLogger().debug("retry once cause:{}", e.getMessage());
+				written = executePipelined(pipelined);
+			}
+			for (int k = 0; k < written.length; ++k) {
+				results[indexes.get(k)] = written[k];
+			}
+		} finally {
+			for (SetRequest request: requests) {
+				invalidateNearCache(request.key);
+				invalidateTagCache(request.tags);
+				updateRequestScope(request.key, false, null);
+			}
+		}
+		for (int i = 0; i < results.length; ++i) {
+			if (results[i] == null) {
+				SetRequest request = requests.get(i);
+				try {
+					results[i] = setObjectValue(request.key, request.value, request.tags, request.age)
+							? Boolean.TRUE : new OperationFailedException("Failed to store chunked value");
+				} catch (OperationFailedException e) {
+					results[i] = e;
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * 値を削除するリクエスト(プロトコル5)。削除した値は読み取らない。
+	 * 応答は削除できた場合は Boolean.TRUE、存在しなかった場合は Boolean.FALSE、失敗した場合はエラーメッセージを持つ OperationFailedException となる。
+	 */
+	class RemoveRequest extends PipelinedRequest {
+		final String key;
+
+		RemoveRequest(String key) {
+			validateKey(key);
+			this.key = key;
+		}
+
+		@Override
+		void write(OutputStream os) throws IOException {
+			createBuffer(os, 5);
+			appendString(os, key, base64Key);
+			appendNumber(os, 0);
+		}
+
+		@Override
+		Object read(InputStream is) throws IOException, OperationFailedException {
+			long code = nextNumber(is);
+			if (code != 5) {
+				throw new OperationFailedException("Unexprected code:" + code);
+			}
+			String str = nextString(is, false);
+			if (str.equals("true")) {
+				return Boolean.TRUE;
+			} else if (str.equals("false")) {
+				String msg = nextString(is, false);
+				if (msg != null && !msg.isEmpty()) {
+					return new OperationFailedException(msg);
+				}
+				return Boolean.FALSE;
+			}
+			String msg = nextString(is, false);
+			return new OperationFailedException(msg);
+		}
+	}
+
+	/**
+	 * 存在しない場合に限り値を格納するリクエスト(プロトコル6)。
+	 * 応答は格納できた場合は Boolean.TRUE、既に存在した場合は Boolean.FALSE、失敗した場合はエラーメッセージを持つ OperationFailedException となる。
+	 */
+	class AddRequest extends SetRequest {
+		AddRequest(String key, Object value, String[] tags, long age) {
+			super(key, value, tags, age);
+		}
+
+		@Override
+		void write(OutputStream os) throws IOException {
+			createBuffer(os, 6);
+			appendString(os, key, base64Key);
+			appendTags(os);
+			appendNumber(os, 0);
+			appendValue(os, value, key, encoded);
+			appendNumber(os, age);
+			appendSeparator(os);
+		}
+
+		@Override
+		Object read(InputStream is) throws IOException, OperationFailedException {
+			long code = nextNumber(is);
+			if (code != 6) {
+				throw new OperationFailedException("Unexprected code:" + code);
+			}
+			String str = nextString(is, false);
+			if (str.equals("true")) {
+				return Boolean.TRUE;
+			}
+			String msg = nextString(is, false);
+			if (msg != null && msg.startsWith("NG:Data has already")) {
+				return Boolean.FALSE;
+			}
+			return new OperationFailedException(msg);
+		}
+	}
+
+	/**
+	 * バージョンを確認して値を格納するリクエスト(プロトコル16)。
+	 * 応答は格納できた場合は Boolean.TRUE、バージョンが一致しない場合は KeyValueConsistencyException、
+	 * 失敗した場合はエラーメッセージを持つ OperationFailedException のインスタンスとなる。
+	 */
+	class SetVersionCheckRequest extends SetRequest {
+		final String version;
+
+		SetVersionCheckRequest(String key, Object value, String version, String[] tags, long age) {
+			super(key, value, tags, age);
+			this.version = version;
+		}
+
+		@Override
+		void write(OutputStream os) throws IOException {
+			createBuffer(os, 16);
+			appendString(os, key, base64Key);
+			appendStringList(os, tags, true);
+			appendNumber(os, 0);
+			appendValue(os, value, key, encoded);
+			appendString(os, version, false);
+			appendNumber(os, age);
+			terminate(os);
+		}
+
+		@Override
+		Object read(InputStream is) throws IOException, OperationFailedException {
+			long code = nextNumber(is);
+			if (code != 16) {
+				throw new OperationFailedException("Unexprected code:" + code);
+			}
+			String str = nextString(is, false);
+			if (str.equals("true")) {
+				return Boolean.TRUE;
+			}
+			String msg = nextString(is, false);
+			if ("NG:Data has already been updated".equals(msg)) {
+				return new KeyValueConsistencyException(msg);
+			}
+			return new OperationFailedException(msg);
+		}
+	}
+
+	/**
+	 * 格納された数値に加算、あるいは減算するリクエスト(プロトコル13、14)。
+	 * 応答は演算後の値(Long)、失敗した場合はエラーメッセージを持つ OperationFailedException となる。
+	 */
+	class CalcRequest extends PipelinedRequest {
+		final int protocol;
+		final String key;
+		final long delta;
+
+		/**
+		 * @param protocol 加算の場合は13、減算の場合は14
+		 * @param key キー文字列
+		 * @param delta 加算あるいは減算する値
+		 */
+		CalcRequest(int protocol, String key, long delta) {
+			validateKey(key);
+			this.protocol = protocol;
+			this.key = key;
+			this.delta = delta;
+		}
+
+		@Override
+		void write(OutputStream os) throws IOException {
+			createBuffer(os, protocol);
+			appendString(os, key, base64Key);
+			appendNumber(os, 0);
+			appendString(os, Long.toString(delta), true);
+		}
+
+		@Override
+		Object read(InputStream is) throws IOException, OperationFailedException {
+			long code = nextNumber(is);
+			if (code != protocol) {
+				throw new OperationFailedException("Unexprected code:" + code);
+			}
+			String str = nextString(is, false);
+			if (str.equals("true")) {
+				String value = nextString(is, true);
+				try {
+					return Long.valueOf(value);
+				} catch (NumberFormatException e) {
+					return new OperationFailedException("Not a number:" + value);
+				}
+			}
+			String msg = nextString(is, false);
+			return new OperationFailedException(msg);
+		}
+	}
+
+	/**
+	 * 数値を初期値として格納するリクエスト(プロトコル6)。数値はシリアライズせずに文字列として格納する。
+	 * 応答は格納できた場合は Boolean.TRUE、既に存在した場合は Boolean.FALSE となる。
+	 */
+	class InitCounterRequest extends PipelinedRequest {
+		final String key;
+		final long initial;
+
+		InitCounterRequest(String key, long initial) {
+			validateKey(key);
+			this.key = key;
+			this.initial = initial;
+		}
+
+		@Override
+		void write(OutputStream os) throws IOException {
+			createBuffer(os, 6);
+			appendString(os, key, base64Key);
+			appendStringList(os, null, true);
+			appendNumber(os, 0);
+			appendString(os, Long.toString(initial), true);
+			appendNumber(os, 0);
+			appendSeparator(os);
+		}
+
+		@Override
+		Object read(InputStream is) throws IOException, OperationFailedException {
+			long code = nextNumber(is);
+			if (code != 6) {
+				throw new OperationFailedException("Unexprected code:" + code);
+			}
+			String str = nextString(is, false);
+			if (str.equals("true")) {
+				return Boolean.TRUE;
+			}
+			String msg = nextString(is, false);
+			if (msg != null && msg.startsWith("NG:Data has already")) {
+				return Boolean.FALSE;
+			}
+			return new OperationFailedException(msg);
+		}
+	}
+
+	@Override
+	public String getMasterNodeVersion() throws IOException, OperationFailedException {
+		try {
+			return _getMasterNodeVersion();
+		} catch (IOException e) {
+			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
+			getLogger().debug("retry once cause:{}", e.getMessage());
+			return _getMasterNodeVersion();
+		}
+	}
+
+	String _getMasterNodeVersion() throws IOException,
+			OperationFailedException {
+		SocketStreams socket = null;
+		boolean failed = true;
+		try	{
+			socket = socketManager.aquire();
+
+			OutputStream os = socket.getOutputStream();
+			InputStream is = socket.getInputStream();
+			createBuffer(os, 999);
+			sendRequest(os);
+
+			readResponse(is);
+			long code = nextNumber(is);
+			if (code != 999) {
+				throw new OperationFailedException("Unexprected code:" + code);
+			}
+			String str = nextString(is, false);
+			if (str.startsWith("VERSION ")) {
+				failed = false;
+				str = str.substring("VERSION okuyama-".length());
+				return str;
+			} else {
+				throw new OperationFailedException();
+			}
+		} finally {
+			if (failed) {
+				socketManager.destroy(socket);
+			}
+			socketManager.recycle(socket);
+		}
+	}
+
+	@Override
+	public long initClient() throws IOException, OperationFailedException {
+		try {
+			return _initClient();
+		} catch (IOException e) {
+			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
+			getLogger().debug("retry once cause:{}", e.getMessage());
+			return _initClient();
+		}
+	}
+
+	long _initClient() throws IOException, OperationFailedException {
+		SocketStreams socket = null;
+		boolean failed = true;
+		try	{
+			socket = socketManager.aquire();
+
+			OutputStream os = socket.getOutputStream();
+			InputStream is = socket.getInputStream();
+			createBuffer(os, 0);
+			sendRequest(os);
+
+			readResponse(is);
+			long code = nextNumber(is);
+			if (code != 0) {
+				throw new OperationFailedException("Unexprected code:" + code);
+			}
+			String str = nextString(is, false);
+			if (str.equals("true")) {
+				failed = false;
+				return nextNumber(is);
+			} else {
+				throw new OperationFailedException();
+			}
+		} finally {
+			if (failed) {
+				socketManager.destroy(socket);
+			}
+			socketManager.recycle(socket);
+		}
+	}
+
+	@Override
+	public boolean setObjectValue(String key, Object value, String[] tags, long age) throws IOException, OperationFailedException {
+//		long st = System.currentTimeMillis();
+		ValueFingerprints fingerprints = valueFingerprints;
+		ByteBuffer encoded = null;
+		if ((fingerprints != null || chunkSize > 0 || maxValueSize > 0 || dedupThreshold > 0) && value != null) {
+			validateKey(key);
+			// 変換は1回だけ行い、指紋の計算や大きさの確認と送信に共用する
+			encoded = encodeValue(value, key);
+			if (fingerprints != null && fingerprints.isUnchanged(key, encoded, tags, age)) {
+				updateRequestScope(key, true, value);
+				return true;
+			}
+		}
+		if (encoded != null && dedupThreshold > 0 && encoded.remaining() >= dedupThreshold) {
+			return setDeduplicatedValue(key, value, encoded, tags, age);
+		}
+		ChunkManifest manifest = null;
+		if (encoded != null) {
+			if (chunkSize > 0 && encoded.remaining() > chunkSize) {
+				manifest = new ChunkManifest(key, encoded, chunkSize);
+			} else {
+				validateValueSize(encoded);
+			}
+		}
+		boolean stored = false;
+		try {
+			stored = manifest != null
+					? _setChunkedValue(key, encoded, manifest, tags, age)
+					: _setObjectValue(key, value, encoded, tags, age);
+			return stored;
+		} catch (IOException e) {
+			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
+			getLogger().debug("retry once cause:{}", e.getMessage());
+			stored = manifest != null
+					? _setChunkedValue(key, encoded, manifest, tags, age)
+					: _setObjectValue(key, value, encoded, tags, age);
+			return stored;
+		} finally {
+			invalidateNearCache(key);
+			invalidateTagCache(tags);
+			updateRequestScope(key, stored, value);
+			if (stored && fingerprints != null && manifest == null) {
+				fingerprints.written(key, encoded, tags, age);
+			}
+//			logger.debug("set:{}ms", System.currentTimeMillis() - st);
+		}
+	}
+
+	/**
+	 * 内容を内容のハッシュ値から導いたキーに格納し、値のキーには内容への参照を格納する。
+	 * 既に格納したことを記憶している内容は送信しない。
+	 * @param encoded {@link #encodeValue(Object, String)} で変換したバイト列
+	 */
+	boolean setDeduplicatedValue(String key, Object value, ByteBuffer encoded, String[] tags, long age) throws IOException, OperationFailedException {
+		ContentReference reference = new ContentReference(encoded);
+		boolean stored = false;
+		try {
+			try {
+				storeBlob(reference.blobKey, encoded);
+				stored = _setObjectValue(key, reference, tags, age);
+			} catch (IOException e) {
+				// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+				// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
+				getLogger().debug("retry once cause:{}", e.getMessage());
+				storeBlob(reference.blobKey, encoded);
+				stored = _setObjectValue(key, reference, tags, age);
+			}
+			return stored;
+		} finally {
+			invalidateNearCache(key);
+			invalidateTagCache(tags);
+			updateRequestScope(key, stored, value);
+			// 参照を格納した後は、同じ内容の書き込みを省略できる
+			ValueFingerprints fingerprints = valueFingerprints;
+			if (stored && fingerprints != null) {
+				fingerprints.written(key, encoded, tags, age);
+			}
+		}
+	}
+
+	/**
+	 * 内容をまだ格納していなければ、有効時間を無期限として格納する。内容のキーが同じであれば内容も同じであるため、
+	 * 存在しない場合に限り格納する(プロトコル6)。断片の大きさを超える内容は分割して格納する。
+	 * @param blobKey 内容のキー
+	 * @param encoded 内容のバイト列
+	 */
+	void storeBlob(String blobKey, ByteBuffer encoded) throws IOException, OperationFailedException {
+		Set<String> known = knownBlobs;
+		if (known != null && known.contains(blobKey)) {
+			return;
+		}
+		if (chunkSize > 0 && encoded.remaining() > chunkSize) {
+			if (readManifest(blobKey) == null) {
+				_setChunkedValue(blobKey, encoded, new ChunkManifest(blobKey, encoded, chunkSize), null, 0);
+			}
+		} else {
+			validateValueSize(encoded);
+			AddRequest request = new AddRequest(blobKey, encoded, null, 0);
+			request.encoded = encoded;
+			Object result = executePipelined(Collections.singletonList(request))[0];
+			if (result instanceof OperationFailedException) {
+				throw (OperationFailedException) result;
+			}
+		}
+		if (known != null) {
+			known.add(blobKey);
+		}
+	}
+
+	/**
+	 * 変換したバイト列をBase64エンコードした大きさが、サーバが格納できる最大の大きさを超えないことを確認する。
+	 * 送信する前に確認することで、大きな値を送信してからサーバで失敗することを避ける。
+	 * @param encoded {@link #encodeValue(Object, String)} で変換したバイト列
+	 * @throws OperationFailedException 最大の大きさを超える場合
+	 */
+	void validateValueSize(ByteBuffer encoded) throws OperationFailedException {
+		long size = (encoded.remaining() + 2L) / 3 * 4;
+		if (maxValueSize > 0 && size > maxValueSize) {
+			throw new OperationFailedException("Value size " + size + " exceeds the max size " + maxValueSize);
+		}
+	}
+
+	/**
+	 * 値を分割するか、大きさを確認する設定であるかを返す。
+	 * @return 書き込む前に値を変換して大きさを確認する場合は true
+	 */
+	boolean isValueSizeChecked() {
+		return chunkSize > 0 || maxValueSize > 0;
+	}
+
+	/**
+	 * 変換したバイト列が断片の大きさを超え、分割して格納する必要があるかを返す。
+	 * @param encoded {@link #encodeValue(Object, String)} で変換したバイト列
+	 * @return 分割して格納する必要がある場合は true
+	 */
+	boolean needsChunks(ByteBuffer encoded) {
+		return chunkSize > 0 && encoded.remaining() > chunkSize;
+	}
+
+	/**
+	 * 分割せずに1つのキーに格納する値の大きさを確認する。分割して格納できない操作で用いる。
+	 * @param key キー文字列
+	 * @param encoded {@link #encodeValue(Object, String)} で変換したバイト列
+	 * @throws OperationFailedException 断片の大きさか、サーバが格納できる最大の大きさを超える場合
+	 */
+	void validateUnchunkedValueSize(String key, ByteBuffer encoded) throws OperationFailedException {
+		if (needsChunks(encoded)) {
+			throw new OperationFailedException("Value of " + key + " exceeds the chunk size " + chunkSize + " and cannot be chunked in this operation");
+		}
+		validateValueSize(encoded);
+	}
+
+	/**
+	 * 値を断片に分割して格納する。断片を1つのソケットでパイプライン化して格納してから、値のキーに目録を格納する。
+	 * 以前の値も分割して格納されていた場合は、目録を置き換えた後に以前の断片を削除する。
+	 * 断片は書き込みごとに異なるキーに格納するため、同じ目録で繰り返しても結果は変わらない。
+	 * @param encoded {@link #encodeValue(Object, String)} で変換したバイト列
+	 * @param manifest 目録
+	 */
+	boolean _setChunkedValue(String key, ByteBuffer encoded, ChunkManifest manifest, String[] tags, long age) throws IOException, OperationFailedException {
+		ChunkManifest previous = readManifest(key);
+		storeChunks(encoded, manifest, age);
+		boolean stored = _setObjectValue(key, manifest, tags, age);
+		if (previous != null && !previous.version.equals(manifest.version)) {
+			removeChunks(previous);
+		}
+		return stored;
+	}
+
+	/**
+	 * 目録に従って断片を1つのソケットでパイプライン化して格納する。値のキーには何も格納しない。
+	 * 断片は書き込みごとに異なるキーに格納するため、繰り返しても結果は変わらない。
+	 * @param encoded {@link #encodeValue(Object, String)} で変換したバイト列
+	 * @param manifest 目録
+	 * @param age 断片の有効時間(秒)
+	 */
+	void storeChunks(ByteBuffer encoded, ChunkManifest manifest, long age) throws IOException, OperationFailedException {
+		String[] chunkKeys = manifest.chunkKeys();
+		ArrayList<SetRequest> requests = new ArrayList<SetRequest>(chunkKeys.length);
+		for (int i = 0; i < chunkKeys.length; ++i) {
+			ByteBuffer chunk = manifest.chunk(encoded, i);
+			validateValueSize(chunk);
+			SetRequest request = new SetRequest(chunkKeys[i], chunk, null, age);
+			request.encoded = chunk;
+			requests.add(request);
+		}
+		Object[] results = executePipelined(requests);
+		for (Object result: results) {
+			if (result instanceof OperationFailedException) {
+				throw (OperationFailedException) result;
+			}
+		}
+	}
+
+	/**
+	 * 値のキーに格納できなかった目録の断片を削除する。通信エラーなどで格納できたかが分からない場合もあるため、
+	 * 値のキーの目録を読み出し、同じ書き込みの目録が格納されていれば削除しない。失敗しても例外はスローしない。
+	 * @param key 値のキー文字列
+	 * @param manifest 目録
+	 */
+	void removeChunksUnlessStored(String key, ChunkManifest manifest) {
+		try {
+			ChunkManifest current = readManifest(key);
+			if (current != null && current.version.equals(manifest.version)) {
+				return;
+			}
+		} catch (IOException e) {
+			getLogger().debug("Failed to read manifest of {} cause:{}", key, e.getMessage());
+			return;
+		} catch (OperationFailedException e) {
+			getLogger().debug("Failed to read manifest of {} cause:{}", key, e.getMessage());
+			return;
+		}
+		removeChunks(manifest);
+	}
+
+	/**
+	 * 値のキーに格納された目録を読み出す。
+	 * @return 目録。値が存在しないか、分割して格納された値でなければ null
+	 */
+	ChunkManifest readManifest(String key) throws IOException, OperationFailedException {
+		ByteBuffer[] raws = getMultiObjectRaw(key);
+		ByteBuffer raw = raws[0];
+		if (raw == null || !raw.hasRemaining()) {
+			return null;
+		}
+		try {
+			Object value = decodeObject(raw.array(), raw.arrayOffset() + raw.position(), raw.remaining());
+			return value instanceof ChunkManifest ? (ChunkManifest) value : null;
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 目録に従って断片を1回の複数キー取得で読み出し、連結した値を復元する。
+	 * 断片が欠けている場合は、読み出す間に上書きされて古い断片が削除された可能性があるため、値のキーから目録を読み直して
+	 * 新しい書き込みの断片を読み出す。目録が同じ書き込みのままであれば有効時間が切れたか削除された途中とみなす。
+	 * @param manifest 目録
+	 * @return 復元した値。値のキーが存在しなくなった場合、または同じ書き込みの断片が欠けている場合は null
+	 * @throws OperationFailedException 断片の長さかチェックサムが目録と一致しない場合
+	 */
+	Object readChunkedValue(ChunkManifest manifest) throws IOException, OperationFailedException {
+		ByteBuffer[] chunks;
+		for (int retry = 0; ; ++retry) {
+			chunks = getMultiObjectRaw(manifest.chunkKeys());
+			if (!Arrays.asList(chunks).contains(null)) {
+				break;
+			}
+			getLogger().debug("Missing chunk of {}", manifest.prefix);
+			if (retry >= CHUNK_READ_RETRIES) {
+				return null;
+			}
+			Object current = decodeLocal(getMultiObjectRaw(manifest.key())[0]);
+			if (!(current instanceof ChunkManifest)) {
+				// 分割しない値で上書きされたか、削除された
+				return resolveValue(current);
+			}
+			ChunkManifest next = (ChunkManifest) current;
+			if (next.version.equals(manifest.version)) {
+				return null;
+			}
+			manifest = next;
+		}
+		ByteBuffer assembled = manifest.assemble(chunks);
+		if (assembled == null) {
+			throw new OperationFailedException("Corrupted chunked value:" + manifest.prefix);
+		}
+		return decodeValue(assembled);
+	}
+
+	/**
+	 * 目録の断片をパイプライン化して削除する。失敗しても例外はスローしない。
+	 * @param manifest 目録
+	 */
+	void removeChunks(ChunkManifest manifest) {
+		ArrayList<RemoveRequest> requests = new ArrayList<RemoveRequest>();
+		for (String chunkKey: manifest.chunkKeys()) {
+			requests.add(new RemoveRequest(chunkKey));
+		}
+		try {
+			executePipelined(requests);
+		} catch (IOException e) {
+			getLogger().debug("Failed to remove chunks of {} cause:{}", manifest.prefix, e.getMessage());
+		} catch (OperationFailedException e) {
+			getLogger().debug("Failed to remove chunks of {} cause:{}", manifest.prefix, e.getMessage());
+		}
+	}
+
+	boolean _setObjectValue(String key, Object value, String[] tags, long age) throws IOException, OperationFailedException {
+		return _setObjectValue(key, value, null, tags, age);
+	}
+
+	/**
+	 * 値を格納する。
+	 * @param encoded {@link #encodeValue(Object, String)} で変換済みのバイト列。null の場合は value を変換する
+	 */
+	boolean _setObjectValue(String key, Object value, ByteBuffer encoded, String[] tags, long age) throws IOException, OperationFailedException {
+		if (value == null) {
+			throw new IllegalArgumentException("Okuyama does not allow to store null value.");
+		}
+		validateKey(key);
+		SocketStreams socket = null;
+		boolean failed = true;
+		try	{
+			socket = socketManager.aquire();
+
+			OutputStream os = socket.getOutputStream();
+			InputStream is = socket.getInputStream();
+
+			createBuffer(os, 1);
+			appendString(os, key, base64Key);
+			appendStringList(os, tags, true);
+			appendNumber(os, 0);
+			appendValue(os, value, key, encoded);
+			appendNumber(os, age);
+			appendSeparator(os);
+			sendRequest(os);
+
+			readResponse(is);
+			long code = nextNumber(is);
+			if (code != 1) {
+				throw new OperationFailedException("Unexprected code:" + code);
+			}
+			String str = nextString(is, false);
+			if (str.equals("true")) {
+				failed = false;
+				return true;
+			} else if (str.equals("false")){
+				String msg = nextString(is, false);
+				throw new OperationFailedException(msg);
+			} else {
+				String msg = nextString(is, false);
+				throw new OperationFailedException(msg);
+			}
+		} finally {
+			if (failed) {
+				socketManager.destroy(socket);
+			}
+			socketManager.recycle(socket);
+		}
+	}
+
+	@Override
+	public Object getObjectValue(String key) throws IOException, OperationFailedException {
+		OkuyamaRequestScope scope = currentRequestScope();
+		if (scope != null) {
+			validateKey(key);
+			Object memo = scope.lookup(key);
+			if (memo != null) {
+				return memo == OkuyamaRequestScope.ABSENT ? null : memo;
+			}
+			if (scope.hasPendingKeys()) {
+				// 先読みを登録したキーとまとめて取得する
+				return getMultiObjectValuesAligned(key)[0];
+			}
+			Object value = fetchObjectValue(key);
+			scope.fetched(1);
+			scope.remember(key, value);
+			return value;
+		}
+		return fetchObjectValue(key);
+	}
+
+	/**
+	 * ニアキャッシュなどを参照し、なければデータストアから値を取得する。
+	 * @param key キー文字列
+	 * @return 値オブジェクト。存在しない場合は null
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	Object fetchObjectValue(String key) throws IOException, OperationFailedException {
+//		long st = System.currentTimeMillis();
+		try {
+			validateKey(key);
+			NearCache cache = nearCache;
+			RawValueCache[] tiers = rawCaches;
+			long stamp = 0;
+			if (cache != null) {
+				NearCache.Entry entry = cache.lookup(key);
+				if (entry != null) {
+					return entry.getValue();
+				}
+				stamp = cache.stamp(key);
+			}
+			long[] tierStamps = new long[tiers.length];
+			for (int t = 0; t < tiers.length; ++t) {
+				tierStamps[t] = tiers[t].stamp(key);
+				VersionedValue stored = tiers[t].get(key);
+				if (stored != null) {
+					// 圧縮されたバイト列から復元するのはヒットした時だけ
+					ByteBuffer raw = (ByteBuffer) stored.getValue();
+					Object value = decodeValue(raw);
+					if (cache != null) {
+						cacheValue(cache, key, raw, value, stored.getVersion(), stamp);
+					}
+					for (int u = 0; u < t; ++u) {
+						storeRaw(tiers[u], key, raw, value, stored.getVersion(), tierStamps[u]);
+					}
+					return value;
+				}
+			}
+			ByteBuffer raw;
+			String version = null;
+			if (isVersionRequired(cache)) {
+				// 再検証のためにバージョンと共に取得する
+				VersionedValue versioned = getObjectRawVersionCheck(key);
+				raw = versioned == null ? null : (ByteBuffer) versioned.getValue();
+				version = versioned == null ? null : versioned.getVersion();
+			} else {
+				raw = getObjectRaw(key);
+			}
+			ValueFingerprints fingerprints = valueFingerprints;
+			if (fingerprints != null) {
+				fingerprints.read(key, raw);
+			}
+			Object value = decodeValue(raw);
+			if (cache != null) {
+				cacheValue(cache, key, raw, value, version, stamp);
+			}
+			for (int t = 0; t < tiers.length; ++t) {
+				storeRaw(tiers[t], key, raw, value, version, tierStamps[t]);
+			}
+			return value;
+		} finally {
+//			logger.debug("get:{}ms", System.currentTimeMillis() - st);
+		}
+	}
+
+	/**
+	 * キーを指定してOkuyamaから値を取得し、Base64デコードしたバイト列を返す。展開やデシリアライズは行わない。
+	 * 通信エラーの場合は1回だけリトライする。
+	 * @param key キー文字列
+	 * @return Base64デコードしたバイト列。存在しない場合は null
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	ByteBuffer getObjectRaw(final String key) throws IOException, OperationFailedException {
+		SingleFlight flight = singleFlight;
+		if (flight != null) {
+			ByteBuffer raw = flight.execute("2," + key, new SingleFlight.Call<ByteBuffer>() {
+				@Override
+				public ByteBuffer call() throws IOException, OperationFailedException {
+					return getObjectRawWithRetry(key);
+				}
+			});
+			// 位置を共有しないように複製する。デシリアライズは呼び出し元ごとに行う
+			return raw == null ? null : raw.duplicate();
+		}
+		return getObjectRawWithRetry(key);
+	}
+
+	ByteBuffer getObjectRawWithRetry(String key) throws IOException, OperationFailedException {
+		try {
+			return _getObjectRaw(key);
+		} catch (IOException e) {
+			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
+			getLogger().debug("retry once cause:{}", e.getMessage());
+			return _getObjectRaw(key);
+		}
+	}
+
+	Object _getObjectValue(String key) throws IOException, OperationFailedException {
+		return decodeValue(_getObjectRaw(key));
+	}
+
+	ByteBuffer _getObjectRaw(String key) throws IOException, OperationFailedException {
+		validateKey(key);
+		SocketStreams socket = null;
+		boolean failed = true;
+		try	{
+			socket = socketManager.aquire();
+
+			OutputStream os = socket.getOutputStream();
+			InputStream is = socket.getInputStream();
+
+			createBuffer(os, 2);
+			appendString(os, key, base64Key);
+			sendRequest(os);
+
+			readResponse(is);
+			long code = nextNumber(is);
+			if (code != 2) {
+				throw new OperationFailedException("Unexprected code:" + code);
+			}
+			String str = nextString(is, false);
+			if (str.equals("true")) {
+				ByteBuffer raw = nextBytes(is);
+				failed = false;
+				return raw;
+			} else if (str.equals("false")) {
+				/** falseの場合は第三列が文字列を返すときはエラーメッセージを例外としてスローし、空の時は値無しとしてnullを返す。 */
+				String msg = nextString(is, false);
+				if (msg != null && !msg.isEmpty()) {
+					failed = false;
+					throw new OperationFailedException(msg);
+				}
+				failed = false;
+				return null;
+			} else {
+				String msg = nextString(is, false);
+				throw new OperationFailedException(msg);
+			}
+		} finally {
+			if (failed) {
+				socketManager.destroy(socket);
+			}
+			socketManager.recycle(socket);
+		}
+	}
+
+	/**
+	 * データストアから取得した値をニアキャッシュに格納する。存在しなかった場合はネガティブキャッシュとして格納する。
+	 * デシリアライズできなかった値は格納しない。
+	 * @param cache ニアキャッシュ
+	 * @param key キー文字列
+	 * @param raw Base64デコードしたバイト列
+	 * @param value 復元した値
+	 * @param version バージョン。保持しない場合は null
+	 * @param stamp 取得前に{@link NearCache#stamp(String)}で得たスタンプ
+	 */
+	void cacheValue(NearCache cache, String key, ByteBuffer raw, Object value, String version, long stamp) {
+		if (raw == null) {
+			cache.putNegative(key, stamp);
+		} else if (!(value instanceof ClassNotFoundException)) {
+			cache.put(key, value, raw.remaining(), version, stamp);
+		}
+	}
+
+	/**
+	 * データストアから取得したバイト列をオフヒープキャッシュなどに格納する。
+	 * 存在しなかった値とデシリアライズできなかった値は格納しない。
+	 * @param tier 格納するキャッシュ
+	 * @param key キー文字列
+	 * @param raw Base64デコードしたバイト列
+	 * @param value 復元した値
+	 * @param version バージョン。保持しない場合は null
+	 * @param stamp 取得前に{@link RawValueCache#stamp(String)}で得たスタンプ
+	 */
+	void storeRaw(RawValueCache tier, String key, ByteBuffer raw, Object value, String version, long stamp) {
+		if (raw != null && !(value instanceof ClassNotFoundException)) {
+			tier.put(key, raw, version, stamp);
+		}
+	}
+
+	/**
+	 * データストアから値をバージョンと共に取得する必要があるかを判定する。
+	 * ニアキャッシュを再検証する場合だけバージョンが必要となる。
+	 * 永続キャッシュのエントリは再起動後に{@link PersistentCacheRevalidator}がバージョンと共に取得し直すため、
+	 * 通常の読み込みでバージョンを要求することはない。
+	 * @param cache ニアキャッシュ
+	 * @return バージョンと共に取得する場合は true
+	 */
+	boolean isVersionRequired(NearCache cache) {
+		return cache != null && cache.isRevalidationEnabled();
+	}
+
+	/**
+	 * 書き込みによって変更された可能性のあるキーをニアキャッシュ、オフヒープキャッシュ、永続キャッシュ、値の指紋から除去し、実行中の読み出しを切り離す。
+	 * @param key キー文字列
+	 */
+	void invalidateNearCache(String key) {
+		NearCache cache = nearCache;
+		if (cache != null) {
+			cache.invalidate(key);
+		}
+		SingleFlight flight = singleFlight;
+		if (flight != null) {
+			// 書き込みより前に始まった読み出しに、これから来る呼び出しを合流させない
+			flight.forget("2," + key);
+			flight.forget("15," + key);
+		}
+		for (RawValueCache tier: rawCaches) {
+			tier.invalidate(key);
+		}
+		ValueFingerprints fingerprints = valueFingerprints;
+		if (fingerprints != null) {
+			fingerprints.invalidate(key);
+		}
+	}
+
+	/**
+	 * 書き込みで指定されたタグに対応するキーの一覧をキャッシュから除去する。
+	 * @param tags タグ文字列の配列
+	 */
+	void invalidateTagCache(String[] tags) {
+		if (tags == null) {
+			return;
+		}
+		NearCache cache = tagCache;
+		SingleFlight flight = singleFlight;
+		OkuyamaRequestScope scope = currentRequestScope();
+		for (String tag: tags) {
+			if (cache != null) {
+				cache.invalidate(tagCacheKey(tag, true));
+				cache.invalidate(tagCacheKey(tag, false));
+			}
+			if (flight != null) {
+				flight.forget("3," + tagCacheKey(tag, true));
+				flight.forget("3," + tagCacheKey(tag, false));
+			}
+			if (scope != null) {
+				scope.forgetTagKeys(tagCacheKey(tag, true));
+				scope.forgetTagKeys(tagCacheKey(tag, false));
+			}
+		}
+	}
+
+	/**
+	 * 削除したキーを含むタグのキーの一覧をキャッシュから除去する。
+	 * 削除ではキーに付けられたタグが分からないため、すべての一覧を除去する。
+	 */
+	void invalidateTagCacheOnRemove() {
+		NearCache cache = tagCache;
+		if (cache != null) {
+			cache.invalidateAll();
+		}
+		OkuyamaRequestScope scope = currentRequestScope();
+		if (scope != null) {
+			scope.forgetAllTagKeys();
+		}
+	}
+
+	/**
+	 * 書き込みの結果をリクエストスコープの記録に反映する。
+	 * @param key キー文字列
+	 * @param written 書き込みが成功した場合は true。失敗した場合は記録を破棄する
+	 * @param value 書き込んだ値。削除した場合は null
+	 */
+	void updateRequestScope(String key, boolean written, Object value) {
+		OkuyamaRequestScope scope = currentRequestScope();
+		if (scope != null) {
+			if (written) {
+				scope.remember(key, value);
+			} else {
+				scope.forget(key);
+			}
+		}
+	}
+
+	OkuyamaRequestScope currentRequestScope() {
+		ThreadLocal<OkuyamaRequestScope> holder = requestScope;
+		return holder == null ? null : holder.get();
+	}
+
+	static String tagCacheKey(String tag, boolean withDeletedKeys) {
+		return (withDeletedKeys ? "true," : "false,") + tag;
+	}
+
+	@Override
+	public Object removeObjectValue(String key) throws IOException, OperationFailedException {
+		boolean removed = false;
+		try {
+			Object value;
+			try {
+				value = _removeObjectValue(key);
+			} catch (IOException e) {
+				// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+				// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
+				getLogger().debug("retry once cause:{}", e.getMessage());
+				value = _removeObjectValue(key);
+			}
+			removed = true;
+			if (value instanceof ChunkManifest) {
+				// 分割して格納した値は断片から復元してから断片を削除する
+				ChunkManifest manifest = (ChunkManifest) value;
+				value = readChunkedValue(manifest);
+				removeChunks(manifest);
+			} else if (value instanceof ContentReference) {
+				// 共有する内容は他のキーから参照されている可能性があるため削除しない
+				value = fetchObjectValue(((ContentReference) value).blobKey);
+			}
+			return value;
+		} finally {
+			invalidateNearCache(key);
+			invalidateTagCacheOnRemove();
+			updateRequestScope(key, removed, null);
+		}
+	}
+
+	Object _removeObjectValue(String key) throws IOException, OperationFailedException {
+		validateKey(key);
+		SocketStreams socket = null;
+		boolean failed = true;
+		try	{
+			socket = socketManager.aquire();
+
+			OutputStream os = socket.getOutputStream();
+			InputStream is = socket.getInputStream();
+
+			createBuffer(os, 5);
+			appendString(os, key, base64Key);
+			appendNumber(os, 0);
+			sendRequest(os);
+
+			readResponse(is);
+			long code = nextNumber(is);
+			if (code != 5) {
+				throw new OperationFailedException("Unexprected code:" + code);
+			}
+			String str = nextString(is, false);
+			if (str.equals("true")) {
+				Object obj;
+				try {
+					obj = nextObject(is);
+				} catch (ClassNotFoundException e) {
+					// オブジェクトがデシリアライズできなかった場合は値として ClassNotFoundException インスタンスを設定
+					obj = e;
+				}
+				failed = false;
+				return obj;
+			} else if (str.equals("false")) {
+				/** falseの場合は第三列が文字列を返すときはエラーメッセージを例外としてスローし、空の時は値無しとしてnullを返す。 */
+				String msg = nextString(is, false);
+				if (msg != null && !msg.isEmpty()) {
+					failed = true;
+					throw new OperationFailedException(msg);
+				}
+				failed = false;
+				return null;
 			} else {
-				throw new OperationFailedException();
+				String msg = nextString(is, false);
+				throw new OperationFailedException(msg);
 			}
 		} finally {
 			if (failed) {
@@ -555,21 +2270,73 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 	}
 
 	@Override
-	public boolean setObjectValue(String key, Object value, String[] tags, long age) throws IOException, OperationFailedException {
-//		long st = System.currentTimeMillis();
+	public boolean addObjectValue(String key, Object value, String[] tags,
+			long age) throws IOException, OperationFailedException {
+		ByteBuffer encoded = null;
+		if (isValueSizeChecked() && value != null) {
+			validateKey(key);
+			encoded = encodeValue(value, key);
+			if (needsChunks(encoded)) {
+				return addChunkedValue(key, value, encoded, tags, age);
+			}
+			validateValueSize(encoded);
+		}
+		boolean stored = false;
 		try {
-			return _setObjectValue(key, value, tags, age);
+			stored = _addObjectValue(key, value, encoded, tags, age);
+			return stored;
 		} catch (IOException e) {
 			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
 			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
 			getLogger().debug("retry once cause:{}", e.getMessage());
-			return _setObjectValue(key, value, tags, age);
+			stored = _addObjectValue(key, value, encoded, tags, age);
+			return stored;
 		} finally {
-//			logger.debug("set:{}ms", System.currentTimeMillis() - st);
+			invalidateNearCache(key);
+			invalidateTagCache(tags);
+			updateRequestScope(key, stored, value);
 		}
 	}
 
-	boolean _setObjectValue(String key, Object value, String[] tags, long age) throws IOException, OperationFailedException {
+	/**
+	 * 値を断片に分割して格納してから、値のキーが存在しない場合に限り目録を格納する。格納できなかった場合は断片を削除する。
+	 * @param encoded {@link #encodeValue(Object, String)} で変換したバイト列
+	 */
+	boolean addChunkedValue(String key, Object value, ByteBuffer encoded, String[] tags, long age) throws IOException, OperationFailedException {
+		ChunkManifest manifest = new ChunkManifest(key, encoded, chunkSize);
+		boolean stored = false;
+		try {
+			try {
+				storeChunks(encoded, manifest, age);
+				stored = _addObjectValue(key, manifest, null, tags, age);
+			} catch (IOException e) {
+				// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+				// 最初の試行で目録を格納できていた場合は既に存在すると応答されるため、格納されている目録で確認する。
+				getLogger().debug("retry once cause:{}", e.getMessage());
+				storeChunks(encoded, manifest, age);
+				stored = _addObjectValue(key, manifest, null, tags, age);
+				if (!stored) {
+					ChunkManifest current = readManifest(key);
+					stored = current != null && current.version.equals(manifest.version);
+				}
+			}
+			return stored;
+		} finally {
+			if (!stored) {
+				removeChunksUnlessStored(key, manifest);
+			}
+			invalidateNearCache(key);
+			invalidateTagCache(tags);
+			updateRequestScope(key, stored, value);
+		}
+	}
+
+	/**
+	 * 存在しない場合に限り値を格納する。
+	 * @param encoded {@link #encodeValue(Object, String)} で変換済みのバイト列。null の場合は value を変換する
+	 */
+	boolean _addObjectValue(String key, Object value, ByteBuffer encoded, String[] tags,
+			long age) throws IOException, OperationFailedException {
 		if (value == null) {
 			throw new IllegalArgumentException("Okuyama does not allow to store null value.");
 		}
@@ -582,22 +2349,18 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 			OutputStream os = socket.getOutputStream();
 			InputStream is = socket.getInputStream();
 
-			createBuffer(os, 1);
+			createBuffer(os, 6);
 			appendString(os, key, base64Key);
 			appendStringList(os, tags, true);
 			appendNumber(os, 0);
-			if (!serializeString && (value instanceof String)) {
-				appendString(os, (String) value, true);
-			} else {
-				appendSerializedObjectBase64(os, value, key);
-			}
+			appendValue(os, value, key, encoded);
 			appendNumber(os, age);
 			appendSeparator(os);
 			sendRequest(os);
 
 			readResponse(is);
 			long code = nextNumber(is);
-			if (code != 1) {
+			if (code != 6) {
 				throw new OperationFailedException("Unexprected code:" + code);
 			}
 			String str = nextString(is, false);
@@ -606,7 +2369,13 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 				return true;
 			} else if (str.equals("false")){
 				String msg = nextString(is, false);
-				throw new OperationFailedException(msg);
+				if (msg.startsWith("NG:Data has already")) {
+					failed = false;
+					return false;
+				} else {
+					getLogger().debug("addObjectValue failed. {}", msg);
+					throw new OperationFailedException(msg);
+				}
 			} else {
 				String msg = nextString(is, false);
 				throw new OperationFailedException(msg);
@@ -620,22 +2389,252 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 	}
 
 	@Override
-	public Object getObjectValue(String key) throws IOException, OperationFailedException {
-//		long st = System.currentTimeMillis();
+	public Object[] getMultiObjectValues(String... keys) throws IOException,
+			OperationFailedException {
+		if (nearCache == null && rawCaches.length == 0 && currentRequestScope() == null) {
+			try {
+				return _getMultiObjectValues(keys);
+			} catch (IOException e) {
+				// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+				// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
+				getLogger().debug("retry once cause:{}", e.getMessage());
+				return _getMultiObjectValues(keys);
+			}
+		}
+		Object[] values = getMultiObjectValuesAligned(keys);
+		// 存在しないオブジェクトは読みとばす
+		ArrayList<Object> list = new ArrayList<Object>(keys.length);
+		for (Object value: values) {
+			if (value != null) {
+				list.add(value);
+			}
+		}
+		return list.toArray();
+	}
+
+	@Override
+	public LazyValue[] getMultiLazyValues(String... keys) throws IOException, OperationFailedException {
+		LazyValue[] values = new LazyValue[keys.length];
+		NearCache cache = nearCache;
+		ArrayList<Integer> missing = new ArrayList<Integer>(keys.length);
+		for (int i = 0; i < keys.length; ++i) {
+			validateKey(keys[i]);
+			NearCache.Entry entry = cache == null ? null : cache.lookup(keys[i]);
+			if (entry != null) {
+				values[i] = entry.getValue() == null ? null : LazyValue.of(entry.getValue());
+			} else {
+				missing.add(i);
+			}
+		}
+		if (missing.isEmpty()) {
+			return values;
+		}
+		String[] missingKeys = new String[missing.size()];
+		for (int i = 0; i < missingKeys.length; ++i) {
+			missingKeys[i] = keys[missing.get(i)];
+		}
+		ByteBuffer[] raws = getMultiObjectRaw(missingKeys);
+		for (int i = 0; i < raws.length; ++i) {
+			ByteBuffer raw = raws[i];
+			if (raw == null) {
+				continue;
+			}
+			values[missing.get(i)] = raw.hasRemaining() ? new LazyValue(this, raw) : LazyValue.of("");
+		}
+		return values;
+	}
+
+	/**
+	 * 複数のキーの値を、リクエストスコープの記録、ニアキャッシュなどを参照して取得する。
+	 * リクエストスコープに先読みを登録したキーがあれば合わせて取得する。
+	 * @param keys キー文字列
+	 * @return キーの順に並べた値の配列。存在しないキーに対応する要素は null
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	Object[] getMultiObjectValuesAligned(String... keys) throws IOException, OperationFailedException {
+		OkuyamaRequestScope scope = currentRequestScope();
+		if (scope == null) {
+			return fetchMultiObjectValues(keys);
+		}
+		for (String key: keys) {
+			validateKey(key);
+		}
+		Object[] values = new Object[keys.length];
+		// 記憶していた値で決まった要素。存在しないことを記憶していたキーは値が null のまま決まる
+		boolean[] resolved = new boolean[keys.length];
+		// 取得するキーと取得結果での位置
+		LinkedHashMap<String, Integer> fetchIndexes = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < keys.length; ++i) {
+			Object memo = scope.lookup(keys[i]);
+			if (memo != null) {
+				values[i] = memo == OkuyamaRequestScope.ABSENT ? null : memo;
+				resolved[i] = true;
+			} else if (!fetchIndexes.containsKey(keys[i])) {
+				fetchIndexes.put(keys[i], fetchIndexes.size());
+			}
+		}
+		if (fetchIndexes.isEmpty()) {
+			return values;
+		}
+		for (String key: scope.drainPendingKeys()) {
+			if (!fetchIndexes.containsKey(key)) {
+				fetchIndexes.put(key, fetchIndexes.size());
+			}
+		}
+		String[] fetchKeys = fetchIndexes.keySet().toArray(new String[fetchIndexes.size()]);
+		Object[] fetched = fetchMultiObjectValues(fetchKeys);
+		scope.fetched(fetched.length);
+		for (int i = 0; i < fetched.length; ++i) {
+			scope.remember(fetchKeys[i], fetched[i]);
+		}
+		for (int i = 0; i < keys.length; ++i) {
+			if (!resolved[i]) {
+				values[i] = fetched[fetchIndexes.get(keys[i])];
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * 複数のキーの値を、ニアキャッシュなどを参照し、なければデータストアからまとめて取得する。
+	 * @param keys キー文字列
+	 * @return キーの順に並べた値の配列。存在しないキーに対応する要素は null
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	Object[] fetchMultiObjectValues(String... keys) throws IOException, OperationFailedException {
+		NearCache cache = nearCache;
+		RawValueCache[] tiers = rawCaches;
+		for (String key: keys) {
+			validateKey(key);
+		}
+		Object[] values = new Object[keys.length];
+		int[] missingIndexes = new int[keys.length];
+		long[] stamps = new long[keys.length];
+		long[][] tierStamps = new long[keys.length][tiers.length];
+		int missingCount = 0;
+		lookup:
+		for (int i = 0; i < keys.length; ++i) {
+			if (cache != null) {
+				NearCache.Entry entry = cache.lookup(keys[i]);
+				if (entry != null) {
+					values[i] = entry.getValue();
+					continue;
+				}
+				stamps[i] = cache.stamp(keys[i]);
+			}
+			for (int t = 0; t < tiers.length; ++t) {
+				tierStamps[i][t] = tiers[t].stamp(keys[i]);
+				VersionedValue stored = tiers[t].get(keys[i]);
+				if (stored != null) {
+					ByteBuffer raw = (ByteBuffer) stored.getValue();
+					values[i] = decodeValue(raw);
+					if (cache != null) {
+						cacheValue(cache, keys[i], raw, values[i], stored.getVersion(), stamps[i]);
+					}
+					for (int u = 0; u < t; ++u) {
+						storeRaw(tiers[u], keys[i], raw, values[i], stored.getVersion(), tierStamps[i][u]);
+					}
+					continue lookup;
+				}
+			}
+			missingIndexes[missingCount++] = i;
+		}
+		if (missingCount > 0) {
+			String[] missingKeys = new String[missingCount];
+			for (int i = 0; i < missingCount; ++i) {
+				missingKeys[i] = keys[missingIndexes[i]];
+			}
+			ByteBuffer[] raws = new ByteBuffer[missingCount];
+			String[] versions = new String[missingCount];
+			if (isVersionRequired(cache)) {
+				// 再検証のためにバージョンと共に取得する
+				VersionedValue[] versioned = getMultiObjectRawVersionCheck(missingKeys);
+				for (int i = 0; i < missingCount; ++i) {
+					if (versioned[i] != null) {
+						raws[i] = (ByteBuffer) versioned[i].getValue();
+						versions[i] = versioned[i].getVersion();
+					}
+				}
+			} else {
+				raws = getMultiObjectRaw(missingKeys);
+			}
+			for (int i = 0; i < missingCount; ++i) {
+				Object value = decodeValue(raws[i]);
+				values[missingIndexes[i]] = value;
+				if (cache != null) {
+					cacheValue(cache, missingKeys[i], raws[i], value, versions[i], stamps[missingIndexes[i]]);
+				}
+				for (int t = 0; t < tiers.length; ++t) {
+					storeRaw(tiers[t], missingKeys[i], raws[i], value, versions[i], tierStamps[missingIndexes[i]][t]);
+				}
+			}
+		}
+		return values;
+	}
+
+	Object[] _getMultiObjectValues(String... keys) throws IOException,
+			OperationFailedException {
+		DecodeStage stage = new DecodeStage();
+		_readMultiObject(stage, keys);
+		ArrayList<Object> list = new ArrayList<Object>();
+		for (Object value: stage.finish()) {
+			// 存在しないオブジェクトは読みとばす
+			if (value != null) {
+				list.add(value);
+			}
+		}
+		return list.toArray();
+	}
+
+	/**
+	 * 複数のキーを指定してOkuyamaから値を取得し、Base64デコードしたバイト列をキーの順に返す。
+	 * 通信エラーの場合は1回だけリトライする。
+	 * @param keys キー文字列
+	 * @return キーの順に並べたBase64デコードしたバイト列の配列。存在しないキーに対応する要素は null
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合、キーと応答の数が一致しない場合
+	 */
+	ByteBuffer[] getMultiObjectRaw(String... keys) throws IOException, OperationFailedException {
 		try {
-			return _getObjectValue(key);
+			return _getMultiObjectRaw(keys);
 		} catch (IOException e) {
 			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
 			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
 			getLogger().debug("retry once cause:{}", e.getMessage());
-			return _getObjectValue(key);
-		} finally {
-//			logger.debug("get:{}ms", System.currentTimeMillis() - st);
+			return _getMultiObjectRaw(keys);
 		}
 	}
 
-	Object _getObjectValue(String key) throws IOException, OperationFailedException {
-		validateKey(key);
+	ByteBuffer[] _getMultiObjectRaw(String... keys) throws IOException, OperationFailedException {
+		ArrayList<ByteBuffer> list = _readMultiObjectRaw(keys);
+		if (list.size() != keys.length) {
+			// 応答はリクエストしたキーの順に1件ずつ返される前提で対応付けるため、件数が一致しなければ失敗とする。
+			throw new OperationFailedException("Unexpected count of values:" + list.size() + " for keys:" + keys.length);
+		}
+		return list.toArray(new ByteBuffer[list.size()]);
+	}
+
+	/**
+	 * プロトコル22で複数の値を取得して、応答の順にBase64デコードしたバイト列のリストを返す。
+	 * 値が存在しない応答は null の要素とする。
+	 */
+	ArrayList<ByteBuffer> _readMultiObjectRaw(String... keys) throws IOException,
+			OperationFailedException {
+		return _readMultiObject(null, keys);
+	}
+
+	/**
+	 * 複数のキーを指定してOkuyamaから値を取得する。
+	 * @param stage 値のフィールドを渡す段。null の場合はBase64デコードしたバイト列を返す
+	 * @return stage が null の場合はBase64デコードしたバイト列のリスト。stage を指定した場合は空のリスト
+	 */
+	ArrayList<ByteBuffer> _readMultiObject(DecodeStage stage, String... keys) throws IOException,
+			OperationFailedException {
+		for (String key: keys) {
+			validateKey(key);
+		}
 		SocketStreams socket = null;
 		boolean failed = true;
 		try	{
@@ -644,61 +2643,228 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 			OutputStream os = socket.getOutputStream();
 			InputStream is = socket.getInputStream();
 
-			createBuffer(os, 2);
-			appendString(os, key, base64Key);
-			sendRequest(os);
+			createBuffer(os, 22);
+			for (String key: keys) {
+				appendString(os, key, base64Key);
+			}
+			sendRequest(os);
+
+			readResponse(is);
+			ArrayList<ByteBuffer> list = new ArrayList<ByteBuffer>(keys.length);
+			readMultiResponse(is, stage, list);
+			failed = false;
+			return list;
+		} finally {
+			if (failed) {
+				socketManager.destroy(socket);
+			}
+			socketManager.recycle(socket);
+		}
+	}
+
+	/**
+	 * プロトコル22の応答を END まで読み取る。
+	 * @param stage 値のフィールドを渡す段。null の場合は list にBase64デコードしたバイト列を追加する
+	 * @param list バイト列を追加するリスト
+	 */
+	void readMultiResponse(InputStream is, DecodeStage stage, ArrayList<ByteBuffer> list) throws IOException, OperationFailedException {
+		while (true) {
+			String str = nextString(is, false);
+			if (str.equals("END")) {
+				return;
+			}
+			if (str.equals("22")) {
+				str = nextString(is, false);
+				if (str.equals("true")) {
+					if (stage != null) {
+						stage.add(nextField(is));
+					} else {
+						list.add(nextBytes(is));
+					}
+				} else if (str.equals("false")){
+					nextString(is, false);
+					if (stage != null) {
+						stage.add(null);
+					} else {
+						list.add(null);
+					}
+				} else {
+					String msg = nextString(is, false);
+					throw new OperationFailedException(msg);
+				}
+			} else {
+				String msg = nextString(is, false);
+				throw new OperationFailedException(msg);
+			}
+		}
+	}
+
+	/**
+	 * タグに対応するキーを取得するリクエスト(プロトコル3)。読み取ったキーは1つずつ {@link TagKeysMerger} に渡し、
+	 * キーの配列は生成しない。応答は Boolean.TRUE、失敗した場合はエラーメッセージを持つ OperationFailedException となる。
+	 */
+	class TagKeysRequest extends PipelinedRequest {
+		final String tag;
+		final boolean withDeletedKeys;
+		final TagKeysMerger merger;
+
+		TagKeysRequest(String tag, boolean withDeletedKeys, TagKeysMerger merger) {
+			this.tag = tag;
+			this.withDeletedKeys = withDeletedKeys;
+			this.merger = merger;
+		}
+
+		@Override
+		void write(OutputStream os) throws IOException {
+			createBuffer(os, 3);
+			appendString(os, tag, true);
+			appendString(os, withDeletedKeys ? "true": "false", false);
+		}
+
+		@Override
+		Object read(InputStream is) throws IOException, OperationFailedException {
+			long code = nextNumber(is);
+			if (code != 4) {
+				throw new OperationFailedException("Unexprected code:" + code);
+			}
+			String str = nextString(is, false);
+			merger.begin();
+			if (str.equals("true")) {
+				do {
+					merger.item(nextListItem(is, base64Key));
+				} while (lastDelimiter == ':');
+			} else {
+				/** falseの場合は第三列が文字列を返すときはエラーメッセージとし、空の時はキー無しとする。 */
+				String msg = nextString(is, false);
+				if (msg != null && !msg.isEmpty()) {
+					return new OperationFailedException(msg);
+				}
+			}
+			merger.end();
+			return Boolean.TRUE;
+		}
+	}
+
+	/**
+	 * 複数のタグのキーの一覧を、応答を読み取りながら積集合または和集合にまとめる。
+	 * 積集合の場合に保持するのは最初のタグのキーのうち残っているものだけとなる。
+	 */
+	static class TagKeysMerger {
+		final boolean and;
+		final LinkedHashSet<String> result = new LinkedHashSet<String>();
+		/** 積集合の場合に、読み取っているタグのキーのうち result に含まれるもの */
+		private HashSet<String> found;
+		private boolean first = true;
+
+		TagKeysMerger(boolean and) {
+			this.and = and;
+		}
+
+		void begin() {
+			found = and && !first ? new HashSet<String>() : null;
+		}
+
+		void item(String key) {
+			if (found == null) {
+				result.add(key);
+			} else if (result.contains(key)) {
+				found.add(key);
+			}
+		}
+
+		void end() {
+			if (found != null) {
+				result.retainAll(found);
+				found = null;
+			}
+			first = false;
+		}
+	}
+
+	@Override
+	public String[] getMultiTagKeys(String[] tags, boolean and) throws IOException, OperationFailedException {
+		try {
+			return _getMultiTagKeys(tags, and);
+		} catch (IOException e) {
+			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
+			getLogger().debug("retry once cause:{}", e.getMessage());
+			return _getMultiTagKeys(tags, and);
+		}
+	}
+
+	String[] _getMultiTagKeys(String[] tags, boolean and) throws IOException, OperationFailedException {
+		TagKeysMerger merger = new TagKeysMerger(and);
+		ArrayList<TagKeysRequest> requests = new ArrayList<TagKeysRequest>(tags.length);
+		for (String tag: tags) {
+			requests.add(new TagKeysRequest(tag, false, merger));
+		}
+		for (Object result: executePipelined(requests)) {
+			if (result instanceof OperationFailedException) {
+				throw (OperationFailedException) result;
+			}
+		}
+		return merger.result.toArray(new String[merger.result.size()]);
+	}
 
-			readResponse(is);
-			long code = nextNumber(is);
-			if (code != 2) {
-				throw new OperationFailedException("Unexprected code:" + code);
+	@Override
+	public Pair[] getMultiTagPairs(String[] tags, boolean and) throws IOException, OperationFailedException {
+		String[] keys = getMultiTagKeys(tags, and);
+		ArrayList<Pair> pairs = new ArrayList<Pair>(keys.length);
+		for (int from = 0; from < keys.length; from += MULTI_GET_BATCH_SIZE) {
+			String[] batch = Arrays.copyOfRange(keys, from, Math.min(keys.length, from + MULTI_GET_BATCH_SIZE));
+			Object[] values;
+			try {
+				values = _getMultiObjectValuesAligned(batch);
+			} catch (IOException e) {
+				// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+				// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
+				getLogger().debug("retry once cause:{}", e.getMessage());
+				values = _getMultiObjectValuesAligned(batch);
 			}
-			String str = nextString(is, false);
-			if (str.equals("true")) {
-				Object obj;
-				try {
-					obj = nextObject(is);
-				} catch (ClassNotFoundException e) {
-					// オブジェクトがデシリアライズできなかった場合は値として ClassNotFoundException インスタンスを設定
-					obj = e;
-				}
-				failed = false;
-				return obj;
-			} else if (str.equals("false")) {
-				/** falseの場合は第三列が文字列を返すときはエラーメッセージを例外としてスローし、空の時は値無しとしてnullを返す。 */
-				String msg = nextString(is, false);
-				if (msg != null && !msg.isEmpty()) {
-					failed = false;
-					throw new OperationFailedException(msg);
+			for (int i = 0; i < batch.length; ++i) {
+				// 一覧を取得した後に削除されたキーは読みとばす
+				if (values[i] != null) {
+					pairs.add(new Pair(batch[i], values[i]));
 				}
-				failed = false;
-				return null;
-			} else {
-				String msg = nextString(is, false);
-				throw new OperationFailedException(msg);
-			}
-		} finally {
-			if (failed) {
-				socketManager.destroy(socket);
 			}
-			socketManager.recycle(socket);
 		}
+		return pairs.toArray(new Pair[pairs.size()]);
+	}
+
+	/**
+	 * 複数のキーを指定してOkuyamaから値を取得し、キーの順に並べて返す。ニアキャッシュなどは参照しない。
+	 * @return キーの順に並べた値の配列。存在しない要素は null
+	 */
+	Object[] _getMultiObjectValuesAligned(String... keys) throws IOException, OperationFailedException {
+		DecodeStage stage = new DecodeStage();
+		_readMultiObject(stage, keys);
+		Object[] values = stage.finish();
+		if (values.length != keys.length) {
+			throw new OperationFailedException("Unexpected count of values:" + values.length + " for keys:" + keys.length);
+		}
+		return values;
 	}
 
 	@Override
-	public Object removeObjectValue(String key) throws IOException, OperationFailedException {
+	public Object[] getMultiObjectValues(KeyList keys, int from, int to) throws IOException, OperationFailedException {
+		if (from < 0 || to > keys.size() || from > to) {
+			throw new IndexOutOfBoundsException("from:" + from + " to:" + to + " size:" + keys.size());
+		}
+		if (from == to) {
+			return new Object[0];
+		}
 		try {
-			return _removeObjectValue(key);
+			return _getMultiObjectValues(keys, from, to);
 		} catch (IOException e) {
 			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
 			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
 			getLogger().debug("retry once cause:{}", e.getMessage());
-			return _removeObjectValue(key);
+			return _getMultiObjectValues(keys, from, to);
 		}
 	}
 
-	Object _removeObjectValue(String key) throws IOException, OperationFailedException {
-		validateKey(key);
+	Object[] _getMultiObjectValues(KeyList keys, int from, int to) throws IOException, OperationFailedException {
 		SocketStreams socket = null;
 		boolean failed = true;
 		try	{
@@ -707,40 +2873,29 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 			OutputStream os = socket.getOutputStream();
 			InputStream is = socket.getInputStream();
 
-			createBuffer(os, 5);
-			appendString(os, key, base64Key);
-			appendNumber(os, 0);
+			// キーのバイト列から String を生成せずに送信する
+			createBuffer(os, 22);
+			byte[] data = keys.array();
+			for (int i = from; i < to; ++i) {
+				appendSeparator(os);
+				if (base64Key) {
+					ByteBuffer b = Base64.encodeBuffer(ByteBuffer.wrap(data, keys.offsetAt(i), keys.lengthAt(i)));
+					os.write(b.array(), b.position(), b.remaining());
+				} else {
+					os.write(data, keys.offsetAt(i), keys.lengthAt(i));
+				}
+			}
 			sendRequest(os);
 
 			readResponse(is);
-			long code = nextNumber(is);
-			if (code != 5) {
-				throw new OperationFailedException("Unexprected code:" + code);
-			}
-			String str = nextString(is, false);
-			if (str.equals("true")) {
-				Object obj;
-				try {
-					obj = nextObject(is);
-				} catch (ClassNotFoundException e) {
-					// オブジェクトがデシリアライズできなかった場合は値として ClassNotFoundException インスタンスを設定
-					obj = e;
-				}
-				failed = false;
-				return obj;
-			} else if (str.equals("false")) {
-				/** falseの場合は第三列が文字列を返すときはエラーメッセージを例外としてスローし、空の時は値無しとしてnullを返す。 */
-				String msg = nextString(is, false);
-				if (msg != null && !msg.isEmpty()) {
-					failed = true;
-					throw new OperationFailedException(msg);
-				}
-				failed = false;
-				return null;
-			} else {
-				String msg = nextString(is, false);
-				throw new OperationFailedException(msg);
+			DecodeStage stage = new DecodeStage();
+			readMultiResponse(is, stage, null);
+			failed = false;
+			Object[] values = stage.finish();
+			if (values.length != to - from) {
+				throw new OperationFailedException("Unexpected count of values:" + values.length + " for keys:" + (to - from));
 			}
+			return values;
 		} finally {
 			if (failed) {
 				socketManager.destroy(socket);
@@ -750,24 +2905,18 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 	}
 
 	@Override
-	public boolean addObjectValue(String key, Object value, String[] tags,
-			long age) throws IOException, OperationFailedException {
+	public KeyList getTagKeyList(String tag, boolean withDeletedKeys) throws IOException, OperationFailedException {
 		try {
-			return _addObjectValue(key, value, tags, age);
+			return _getTagKeyList(tag, withDeletedKeys);
 		} catch (IOException e) {
 			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
 			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
 			getLogger().debug("retry once cause:{}", e.getMessage());
-			return _addObjectValue(key, value, tags, age);
+			return _getTagKeyList(tag, withDeletedKeys);
 		}
 	}
 
-	boolean _addObjectValue(String key, Object value, String[] tags,
-			long age) throws IOException, OperationFailedException {
-		if (value == null) {
-			throw new IllegalArgumentException("Okuyama does not allow to store null value.");
-		}
-		validateKey(key);
+	KeyList _getTagKeyList(String tag, boolean withDeletedKeys) throws IOException, OperationFailedException {
 		SocketStreams socket = null;
 		boolean failed = true;
 		try	{
@@ -776,37 +2925,25 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 			OutputStream os = socket.getOutputStream();
 			InputStream is = socket.getInputStream();
 
-			createBuffer(os, 6);
-			appendString(os, key, base64Key);
-			appendStringList(os, tags, true);
-			appendNumber(os, 0);
-			if (!serializeString && (value instanceof String)) {
-				appendString(os, (String) value, true);
-			} else {
-				appendSerializedObjectBase64(os, value, key);
-			}
-			appendNumber(os, age);
-			appendSeparator(os);
+			createBuffer(os, 3);
+			appendString(os, tag, true);
+			appendString(os, withDeletedKeys ? "true": "false", false);
 			sendRequest(os);
 
 			readResponse(is);
 			long code = nextNumber(is);
-			if (code != 6) {
+			if (code != 4) {
 				throw new OperationFailedException("Unexprected code:" + code);
 			}
 			String str = nextString(is, false);
 			if (str.equals("true")) {
+				KeyList keys = nextKeyList(is, base64Key);
 				failed = false;
-				return true;
+				return keys;
 			} else if (str.equals("false")){
 				String msg = nextString(is, false);
-				if (msg.startsWith("NG:Data has already")) {
-					failed = false;
-					return false;
-				} else {
-					getLogger().debug("addObjectValue failed. {}", msg);
-					throw new OperationFailedException(msg);
-				}
+				failed = false;
+				throw new OperationFailedException(msg);
 			} else {
 				String msg = nextString(is, false);
 				throw new OperationFailedException(msg);
@@ -820,78 +2957,56 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 	}
 
 	@Override
-	public Object[] getMultiObjectValues(String... keys) throws IOException,
-			OperationFailedException {
-		try {
-			return _getMultiObjectValues(keys);
-		} catch (IOException e) {
-			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
-			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
-			getLogger().debug("retry once cause:{}", e.getMessage());
-			return _getMultiObjectValues(keys);
+	public String[] getTagKeys(String tag, boolean withDeletedKeys) throws IOException, OperationFailedException {
+		OkuyamaRequestScope scope = currentRequestScope();
+		if (scope != null) {
+			String cacheKey = tagCacheKey(tag, withDeletedKeys);
+			String[] keys = scope.lookupTagKeys(cacheKey);
+			if (keys == null) {
+				keys = fetchTagKeys(tag, withDeletedKeys);
+				scope.fetched(1);
+				scope.rememberTagKeys(cacheKey, keys);
+			}
+			return keys.clone();
 		}
+		return fetchTagKeys(tag, withDeletedKeys);
 	}
 
-	Object[] _getMultiObjectValues(String... keys) throws IOException,
-			OperationFailedException {
-		for (String key: keys) {
-			validateKey(key);
-		}
-		SocketStreams socket = null;
-		boolean failed = true;
-		try	{
-			socket = socketManager.aquire();
-
-			OutputStream os = socket.getOutputStream();
-			InputStream is = socket.getInputStream();
-
-			createBuffer(os, 22);
+	String[] fetchTagKeys(String tag, boolean withDeletedKeys) throws IOException, OperationFailedException {
+		NearCache cache = tagCache;
+		if (cache != null) {
+			String cacheKey = tagCacheKey(tag, withDeletedKeys);
+			NearCache.Entry entry = cache.lookup(cacheKey);
+			if (entry != null) {
+				return ((String[]) entry.getValue()).clone();
+			}
+			long stamp = cache.stamp(cacheKey);
+			String[] keys = getTagKeysShared(tag, withDeletedKeys);
+			int weight = 0;
 			for (String key: keys) {
-				appendString(os, key, base64Key);
+				weight += key.length() * 2;
 			}
-			sendRequest(os);
+			cache.put(cacheKey, keys.clone(), weight, stamp);
+			return keys;
+		}
+		return getTagKeysShared(tag, withDeletedKeys);
+	}
 
-			readResponse(is);
-			ArrayList<Object> list = new ArrayList<Object>();
-			while (true) {
-				String str = nextString(is, false);
-				if (str.equals("END")) {
-					failed = false;
-					return list.toArray();
-				}
-				if (str.equals("22")) {
-					str = nextString(is, false);
-					if (str.equals("true")) {
-						Object obj;
-						try {
-							obj = nextObject(is);
-						} catch (ClassNotFoundException e) {
-							// オブジェクトがデシリアライズできなかった場合は値として ClassNotFoundException インスタンスを設定
-							obj = e;
-						}
-						list.add(obj);
-					} else if (str.equals("false")){
-						// 存在しないオブジェクトは読みとばす
-						nextString(is, false);
-					} else {
-						String msg = nextString(is, false);
-						throw new OperationFailedException(msg);
-					}
-				} else {
-					String msg = nextString(is, false);
-					throw new OperationFailedException(msg);
+	String[] getTagKeysShared(final String tag, final boolean withDeletedKeys) throws IOException, OperationFailedException {
+		SingleFlight flight = singleFlight;
+		if (flight != null) {
+			String[] keys = flight.execute("3," + withDeletedKeys + "," + tag, new SingleFlight.Call<String[]>() {
+				@Override
+				public String[] call() throws IOException, OperationFailedException {
+					return getTagKeysWithRetry(tag, withDeletedKeys);
 				}
-			}
-		} finally {
-			if (failed) {
-				socketManager.destroy(socket);
-			}
-			socketManager.recycle(socket);
+			});
+			return keys.clone();
 		}
+		return getTagKeysWithRetry(tag, withDeletedKeys);
 	}
 
-	@Override
-	public String[] getTagKeys(String tag, boolean withDeletedKeys) throws IOException, OperationFailedException {
+	String[] getTagKeysWithRetry(String tag, boolean withDeletedKeys) throws IOException, OperationFailedException {
 		try {
 			return _getTagKeys(tag, withDeletedKeys);
 		} catch (IOException e) {
@@ -944,81 +3059,351 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 
 	@Override
 	public VersionedValue getObjectValueVersionCheck(String key) throws IOException, OperationFailedException {
+		VersionedValue versioned = getObjectRawVersionCheck(key);
+		if (versioned == null) {
+			return null;
+		}
+		return new VersionedValue(decodeValue((ByteBuffer) versioned.getValue()), versioned.getVersion());
+	}
+
+	VersionedValue _getObjectValueVersionCheck(String key) throws IOException, OperationFailedException {
+		VersionedValue versioned = _getObjectRawVersionCheck(key);
+		if (versioned == null) {
+			return null;
+		}
+		return new VersionedValue(decodeValue((ByteBuffer) versioned.getValue()), versioned.getVersion());
+	}
+
+	/**
+	 * キーを指定してOkuyamaから値とバージョン情報を取得する。値はBase64デコードしたバイト列のまま返す。
+	 * 通信エラーの場合は1回だけリトライする。
+	 * @param key キー文字列
+	 * @return Base64デコードしたバイト列(ByteBuffer)とバージョンの組。存在しない場合は null
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	VersionedValue getObjectRawVersionCheck(final String key) throws IOException, OperationFailedException {
+		SingleFlight flight = singleFlight;
+		if (flight != null) {
+			VersionedValue versioned = flight.execute("15," + key, new SingleFlight.Call<VersionedValue>() {
+				@Override
+				public VersionedValue call() throws IOException, OperationFailedException {
+					return getObjectRawVersionCheckWithRetry(key);
+				}
+			});
+			if (versioned == null) {
+				return null;
+			}
+			return new VersionedValue(((ByteBuffer) versioned.getValue()).duplicate(), versioned.getVersion());
+		}
+		return getObjectRawVersionCheckWithRetry(key);
+	}
+
+	VersionedValue getObjectRawVersionCheckWithRetry(String key) throws IOException, OperationFailedException {
 		try {
-			return _getObjectValueVersionCheck(key);
+			return _getObjectRawVersionCheck(key);
 		} catch (IOException e) {
 			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
 			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
 			getLogger().debug("retry once cause:{}", e.getMessage());
-			return _getObjectValueVersionCheck(key);
+			return _getObjectRawVersionCheck(key);
 		}
 	}
 
-	VersionedValue _getObjectValueVersionCheck(String key) throws IOException, OperationFailedException {
+	VersionedValue _getObjectRawVersionCheck(String key) throws IOException, OperationFailedException {
 		validateKey(key);
-		SocketStreams socket = null;
-		boolean failed = true;
-		try	{
-			socket = socketManager.aquire();
+		Object result = executePipelined(Collections.singletonList(new GetVersionCheckRequest(key)))[0];
+		if (result instanceof OperationFailedException) {
+			throw (OperationFailedException) result;
+		}
+		return (VersionedValue) result;
+	}
 
-			OutputStream os = socket.getOutputStream();
-			InputStream is = socket.getInputStream();
+	@Override
+	public VersionedValue[] getMultiObjectValuesVersionCheck(String... keys) throws IOException, OperationFailedException {
+		VersionedValue[] values = getMultiObjectRawVersionCheck(keys);
+		for (int i = 0; i < values.length; ++i) {
+			if (values[i] != null) {
+				values[i] = new VersionedValue(decodeValue((ByteBuffer) values[i].getValue()), values[i].getVersion());
+			}
+		}
+		return values;
+	}
 
-			createBuffer(os, 15);
-			appendString(os, key, base64Key);
-			sendRequest(os);
+	/**
+	 * 複数のキーを指定してOkuyamaから値とバージョン情報を取得する。値はBase64デコードしたバイト列のまま返す。
+	 * 通信エラーの場合は1回だけリトライする。
+	 * @param keys キー文字列
+	 * @return キーの順に並べたBase64デコードしたバイト列(ByteBuffer)とバージョンの組の配列。存在しないキーに対応する要素は null
+	 * @throws IOException 通信時の例外
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	VersionedValue[] getMultiObjectRawVersionCheck(String... keys) throws IOException, OperationFailedException {
+		try {
+			return _getMultiObjectRawVersionCheck(keys);
+		} catch (IOException e) {
+			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
+			getLogger().debug("retry once cause:{}", e.getMessage());
+			return _getMultiObjectRawVersionCheck(keys);
+		}
+	}
 
-			readResponse(is);
-			long code = nextNumber(is);
-			if (code != 15) {
-				throw new OperationFailedException("Unexprected code:" + code);
+	VersionedValue[] _getMultiObjectRawVersionCheck(String... keys) throws IOException, OperationFailedException {
+		ArrayList<GetVersionCheckRequest> requests = new ArrayList<GetVersionCheckRequest>(keys.length);
+		for (String key: keys) {
+			validateKey(key);
+			requests.add(new GetVersionCheckRequest(key));
+		}
+		Object[] results = executePipelined(requests);
+		VersionedValue[] values = new VersionedValue[results.length];
+		for (int i = 0; i < results.length; ++i) {
+			if (results[i] instanceof OperationFailedException) {
+				throw (OperationFailedException) results[i];
 			}
-			String str = nextString(is, false);
-			if (str.equals("true")) {
-				Object obj;
+			values[i] = (VersionedValue) results[i];
+		}
+		return values;
+	}
+
+	@Override
+	public Object updateObjectValue(String key, ValueUpdater updater, String[] tags, long age) throws IOException, OperationFailedException {
+		validateKey(key);
+		ConflictRetryPolicy policy = conflictRetryPolicy;
+		policy.updated();
+		boolean stored = false;
+		Object storedValue = null;
+		SocketStreams socket = null;
+		boolean failed = true;
+		boolean retried = false;
+		// 書き込みのリクエストを送信し始めてから応答を読み取るまでの間は true
+		boolean writing = false;
+		int attempt = 0;
+		try {
+			// 競合した場合の読み直しと書き込みは同じソケットで行い、ソケットプールを経由しない
+			socket = socketManager.aquire();
+			while (true) {
 				try {
-					obj = nextObject(is);
-				} catch (ClassNotFoundException e) {
-					// オブジェクトがデシリアライズできなかった場合は値として ClassNotFoundException インスタンスを設定
-					obj = e;
-				}
-				String version = nextString(is, false);
-				failed = false;
-				return new VersionedValue(obj, version);
-			} else if (str.equals("false")) {
-				/** falseの場合は第三列が文字列を返すときはエラーメッセージを例外としてスローし、空の時は値無しとしてnullを返す。 */
-				String msg = nextString(is, false);
-				if (msg != null && !msg.isEmpty()) {
-					failed = false;
-					throw new OperationFailedException(msg);
+					Object result = execute(socket, new GetVersionCheckRequest(key));
+					if (result instanceof OperationFailedException) {
+						throw (OperationFailedException) result;
+					}
+					VersionedValue versioned = (VersionedValue) result;
+					Object local = versioned == null ? null : decodeLocal((ByteBuffer) versioned.getValue());
+					// 分割して格納されていた値は、置き換えた後に以前の断片を削除する
+					ChunkManifest previous = local instanceof ChunkManifest ? (ChunkManifest) local : null;
+					Object current = resolveValue(local);
+					if (current instanceof ClassNotFoundException) {
+						throw new OperationFailedException("Failed to deserialize current value", (ClassNotFoundException) current);
+					}
+					Object value = applyUpdater(updater, current);
+					if (value == null) {
+						failed = false;
+						return current;
+					}
+					ByteBuffer encoded = null;
+					ChunkManifest manifest = null;
+					if (isValueSizeChecked()) {
+						encoded = encodeValue(value, key);
+						if (needsChunks(encoded)) {
+							manifest = new ChunkManifest(key, encoded, chunkSize);
+							storeChunks(encoded, manifest, age);
+						} else {
+							validateValueSize(encoded);
+						}
+					}
+					Object writtenValue = manifest != null ? manifest : value;
+					SetRequest request;
+					if (versioned == null) {
+						request = new AddRequest(key, writtenValue, tags, age);
+					} else {
+						request = new SetVersionCheckRequest(key, writtenValue, versioned.getVersion(), tags, age);
+					}
+					if (manifest == null) {
+						request.encoded = encoded;
+					}
+					writing = true;
+					Object written = execute(socket, request);
+					writing = false;
+					if (Boolean.TRUE.equals(written)) {
+						stored = true;
+						storedValue = value;
+						failed = false;
+						if (previous != null) {
+							removeChunks(previous);
+						}
+						return value;
+					}
+					if (manifest != null) {
+						// 書き込めなかったことが応答で確定しているため、格納した断片を削除する
+						removeChunks(manifest);
+					}
+					if (!Boolean.FALSE.equals(written) && !(written instanceof KeyValueConsistencyException)) {
+						throw (OperationFailedException) written;
+					}
+					policy.conflicted(key);
+					if (++attempt >= policy.getMaxAttempts()) {
+						policy.exhausted();
+						failed = false;
+						throw new KeyValueConsistencyException("NG:Data has already been updated");
+					}
+					long backoff = policy.backoff(attempt);
+					if (backoff > 0) {
+						try {
+							Thread.sleep(backoff);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							failed = false;
+							throw new InterruptedIOException("Interrupted while backing off");
+						}
+					}
+				} catch (IOException e) {
+					// 書き込みのリクエストを送信し始めた後の通信エラーは、サーバで書き込みが反映された可能性がある。
+					// 読み出しからやり直すと反映された値に updater を重ねて適用するため、リトライしない。
+					if (retried || writing || e instanceof InterruptedIOException) {
+						throw e;
+					}
+					// 読み出しで接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+					getLogger().debug("retry once cause:{}", e.getMessage());
+					retried = true;
+					socketManager.destroy(socket);
+					socketManager.recycle(socket);
+					socket = null;
+					socket = socketManager.aquire();
 				}
-				failed = false;
-				return null;
-			} else {
-				String msg = nextString(is, false);
-				throw new OperationFailedException(msg);
 			}
 		} finally {
 			if (failed) {
 				socketManager.destroy(socket);
 			}
 			socketManager.recycle(socket);
+			invalidateNearCache(key);
+			invalidateTagCache(tags);
+			updateRequestScope(key, stored, storedValue);
+		}
+	}
+
+	static Object applyUpdater(ValueUpdater updater, Object current) throws OperationFailedException {
+		try {
+			return updater.update(current);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new OperationFailedException("Failed to update value", e);
+		}
+	}
+
+	@Override
+	public long incrValue(String key, long delta) throws IOException, OperationFailedException {
+		return calcValue(13, key, delta);
+	}
+
+	@Override
+	public long decrValue(String key, long delta) throws IOException, OperationFailedException {
+		return calcValue(14, key, delta);
+	}
+
+	/**
+	 * 加算あるいは減算する。失敗した場合はキーが存在しないものとみなして初期化を試み、
+	 * 他のクライアントが先に初期化していれば演算をやり直す。演算は冪等でないため通信エラーの場合もリトライしない。
+	 * @param protocol 加算の場合は13、減算の場合は14
+	 * @param key キー文字列
+	 * @param delta 加算あるいは減算する値
+	 * @return 演算後の値
+	 */
+	long calcValue(int protocol, String key, long delta) throws IOException, OperationFailedException {
+		CalcRequest request = new CalcRequest(protocol, key, delta);
+		try {
+			Object result = executePipelined(Collections.singletonList(request))[0];
+			if (result instanceof Long) {
+				return (Long) result;
+			}
+			long initial = protocol == 13 ? delta : 0;
+			Object added = executePipelined(Collections.singletonList(new InitCounterRequest(key, initial)))[0];
+			if (Boolean.TRUE.equals(added)) {
+				return initial;
+			}
+			if (added instanceof OperationFailedException) {
+				throw (OperationFailedException) added;
+			}
+			result = executePipelined(Collections.singletonList(request))[0];
+			if (result instanceof Long) {
+				return (Long) result;
+			}
+			throw (OperationFailedException) result;
+		} finally {
+			invalidateNearCache(key);
+			updateRequestScope(key, false, null);
+		}
+	}
+
+	/**
+	 * 複数の加算あるいは減算を1つのソケットでパイプライン化して送信する。演算は冪等でないため通信エラーの場合もリトライしない。
+	 * 存在しないキーの初期化は行わない。
+	 *
+	 * @param requests 演算のリクエストのリスト
+	 * @return リクエストの順に並べた応答の配列。成功した要素は演算後の値(Long)、失敗した要素は OperationFailedException のインスタンス
+	 * @throws IOException 通信エラーの場合。一部の演算は反映されている可能性がある
+	 * @throws OperationFailedException 期待した応答でなかった場合
+	 */
+	Object[] calcValues(List<CalcRequest> requests) throws IOException, OperationFailedException {
+		try {
+			return executePipelined(requests);
+		} finally {
+			for (CalcRequest request: requests) {
+				invalidateNearCache(request.key);
+				updateRequestScope(request.key, false, null);
+			}
 		}
 	}
 
 	@Override
 	public boolean setObjectValueVersionCheck(String key, Object value, String version, String[] tags, long age) throws IOException, OperationFailedException {
+		ByteBuffer encoded = null;
+		ChunkManifest manifest = null;
+		if (isValueSizeChecked() && value != null) {
+			validateKey(key);
+			encoded = encodeValue(value, key);
+			if (needsChunks(encoded)) {
+				manifest = new ChunkManifest(key, encoded, chunkSize);
+			} else {
+				validateValueSize(encoded);
+			}
+		}
+		// 分割する値は断片を格納してから、値のキーに目録を書き込む
+		Object written = manifest != null ? manifest : value;
+		ByteBuffer writtenEncoded = manifest != null ? null : encoded;
+		boolean stored = false;
 		try {
-			return _setObjectValueVersionCheck(key, value, version, tags, age);
+			if (manifest != null) {
+				storeChunks(encoded, manifest, age);
+			}
+			stored = _setObjectValueVersionCheck(key, written, writtenEncoded, version, tags, age);
+			return stored;
 		} catch (IOException e) {
 			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
 			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
 			getLogger().debug("retry once cause:{}", e.getMessage());
-			return _setObjectValueVersionCheck(key, value, version, tags, age);
+			if (manifest != null) {
+				storeChunks(encoded, manifest, age);
+			}
+			stored = _setObjectValueVersionCheck(key, written, writtenEncoded, version, tags, age);
+			return stored;
+		} finally {
+			if (manifest != null && !stored) {
+				removeChunksUnlessStored(key, manifest);
+			}
+			invalidateNearCache(key);
+			invalidateTagCache(tags);
+			updateRequestScope(key, stored, value);
 		}
 	}
 
-	boolean _setObjectValueVersionCheck(String key, Object value, String version, String[] tags, long age) throws IOException, OperationFailedException {
+	/**
+	 * バージョンを確認して値を格納する。
+	 * @param encoded {@link #encodeValue(Object, String)} で変換済みのバイト列。null の場合は value を変換する
+	 */
+	boolean _setObjectValueVersionCheck(String key, Object value, ByteBuffer encoded, String version, String[] tags, long age) throws IOException, OperationFailedException {
 		if (value == null) {
 			throw new IllegalArgumentException("Okuyama does not allow to store null value.");
 		}
@@ -1035,11 +3420,7 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 			appendString(os, key, base64Key);
 			appendStringList(os, tags, true);
 			appendNumber(os, 0);
-			if (!serializeString && (value instanceof String)) {
-				appendString(os, (String) value, true);
-			} else {
-				appendSerializedObjectBase64(os, value, key);
-			}
+			appendValue(os, value, key, encoded);
 //			appendNumber(channel, 0);
 			appendString(os, version, false);
             appendNumber(os, age);
@@ -1075,19 +3456,412 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 		}
 	}
 
+	@Override
+	public Map<String, Boolean> setMulti(Map<String, ?> entries, String[] tags, long age, int concurrency, BulkProgressListener listener) throws IOException, OperationFailedException {
+		return storeMulti(entries, tags, age, false, concurrency, listener);
+	}
+
+	@Override
+	public Map<String, Boolean> addMulti(Map<String, ?> entries, String[] tags, long age, int concurrency, BulkProgressListener listener) throws IOException, OperationFailedException {
+		return storeMulti(entries, tags, age, true, concurrency, listener);
+	}
+
+	/**
+	 * 複数の値を {@link #BULK_BATCH_SIZE} 件ごとのバッチにまとめ、複数の接続で並行して格納する。
+	 * 分割して格納する値や内容を共有する値は、並行して格納した後に呼び出したスレッドで1件ずつ格納する。
+	 * @param add 存在しない場合に限り格納する場合は true
+	 * @return キーと格納できたかの組
+	 */
+	Map<String, Boolean> storeMulti(Map<String, ?> entries, String[] tags, long age, boolean add,
+			int concurrency, BulkProgressListener listener) throws IOException, OperationFailedException {
+		int size = entries.size();
+		String[] keys = new String[size];
+		Object[] values = new Object[size];
+		int n = 0;
+		for (Map.Entry<String, ?> e: entries.entrySet()) {
+			if (e.getValue() == null) {
+				throw new IllegalArgumentException("Okuyama does not allow to store null value.");
+			}
+			validateKey(e.getKey());
+			keys[n] = e.getKey();
+			values[n] = e.getValue();
+			++n;
+		}
+		// タグはすべてのリクエストで共通のため、1回だけ変換する
+		byte[] encodedTags = encodeStringList(tags);
+		Boolean[] results = new Boolean[size];
+		ParallelPipeline pipeline = new ParallelPipeline(this, concurrency, listener);
+		try {
+			for (int from = 0; from < size; from += BULK_BATCH_SIZE) {
+				pipeline.submit(new StoreBatch(keys, values, from, Math.min(size, from + BULK_BATCH_SIZE),
+						tags, encodedTags, age, add, results));
+			}
+			pipeline.await();
+		} finally {
+			invalidateTagCache(tags);
+			for (String key: keys) {
+				updateRequestScope(key, false, null);
+			}
+		}
+		LinkedHashMap<String, Boolean> stored = new LinkedHashMap<String, Boolean>(size * 4 / 3 + 1);
+		for (int i = 0; i < size; ++i) {
+			if (results[i] == null) {
+				try {
+					results[i] = setObjectValue(keys[i], values[i], tags, age);
+				} catch (OperationFailedException e) {
+					getLogger().warn("Failed to store. key:{} cause:{}", keys[i], e.getMessage());
+					results[i] = Boolean.FALSE;
+				}
+			}
+			stored.put(keys[i], results[i]);
+		}
+		return stored;
+	}
+
+	/**
+	 * 複数の値を格納するバッチ。値の変換はバッチを実行するスレッドで行う。通信エラーの場合は1回だけリトライする。
+	 * キーごとの結果は results の対応する位置に格納する。分割して格納する値や内容を共有する値は送信せず、結果を null のままとする。
+	 */
+	class StoreBatch extends ParallelPipeline.Batch {
+		final String[] keys;
+		final Object[] values;
+		final int from;
+		final int to;
+		final String[] tags;
+		final byte[] encodedTags;
+		final long age;
+		final boolean add;
+		final Boolean[] results;
+
+		StoreBatch(String[] keys, Object[] values, int from, int to, String[] tags, byte[] encodedTags,
+				long age, boolean add, Boolean[] results) {
+			super(to - from);
+			this.keys = keys;
+			this.values = values;
+			this.from = from;
+			this.to = to;
+			this.tags = tags;
+			this.encodedTags = encodedTags;
+			this.age = age;
+			this.add = add;
+			this.results = results;
+		}
+
+		@Override
+		int execute(OkuyamaClientImpl2 worker) throws IOException, OperationFailedException {
+			ValueFingerprints fingerprints = valueFingerprints;
+			ArrayList<SetRequest> requests = new ArrayList<SetRequest>(to - from);
+			ArrayList<Integer> indexes = new ArrayList<Integer>(to - from);
+			int stored = 0;
+			for (int i = from; i < to; ++i) {
+				ByteBuffer encoded = worker.encodeValue(values[i], keys[i]);
+				if (!add) {
+					if (fingerprints != null && fingerprints.isUnchanged(keys[i], encoded, tags, age)) {
+						results[i] = Boolean.TRUE;
+						++stored;
+						continue;
+					}
+					if ((dedupThreshold > 0 && encoded.remaining() >= dedupThreshold)
+							|| (chunkSize > 0 && encoded.remaining() > chunkSize)) {
+						continue;
+					}
+				}
+				try {
+					validateValueSize(encoded);
+				} catch (OperationFailedException e) {
+					getLogger().warn("Failed to store. key:{} cause:{}", keys[i], e.getMessage());
+					results[i] = Boolean.FALSE;
+					continue;
+				}
+				SetRequest request = add
+						? worker.new AddRequest(keys[i], values[i], tags, age)
+						: worker.new SetRequest(keys[i], values[i], tags, age);
+				request.encoded = encoded;
+				request.encodedTags = encodedTags;
+				requests.add(request);
+				indexes.add(i);
+			}
+			Object[] responses;
+			boolean retried = false;
+			try {
+				try {
+					responses = worker.executePipelined(requests);
+				} catch (IOException e) {
+					// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+					getLogger().debug("retry once cause:{}", e.getMessage());
+					retried = true;
+					responses = worker.executePipelined(requests);
+				}
+				if (add && retried) {
+					confirmAdded(worker, requests, responses);
+				}
+			} finally {
+				for (SetRequest request: requests) {
+					invalidateNearCache(request.key);
+				}
+			}
+			for (int j = 0; j < responses.length; ++j) {
+				int i = indexes.get(j);
+				if (Boolean.TRUE.equals(responses[j])) {
+					results[i] = Boolean.TRUE;
+					++stored;
+					if (fingerprints != null && !add) {
+						fingerprints.written(keys[i], requests.get(j).encoded, tags, age);
+					}
+				} else {
+					if (responses[j] instanceof OperationFailedException) {
+						getLogger().warn("Failed to store. key:{} cause:{}", keys[i], ((OperationFailedException) responses[j]).getMessage());
+					}
+					results[i] = Boolean.FALSE;
+				}
+			}
+			return stored;
+		}
+
+		/**
+		 * リトライした追加で既に存在するとされたキーの値を読み出し、送信した値と一致すれば格納できたものとする。
+		 * 最初の送信で格納された後に接続が切れた場合、リトライでは既に存在するため false が返るため。
+		 */
+		void confirmAdded(OkuyamaClientImpl2 worker, List<SetRequest> requests, Object[] responses) throws IOException, OperationFailedException {
+			ArrayList<Integer> rejected = new ArrayList<Integer>();
+			for (int j = 0; j < responses.length; ++j) {
+				if (Boolean.FALSE.equals(responses[j])) {
+					rejected.add(j);
+				}
+			}
+			if (rejected.isEmpty()) {
+				return;
+			}
+			String[] rejectedKeys = new String[rejected.size()];
+			for (int k = 0; k < rejectedKeys.length; ++k) {
+				rejectedKeys[k] = requests.get(rejected.get(k)).key;
+			}
+			ByteBuffer[] raws = worker.getMultiObjectRaw(rejectedKeys);
+			for (int k = 0; k < raws.length; ++k) {
+				int j = rejected.get(k);
+				if (raws[k] != null && raws[k].equals(requests.get(j).encoded)) {
+					responses[j] = Boolean.TRUE;
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean deleteObjectValue(String key) throws IOException, OperationFailedException {
+		List<RemoveRequest> requests = Collections.singletonList(new RemoveRequest(key));
+		boolean removed = false;
+		try {
+			Object result;
+			try {
+				result = executePipelined(requests)[0];
+			} catch (IOException e) {
+				// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+				// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
+				getLogger().debug("retry once cause:{}", e.getMessage());
+				result = executePipelined(requests)[0];
+			}
+			if (result instanceof OperationFailedException) {
+				throw (OperationFailedException) result;
+			}
+			removed = true;
+			return Boolean.TRUE.equals(result);
+		} finally {
+			invalidateNearCache(key);
+			invalidateTagCacheOnRemove();
+			updateRequestScope(key, removed, null);
+		}
+	}
+
+	@Override
+	public long removeAll(Collection<String> keys, int concurrency, BulkProgressListener listener) throws IOException, OperationFailedException {
+		return removeAll(keys.iterator(), concurrency, listener);
+	}
+
+	@Override
+	public long removeByTag(String tag, int concurrency, BulkProgressListener listener) throws IOException, OperationFailedException {
+		CloseableIterator<String> keys = iterateTagKeys(tag, false);
+		try {
+			return removeAll(keys, concurrency, listener);
+		} catch (StreamReadException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw (OperationFailedException) e.getCause();
+		} finally {
+			keys.close();
+			invalidateTagCache(new String[] { tag });
+		}
+	}
+
+	/**
+	 * キーを読み出しながら {@link #BULK_BATCH_SIZE} 件ごとのバッチにまとめ、複数の接続で並行して削除する。
+	 * @param keys キー文字列のイテレータ
+	 * @param concurrency 並行して削除する接続の最大数
+	 * @param listener 進捗を受け取るリスナー。受け取らない場合は null
+	 * @return 削除したキーの数
+	 */
+	long removeAll(Iterator<String> keys, int concurrency, BulkProgressListener listener) throws IOException, OperationFailedException {
+		ParallelPipeline pipeline = new ParallelPipeline(this, concurrency, listener);
+		try {
+			ArrayList<String> batch = new ArrayList<String>(BULK_BATCH_SIZE);
+			while (keys.hasNext()) {
+				String key = keys.next();
+				validateKey(key);
+				updateRequestScope(key, false, null);
+				batch.add(key);
+				if (batch.size() == BULK_BATCH_SIZE) {
+					pipeline.submit(new RemoveBatch(batch));
+					batch = new ArrayList<String>(BULK_BATCH_SIZE);
+				}
+			}
+			if (!batch.isEmpty()) {
+				pipeline.submit(new RemoveBatch(batch));
+			}
+			pipeline.await();
+			return pipeline.getSucceeded();
+		} finally {
+			invalidateTagCacheOnRemove();
+		}
+	}
+
+	/**
+	 * 削除前の値を読み取らずに複数のキーを削除するバッチ。削除は冪等であるため通信エラーの場合は1回だけリトライする。
+	 * リトライでは応答を読み取れなかったリクエストだけを再送する。送信後に応答が失われたキーは、
+	 * 削除できていても存在しなかったものとして数える。
+	 */
+	class RemoveBatch extends ParallelPipeline.Batch {
+		final List<String> keys;
+
+		RemoveBatch(List<String> keys) {
+			super(keys.size());
+			this.keys = keys;
+		}
+
+		@Override
+		int execute(OkuyamaClientImpl2 worker) throws IOException, OperationFailedException {
+			ArrayList<RemoveRequest> requests = new ArrayList<RemoveRequest>(keys.size());
+			for (String key: keys) {
+				requests.add(worker.new RemoveRequest(key));
+			}
+			Object[] results = new Object[requests.size()];
+			try {
+				try {
+					worker.executePipelined(requests, results);
+				} catch (IOException e) {
+					// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+					// 応答を読み取れたリクエストは削除済みのため、再送すると存在しないと数えてしまう。応答のないものだけ再送する
+					getLogger().debug("retry once cause:{}", e.getMessage());
+					retryUnanswered(worker, requests, results);
+				}
+			} finally {
+				for (String key: keys) {
+					invalidateNearCache(key);
+				}
+			}
+			int removed = 0;
+			for (Object result: results) {
+				if (result instanceof OperationFailedException) {
+					throw (OperationFailedException) result;
+				}
+				if (Boolean.TRUE.equals(result)) {
+					++removed;
+				}
+			}
+			return removed;
+		}
+
+		private void retryUnanswered(OkuyamaClientImpl2 worker, List<RemoveRequest> requests, Object[] results) throws IOException, OperationFailedException {
+			ArrayList<RemoveRequest> unanswered = new ArrayList<RemoveRequest>();
+			ArrayList<Integer> indexes = new ArrayList<Integer>();
+			for (int i = 0; i < results.length; ++i) {
+				if (results[i] == null) {
+					unanswered.add(requests.get(i));
+					indexes.add(i);
+				}
+			}
+			Object[] retried = worker.executePipelined(unanswered);
+			for (int k = 0; k < retried.length; ++k) {
+				results[indexes.get(k)] = retried[k];
+			}
+		}
+	}
+
 	@Override
 	public Pair[] getPairsByTag(String tag) throws IOException, OperationFailedException {
 		try {
-			return _getPairsByTag(tag);
+			return _getPairsByTag(tag, false);
+		} catch (IOException e) {
+			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
+			getLogger().debug("retry once cause:{}", e.getMessage());
+			return _getPairsByTag(tag, false);
+		}
+	}
+
+	@Override
+	public Pair[] getLazyPairsByTag(String tag) throws IOException, OperationFailedException {
+		try {
+			return _getPairsByTag(tag, true);
 		} catch (IOException e) {
 			// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
 			// 相手方あるいは途中のネットワーク機器で切断された可能性もあるため。
 			getLogger().debug("retry once cause:{}", e.getMessage());
-			return _getPairsByTag(tag);
+			return _getPairsByTag(tag, true);
 		}
 	}
 
-	Pair[] _getPairsByTag(String tag) throws IOException, OperationFailedException {
+	@Override
+	public CloseableIterator<Pair> iteratePairsByTag(String tag) throws IOException {
+		StreamingIterator<Pair> iterator = new StreamingIterator.TagPairs(this, tag);
+		iterator.open();
+		return iterator;
+	}
+
+	/**
+	 * タグを指定して値を取得し、応答を読み取りながら1件ずつ返す。値は復元せずに、格納されたバイト列
+	 * (Base64デコードしたもの)を ByteBuffer として返す。分割して格納した値の目録や内容への参照も解決しない。
+	 * @param tag タグ文字列
+	 * @return キーとバイト列の組のイテレータ
+	 * @throws IOException リクエストの送信で通信エラーが発生した場合
+	 */
+	CloseableIterator<Pair> iterateRawPairsByTag(String tag) throws IOException {
+		StreamingIterator<Pair> iterator = new StreamingIterator.TagPairs(this, tag, true);
+		iterator.open();
+		return iterator;
+	}
+
+	@Override
+	public CloseableIterator<String> iterateTagKeys(String tag, boolean withDeletedKeys) throws IOException {
+		StreamingIterator<String> iterator = new StreamingIterator.TagKeys(this, tag, withDeletedKeys);
+		iterator.open();
+		return iterator;
+	}
+
+	@Override
+	public CloseableIterator<Pair> iterateMultiObjectValues(String... keys) throws IOException {
+		StreamingIterator<Pair> iterator = new StreamingIterator.MultiValues(this, keys);
+		iterator.open();
+		return iterator;
+	}
+
+	/**
+	 * 応答の読み取りに用いる、同じ設定の別のインスタンスを生成する。読み取り用のバッファを共有しないため、
+	 * このインスタンスと並行して応答を読み取れる。キャッシュなどは設定しない。
+	 * @return 読み取り用のインスタンス
+	 */
+	OkuyamaClientImpl2 newReader() {
+		OkuyamaClientImpl2 reader = new OkuyamaClientImpl2(socketManager, base64Key, serializeString, compressionStrategy);
+		reader.setDecodePool(decodePool, parallelDecodeMinBytes);
+		return reader;
+	}
+
+	/**
+	 * タグを指定して値を取得する。応答はバイト列のまま読み取り、すべて読み取ってから復元する。
+	 * @param tag タグ文字列
+	 * @param lazy 値を {@link LazyValue} として返す場合は true
+	 * @return キーと値の組の配列
+	 */
+	Pair[] _getPairsByTag(String tag, boolean lazy) throws IOException, OperationFailedException {
 		SocketStreams socket = null;
 		boolean failed = true;
 		try	{
@@ -1101,25 +3875,39 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 			sendRequest(os);
 
 			readResponse(is);
-			ArrayList<Pair> list = new ArrayList<Pair>();
+			ArrayList<String> keys = new ArrayList<String>();
+			ArrayList<ByteBuffer> raws = new ArrayList<ByteBuffer>();
+			DecodeStage stage = lazy ? null : new DecodeStage();
 			while (true) {
 				String str = nextString(is, false);
 				if (str.equals("END")) {
 					failed = false;
-					return list.toArray(new Pair[list.size()]);
+					// 分割して格納した値や共有する内容は読み出しを伴うため、応答をすべて読み取ってから復元する
+					Object[] values;
+					if (lazy) {
+						values = new Object[raws.size()];
+						for (int i = 0; i < values.length; ++i) {
+							ByteBuffer raw = raws.get(i);
+							values[i] = raw == null || !raw.hasRemaining() ? LazyValue.of(decodeValue(raw)) : new LazyValue(this, raw);
+						}
+					} else {
+						values = stage.finish();
+					}
+					Pair[] pairs = new Pair[keys.size()];
+					for (int i = 0; i < pairs.length; ++i) {
+						pairs[i] = new Pair(keys.get(i), values[i]);
+					}
+					return pairs;
 				}
 				if (str.equals("23")) {
 					str = nextString(is, false);
 					if (str.equals("true")) {
-						String key = nextString(is, base64Key);
-						Object obj;
-						try {
-							obj = nextObject(is);
-						} catch (ClassNotFoundException e) {
-							// オブジェクトがデシリアライズできなかった場合は値として ClassNotFoundException インスタンスを設定
-							obj = e;
+						keys.add(nextString(is, base64Key));
+						if (lazy) {
+							raws.add(nextBytes(is));
+						} else {
+							stage.add(nextField(is));
 						}
-						list.add(new Pair(key, obj));
 					} else if (str.equals("false")){
 						// 存在しないオブジェクトは読みとばす
 						nextString(is, false);
@@ -1144,6 +3932,127 @@ public class OkuyamaClientImpl2 implements OkuyamaClient {
 		this.compressionStrategy = compressionStrategy;
 	}
 
+	/**
+	 * 読み出しに用いるニアキャッシュを設定する。
+	 * @param nearCache ニアキャッシュ。利用しない場合は null
+	 */
+	void setNearCache(NearCache nearCache) {
+		this.nearCache = nearCache;
+	}
+
+	/**
+	 * 読み出しに用いるオフヒープキャッシュを設定する。
+	 * @param offHeapCache オフヒープキャッシュ。利用しない場合は null
+	 */
+	void setOffHeapCache(OffHeapCache offHeapCache) {
+		this.offHeapCache = offHeapCache;
+		updateRawCaches();
+	}
+
+	/**
+	 * 同時に実行される同じ読み出しを1つにまとめるための{@link SingleFlight}を設定する。
+	 * @param singleFlight まとめない場合は null
+	 */
+	void setSingleFlight(SingleFlight singleFlight) {
+		this.singleFlight = singleFlight;
+	}
+
+	/**
+	 * タグに対応するキーの一覧のキャッシュを設定する。
+	 * @param tagCache キャッシュ。利用しない場合は null
+	 */
+	void setTagCache(NearCache tagCache) {
+		this.tagCache = tagCache;
+	}
+
+	/**
+	 * リクエストスコープを保持するThreadLocalを設定する。
+	 * @param requestScope ファクトリが保持するThreadLocal
+	 */
+	void setRequestScope(ThreadLocal<OkuyamaRequestScope> requestScope) {
+		this.requestScope = requestScope;
+	}
+
+	/**
+	 * 変更のない値の書き込みを省略するための指紋を設定する。
+	 * @param valueFingerprints 指紋。省略しない場合は null
+	 */
+	void setValueFingerprints(ValueFingerprints valueFingerprints) {
+		this.valueFingerprints = valueFingerprints;
+	}
+
+	/**
+	 * 値を分割して格納する大きさを設定する。
+	 * @param chunkSize 断片の最大バイト数(Base64エンコードする前)。分割しない場合は0
+	 */
+	void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * サーバが格納できる値の最大の大きさを設定する。
+	 * @param maxValueSize Base64エンコードした値の最大バイト数。確認しない場合は0
+	 */
+	void setMaxValueSize(long maxValueSize) {
+		this.maxValueSize = maxValueSize;
+	}
+
+	/**
+	 * 内容を共有して格納する値の大きさを設定する。
+	 * @param dedupThreshold 最小バイト数(Base64エンコードする前)。共有しない場合は0
+	 * @param knownBlobs 格納済みの内容のキーを記憶する集合。記憶しない場合は null
+	 */
+	void setDeduplication(int dedupThreshold, Set<String> knownBlobs) {
+		this.dedupThreshold = dedupThreshold;
+		this.knownBlobs = knownBlobs;
+	}
+
+	/**
+	 * 複数の値の復元を並列に行うプールを設定する。
+	 * @param decodePool プール。読み取るスレッドで復元する場合は null
+	 * @param parallelDecodeMinBytes プールで復元するフィールドの最小バイト数
+	 */
+	void setDecodePool(ForkJoinPool decodePool, int parallelDecodeMinBytes) {
+		this.decodePool = decodePool;
+		this.parallelDecodeMinBytes = parallelDecodeMinBytes;
+	}
+
+	/**
+	 * 一括操作のバッチを並行して実行するエグゼキュータを設定する。
+	 * @param bulkExecutor エグゼキュータ。呼び出したスレッドで実行する場合は null
+	 */
+	void setBulkExecutor(Executor bulkExecutor) {
+		this.bulkExecutor = bulkExecutor;
+	}
+
+	/**
+	 * 楽観的な更新で競合した場合の再試行の方針を設定する。
+	 * @param conflictRetryPolicy 再試行の方針。ファクトリと共有する
+	 */
+	void setConflictRetryPolicy(ConflictRetryPolicy conflictRetryPolicy) {
+		this.conflictRetryPolicy = conflictRetryPolicy;
+	}
+
+	/**
+	 * 読み出しに用いる永続キャッシュを設定する。
+	 * @param persistentCache 永続キャッシュ。利用しない場合は null
+	 */
+	void setPersistentCache(PersistentCache persistentCache) {
+		this.persistentCache = persistentCache;
+		updateRawCaches();
+	}
+
+	private void updateRawCaches() {
+		ArrayList<RawValueCache> tiers = new ArrayList<RawValueCache>(2);
+		if (offHeapCache != null) {
+			tiers.add(offHeapCache);
+		}
+		if (persistentCache != null) {
+			tiers.add(persistentCache);
+		}
+		rawCaches = tiers.toArray(new RawValueCache[tiers.size()]);
+	}
+
 	protected Logger getLogger() {
 		return logger;
 	}
@@ -0,0 +1,413 @@
+package mitonize.datastore.okuyama;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mitonize.datastore.CacheLoader;
+import mitonize.datastore.KeyValueConsistencyException;
+import mitonize.datastore.OperationFailedException;
+import mitonize.datastore.SingleFlight;
+import mitonize.datastore.VersionedValue;
+
+/**
+ * Okuyamaをキャッシュとして利用し、存在しない値を{@link CacheLoader}で読み込んで格納するキャッシュ。
+ * <p>値は有効時間(age)を指定して格納し、有効時間が切れる前に非同期で読み込み直して置き換える(リフレッシュアヘッド)。
+ * このため頻繁に参照されるキーは有効期限切れによる読み込み待ちが発生しない。</p>
+ * <p>存在しなかった値は addObjectValue で格納し、置き換えはバージョンを確認して行う(setObjectValueVersionCheck)。
+ * 複数のプロセスが同じキーを同時に読み込んだ場合でも、書き込みは最初の1回だけが成功する。
+ * また、前回参照した時からバージョンが変わっていれば他のプロセスが置き換えたものとみなし、読み込みを行わない。
+ * バージョンは、初めて参照した時と、このプロセスが置き換えた後に初めて参照した時に、値と共に読み出して記録する。
+ * 同じプロセス内で同時に存在しなかった値は1回だけ読み込む。</p>
+ * <p>バージョンを記録した後の読み出しはファクトリで生成したクライアントの getObjectValue で行うため、
+ * ファクトリにニアキャッシュが設定されていれば利用される。</p>
+ * <p>置き換えの時期は、このプロセスが値を格納、あるいは初めて参照した時刻から判断する。他のプロセスが格納した値は
+ * 格納された時刻がわからないため、初めて参照した時点から有効時間の(1 - {@link #getRefreshAheadRatio()})倍の
+ * 時間が経過した時に置き換える。</p>
+ * <p>このクラスはスレッドセーフである。</p>
+ *
+ * @param <K> キーの型
+ * @param <V> 値の型
+ */
+public class OkuyamaLoadingCache<K, V> {
+	private final Logger logger = LoggerFactory.getLogger(OkuyamaLoadingCache.class);
+
+	/**
+	 * 置き換えの時期と、参照した時のバージョン。
+	 */
+	static class Tracking {
+		final long refreshAt;
+		final String version;
+
+		Tracking(long refreshAt, String version) {
+			this.refreshAt = refreshAt;
+			this.version = version;
+		}
+	}
+
+	private final OkuyamaClientFactory factory;
+	private final String keyPrefix;
+	private final CacheLoader<K, V> loader;
+	private final SingleFlight loads = new SingleFlight();
+	/** 置き換え中のキー */
+	private final ConcurrentHashMap<String, Boolean> refreshing = new ConcurrentHashMap<String, Boolean>();
+	private final Map<String, Tracking> trackings;
+	private final AtomicLong loadCount = new AtomicLong();
+	private final AtomicLong refreshCount = new AtomicLong();
+	private final AtomicLong refreshSkipCount = new AtomicLong();
+	private final AtomicLong loadFailureCount = new AtomicLong();
+	private volatile long ageInSeconds = 300;
+	private volatile double refreshAheadRatio = 0.8;
+	private volatile String[] tags = null;
+	private Executor refreshExecutor;
+	private ExecutorService ownExecutor;
+
+	/**
+	 * キャッシュを生成する。置き換えの時期を管理するキーの数は10000とする。
+	 * @param factory クライアントのファクトリ
+	 * @param keyPrefix Okuyamaに格納する際のキーの接頭辞。キーの文字列表現の前に付ける
+	 * @param loader 値を読み込む{@link CacheLoader}
+	 */
+	public OkuyamaLoadingCache(OkuyamaClientFactory factory, String keyPrefix, CacheLoader<K, V> loader) {
+		this(factory, keyPrefix, loader, 10000);
+	}
+
+	/**
+	 * キャッシュを生成する。
+	 * @param factory クライアントのファクトリ
+	 * @param keyPrefix Okuyamaに格納する際のキーの接頭辞。キーの文字列表現の前に付ける
+	 * @param loader 値を読み込む{@link CacheLoader}
+	 * @param maxTrackedKeys 置き換えの時期を管理するキーの最大数。超えた場合は最も長く参照されていないキーを置き換えの対象から外す
+	 */
+	public OkuyamaLoadingCache(OkuyamaClientFactory factory, String keyPrefix, CacheLoader<K, V> loader, final int maxTrackedKeys) {
+		this.factory = factory;
+		this.keyPrefix = keyPrefix;
+		this.loader = loader;
+		this.trackings = new LinkedHashMap<String, Tracking>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Tracking> eldest) {
+				return size() > maxTrackedKeys;
+			}
+		};
+	}
+
+	/**
+	 * 値の有効時間(秒)を取得する。
+	 * @return 値の有効時間(秒)
+	 */
+	public long getAgeInSeconds() {
+		return ageInSeconds;
+	}
+
+	/**
+	 * 値の有効時間(秒)を設定する。デフォルトは300秒。
+	 * @param ageInSeconds 値の有効時間(秒)。1以上
+	 */
+	public void setAgeInSeconds(long ageInSeconds) {
+		if (ageInSeconds <= 0) {
+			throw new IllegalArgumentException("ageInSeconds must be positive");
+		}
+		this.ageInSeconds = ageInSeconds;
+	}
+
+	/**
+	 * 有効時間のうち、どれだけ経過したら置き換えるかの割合を取得する。
+	 * @return 置き換えるまでの割合
+	 */
+	public double getRefreshAheadRatio() {
+		return refreshAheadRatio;
+	}
+
+	/**
+	 * 有効時間のうち、どれだけ経過したら置き換えるかの割合を設定する。デフォルトは0.8。
+	 * @param refreshAheadRatio 置き換えるまでの割合(0より大きく1未満)
+	 */
+	public void setRefreshAheadRatio(double refreshAheadRatio) {
+		if (refreshAheadRatio <= 0.0 || refreshAheadRatio >= 1.0) {
+			throw new IllegalArgumentException("refreshAheadRatio must be between 0 and 1");
+		}
+		this.refreshAheadRatio = refreshAheadRatio;
+	}
+
+	/**
+	 * 値を格納する際に付けるタグを設定する。
+	 * @param tags タグ文字列の配列。付けない場合は null
+	 */
+	public void setTags(String[] tags) {
+		this.tags = tags == null ? null : tags.clone();
+	}
+
+	/**
+	 * 非同期の置き換えを実行する{@link Executor}を設定する。未設定の場合はデーモンスレッド2つで実行する。
+	 * @param refreshExecutor 置き換えを実行するExecutor
+	 */
+	public synchronized void setRefreshExecutor(Executor refreshExecutor) {
+		this.refreshExecutor = refreshExecutor;
+	}
+
+	/**
+	 * キーに対応する値を取得する。存在しない場合は{@link CacheLoader}で読み込んで格納する。
+	 * 置き換えの時期を過ぎていれば、現在の値を返して非同期で置き換える。
+	 * @param key キー
+	 * @return 値。読み込んでも存在しなかった場合は null
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 操作が成功しなかった場合、読み込みに失敗した場合、あるいは格納された値をデシリアライズできなかった場合
+	 */
+	public V get(K key) throws IOException, OperationFailedException {
+		String okuyamaKey = toOkuyamaKey(key);
+		OkuyamaClient client = factory.createClient();
+		Tracking tracking;
+		synchronized (trackings) {
+			tracking = trackings.get(okuyamaKey);
+		}
+		Object value;
+		String version = null;
+		if (tracking == null || tracking.version == null) {
+			// 置き換えを検出できるように、値と共にバージョンを読み出す
+			VersionedValue versioned = client.getObjectValueVersionCheck(okuyamaKey);
+			value = versioned == null ? null : versioned.getValue();
+			version = versioned == null ? null : versioned.getVersion();
+		} else {
+			value = client.getObjectValue(okuyamaKey);
+		}
+		if (value == null) {
+			return loadAndAdd(key, okuyamaKey);
+		}
+		long now = System.currentTimeMillis();
+		if (version != null) {
+			synchronized (trackings) {
+				Tracking latest = trackings.get(okuyamaKey);
+				if (latest == null) {
+					// 他のプロセスが格納した値は、いつ格納されたかわからない
+					trackings.put(okuyamaKey, new Tracking(now + (long) (ageInSeconds * 1000 * (1.0 - refreshAheadRatio)), version));
+				} else if (latest.version == null) {
+					trackings.put(okuyamaKey, new Tracking(latest.refreshAt, version));
+				}
+			}
+		}
+		if (tracking != null && tracking.refreshAt <= now) {
+			refreshAsync(key, okuyamaKey);
+		}
+		return cast(value);
+	}
+
+	/**
+	 * 値を読み込み直して置き換える。置き換えが完了するまで待つ。
+	 * @param key キー
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 操作が成功しなかった場合、あるいは読み込みに失敗した場合
+	 */
+	public void refresh(K key) throws IOException, OperationFailedException {
+		refresh(key, toOkuyamaKey(key));
+	}
+
+	/**
+	 * キーに対応する値を削除する。
+	 * @param key キー
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	public void invalidate(K key) throws IOException, OperationFailedException {
+		String okuyamaKey = toOkuyamaKey(key);
+		synchronized (trackings) {
+			trackings.remove(okuyamaKey);
+		}
+		factory.createClient().removeObjectValue(okuyamaKey);
+		// 削除より前に始まった読み込みに、これから来る呼び出しを合流させない
+		loads.forget(okuyamaKey);
+	}
+
+	/**
+	 * {@link CacheLoader}で読み込んだ回数を取得する。置き換えのための読み込みも含む。
+	 * @return 読み込んだ回数
+	 */
+	public long getLoadCount() {
+		return loadCount.get();
+	}
+
+	/**
+	 * 置き換えた回数を取得する。
+	 * @return 置き換えた回数
+	 */
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+
+	/**
+	 * 他のプロセスが先に置き換えていたために、読み込みや置き換えを行わなかった回数を取得する。
+	 * @return 置き換えを行わなかった回数
+	 */
+	public long getRefreshSkipCount() {
+		return refreshSkipCount.get();
+	}
+
+	/**
+	 * 読み込みに失敗した回数を取得する。
+	 * @return 読み込みに失敗した回数
+	 */
+	public long getLoadFailureCount() {
+		return loadFailureCount.get();
+	}
+
+	/**
+	 * 置き換えのために生成したスレッドを停止する。{@link #setRefreshExecutor(Executor)}で設定したものは停止しない。
+	 */
+	public synchronized void shutdown() {
+		if (ownExecutor != null) {
+			ownExecutor.shutdown();
+			ownExecutor = null;
+		}
+	}
+
+	String toOkuyamaKey(K key) {
+		return keyPrefix + String.valueOf(key);
+	}
+
+	private V loadAndAdd(final K key, final String okuyamaKey) throws IOException, OperationFailedException {
+		// 同じプロセス内で同時に存在しなかった場合は1回だけ読み込む
+		Object value = loads.execute(okuyamaKey, new SingleFlight.Call<Object>() {
+			@Override
+			public Object call() throws IOException, OperationFailedException {
+				V loaded = load(key);
+				if (loaded == null) {
+					return null;
+				}
+				OkuyamaClient client = factory.createClient();
+				if (client.addObjectValue(okuyamaKey, loaded, tags, ageInSeconds)) {
+					track(okuyamaKey, null);
+					return loaded;
+				}
+				// 他のプロセスが先に格納した値に揃える
+				Object current = client.getObjectValue(okuyamaKey);
+				track(okuyamaKey, null);
+				return current != null ? current : loaded;
+			}
+		});
+		return cast(value);
+	}
+
+	private void refresh(K key, String okuyamaKey) throws IOException, OperationFailedException {
+		OkuyamaClient client = factory.createClient();
+		VersionedValue current = client.getObjectValueVersionCheck(okuyamaKey);
+		if (current == null) {
+			loadAndAdd(key, okuyamaKey);
+			return;
+		}
+		Tracking tracking;
+		synchronized (trackings) {
+			tracking = trackings.get(okuyamaKey);
+		}
+		if (tracking != null && tracking.version != null && !tracking.version.equals(current.getVersion())) {
+			// 前回参照した後に他のプロセスが置き換えている
+			refreshSkipCount.incrementAndGet();
+			track(okuyamaKey, current.getVersion());
+			return;
+		}
+		V loaded = load(key);
+		if (loaded == null) {
+			client.removeObjectValue(okuyamaKey);
+			synchronized (trackings) {
+				trackings.remove(okuyamaKey);
+			}
+			return;
+		}
+		try {
+			client.setObjectValueVersionCheck(okuyamaKey, loaded, current.getVersion(), tags, ageInSeconds);
+			refreshCount.incrementAndGet();
+			// 置き換えた値のバージョンは、次に参照した時に値と共に読み出して記録する
+			track(okuyamaKey, null);
+		} catch (KeyValueConsistencyException e) {
+			// 読み込んでいる間に他のプロセスが置き換えた
+			refreshSkipCount.incrementAndGet();
+			track(okuyamaKey, null);
+		}
+	}
+
+	private void refreshAsync(final K key, final String okuyamaKey) {
+		if (refreshing.putIfAbsent(okuyamaKey, Boolean.TRUE) != null) {
+			return;
+		}
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh(key, okuyamaKey);
+				} catch (IOException e) {
+					logger.warn("Failed to refresh {}. {}", okuyamaKey, e.getMessage());
+				} catch (OperationFailedException e) {
+					logger.warn("Failed to refresh {}. {}", okuyamaKey, e.getMessage());
+				} catch (RuntimeException e) {
+					logger.error("Failed to refresh " + okuyamaKey, e);
+				} finally {
+					refreshing.remove(okuyamaKey);
+				}
+			}
+		};
+		try {
+			getRefreshExecutor().execute(task);
+		} catch (RejectedExecutionException e) {
+			refreshing.remove(okuyamaKey);
+			logger.warn("Refresh rejected. {}", okuyamaKey);
+		}
+	}
+
+	private V load(K key) throws OperationFailedException {
+		loadCount.incrementAndGet();
+		try {
+			return loader.load(key);
+		} catch (Exception e) {
+			loadFailureCount.incrementAndGet();
+			throw new OperationFailedException(e);
+		}
+	}
+
+	/**
+	 * 格納された値を返す。デシリアライズできなかった値は例外とする。
+	 */
+	@SuppressWarnings("unchecked")
+	private V cast(Object value) throws OperationFailedException {
+		if (value instanceof ClassNotFoundException) {
+			throw new OperationFailedException((ClassNotFoundException) value);
+		}
+		return (V) value;
+	}
+
+	private void track(String okuyamaKey, String version) {
+		long refreshAt = System.currentTimeMillis() + (long) (ageInSeconds * 1000 * refreshAheadRatio);
+		synchronized (trackings) {
+			trackings.put(okuyamaKey, new Tracking(refreshAt, version));
+		}
+	}
+
+	private synchronized Executor getRefreshExecutor() {
+		if (refreshExecutor != null) {
+			return refreshExecutor;
+		}
+		if (ownExecutor == null) {
+			ownExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger(0);
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "okuyama-refresh-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return ownExecutor;
+	}
+}
@@ -0,0 +1,434 @@
+package mitonize.datastore.okuyama;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mitonize.datastore.KeyValueConsistencyException;
+import mitonize.datastore.OperationFailedException;
+import mitonize.datastore.VersionedValue;
+
+/**
+ * 有効時間(リース)付きのキーを用いた分散ロック。
+ * <p>ロックの取得は addObjectValue でロック名のキーに取得者ごとに一意な値を有効時間付きで格納することで行う。
+ * 取得者が異常終了してもリースが切れればキーが消えて他のプロセスが取得できる。</p>
+ * <p>解放とリースの延長は、値とバージョンを読み出して自身が格納した値であることを確認してから、
+ * バージョンを確認して書き込む(setObjectValueVersionCheck)。リースが切れて他のプロセスが取得したロックを
+ * 誤って解放することはない。解放したロックは解放済みを表す値を短い有効時間で格納し、次の取得者はこれを
+ * バージョンを確認して置き換える。</p>
+ * <p>ロックを取得するごとに、ロック名に ":fence" を付けたキーを incrValue してフェンシングトークンを得る。
+ * トークンは取得の順に増加するため、ロックで保護する書き込み先でトークンを比較すれば、リースが切れた後の
+ * 古い取得者の書き込みを拒否できる。</p>
+ * <p>自動延長が有効な場合は、保持している間だけ起動するデーモンスレッドでリースの1/3の間隔で延長する。
+ * 延長できなかった場合はロックを失ったものとし、{@link #isHeld()} が false を返す。</p>
+ * <p>取得を待つ場合は、待ち時間を試行ごとに倍にした値を上限とする乱数とし(フルジッタ)、
+ * 競合が続くほど間隔を広げて問い合わせが集中しないようにする。</p>
+ * <p>同じプロセスの複数のスレッドで1つのインスタンスを共有しても良い。他のスレッドが保持している間、
+ * {@link #tryLock()} は false を返し、{@link #tryLock(long, TimeUnit)} はその解放を待つ。
+ * 再入はできない。</p>
+ *
+ * <pre>
+ * OkuyamaLock lock = new OkuyamaLock(factory, "lock:batch", 30);
+ * if (lock.tryLock(10, TimeUnit.SECONDS)) {
+ *     try {
+ *         doWork(lock.getFencingToken());
+ *     } finally {
+ *         lock.unlock();
+ *     }
+ * }
+ * </pre>
+ */
+public class OkuyamaLock implements Closeable {
+	private final Logger logger = LoggerFactory.getLogger(OkuyamaLock.class);
+
+	/** 解放済みを表す値 */
+	static final String RELEASED = "(released)";
+	/** 解放済みを表す値の有効時間(秒) */
+	private static final long RELEASED_AGE = 1;
+
+	private final OkuyamaClientFactory factory;
+	private final String name;
+	private final long leaseInSeconds;
+	private final String instanceId = UUID.randomUUID().toString();
+	private final Random random = new Random();
+	private long acquisitionCount = 0;
+	/** 保持している場合に格納した値。保持していなければ null */
+	private volatile String owner = null;
+	/** 保持しているスレッド。保持していなければ null */
+	private Thread holder = null;
+	private volatile long fencingToken = 0;
+	/** リースを延長するタスク。自動延長しない場合や保持していない場合は null */
+	private Renewal renewal = null;
+	private volatile boolean autoRenewal = true;
+	private volatile long backoffBaseInMillis = 10;
+	private volatile long backoffMaxInMillis = 1000;
+
+	/**
+	 * ロックを生成する。
+	 * @param factory クライアントのファクトリ
+	 * @param name ロック名。ロックのキーとして用いる
+	 * @param leaseInSeconds リースの有効時間(秒)
+	 */
+	public OkuyamaLock(OkuyamaClientFactory factory, String name, long leaseInSeconds) {
+		if (leaseInSeconds <= 0) {
+			throw new IllegalArgumentException("leaseInSeconds must be positive");
+		}
+		this.factory = factory;
+		this.name = name;
+		this.leaseInSeconds = leaseInSeconds;
+	}
+
+	/**
+	 * ロック名を取得する。
+	 * @return ロック名
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * リースの有効時間(秒)を取得する。
+	 * @return リースの有効時間(秒)
+	 */
+	public long getLeaseInSeconds() {
+		return leaseInSeconds;
+	}
+
+	/**
+	 * バックグラウンドでリースを延長するかを取得する。
+	 * @return 延長する場合は true
+	 */
+	public boolean isAutoRenewal() {
+		return autoRenewal;
+	}
+
+	/**
+	 * バックグラウンドでリースを延長するかを設定する。取得する前に設定すること。デフォルトは true。
+	 * @param autoRenewal 延長する場合は true
+	 */
+	public void setAutoRenewal(boolean autoRenewal) {
+		this.autoRenewal = autoRenewal;
+	}
+
+	/**
+	 * 取得を待つ場合の最初の待ち時間の上限(ミリ秒)を取得する。
+	 * @return 待ち時間の上限(ミリ秒)
+	 */
+	public long getBackoffBaseInMillis() {
+		return backoffBaseInMillis;
+	}
+
+	/**
+	 * 取得を待つ場合の最初の待ち時間の上限(ミリ秒)を設定する。デフォルトは10ミリ秒。
+	 * @param backoffBaseInMillis 待ち時間の上限(ミリ秒)。1以上
+	 */
+	public void setBackoffBaseInMillis(long backoffBaseInMillis) {
+		if (backoffBaseInMillis <= 0) {
+			throw new IllegalArgumentException("backoffBaseInMillis must be positive");
+		}
+		this.backoffBaseInMillis = backoffBaseInMillis;
+	}
+
+	/**
+	 * 取得を待つ場合の待ち時間の最大値(ミリ秒)を取得する。
+	 * @return 待ち時間の最大値(ミリ秒)
+	 */
+	public long getBackoffMaxInMillis() {
+		return backoffMaxInMillis;
+	}
+
+	/**
+	 * 取得を待つ場合の待ち時間の最大値(ミリ秒)を設定する。デフォルトは1000ミリ秒。
+	 * @param backoffMaxInMillis 待ち時間の最大値(ミリ秒)
+	 */
+	public void setBackoffMaxInMillis(long backoffMaxInMillis) {
+		this.backoffMaxInMillis = backoffMaxInMillis;
+	}
+
+	/**
+	 * ロックの取得を1回だけ試みる。
+	 * @return 取得できた場合は true。他のプロセスか、このインスタンスを共有する他のスレッドが保持している場合は false
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 * @throws IllegalStateException 呼び出したスレッドが既に保持している場合
+	 */
+	public synchronized boolean tryLock() throws IOException, OperationFailedException {
+		if (owner != null) {
+			if (holder == Thread.currentThread()) {
+				throw new IllegalStateException("Lock is already held: " + name);
+			}
+			return false;
+		}
+		String candidate = instanceId + ":" + (++acquisitionCount);
+		OkuyamaClient client = factory.createClient();
+		if (!acquire(client, candidate)) {
+			return false;
+		}
+		try {
+			fencingToken = client.incrValue(name + ":fence", 1);
+		} catch (IOException e) {
+			releaseQuietly(client, candidate);
+			throw e;
+		} catch (OperationFailedException e) {
+			releaseQuietly(client, candidate);
+			throw e;
+		}
+		owner = candidate;
+		holder = Thread.currentThread();
+		if (autoRenewal) {
+			scheduleRenewal();
+		}
+		return true;
+	}
+
+	/**
+	 * ロックの取得を試み、他のプロセスが保持している場合は指定した時間まで待つ。
+	 * このインスタンスを共有する他のスレッドが保持している場合は、その解放を待ってから取得を試みる。
+	 * @param timeout 待つ最大時間
+	 * @param unit 時間の単位
+	 * @return 取得できた場合は true。時間内に取得できなかった場合は false
+	 * @throws IOException 通信エラーの場合、または待っている間に割り込まれた場合
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 * @throws IllegalStateException 呼び出したスレッドが既に保持している場合
+	 */
+	public boolean tryLock(long timeout, TimeUnit unit) throws IOException, OperationFailedException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		int attempt = 0;
+		while (true) {
+			synchronized (this) {
+				while (owner != null && holder != Thread.currentThread()) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						return false;
+					}
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for lock: " + name);
+					}
+				}
+				if (tryLock()) {
+					return true;
+				}
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			long wait = Math.min(remaining, backoff(++attempt));
+			try {
+				Thread.sleep(Math.max(1, wait));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for lock: " + name);
+			}
+		}
+	}
+
+	/**
+	 * ロックを解放する。自身が格納した値であることを確認してから解放するため、リースが切れて他のプロセスが
+	 * 取得したロックを解放することはない。
+	 * @return 解放できた場合は true。既にリースが切れていた場合は false
+	 * @throws IOException 通信エラーの場合。保持したままとなるため、再び解放を試みることができる
+	 * @throws OperationFailedException 操作が成功しなかった場合。保持したままとなる
+	 */
+	public synchronized boolean unlock() throws IOException, OperationFailedException {
+		String current = owner;
+		if (current == null) {
+			return false;
+		}
+		// 解放が失敗した場合は保持したままとし、リースの延長も続ける
+		boolean released = replaceIfOwned(factory.createClient(), current, RELEASED, RELEASED_AGE);
+		clearOwner();
+		return released;
+	}
+
+	/**
+	 * リースを延長する。
+	 * @return 延長できた場合は true。既にリースが切れていた場合は false となり、ロックを失ったものとする
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	public synchronized boolean renew() throws IOException, OperationFailedException {
+		String current = owner;
+		if (current == null) {
+			return false;
+		}
+		if (replaceIfOwned(factory.createClient(), current, current, leaseInSeconds)) {
+			return true;
+		}
+		logger.warn("Lost lock lease: {}", name);
+		clearOwner();
+		return false;
+	}
+
+	/**
+	 * このインスタンスがロックを保持しているかを返す。延長に失敗した場合は false となる。
+	 * @return 保持している場合は true
+	 */
+	public boolean isHeld() {
+		return owner != null;
+	}
+
+	/**
+	 * 最後に取得した時のフェンシングトークンを取得する。取得の順に増加する。
+	 * @return フェンシングトークン。取得したことがなければ0
+	 */
+	public long getFencingToken() {
+		return fencingToken;
+	}
+
+	/**
+	 * 保持していれば解放する。
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			unlock();
+		} catch (OperationFailedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * ロックのキーに値を格納する。キーが存在しなければ addObjectValue で、解放済みであればバージョンを確認して置き換える。
+	 */
+	boolean acquire(OkuyamaClient client, String candidate) throws IOException, OperationFailedException {
+		if (client.addObjectValue(name, candidate, null, leaseInSeconds)) {
+			return true;
+		}
+		VersionedValue current = client.getObjectValueVersionCheck(name);
+		if (current == null) {
+			// 読み出すまでの間にリースが切れた
+			return client.addObjectValue(name, candidate, null, leaseInSeconds);
+		}
+		if (!RELEASED.equals(current.getValue())) {
+			return false;
+		}
+		try {
+			return client.setObjectValueVersionCheck(name, candidate, current.getVersion(), null, leaseInSeconds);
+		} catch (KeyValueConsistencyException e) {
+			// 他のプロセスが先に取得した
+			return false;
+		}
+	}
+
+	/**
+	 * ロックのキーが指定した値であれば、バージョンを確認して置き換える。
+	 */
+	boolean replaceIfOwned(OkuyamaClient client, String expected, String value, long age) throws IOException, OperationFailedException {
+		VersionedValue current = client.getObjectValueVersionCheck(name);
+		if (current == null || !expected.equals(current.getValue())) {
+			return false;
+		}
+		try {
+			return client.setObjectValueVersionCheck(name, value, current.getVersion(), null, age);
+		} catch (KeyValueConsistencyException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * フェンシングトークンを得られなかった場合に、取得したロックを解放する。
+	 */
+	private void releaseQuietly(OkuyamaClient client, String candidate) {
+		try {
+			replaceIfOwned(client, candidate, RELEASED, RELEASED_AGE);
+		} catch (IOException e) {
+			logger.warn("Failed to release lock: {} cause:{}", name, e.getMessage());
+		} catch (OperationFailedException e) {
+			logger.warn("Failed to release lock: {} cause:{}", name, e.getMessage());
+		}
+	}
+
+	long backoff(int attempt) {
+		long ceiling = Math.min(backoffMaxInMillis, backoffBaseInMillis << Math.min(attempt - 1, 20));
+		synchronized (random) {
+			return (long) (random.nextDouble() * (ceiling + 1));
+		}
+	}
+
+	private void scheduleRenewal() {
+		renewal = new Renewal(Math.max(1, leaseInSeconds * 1000 / 3));
+		Thread thread = new Thread(renewal, "okuyama-lock-renewal-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * 保持していない状態にし、解放を待っているスレッドに通知する。
+	 */
+	private synchronized void clearOwner() {
+		cancelRenewal();
+		owner = null;
+		holder = null;
+		notifyAll();
+	}
+
+	private void cancelRenewal() {
+		if (renewal != null) {
+			renewal.cancel();
+			renewal = null;
+		}
+	}
+
+	/**
+	 * 一定の間隔でリースを延長するタスク。延長は通信を伴うため、共有の保守用スケジューラではなく
+	 * 保持している間だけ起動する専用のスレッドで実行する。
+	 */
+	private class Renewal implements Runnable {
+		private final long intervalInMillis;
+		private boolean cancelled = false;
+
+		Renewal(long intervalInMillis) {
+			this.intervalInMillis = intervalInMillis;
+		}
+
+		/**
+		 * 延長を止める。延長中であれば、その延長が終わった後にスレッドが終了する。
+		 */
+		synchronized void cancel() {
+			cancelled = true;
+			notifyAll();
+		}
+
+		/**
+		 * 次の延長まで待つ。
+		 * @return 延長を続ける場合は true
+		 */
+		private synchronized boolean await() {
+			long deadline = System.currentTimeMillis() + intervalInMillis;
+			long remaining;
+			while (!cancelled && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+			return !cancelled;
+		}
+
+		@Override
+		public void run() {
+			while (await()) {
+				try {
+					renew();
+				} catch (IOException e) {
+					logger.warn("Failed to renew lock lease: {} cause:{}", name, e.getMessage());
+				} catch (OperationFailedException e) {
+					logger.warn("Failed to renew lock lease: {} cause:{}", name, e.getMessage());
+				} catch (RuntimeException e) {
+					logger.warn("Failed to renew lock lease: {} cause:{}", name, e.getMessage());
+				}
+			}
+		}
+	}
+}
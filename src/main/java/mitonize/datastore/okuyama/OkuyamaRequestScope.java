@@ -0,0 +1,170 @@
+package mitonize.datastore.okuyama;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * 1つの処理単位(例えばWebリクエスト)の間、同じキーの読み出しを1回にまとめるスコープ。
+ * <p>{@link OkuyamaClientFactoryImpl#openRequestScope()}で開始し、try-with-resources で閉じる。
+ * スコープが開いている間、同じスレッドでファクトリが生成したクライアントの getObjectValue、
+ * getMultiObjectValues、getTagKeys の結果を記録し、同じキーの読み出しには記録した結果を返す。
+ * 同じスレッドでの書き込みは記録を更新する。有効期限や他のスレッド、プロセスによる更新の反映は行わない。</p>
+ * <p>記録した値はスコープ内の読み出しで同じインスタンスが返るため、変更する場合は注意すること。</p>
+ * <p>{@link #prefetch(String...)}で先読みするキーを登録すると、スコープ内で最初に値を取得する時に
+ * 登録したキーをまとめて1回のマルチゲット(プロトコル22)で取得する。</p>
+ * <p>このクラスはスレッドセーフではない。スコープを開始したスレッドでのみ利用すること。</p>
+ *
+ * <pre>
+ * try (OkuyamaRequestScope scope = factory.openRequestScope()) {
+ *     scope.prefetch("user:1", "user:2");
+ *     OkuyamaClient client = factory.createClient();
+ *     Object user1 = client.getObjectValue("user:1"); // user:1とuser:2をまとめて取得する
+ *     Object user2 = client.getObjectValue("user:2"); // 記録した値を返す
+ * }
+ * </pre>
+ */
+public class OkuyamaRequestScope implements Closeable {
+	/** 存在しなかったことを表す値 */
+	static final Object ABSENT = new Object();
+
+	private final ThreadLocal<OkuyamaRequestScope> holder;
+	private final HashMap<String, Object> values = new HashMap<String, Object>();
+	private final HashMap<String, String[]> tagKeys = new HashMap<String, String[]>();
+	private final LinkedHashSet<String> pendingKeys = new LinkedHashSet<String>();
+	private int depth = 1;
+	private long hitCount = 0;
+	private long missCount = 0;
+
+	OkuyamaRequestScope(ThreadLocal<OkuyamaRequestScope> holder) {
+		this.holder = holder;
+	}
+
+	/**
+	 * 同じスレッドで既にスコープが開いていれば入れ子にし、開いていなければ新たに開始する。
+	 * 入れ子にした場合は、最も外側のスコープを閉じるまで記録が保持される。
+	 */
+	static OkuyamaRequestScope open(ThreadLocal<OkuyamaRequestScope> holder) {
+		OkuyamaRequestScope scope = holder.get();
+		if (scope != null) {
+			++scope.depth;
+			return scope;
+		}
+		scope = new OkuyamaRequestScope(holder);
+		holder.set(scope);
+		return scope;
+	}
+
+	/**
+	 * 次に値を取得する時に、まとめて取得するキーを登録する。既に記録されているキーは無視する。
+	 * @param keys キー文字列
+	 */
+	public void prefetch(String... keys) {
+		for (String key: keys) {
+			if (!values.containsKey(key)) {
+				pendingKeys.add(key);
+			}
+		}
+	}
+
+	/**
+	 * 記録した結果を返した回数を取得する。
+	 * @return 記録した結果を返した回数
+	 */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * データストアから取得した回数(キーの数)を取得する。
+	 * @return データストアから取得したキーの数
+	 */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * スコープを閉じる。入れ子の内側であれば何もしない。
+	 */
+	@Override
+	public void close() {
+		if (depth <= 0) {
+			return;
+		}
+		if (--depth == 0) {
+			values.clear();
+			tagKeys.clear();
+			pendingKeys.clear();
+			if (holder.get() == this) {
+				holder.remove();
+			}
+		}
+	}
+
+	/**
+	 * 記録した値を取得する。
+	 * @param key キー文字列
+	 * @return 記録した値。存在しなかったことを記録していれば {@link #ABSENT}、記録がなければ null
+	 */
+	Object lookup(String key) {
+		Object value = values.get(key);
+		if (value != null) {
+			++hitCount;
+		}
+		return value;
+	}
+
+	void remember(String key, Object value) {
+		values.put(key, value == null ? ABSENT : value);
+		pendingKeys.remove(key);
+	}
+
+	void forget(String key) {
+		values.remove(key);
+	}
+
+	void fetched(int count) {
+		missCount += count;
+	}
+
+	boolean hasPendingKeys() {
+		return !pendingKeys.isEmpty();
+	}
+
+	/**
+	 * 先読みを登録したキーのうち、記録のないものを取り出す。
+	 * @return 取得すべきキー
+	 */
+	List<String> drainPendingKeys() {
+		ArrayList<String> keys = new ArrayList<String>(pendingKeys.size());
+		for (String key: pendingKeys) {
+			if (!values.containsKey(key)) {
+				keys.add(key);
+			}
+		}
+		pendingKeys.clear();
+		return keys;
+	}
+
+	String[] lookupTagKeys(String cacheKey) {
+		String[] keys = tagKeys.get(cacheKey);
+		if (keys != null) {
+			++hitCount;
+		}
+		return keys;
+	}
+
+	void rememberTagKeys(String cacheKey, String[] keys) {
+		tagKeys.put(cacheKey, keys);
+	}
+
+	void forgetTagKeys(String cacheKey) {
+		tagKeys.remove(cacheKey);
+	}
+
+	void forgetAllTagKeys() {
+		tagKeys.clear();
+	}
+}
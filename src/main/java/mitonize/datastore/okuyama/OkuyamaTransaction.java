@@ -0,0 +1,331 @@
+package mitonize.datastore.okuyama;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mitonize.datastore.KeyValueConsistencyException;
+import mitonize.datastore.OperationFailedException;
+import mitonize.datastore.VersionedValue;
+
+/**
+ * 関連する複数のキーをまとめて更新するための楽観的なトランザクション。
+ * <p>{@link #read(String...)} でキーの値とバージョンを1回のパイプライン化した読み出し(プロトコル15)で取得し、
+ * {@link #set(String, Object, String[], long)} による書き込みは手元に保持する。{@link #commit()} で保持した書き込みを
+ * バージョンを確認する書き込み(プロトコル16)としてパイプライン化して送信し、競合したキーを返す。
+ * 読み出した時に存在しなかったキーは存在しない場合に限り格納する(プロトコル6)。読み出していないキーはバージョンを確認せずに格納する。</p>
+ * <p>Okuyamaは複数のキーの更新を不可分に行えないため、一部のキーが競合した場合は、書き込みに成功したキーを
+ * 読み出した時の値に書き戻す(ロールバック)。書き戻す前に値とバージョンを読み出し、このトランザクションが書き込んだ
+ * 値のままであるキーだけを、そのバージョンを確認して書き戻すため、他のクライアントが更新した値は上書きしない。
+ * 書き戻しは最善の努力であり、書き戻しまでの間に他のクライアントが値を参照する可能性がある。
+ * 書き戻した値の有効時間は無期限となり、存在しなかったキーは削除する。Okuyamaのプロトコルではキーのタグを
+ * 取得できないため、タグは書き戻さない。元のタグとの対応は残り、トランザクションで付けたタグとの対応も残る。</p>
+ * <p>値の分割は複数のキーへの書き込みとなるため、断片の大きさを超える値の書き込みは {@link #commit()} で
+ * OperationFailedException をスローし、何も送信しない。分割して格納されていた値を置き換えた場合、以前の断片は書き戻さない
+ * 場合に限り削除する。</p>
+ * <p>このクラスはスレッドセーフではない。</p>
+ *
+ * <pre>
+ * OkuyamaTransaction tx = factory.beginTransaction();
+ * Object[] values = tx.read("account:1", "account:2");
+ * tx.set("account:1", debit(values[0]), null, 0);
+ * tx.set("account:2", credit(values[1]), null, 0);
+ * List&lt;String&gt; conflicts = tx.commit(); // 空であれば成功
+ * </pre>
+ */
+public class OkuyamaTransaction {
+	private final Logger logger = LoggerFactory.getLogger(OkuyamaTransaction.class);
+
+	/** 読み出した時に存在しなかったことを表す値 */
+	private static final VersionedValue ABSENT = new VersionedValue(null, null);
+
+	static class Write {
+		final Object value;
+		final String[] tags;
+		final long age;
+
+		Write(Object value, String[] tags, long age) {
+			this.value = value;
+			this.tags = tags;
+			this.age = age;
+		}
+	}
+
+	private final OkuyamaClientImpl2 client;
+	/** 読み出した値(Base64デコードしたバイト列)とバージョン。存在しなかったキーは {@link #ABSENT} */
+	private final LinkedHashMap<String, VersionedValue> reads = new LinkedHashMap<String, VersionedValue>();
+	private final LinkedHashMap<String, Object> values = new LinkedHashMap<String, Object>();
+	private final LinkedHashMap<String, Write> writes = new LinkedHashMap<String, Write>();
+	/** 読み出した時に分割して格納されていたキーと目録 */
+	private final HashMap<String, ChunkManifest> manifests = new HashMap<String, ChunkManifest>();
+	private boolean rollbackOnConflict = true;
+	private boolean finished = false;
+
+	OkuyamaTransaction(OkuyamaClientImpl2 client) {
+		this.client = client;
+	}
+
+	/**
+	 * 競合した場合に書き込みに成功したキーを書き戻すかを取得する。
+	 * @return 書き戻す場合は true
+	 */
+	public boolean isRollbackOnConflict() {
+		return rollbackOnConflict;
+	}
+
+	/**
+	 * 競合した場合に書き込みに成功したキーを書き戻すかを設定する。デフォルトは true。
+	 * @param rollbackOnConflict 書き戻す場合は true
+	 */
+	public void setRollbackOnConflict(boolean rollbackOnConflict) {
+		this.rollbackOnConflict = rollbackOnConflict;
+	}
+
+	/**
+	 * キーの値とバージョンをまとめて読み出す。既に読み出したキーは読み出し直さずに以前の値を返す。
+	 * 通信エラーの場合は1回だけリトライする。
+	 * @param keys キー文字列
+	 * @return キーの順に並べた値。存在しない要素は null
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 操作が成功しなかった場合
+	 */
+	public Object[] read(String... keys) throws IOException, OperationFailedException {
+		checkActive();
+		ArrayList<OkuyamaClientImpl2.GetVersionCheckRequest> requests = new ArrayList<OkuyamaClientImpl2.GetVersionCheckRequest>();
+		for (String key: keys) {
+			if (!reads.containsKey(key)) {
+				client.validateKey(key);
+				requests.add(client.new GetVersionCheckRequest(key));
+			}
+		}
+		if (!requests.isEmpty()) {
+			Object[] results;
+			try {
+				results = client.executePipelined(requests);
+			} catch (IOException e) {
+				// 既に接続が切れていた、あるいは途中で接続が切れた場合は1回だけリトライする。
+				logger.debug("retry once cause:{}", e.getMessage());
+				results = client.executePipelined(requests);
+			}
+			for (int i = 0; i < results.length; ++i) {
+				if (results[i] instanceof OperationFailedException) {
+					throw (OperationFailedException) results[i];
+				}
+			}
+			for (int i = 0; i < results.length; ++i) {
+				String key = requests.get(i).key;
+				VersionedValue versioned = (VersionedValue) results[i];
+				if (versioned == null) {
+					reads.put(key, ABSENT);
+					values.put(key, null);
+				} else {
+					ByteBuffer raw = (ByteBuffer) versioned.getValue();
+					Object local = client.decodeLocal(raw.duplicate());
+					if (local instanceof ChunkManifest) {
+						manifests.put(key, (ChunkManifest) local);
+					}
+					values.put(key, client.resolveValue(local));
+					reads.put(key, versioned);
+				}
+			}
+		}
+		Object[] result = new Object[keys.length];
+		for (int i = 0; i < keys.length; ++i) {
+			result[i] = writes.containsKey(keys[i]) ? writes.get(keys[i]).value : values.get(keys[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * 値の書き込みを保持する。同じキーへの書き込みは置き換える。{@link #commit()} するまで送信しない。
+	 * @param key キー文字列
+	 * @param value 値
+	 * @param tags タグ文字列の配列。未設定の場合はnull
+	 * @param age 値の有効時間(秒)。0の場合は無期限
+	 */
+	public void set(String key, Object value, String[] tags, long age) {
+		checkActive();
+		if (value == null) {
+			throw new IllegalArgumentException("Okuyama does not allow to store null value.");
+		}
+		client.validateKey(key);
+		writes.put(key, new Write(value, tags, age));
+	}
+
+	/**
+	 * 保持した書き込みをまとめて送信する。一部のキーが競合した場合は、設定に従って書き込みに成功したキーを書き戻す。
+	 * 成否にかかわらず、このトランザクションは終了する。
+	 * @return 競合したキーのリスト。すべて書き込めた場合は空
+	 * @throws IOException 通信エラーの場合。一部のキーは書き込まれている可能性がある
+	 * @throws OperationFailedException 競合以外の理由で書き込みに失敗した場合
+	 */
+	public List<String> commit() throws IOException, OperationFailedException {
+		checkActive();
+		finished = true;
+		if (writes.isEmpty()) {
+			return Collections.emptyList();
+		}
+		ArrayList<String> keys = new ArrayList<String>(writes.keySet());
+		ArrayList<OkuyamaClientImpl2.SetRequest> requests = new ArrayList<OkuyamaClientImpl2.SetRequest>(keys.size());
+		// 書き戻す前に、このトランザクションが書き込んだ値のままであるかを比較するために保持する
+		HashMap<String, ByteBuffer> written = new HashMap<String, ByteBuffer>();
+		for (String key: keys) {
+			Write w = writes.get(key);
+			VersionedValue read = reads.get(key);
+			OkuyamaClientImpl2.SetRequest request;
+			if (read == null) {
+				request = client.new SetRequest(key, w.value, w.tags, w.age);
+			} else if (read == ABSENT) {
+				request = client.new AddRequest(key, w.value, w.tags, w.age);
+			} else {
+				request = client.new SetVersionCheckRequest(key, w.value, read.getVersion(), w.tags, w.age);
+			}
+			request.encoded = client.encodeValue(w.value, key);
+			// 値の分割は複数のキーへの書き込みとなるため、トランザクションでは行わない
+			client.validateUnchunkedValueSize(key, request.encoded);
+			written.put(key, request.encoded);
+			requests.add(request);
+		}
+		Object[] results;
+		try {
+			// バージョンを確認する書き込みは、リトライすると自身の書き込みと競合するためリトライしない
+			results = client.executePipelined(requests);
+		} finally {
+			for (OkuyamaClientImpl2.SetRequest request: requests) {
+				client.invalidateNearCache(request.key);
+				client.invalidateTagCache(request.tags);
+			}
+		}
+		ArrayList<String> committed = new ArrayList<String>();
+		ArrayList<String> conflicts = new ArrayList<String>();
+		OperationFailedException failure = null;
+		for (int i = 0; i < results.length; ++i) {
+			Object result = results[i];
+			if (Boolean.TRUE.equals(result)) {
+				committed.add(keys.get(i));
+			} else if (Boolean.FALSE.equals(result) || result instanceof KeyValueConsistencyException) {
+				conflicts.add(keys.get(i));
+			} else if (failure == null) {
+				failure = (OperationFailedException) result;
+			}
+		}
+		if ((failure != null || !conflicts.isEmpty()) && rollbackOnConflict) {
+			rollback(committed, written);
+		} else {
+			// 書き戻さない場合は、分割して格納されていた値の以前の断片は参照されなくなる
+			for (String key: committed) {
+				ChunkManifest manifest = manifests.get(key);
+				if (manifest != null) {
+					client.removeChunks(manifest);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return conflicts;
+	}
+
+	/**
+	 * 保持した書き込みを破棄してトランザクションを終了する。
+	 */
+	public void abort() {
+		finished = true;
+		writes.clear();
+	}
+
+	/**
+	 * 書き込みに成功したキーを読み出した時の値に書き戻す。失敗しても例外はスローしない。
+	 * 値とバージョンを読み出し直し、書き込んだ値のままであるキーだけを、読み出したバージョンを確認して書き戻す。
+	 * 値は読み出した時のバイト列のまま書き戻すため、デシリアライズできなかった値も書き戻せる。
+	 * @param keys 書き込みに成功したキー
+	 * @param written キーと書き込んだバイト列
+	 */
+	void rollback(List<String> keys, Map<String, ByteBuffer> written) {
+		ArrayList<OkuyamaClientImpl2.GetVersionCheckRequest> checks = new ArrayList<OkuyamaClientImpl2.GetVersionCheckRequest>();
+		for (String key: keys) {
+			if (reads.get(key) == null) {
+				// 読み出していないキーは元の値がわからない
+				logger.warn("Cannot rollback key not read in transaction. key:{}", key);
+			} else {
+				checks.add(client.new GetVersionCheckRequest(key));
+			}
+		}
+		if (checks.isEmpty()) {
+			return;
+		}
+		ArrayList<OkuyamaClientImpl2.PipelinedRequest> restores = new ArrayList<OkuyamaClientImpl2.PipelinedRequest>();
+		ArrayList<String> restoreKeys = new ArrayList<String>();
+		try {
+			Object[] currents = client.executePipelined(checks);
+			for (int i = 0; i < currents.length; ++i) {
+				String key = checks.get(i).key;
+				if (currents[i] instanceof OperationFailedException) {
+					logger.warn("Failed to rollback. key:{} cause:{}", key, ((OperationFailedException) currents[i]).getMessage());
+					continue;
+				}
+				VersionedValue current = (VersionedValue) currents[i];
+				if (current == null || !current.getValue().equals(written.get(key))) {
+					logger.warn("Skip rollback of key updated by another client. key:{}", key);
+					continue;
+				}
+				VersionedValue read = reads.get(key);
+				if (read == ABSENT) {
+					// 削除はバージョンを確認できないため、読み出し直してから削除するまでの間の更新は削除される
+					restores.add(client.new RemoveRequest(key));
+				} else {
+					OkuyamaClientImpl2.SetVersionCheckRequest request
+							= client.new SetVersionCheckRequest(key, values.get(key), current.getVersion(), null, 0);
+					request.encoded = (ByteBuffer) read.getValue();
+					restores.add(request);
+				}
+				restoreKeys.add(key);
+			}
+			if (restores.isEmpty()) {
+				return;
+			}
+			Object[] results = client.executePipelined(restores);
+			for (int i = 0; i < results.length; ++i) {
+				if (results[i] instanceof KeyValueConsistencyException) {
+					logger.warn("Skip rollback of key updated by another client. key:{}", restoreKeys.get(i));
+				} else if (results[i] instanceof OperationFailedException) {
+					logger.warn("Failed to rollback. key:{} cause:{}", restoreKeys.get(i), ((OperationFailedException) results[i]).getMessage());
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Failed to rollback. keys:{} cause:{}", keys, e.getMessage());
+		} catch (OperationFailedException e) {
+			logger.warn("Failed to rollback. keys:{} cause:{}", keys, e.getMessage());
+		} finally {
+			for (String key: restoreKeys) {
+				client.invalidateNearCache(key);
+			}
+		}
+	}
+
+	/**
+	 * 読み出したキーのバージョンを取得する。
+	 * @return キーとバージョン。存在しなかったキーのバージョンは null
+	 */
+	public Map<String, String> getReadVersions() {
+		LinkedHashMap<String, String> versions = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, VersionedValue> e: reads.entrySet()) {
+			versions.put(e.getKey(), e.getValue().getVersion());
+		}
+		return versions;
+	}
+
+	private void checkActive() {
+		if (finished) {
+			throw new IllegalStateException("Transaction is already finished");
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package mitonize.datastore.okuyama;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mitonize.datastore.OperationFailedException;
+
+/**
+ * パイプライン化したリクエストのバッチを複数の接続で並行して実行する。
+ * <p>実行中のバッチが並行数に達している間は {@link #submit(Batch)} が待つため、呼び出し側がキーを読み出しながら
+ * バッチを投入しても、保持するバッチの数は並行数を超えない。
+ * バッチはワーカーごとに生成した読み取り用のクライアントで実行するため、読み取り用のバッファを共有しない。
+ * バッチはクライアントに設定された共有のエグゼキュータで実行し、パイプラインごとにスレッドを生成しない。
+ * 並行数が1の場合やエグゼキュータが設定されていない場合は、呼び出したスレッドで生成元のクライアントを用いて実行する。</p>
+ * <p>最初に失敗したバッチの例外を保持し、以降の {@link #submit(Batch)} と {@link #await()} でスローする。
+ * 例外が発生した後に投入されたバッチは実行しない。</p>
+ */
+final class ParallelPipeline {
+	private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+	/**
+	 * 1つの接続でまとめて実行するリクエストのバッチ。
+	 */
+	abstract static class Batch {
+		/** バッチに含まれるキーの数 */
+		final int size;
+
+		Batch(int size) {
+			this.size = size;
+		}
+
+		/**
+		 * バッチを実行する。リクエストは worker で生成すること。
+		 * @param worker 実行に用いるクライアント
+		 * @return 操作が成功したキーの数
+		 * @throws IOException 通信エラーの場合
+		 * @throws OperationFailedException 操作が成功しなかった場合
+		 */
+		abstract int execute(OkuyamaClientImpl2 worker) throws IOException, OperationFailedException;
+	}
+
+	private final OkuyamaClientImpl2 client;
+	private final int concurrency;
+	private final BulkProgressListener listener;
+	private final Executor executor;
+	private final Semaphore permits;
+	private long processed = 0;
+	private long succeeded = 0;
+	private volatile Exception failure;
+
+	/**
+	 * @param client 生成元のクライアント
+	 * @param concurrency 並行して実行するバッチの最大数
+	 * @param listener 進捗を受け取るリスナー。受け取らない場合は null
+	 */
+	ParallelPipeline(OkuyamaClientImpl2 client, int concurrency, BulkProgressListener listener) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+		}
+		this.client = client;
+		this.concurrency = concurrency;
+		this.listener = listener;
+		this.permits = new Semaphore(concurrency);
+		this.executor = concurrency > 1 ? client.bulkExecutor : null;
+	}
+
+	/**
+	 * バッチを実行するエグゼキュータを生成する。スレッドはデーモンスレッドとして稼働し、使われなくなると終了する。
+	 * @return エグゼキュータ
+	 */
+	static ExecutorService newExecutor() {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "okuyama-bulk-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * バッチを投入する。実行中のバッチが並行数に達している場合は空くまで待つ。
+	 * @param batch バッチ
+	 * @throws IOException 以前のバッチで通信エラーが発生していた場合。待っている間に割り込まれた場合は InterruptedIOException
+	 * @throws OperationFailedException 以前のバッチが成功しなかった場合
+	 */
+	void submit(final Batch batch) throws IOException, OperationFailedException {
+		rethrow();
+		if (executor == null) {
+			completed(batch, batch.execute(client));
+			return;
+		}
+		acquire(1);
+		rethrow();
+		boolean submitted = false;
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (failure == null) {
+							completed(batch, batch.execute(client.newReader()));
+						}
+					} catch (Exception e) {
+						if (failure == null) {
+							failure = e;
+						}
+					} finally {
+						permits.release();
+					}
+				}
+			});
+			submitted = true;
+		} finally {
+			if (!submitted) {
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * 投入したバッチがすべて完了するまで待つ。
+	 * @throws IOException いずれかのバッチで通信エラーが発生した場合。待っている間に割り込まれた場合は InterruptedIOException
+	 * @throws OperationFailedException いずれかのバッチが成功しなかった場合
+	 */
+	void await() throws IOException, OperationFailedException {
+		if (executor != null) {
+			acquire(concurrency);
+			permits.release(concurrency);
+		}
+		rethrow();
+	}
+
+	/**
+	 * 操作が成功したキーの数を返す。
+	 * @return 操作が成功したキーの数
+	 */
+	synchronized long getSucceeded() {
+		return succeeded;
+	}
+
+	private synchronized void completed(Batch batch, int count) {
+		processed += batch.size;
+		succeeded += count;
+		if (listener != null) {
+			listener.progress(processed, succeeded);
+		}
+	}
+
+	private void acquire(int count) throws InterruptedIOException {
+		try {
+			permits.acquire(count);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for bulk operation");
+		}
+	}
+
+	private void rethrow() throws IOException, OperationFailedException {
+		Exception e = failure;
+		if (e instanceof IOException) {
+			throw (IOException) e;
+		} else if (e instanceof OperationFailedException) {
+			throw (OperationFailedException) e;
+		} else if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		}
+	}
+}
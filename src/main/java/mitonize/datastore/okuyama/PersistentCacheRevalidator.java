@@ -0,0 +1,103 @@
+package mitonize.datastore.okuyama;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mitonize.datastore.NearCache;
+import mitonize.datastore.OperationFailedException;
+import mitonize.datastore.PersistentCache;
+import mitonize.datastore.RawValueCache;
+import mitonize.datastore.VersionedValue;
+
+/**
+ * 永続キャッシュから読み込んだ未検証のエントリのうち、参照されたものをデータストア上のバージョンで再検証するタスク。
+ * バージョンの取得(プロトコル15)はまとめてパイプライン化して送信する。1回に問い合わせる数を制限することで、
+ * 再起動直後にデータストアへの問い合わせが集中しないようにする。
+ * バージョンが変わっていたエントリは新しい値で置き換え、削除されていたエントリは破棄する。
+ */
+class PersistentCacheRevalidator implements Runnable {
+	private final Logger logger = LoggerFactory.getLogger(PersistentCacheRevalidator.class);
+
+	private final OkuyamaClientFactoryImpl factory;
+	private final PersistentCache cache;
+
+	PersistentCacheRevalidator(OkuyamaClientFactoryImpl factory, PersistentCache cache) {
+		this.factory = factory;
+		this.cache = cache;
+	}
+
+	@Override
+	public void run() {
+		try {
+			int count = revalidate();
+			if (count > 0 && logger.isDebugEnabled()) {
+				logger.debug("Revalidated persistent cache entries - count:{} {}", count, cache.getStatistics());
+			}
+		} catch (IOException e) {
+			logger.warn("Failed to revalidate persistent cache. {}", e.getMessage());
+		} catch (OperationFailedException e) {
+			logger.warn("Failed to revalidate persistent cache. {}", e.getMessage());
+		} catch (RuntimeException e) {
+			// 定期実行が止まらないように例外は外に出さない
+			logger.error("Failed to revalidate persistent cache.", e);
+		}
+	}
+
+	/**
+	 * 参照された未検証のエントリを再検証する。
+	 * @return 再検証したエントリの数
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 期待した応答でなかった場合
+	 */
+	int revalidate() throws IOException, OperationFailedException {
+		List<String> keys = cache.pollUnverifiedKeys(Math.max(1, cache.getRevalidationBatchSize()));
+		if (keys.isEmpty()) {
+			return 0;
+		}
+		OkuyamaClientImpl2 client = (OkuyamaClientImpl2) factory.createClient();
+		revalidate(client, keys);
+		return keys.size();
+	}
+
+	void revalidate(OkuyamaClientImpl2 client, List<String> keys) throws IOException, OperationFailedException {
+		ArrayList<OkuyamaClientImpl2.GetVersionCheckRequest> requests = new ArrayList<OkuyamaClientImpl2.GetVersionCheckRequest>(keys.size());
+		long[] stamps = new long[keys.size()];
+		for (int i = 0; i < stamps.length; ++i) {
+			requests.add(client.new GetVersionCheckRequest(keys.get(i)));
+			stamps[i] = cache.stamp(keys.get(i));
+		}
+		Object[] results = client.executePipelined(requests);
+		for (int i = 0; i < results.length; ++i) {
+			String key = keys.get(i);
+			if (results[i] instanceof OperationFailedException) {
+				// 確認できなかったエントリは未検証のままとし、再び参照された時に再検証する
+				continue;
+			}
+			VersionedValue versioned = (VersionedValue) results[i];
+			if (cache.verify(key, versioned == null ? null : versioned.getVersion(), stamps[i])) {
+				continue;
+			}
+			// 古い値はニアキャッシュなどに複製されている可能性がある
+			NearCache nearCache = client.nearCache;
+			if (nearCache != null) {
+				nearCache.invalidate(key);
+			}
+			for (RawValueCache tier: client.rawCaches) {
+				if (tier != cache) {
+					tier.invalidate(key);
+				}
+			}
+			ByteBuffer raw = versioned == null ? null : (ByteBuffer) versioned.getValue();
+			if (raw == null || client.decodeValue(raw) instanceof ClassNotFoundException) {
+				cache.invalidate(key);
+			} else if (!cache.put(key, raw, versioned.getVersion(), stamps[i])) {
+				cache.invalidate(key);
+			}
+		}
+	}
+}
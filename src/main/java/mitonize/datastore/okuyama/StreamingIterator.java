@@ -0,0 +1,281 @@
+package mitonize.datastore.okuyama;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import mitonize.datastore.CloseableIterator;
+import mitonize.datastore.OperationFailedException;
+import mitonize.datastore.Pair;
+import mitonize.datastore.SocketStreams;
+import mitonize.datastore.StreamReadException;
+
+/**
+ * 応答をソケットから読み取りながら要素を1つずつ返すイテレータ。応答全体をヒープに展開しないため、
+ * 要素の数によらずメモリの使用量は一定となる。要素は {@link #next()} で要求されるまで読み取らないため、
+ * 読み出す側が遅ければTCPのフロー制御によってサーバの送信も抑えられる。
+ * <p>読み出している間はソケットを1つ占有する。最後まで読み出すとソケットを返却し、途中で {@link #close()} した場合は
+ * 応答の残りを読み捨てずにソケットを破棄する。通信エラーの場合もリトライはしない。</p>
+ * <p>応答の読み取りには専用のクライアントインスタンスを用いるため、読み出している間も生成元のクライアントを利用できる。
+ * 分割して格納した値や内容への参照は、生成元のクライアントで読み出して復元する。</p>
+ * @param <T> 要素の型
+ */
+abstract class StreamingIterator<T> implements CloseableIterator<T> {
+	/** 値の復元に用いる生成元のクライアント */
+	final OkuyamaClientImpl2 client;
+	/** 応答の読み取りに用いる専用のクライアント */
+	final OkuyamaClientImpl2 reader;
+	InputStream is;
+	private SocketStreams socket;
+	private T nextItem;
+	private boolean finished = false;
+
+	StreamingIterator(OkuyamaClientImpl2 client) {
+		this.client = client;
+		this.reader = client.newReader();
+	}
+
+	/**
+	 * ソケットを取得してリクエストを送信する。
+	 * @throws IOException 通信エラーの場合
+	 */
+	void open() throws IOException {
+		boolean failed = true;
+		try {
+			socket = reader.socketManager.aquire();
+			OutputStream os = socket.getOutputStream();
+			writeRequest(os);
+			reader.sendRequest(os);
+			is = socket.getInputStream();
+			reader.readResponse(is);
+			failed = false;
+		} finally {
+			if (failed) {
+				release(true);
+			}
+		}
+	}
+
+	/**
+	 * リクエストを書き込む。終端の改行は書き込まない。
+	 * @param os 出力ストリーム
+	 * @throws IOException 通信エラーの場合
+	 */
+	abstract void writeRequest(OutputStream os) throws IOException;
+
+	/**
+	 * 応答から次の要素を読み取る。
+	 * @return 次の要素。応答の終わりであれば null
+	 * @throws IOException 通信エラーの場合
+	 * @throws OperationFailedException 期待した応答でなかった場合
+	 */
+	abstract T readNext() throws IOException, OperationFailedException;
+
+	@Override
+	public boolean hasNext() {
+		if (nextItem == null && !finished) {
+			boolean failed = true;
+			try {
+				nextItem = readNext();
+				failed = false;
+			} catch (IOException e) {
+				throw new StreamReadException(e);
+			} catch (OperationFailedException e) {
+				throw new StreamReadException(e);
+			} finally {
+				if (failed || nextItem == null) {
+					finished = true;
+					release(failed);
+				}
+			}
+		}
+		return nextItem != null;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		T item = nextItem;
+		nextItem = null;
+		return item;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		if (!finished) {
+			finished = true;
+			nextItem = null;
+			// 応答の残りを読み捨てるより、接続を破棄する方が早い
+			release(true);
+		}
+	}
+
+	private void release(boolean destroy) {
+		if (socket == null) {
+			return;
+		}
+		if (destroy) {
+			reader.socketManager.destroy(socket);
+		}
+		reader.socketManager.recycle(socket);
+		socket = null;
+	}
+
+	/**
+	 * 読み取った値のフィールドを復元する。
+	 */
+	Object decode(ByteBuffer field) throws IOException, OperationFailedException {
+		return client.resolveValue(reader.decodeField(field));
+	}
+
+	/**
+	 * タグを指定して値を取得する(プロトコル23)イテレータ。
+	 */
+	static class TagPairs extends StreamingIterator<Pair> {
+		final String tag;
+		/** 値を復元せずに、Base64デコードしたバイト列のまま返す場合は true */
+		final boolean raw;
+
+		TagPairs(OkuyamaClientImpl2 client, String tag) {
+			this(client, tag, false);
+		}
+
+		TagPairs(OkuyamaClientImpl2 client, String tag, boolean raw) {
+			super(client);
+			this.tag = tag;
+			this.raw = raw;
+		}
+
+		@Override
+		void writeRequest(OutputStream os) throws IOException {
+			reader.createBuffer(os, 23);
+			reader.appendString(os, tag, true);
+		}
+
+		@Override
+		Pair readNext() throws IOException, OperationFailedException {
+			while (true) {
+				String str = reader.nextString(is, false);
+				if (str.equals("END")) {
+					return null;
+				}
+				if (!str.equals("23")) {
+					throw new OperationFailedException(reader.nextString(is, false));
+				}
+				str = reader.nextString(is, false);
+				if (str.equals("true")) {
+					String key = reader.nextString(is, reader.base64Key);
+					return new Pair(key, raw ? reader.nextBytes(is) : decode(reader.nextField(is)));
+				} else if (str.equals("false")) {
+					// 存在しないオブジェクトは読みとばす
+					reader.nextString(is, false);
+				} else {
+					throw new OperationFailedException(reader.nextString(is, false));
+				}
+			}
+		}
+	}
+
+	/**
+	 * タグに対応するキーを取得する(プロトコル3)イテレータ。
+	 */
+	static class TagKeys extends StreamingIterator<String> {
+		final String tag;
+		final boolean withDeletedKeys;
+		private boolean started = false;
+
+		TagKeys(OkuyamaClientImpl2 client, String tag, boolean withDeletedKeys) {
+			super(client);
+			this.tag = tag;
+			this.withDeletedKeys = withDeletedKeys;
+		}
+
+		@Override
+		void writeRequest(OutputStream os) throws IOException {
+			reader.createBuffer(os, 3);
+			reader.appendString(os, tag, true);
+			reader.appendString(os, withDeletedKeys ? "true": "false", false);
+		}
+
+		@Override
+		String readNext() throws IOException, OperationFailedException {
+			if (!started) {
+				started = true;
+				long code = reader.nextNumber(is);
+				if (code != 4) {
+					throw new OperationFailedException("Unexprected code:" + code);
+				}
+				String str = reader.nextString(is, false);
+				if (str.equals("false")) {
+					// メッセージが空であればタグに対応するキーが無い
+					String msg = reader.nextString(is, false);
+					if (msg != null && !msg.isEmpty()) {
+						throw new OperationFailedException(msg);
+					}
+					return null;
+				} else if (!str.equals("true")) {
+					throw new OperationFailedException(reader.nextString(is, false));
+				}
+			} else if (reader.lastDelimiter != ':') {
+				return null;
+			}
+			return reader.nextListItem(is, reader.base64Key);
+		}
+	}
+
+	/**
+	 * 複数のキーを指定して値を取得する(プロトコル22)イテレータ。存在しないキーは値を null とした組を返す。
+	 */
+	static class MultiValues extends StreamingIterator<Pair> {
+		final String[] keys;
+		private int index = 0;
+
+		MultiValues(OkuyamaClientImpl2 client, String[] keys) {
+			super(client);
+			for (String key: keys) {
+				client.validateKey(key);
+			}
+			this.keys = keys;
+		}
+
+		@Override
+		void writeRequest(OutputStream os) throws IOException {
+			reader.createBuffer(os, 22);
+			for (String key: keys) {
+				reader.appendString(os, key, reader.base64Key);
+			}
+		}
+
+		@Override
+		Pair readNext() throws IOException, OperationFailedException {
+			String str = reader.nextString(is, false);
+			if (str.equals("END")) {
+				if (index != keys.length) {
+					throw new OperationFailedException("Unexpected end of response");
+				}
+				return null;
+			}
+			if (!str.equals("22") || index >= keys.length) {
+				throw new OperationFailedException(reader.nextString(is, false));
+			}
+			String key = keys[index++];
+			str = reader.nextString(is, false);
+			if (str.equals("true")) {
+				return new Pair(key, decode(reader.nextField(is)));
+			} else if (str.equals("false")) {
+				reader.nextString(is, false);
+				return new Pair(key, null);
+			}
+			throw new OperationFailedException(reader.nextString(is, false));
+		}
+	}
+}
@@ -0,0 +1,496 @@
+package mitonize.datastore.okuyama;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mitonize.datastore.OperationFailedException;
+
+/**
+ * setObjectValue を非同期に行う書き込みバッファ(ライトビハインド)。
+ * <p>書き込みはキーごとにメモリ上のバッファに保持し、同じキーへの後の書き込みは前の書き込みを置き換える。
+ * バッファの内容はバックグラウンドのスレッドが、最も古い書き込みから {@link #getMaxDelayInMillis()} が経過するか、
+ * {@link #getBatchSize()} 件たまった時点で、1つのソケットでパイプライン化してまとめて書き込む。</p>
+ * <p>バッファが一杯の場合の振る舞いは {@link OverflowPolicy} で指定する。</p>
+ * <p>書き込みが完了するまでの間、他のクライアントからの読み出しは以前の値を返す。
+ * 書き込みに失敗した値は警告をログに出力して破棄する。</p>
+ * <p>{@link #close()} またはファクトリの destroy でバッファに残った書き込みを完了してから停止する。</p>
+ * <p>このクラスはスレッドセーフである。</p>
+ *
+ * <pre>
+ * WriteBehindBuffer buffer = factory.createWriteBehindBuffer(10000);
+ * buffer.setObjectValue("counter:1", value, null, 0);
+ * </pre>
+ */
+public class WriteBehindBuffer implements Closeable {
+	private final Logger logger = LoggerFactory.getLogger(WriteBehindBuffer.class);
+
+	private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+	/**
+	 * バッファが一杯の場合の振る舞い。
+	 */
+	public enum OverflowPolicy {
+		/** 空きができるまで最大 {@link WriteBehindBuffer#getMaxBlockInMillis()} 待つ。待っても空かなければ OperationFailedException をスローする */
+		BLOCK,
+		/** 最も古い書き込みを破棄する */
+		DISCARD_OLDEST,
+		/** バッファを使わずに呼び出したスレッドで書き込む */
+		WRITE_THROUGH,
+		/** 書き込みを受け付けずに OperationFailedException をスローする */
+		REJECT,
+	}
+
+	/**
+	 * バッファ内の書き込み。
+	 */
+	static class PendingWrite {
+		final String key;
+		final Object value;
+		final String[] tags;
+		final long age;
+		/** 最初にバッファに入った時刻。置き換えても変えない */
+		final long enqueuedAt;
+
+		PendingWrite(String key, Object value, String[] tags, long age, long enqueuedAt) {
+			this.key = key;
+			this.value = value;
+			this.tags = tags;
+			this.age = age;
+			this.enqueuedAt = enqueuedAt;
+		}
+	}
+
+	private final OkuyamaClientFactory factory;
+	private final int capacity;
+	/** バッファの操作と待ち合わせに用いるロック */
+	private final Object lock = new Object();
+	/** 書き込みの順序を保つため、バッファからの取り出しと書き込みを直列化するロック */
+	private final Object writeLock = new Object();
+	private final LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<String, PendingWrite>();
+	private final AtomicLong acceptedCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong flushedCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+	private final AtomicLong discardedCount = new AtomicLong();
+	private volatile long maxDelayInMillis = 100;
+	private volatile int batchSize = 100;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private volatile long maxBlockInMillis = 1000;
+	private boolean closed = false;
+	private Thread flusher;
+
+	/**
+	 * 書き込みバッファを生成する。バックグラウンドの書き込みは {@link #start()} で開始する。
+	 * @param factory 書き込みに用いるクライアントのファクトリ
+	 * @param capacity バッファに保持するキーの最大数
+	 */
+	public WriteBehindBuffer(OkuyamaClientFactory factory, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.factory = factory;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * バックグラウンドで書き込むスレッドを開始する。既に開始していれば何もしない。
+	 */
+	public void start() {
+		synchronized (lock) {
+			if (closed) {
+				throw new IllegalStateException("WriteBehindBuffer is already closed");
+			}
+			if (flusher != null) {
+				return;
+			}
+			flusher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runFlusher();
+				}
+			}, "okuyama-write-behind-" + threadCount.incrementAndGet());
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+	}
+
+	/**
+	 * 最も古い書き込みをバッファに保持する最大時間(ミリ秒)を取得する。
+	 * @return 最大時間(ミリ秒)
+	 */
+	public long getMaxDelayInMillis() {
+		return maxDelayInMillis;
+	}
+
+	/**
+	 * 最も古い書き込みをバッファに保持する最大時間(ミリ秒)を設定する。デフォルトは100ミリ秒。
+	 * @param maxDelayInMillis 最大時間(ミリ秒)。1以上
+	 */
+	public void setMaxDelayInMillis(long maxDelayInMillis) {
+		if (maxDelayInMillis <= 0) {
+			throw new IllegalArgumentException("maxDelayInMillis must be positive");
+		}
+		this.maxDelayInMillis = maxDelayInMillis;
+		wakeUp();
+	}
+
+	/**
+	 * 1回にまとめて書き込む最大件数を取得する。
+	 * @return 最大件数
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * 1回にまとめて書き込む最大件数を設定する。この件数がたまると最大時間の経過を待たずに書き込む。デフォルトは100件。
+	 * @param batchSize 最大件数。1以上
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+		this.batchSize = batchSize;
+		wakeUp();
+	}
+
+	/**
+	 * バッファが一杯の場合の振る舞いを取得する。
+	 * @return バッファが一杯の場合の振る舞い
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * バッファが一杯の場合の振る舞いを設定する。デフォルトは {@link OverflowPolicy#BLOCK}。
+	 * @param overflowPolicy バッファが一杯の場合の振る舞い
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		if (overflowPolicy == null) {
+			throw new IllegalArgumentException("overflowPolicy must not be null");
+		}
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * {@link OverflowPolicy#BLOCK} の場合に空きを待つ最大時間(ミリ秒)を取得する。
+	 * @return 空きを待つ最大時間(ミリ秒)
+	 */
+	public long getMaxBlockInMillis() {
+		return maxBlockInMillis;
+	}
+
+	/**
+	 * {@link OverflowPolicy#BLOCK} の場合に空きを待つ最大時間(ミリ秒)を設定する。デフォルトは1000ミリ秒。
+	 * @param maxBlockInMillis 空きを待つ最大時間(ミリ秒)
+	 */
+	public void setMaxBlockInMillis(long maxBlockInMillis) {
+		this.maxBlockInMillis = maxBlockInMillis;
+	}
+
+	/**
+	 * 値をバッファに入れる。同じキーの書き込みがバッファにあれば置き換える。
+	 * @param key キー文字列
+	 * @param value 値
+	 * @param tags タグ文字列の配列。指定しない場合は null
+	 * @param age 有効時間(秒)。0の場合は無期限
+	 * @throws IOException {@link OverflowPolicy#WRITE_THROUGH} で書き込んだ際に通信エラーが発生した場合、または空きを待つ間に割り込まれた場合
+	 * @throws OperationFailedException バッファが一杯で書き込みを受け付けられない場合
+	 */
+	public void setObjectValue(String key, Object value, String[] tags, long age) throws IOException, OperationFailedException {
+		if (key == null) {
+			throw new IllegalArgumentException("Key must not be null.");
+		}
+		if (value == null) {
+			throw new IllegalArgumentException("Okuyama does not allow to store null value.");
+		}
+		synchronized (lock) {
+			if (closed) {
+				throw new IllegalStateException("WriteBehindBuffer is already closed");
+			}
+			acceptedCount.incrementAndGet();
+			PendingWrite previous = pending.get(key);
+			if (previous != null) {
+				coalescedCount.incrementAndGet();
+				pending.put(key, new PendingWrite(key, value, tags, age, previous.enqueuedAt));
+				return;
+			}
+			if (pending.size() < capacity || makeRoom()) {
+				pending.put(key, new PendingWrite(key, value, tags, age, System.currentTimeMillis()));
+				if (pending.size() >= batchSize) {
+					lock.notifyAll();
+				}
+				return;
+			}
+		}
+		// WRITE_THROUGH の場合は呼び出したスレッドで書き込む
+		synchronized (writeLock) {
+			factory.createClient().setObjectValue(key, value, tags, age);
+		}
+	}
+
+	/**
+	 * バッファが一杯の場合に、振る舞いに従って空きを作る。lock を保持して呼び出すこと。
+	 * @return 空きができた場合は true。バッファを使わずに書き込む場合は false
+	 */
+	private boolean makeRoom() throws IOException, OperationFailedException {
+		switch (overflowPolicy) {
+		case DISCARD_OLDEST:
+			Iterator<PendingWrite> it = pending.values().iterator();
+			PendingWrite eldest = it.next();
+			it.remove();
+			discardedCount.incrementAndGet();
+			logger.debug("Discard pending write. key:{}", eldest.key);
+			return true;
+		case WRITE_THROUGH:
+			return false;
+		case REJECT:
+			throw new OperationFailedException("Write-behind buffer is full");
+		case BLOCK:
+		default:
+			long deadline = System.currentTimeMillis() + maxBlockInMillis;
+			lock.notifyAll();
+			try {
+				while (pending.size() >= capacity) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						throw new OperationFailedException("Write-behind buffer is full");
+					}
+					if (closed) {
+						throw new IllegalStateException("WriteBehindBuffer is already closed");
+					}
+					lock.wait(wait);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for write-behind buffer");
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * バッファに残っている書き込みを、呼び出したスレッドですべて書き込む。
+	 */
+	public void flush() {
+		synchronized (writeLock) {
+			while (true) {
+				List<PendingWrite> batch = drain();
+				if (batch.isEmpty()) {
+					return;
+				}
+				write(batch);
+			}
+		}
+	}
+
+	/**
+	 * 新たな書き込みの受け付けを停止し、バッファに残っている書き込みを完了してからバックグラウンドのスレッドを停止する。
+	 */
+	@Override
+	public void close() {
+		Thread thread;
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			thread = flusher;
+			lock.notifyAll();
+		}
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * バッファに保持している書き込みの数を取得する。
+	 * @return バッファ内のキーの数
+	 */
+	public int size() {
+		synchronized (lock) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * 受け付けた書き込みの数を取得する。
+	 * @return 受け付けた書き込みの数
+	 */
+	public long getAcceptedCount() {
+		return acceptedCount.get();
+	}
+
+	/**
+	 * バッファ内の同じキーの書き込みを置き換えた数を取得する。
+	 * @return 置き換えた数
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * データストアに書き込んだ数を取得する。
+	 * @return 書き込んだ数
+	 */
+	public long getFlushedCount() {
+		return flushedCount.get();
+	}
+
+	/**
+	 * 書き込みに失敗して破棄した数を取得する。
+	 * @return 失敗した数
+	 */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	 * {@link OverflowPolicy#DISCARD_OLDEST} で破棄した数を取得する。
+	 * @return 破棄した数
+	 */
+	public long getDiscardedCount() {
+		return discardedCount.get();
+	}
+
+	private void wakeUp() {
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+
+	void runFlusher() {
+		while (true) {
+			synchronized (lock) {
+				try {
+					while (!closed) {
+						long wait = delayToFlush();
+						if (wait <= 0) {
+							break;
+						}
+						lock.wait(wait);
+					}
+				} catch (InterruptedException e) {
+					logger.debug("Write-behind flusher is interrupted");
+					return;
+				}
+				if (closed) {
+					// 残りは close を呼び出したスレッドで書き込む
+					return;
+				}
+			}
+			synchronized (writeLock) {
+				write(drain());
+			}
+		}
+	}
+
+	/**
+	 * 次に書き込むまでの時間を求める。lock を保持して呼び出すこと。
+	 * @return 書き込むまでの時間(ミリ秒)。すぐに書き込む場合は0以下、書き込むものがない場合は {@link Long#MAX_VALUE}
+	 */
+	private long delayToFlush() {
+		if (pending.isEmpty()) {
+			return Long.MAX_VALUE;
+		}
+		if (pending.size() >= batchSize) {
+			return 0;
+		}
+		PendingWrite eldest = pending.values().iterator().next();
+		long delay = eldest.enqueuedAt + maxDelayInMillis - System.currentTimeMillis();
+		return delay <= 0 ? 0 : delay;
+	}
+
+	/**
+	 * バッファから古い順に最大 {@link #getBatchSize()} 件を取り出す。
+	 * @return 取り出した書き込み
+	 */
+	private List<PendingWrite> drain() {
+		synchronized (lock) {
+			int size = Math.min(pending.size(), batchSize);
+			ArrayList<PendingWrite> batch = new ArrayList<PendingWrite>(size);
+			Iterator<PendingWrite> it = pending.values().iterator();
+			while (batch.size() < size) {
+				batch.add(it.next());
+				it.remove();
+			}
+			// 空きを待っている書き込みを再開させる
+			lock.notifyAll();
+			return batch;
+		}
+	}
+
+	/**
+	 * まとめて書き込む。OkuyamaClientImpl2 の場合はパイプライン化し、それ以外は1件ずつ書き込む。
+	 * 失敗した書き込みは警告を出力して破棄する。
+	 * @param batch 書き込むリスト
+	 */
+	void write(List<PendingWrite> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		OkuyamaClient client = factory.createClient();
+		if (client instanceof OkuyamaClientImpl2) {
+			OkuyamaClientImpl2 impl = (OkuyamaClientImpl2) client;
+			ArrayList<OkuyamaClientImpl2.SetRequest> requests = new ArrayList<OkuyamaClientImpl2.SetRequest>(batch.size());
+			for (PendingWrite w: batch) {
+				requests.add(impl.new SetRequest(w.key, w.value, w.tags, w.age));
+			}
+			try {
+				Object[] results = impl.setObjectValues(requests);
+				for (int i = 0; i < results.length; ++i) {
+					if (results[i] instanceof OperationFailedException) {
+						failed(batch.get(i), (OperationFailedException) results[i]);
+					} else {
+						flushedCount.incrementAndGet();
+					}
+				}
+			} catch (IOException e) {
+				failed(batch, e);
+			} catch (OperationFailedException e) {
+				failed(batch, e);
+			} catch (RuntimeException e) {
+				failed(batch, e);
+			}
+		} else {
+			for (PendingWrite w: batch) {
+				try {
+					client.setObjectValue(w.key, w.value, w.tags, w.age);
+					flushedCount.incrementAndGet();
+				} catch (IOException e) {
+					failed(w, e);
+				} catch (OperationFailedException e) {
+					failed(w, e);
+				} catch (RuntimeException e) {
+					failed(w, e);
+				}
+			}
+		}
+	}
+
+	private void failed(List<PendingWrite> batch, Exception e) {
+		failureCount.addAndGet(batch.size());
+		logger.warn("Failed to write {} pending values. cause:{}", batch.size(), e.getMessage());
+	}
+
+	private void failed(PendingWrite w, Exception e) {
+		failureCount.incrementAndGet();
+		logger.warn("Failed to write pending value. key:{} cause:{}", w.key, e.getMessage());
+	}
+}
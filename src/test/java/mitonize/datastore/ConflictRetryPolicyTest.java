@@ -0,0 +1,51 @@
+package mitonize.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ConflictRetryPolicyTest {
+
+	@Test
+	public void testBackoff() {
+		ConflictRetryPolicy policy = new ConflictRetryPolicy();
+		policy.setBackoffBaseInMillis(10);
+		policy.setBackoffMaxInMillis(50);
+		for (int i = 0; i < 100; ++i) {
+			assertTrue(policy.backoff(1) <= 10);
+			assertTrue(policy.backoff(2) <= 20);
+			assertTrue(policy.backoff(10) <= 50);
+			assertTrue(policy.backoff(100) >= 0);
+		}
+		policy.setBackoffBaseInMillis(0);
+		assertEquals(0, policy.backoff(3));
+	}
+
+	@Test
+	public void testStatistics() {
+		ConflictRetryPolicy policy = new ConflictRetryPolicy(2);
+		for (int i = 0; i < 4; ++i) {
+			policy.updated();
+		}
+		policy.conflicted("key1");
+		policy.conflicted("key2");
+		policy.conflicted("key2");
+		policy.conflicted("key3");
+		policy.exhausted();
+		assertEquals(4, policy.getConflictCount());
+		assertEquals(1.0, policy.getConflictRate(), 0.0001);
+		assertEquals(1, policy.getExhaustedCount());
+
+		// key1 は記録の上限を超えて破棄される
+		List<Map.Entry<String, Long>> hottest = policy.getHottestKeys(10);
+		assertEquals(2, hottest.size());
+		assertEquals("key2", hottest.get(0).getKey());
+		assertEquals(Long.valueOf(2), hottest.get(0).getValue());
+		assertEquals("key3", hottest.get(1).getKey());
+		assertEquals(1, policy.getHottestKeys(1).size());
+	}
+}
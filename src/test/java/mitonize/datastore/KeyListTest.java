@@ -0,0 +1,52 @@
+package mitonize.datastore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class KeyListTest {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Test
+	public void testOf() {
+		KeyList keys = KeyList.of("key1", "", "キー3");
+		assertEquals(3, keys.size());
+		assertEquals(Arrays.asList("key1", "", "キー3"), keys);
+		assertEquals(0, keys.lengthAt(1));
+		assertEquals(UTF8.encode("キー3"), keys.bytesAt(2));
+		assertEquals("key1", new String(keys.array(), keys.offsetAt(0), keys.lengthAt(0), UTF8));
+	}
+
+	@Test
+	public void testBuilderBase64() {
+		KeyList.Builder builder = new KeyList.Builder();
+		String[] expected = new String[1000];
+		for (int i = 0; i < expected.length; ++i) {
+			expected[i] = "key" + i + "-あいう";
+			ByteBuffer encoded = Base64.encodeBuffer(UTF8.encode(expected[i]));
+			builder.addBase64(encoded.array(), encoded.position(), encoded.remaining());
+		}
+		KeyList keys = builder.build();
+		assertEquals(expected.length, keys.size());
+		assertEquals(Arrays.asList(expected), keys);
+	}
+
+	@Test
+	public void testDecode() {
+		for (int len = 0; len < 10; ++len) {
+			byte[] b = new byte[len];
+			for (int i = 0; i < len; ++i) {
+				b[i] = (byte) (i * 37 + 200);
+			}
+			ByteBuffer encoded = Base64.encodeBuffer(ByteBuffer.wrap(b));
+			byte[] decoded = new byte[Base64.decodedLength(encoded.remaining())];
+			int n = Base64.decode(encoded.array(), encoded.position(), encoded.remaining(), decoded, 0);
+			assertArrayEquals(b, Arrays.copyOf(decoded, n));
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package mitonize.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class NearCacheTest {
+
+	@Test
+	public void testPutAndLookup() {
+		NearCache cache = new NearCache(100);
+		cache.put("key1", "value1", 6);
+		NearCache.Entry entry = cache.lookup("key1");
+		assertNotNull(entry);
+		assertEquals("value1", entry.getValue());
+		assertFalse(entry.isNegative());
+		assertNull(cache.lookup("key2"));
+
+		NearCacheStatistics stats = cache.getStatistics();
+		assertEquals(1, stats.getHitCount());
+		assertEquals(1, stats.getMissCount());
+		assertEquals(1, stats.getPutCount());
+	}
+
+	@Test
+	public void testNegativeCache() throws InterruptedException {
+		NearCache cache = new NearCache(100);
+		cache.setNegativeTimeToLiveInMillis(100);
+		assertTrue(cache.putNegative("missing", cache.stamp("missing")));
+		NearCache.Entry entry = cache.lookup("missing");
+		assertNotNull(entry);
+		assertTrue(entry.isNegative());
+		assertNull(entry.getValue());
+		assertEquals(1, cache.getStatistics().getNegativeHitCount());
+
+		Thread.sleep(150);
+		assertNull(cache.lookup("missing"));
+		assertEquals(1, cache.getStatistics().getExpirationCount());
+	}
+
+	@Test
+	public void testTimeToLiveByPrefix() {
+		NearCache cache = new NearCache(100);
+		cache.setDefaultTimeToLiveInMillis(1000);
+		cache.setTimeToLiveInMillis("session:", 10);
+		cache.setTimeToLiveInMillis("session:admin:", 0);
+		assertEquals(1000, cache.getTimeToLiveInMillis("user:1"));
+		assertEquals(10, cache.getTimeToLiveInMillis("session:1"));
+		assertEquals(0, cache.getTimeToLiveInMillis("session:admin:1"));
+
+		cache.put("session:admin:1", "x", 1);
+		assertNull(cache.lookup("session:admin:1"));
+	}
+
+	@Test
+	public void testInvalidateRejectsStalePut() {
+		NearCache cache = new NearCache(100);
+		long stamp = cache.stamp("key1");
+		cache.invalidate("key1");
+		assertFalse(cache.put("key1", "stale", 5, stamp));
+		assertNull(cache.lookup("key1"));
+		assertTrue(cache.put("key1", "fresh", 5, cache.stamp("key1")));
+		assertEquals("fresh", cache.lookup("key1").getValue());
+	}
+
+	@Test
+	public void testMaxEntries() {
+		NearCache cache = new NearCache(100);
+		for (int i = 0; i < 1000; ++i) {
+			cache.put("key" + i, i, 4);
+		}
+		assertTrue(cache.size() <= 100);
+		assertTrue(cache.getStatistics().getEvictionCount() >= 900);
+	}
+
+	@Test
+	public void testMaxWeight() {
+		NearCache cache = new NearCache(1000);
+		cache.setMaxWeight(10000);
+		for (int i = 0; i < 1000; ++i) {
+			cache.put("key" + i, i, 1000);
+		}
+		assertTrue(cache.weight() <= 10000);
+	}
+
+	/**
+	 * 頻繁に参照されるキーが一度しか参照されないキーの大量格納で追い出されないかテスト
+	 */
+	@Test
+	public void testFrequentKeysSurviveScan() {
+		NearCache cache = new NearCache(100);
+		for (int i = 0; i < 50; ++i) {
+			cache.put("hot" + i, i, 4);
+		}
+		for (int n = 0; n < 5; ++n) {
+			for (int i = 0; i < 50; ++i) {
+				cache.lookup("hot" + i);
+			}
+		}
+		for (int i = 0; i < 10000; ++i) {
+			cache.lookup("cold" + i);
+			cache.put("cold" + i, i, 4);
+		}
+		int survived = 0;
+		for (int i = 0; i < 50; ++i) {
+			if (cache.lookup("hot" + i) != null) {
+				++survived;
+			}
+		}
+		assertTrue("survived:" + survived, survived >= 45);
+	}
+
+	@Test
+	public void testHottestEntries() {
+		NearCache cache = new NearCache(100);
+		for (int i = 0; i < 10; ++i) {
+			cache.put("key" + i, i, 4, "v" + i, cache.stamp("key" + i));
+		}
+		cache.put("unversioned", "x", 1);
+		for (int n = 0; n < 5; ++n) {
+			cache.lookup("key3");
+			cache.lookup("unversioned");
+		}
+		for (int n = 0; n < 3; ++n) {
+			cache.lookup("key7");
+		}
+		List<NearCache.Entry> entries = cache.hottestEntries(2);
+		assertEquals(2, entries.size());
+		assertEquals("key3", entries.get(0).getKey());
+		assertEquals("key7", entries.get(1).getKey());
+		assertEquals(10, cache.hottestEntries(100).size());
+	}
+
+	@Test
+	public void testRevalidation() {
+		NearCache cache = new NearCache(100);
+		cache.put("key1", "value1", 6, "1", cache.stamp("key1"));
+		cache.put("key2", "value2", 6, "1", cache.stamp("key2"));
+		cache.put("key3", "value3", 6, "1", cache.stamp("key3"));
+
+		NearCache.Entry entry1 = cache.lookup("key1");
+		assertTrue(cache.renew(entry1, cache.stamp("key1")));
+		assertEquals("value1", cache.lookup("key1").getValue());
+
+		NearCache.Entry entry2 = cache.lookup("key2");
+		assertTrue(cache.refresh(entry2, "value2-new", 10, "2", cache.stamp("key2")));
+		assertEquals("value2-new", cache.lookup("key2").getValue());
+		assertEquals("2", cache.lookup("key2").getVersion());
+
+		NearCache.Entry entry3 = cache.lookup("key3");
+		long stamp = cache.stamp("key3");
+		cache.put("key3", "value3-local", 12, "3", stamp);
+		// 再検証中に置き換えられたエントリは変更しない
+		assertFalse(cache.discard(entry3, stamp));
+		assertEquals("value3-local", cache.lookup("key3").getValue());
+		assertTrue(cache.discard(cache.lookup("key3"), cache.stamp("key3")));
+		assertNull(cache.lookup("key3"));
+
+		assertEquals(4, cache.getStatistics().getRevalidationCount());
+		assertEquals(2, cache.getStatistics().getStaleCount());
+	}
+}
@@ -0,0 +1,127 @@
+package mitonize.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class OffHeapCacheTest {
+
+	private static ByteBuffer bytes(int length, int seed) {
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			b[i] = (byte) (seed + i);
+		}
+		return ByteBuffer.wrap(b);
+	}
+
+	private static byte[] toArray(VersionedValue value) {
+		ByteBuffer buffer = (ByteBuffer) value.getValue();
+		return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.arrayOffset() + buffer.limit());
+	}
+
+	@Test
+	public void testPutAndGet() {
+		OffHeapCache cache = new OffHeapCache(64 * 1024, 4096);
+		assertTrue(cache.put("key1", bytes(100, 1), "3", cache.stamp("key1")));
+		VersionedValue value = cache.get("key1");
+		assertNotNull(value);
+		assertEquals("3", value.getVersion());
+		assertTrue(Arrays.equals(bytes(100, 1).array(), toArray(value)));
+		assertNull(cache.get("key2"));
+
+		// 大きさの異なる値で置き換える
+		assertTrue(cache.put("key1", bytes(1000, 2), null, cache.stamp("key1")));
+		assertTrue(Arrays.equals(bytes(1000, 2).array(), toArray(cache.get("key1"))));
+		assertEquals(1, cache.size());
+		assertEquals(1024, cache.getUsedMemory());
+
+		assertEquals(2, cache.getStatistics().getHitCount());
+		assertEquals(1, cache.getStatistics().getMissCount());
+	}
+
+	@Test
+	public void testTooLarge() {
+		OffHeapCache cache = new OffHeapCache(64 * 1024, 4096);
+		assertFalse(cache.put("key1", bytes(4097, 0), null, cache.stamp("key1")));
+		assertTrue(cache.put("key1", bytes(4096, 0), null, cache.stamp("key1")));
+	}
+
+	@Test
+	public void testInvalidateRejectsStalePut() {
+		OffHeapCache cache = new OffHeapCache(64 * 1024, 4096);
+		long stamp = cache.stamp("key1");
+		cache.invalidate("key1");
+		assertFalse(cache.put("key1", bytes(10, 0), null, stamp));
+		assertNull(cache.get("key1"));
+	}
+
+	@Test
+	public void testInvalidateOtherKeyKeepsPut() {
+		OffHeapCache cache = new OffHeapCache(64 * 1024, 4096);
+		long stamp = cache.stamp("key1");
+		cache.invalidate("key2");
+		assertTrue(cache.put("key1", bytes(10, 0), null, stamp));
+		assertNotNull(cache.get("key1"));
+	}
+
+	@Test
+	public void testExpiration() throws InterruptedException {
+		OffHeapCache cache = new OffHeapCache(64 * 1024, 4096);
+		cache.setTimeToLiveInMillis("session:", 50);
+		cache.setTimeToLiveInMillis("nocache:", 0);
+		assertFalse(cache.put("nocache:1", bytes(10, 0), null, cache.stamp("nocache:1")));
+		assertTrue(cache.put("session:1", bytes(10, 0), null, cache.stamp("session:1")));
+		assertNotNull(cache.get("session:1"));
+		Thread.sleep(100);
+		assertNull(cache.get("session:1"));
+		assertEquals(1, cache.getStatistics().getExpirationCount());
+		assertEquals(0, cache.getUsedMemory());
+	}
+
+	@Test
+	public void testMemoryLimit() {
+		OffHeapCache cache = new OffHeapCache(4 * 4096, 4096);
+		for (int i = 0; i < 1000; ++i) {
+			assertTrue(cache.put("key" + i, bytes(100, i), null, cache.stamp("key" + i)));
+		}
+		assertEquals(4 * 4096, cache.getAllocatedMemory());
+		// 128バイトのチャンクが4スラブ分
+		assertEquals(4 * 4096 / 128, cache.size());
+		assertEquals(1000 - cache.size(), cache.getStatistics().getEvictionCount());
+		// 最も長く参照されていないものから追い出される
+		assertNull(cache.get("key0"));
+		assertTrue(Arrays.equals(bytes(100, 999).array(), toArray(cache.get("key999"))));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction() {
+		OffHeapCache cache = new OffHeapCache(4096, 4096);
+		for (int i = 0; i < 32; ++i) {
+			cache.put("key" + i, bytes(100, i), null, cache.stamp("key" + i));
+		}
+		cache.get("key0");
+		cache.put("key32", bytes(100, 32), null, cache.stamp("key32"));
+		assertNotNull(cache.get("key0"));
+		assertNull(cache.get("key1"));
+	}
+
+	@Test
+	public void testNoSpaceInOtherSizeClass() {
+		OffHeapCache cache = new OffHeapCache(4096, 4096);
+		assertTrue(cache.put("small", bytes(10, 0), null, cache.stamp("small")));
+		// スラブはすべて他のサイズクラスに割り当て済みで、同じサイズクラスに追い出せるエントリもない
+		assertFalse(cache.put("large", bytes(1000, 0), null, cache.stamp("large")));
+		assertNotNull(cache.get("small"));
+
+		cache.invalidateAll();
+		assertEquals(0, cache.size());
+		assertTrue(cache.put("small", bytes(10, 0), null, cache.stamp("small")));
+	}
+}
@@ -0,0 +1,197 @@
+package mitonize.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PersistentCacheTest {
+	File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("persistent-cache", "");
+		directory.delete();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file: files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private static ByteBuffer bytes(String s) {
+		return ByteBuffer.wrap(s.getBytes(PersistentCache.UTF8));
+	}
+
+	private static String string(VersionedValue value) {
+		ByteBuffer buffer = (ByteBuffer) value.getValue();
+		return new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), PersistentCache.UTF8);
+	}
+
+	@Test
+	public void testPutAndGet() throws IOException {
+		PersistentCache cache = new PersistentCache(directory, 64 * 1024);
+		try {
+			assertTrue(cache.put("key1", bytes("value1"), "1", cache.stamp("key1")));
+			VersionedValue value = cache.get("key1");
+			assertNotNull(value);
+			assertEquals("value1", string(value));
+			assertEquals("1", value.getVersion());
+			assertNull(cache.get("key2"));
+			// 格納したエントリは検証済み
+			assertTrue(cache.pollUnverifiedKeys(10).isEmpty());
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		PersistentCache cache = new PersistentCache(directory, 64 * 1024);
+		cache.put("key1", bytes("value1"), "1", cache.stamp("key1"));
+		cache.put("key2", bytes("value2"), "1", cache.stamp("key2"));
+		cache.put("key1", bytes("value1-new"), "2", cache.stamp("key1"));
+		cache.put("key3", bytes("value3"), "1", cache.stamp("key3"));
+		cache.invalidate("key3");
+		cache.close();
+
+		cache = new PersistentCache(directory, 64 * 1024);
+		try {
+			assertEquals(2, cache.size());
+			assertEquals(2, cache.getUnverifiedCount());
+			assertEquals("value1-new", string(cache.get("key1")));
+			assertEquals("2", cache.get("key1").getVersion());
+			assertNull(cache.get("key3"));
+
+			// 参照された未検証のキーだけが再検証の対象となる
+			List<String> keys = cache.pollUnverifiedKeys(10);
+			assertEquals(Arrays.asList("key1"), keys);
+			assertTrue(cache.verify("key1", "2", cache.stamp("key1")));
+			assertEquals(1, cache.getUnverifiedCount());
+
+			cache.get("key2");
+			assertFalse(cache.verify("key2", "5", cache.stamp("key2")));
+			assertEquals(1, cache.getStatistics().getStaleCount());
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	public void testExpiredEntriesAreNotLoaded() throws IOException, InterruptedException {
+		PersistentCache cache = new PersistentCache(directory, 64 * 1024);
+		cache.setTimeToLiveInMillis("short:", 50);
+		cache.put("short:1", bytes("x"), "1", cache.stamp("short:1"));
+		cache.put("long:1", bytes("y"), "1", cache.stamp("long:1"));
+		cache.close();
+		Thread.sleep(100);
+
+		cache = new PersistentCache(directory, 64 * 1024);
+		try {
+			assertNull(cache.get("short:1"));
+			assertNotNull(cache.get("long:1"));
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	public void testSegmentReuseDropsUnverifiedKeys() throws IOException {
+		PersistentCache cache = new PersistentCache(directory, 4 * 1024, 4);
+		byte[] payload = new byte[200];
+		for (int i = 0; i < 10; ++i) {
+			cache.put("old" + i, ByteBuffer.wrap(payload), "1", cache.stamp("old" + i));
+		}
+		cache.close();
+
+		cache = new PersistentCache(directory, 4 * 1024, 4);
+		try {
+			for (int i = 0; i < 10; ++i) {
+				assertNotNull(cache.get("old" + i));
+			}
+			// すべてのセグメントを再利用するまで追記する
+			for (int i = 0; i < 100; ++i) {
+				cache.put("new" + i, ByteBuffer.wrap(payload), "1", cache.stamp("new" + i));
+			}
+			assertNull(cache.get("old0"));
+			assertTrue(cache.pollUnverifiedKeys(100).isEmpty());
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	public void testSegmentReuse() throws IOException {
+		PersistentCache cache = new PersistentCache(directory, 4 * 1024, 4);
+		byte[] payload = new byte[200];
+		for (int i = 0; i < 100; ++i) {
+			cache.put("key" + i, ByteBuffer.wrap(payload), "1", cache.stamp("key" + i));
+		}
+		int size = cache.size();
+		assertTrue(size < 100);
+		assertNotNull(cache.get("key99"));
+		assertNull(cache.get("key0"));
+		cache.close();
+
+		cache = new PersistentCache(directory, 4 * 1024, 4);
+		try {
+			assertEquals(size, cache.size());
+			assertNotNull(cache.get("key99"));
+			assertNull(cache.get("key0"));
+			// 再利用したセグメントに続けて追記できる
+			assertTrue(cache.put("key100", ByteBuffer.wrap(payload), "1", cache.stamp("key100")));
+			assertNotNull(cache.get("key100"));
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	public void testInvalidateAll() throws IOException {
+		PersistentCache cache = new PersistentCache(directory, 64 * 1024);
+		long stamp = cache.stamp("key2");
+		cache.put("key1", bytes("value1"), "1", cache.stamp("key1"));
+		cache.invalidateAll();
+		assertFalse(cache.put("key2", bytes("value2"), "1", stamp));
+		assertEquals(0, cache.size());
+		cache.close();
+
+		cache = new PersistentCache(directory, 64 * 1024);
+		try {
+			assertEquals(0, cache.size());
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	public void testLockedByAnotherInstance() throws IOException {
+		PersistentCache cache = new PersistentCache(directory, 64 * 1024);
+		try {
+			new PersistentCache(directory, 64 * 1024);
+			fail("Opened twice");
+		} catch (IOException e) {
+			// OK
+		} finally {
+			cache.close();
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package mitonize.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+	@Test
+	public void testShareInFlightCall() throws Exception {
+		final SingleFlight singleFlight = new SingleFlight();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger();
+		final Object[] results = new Object[5];
+
+		Thread[] threads = new Thread[results.length];
+		for (int i = 0; i < threads.length; ++i) {
+			final int n = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						results[n] = singleFlight.execute("key", new SingleFlight.Call<String>() {
+							@Override
+							public String call() throws IOException, OperationFailedException {
+								calls.incrementAndGet();
+								started.countDown();
+								try {
+									release.await();
+								} catch (InterruptedException e) {
+									throw new IOException(e);
+								}
+								return "value";
+							}
+						});
+					} catch (Exception e) {
+						results[n] = e;
+					}
+				}
+			};
+			threads[i].start();
+			if (i == 0) {
+				started.await();
+			}
+		}
+		// 後続のスレッドが待機するまで待つ
+		while (singleFlight.getSharedCount() < threads.length - 1) {
+			Thread.sleep(10);
+		}
+		release.countDown();
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		assertEquals(1, calls.get());
+		assertEquals(1, singleFlight.getExecutionCount());
+		for (Object result: results) {
+			assertEquals("value", result);
+		}
+
+		// 完了後の呼び出しは新たに実行する
+		singleFlight.execute("key", new SingleFlight.Call<String>() {
+			@Override
+			public String call() {
+				calls.incrementAndGet();
+				return "value2";
+			}
+		});
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testShareException() throws Exception {
+		final SingleFlight singleFlight = new SingleFlight();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final OperationFailedException failure = new OperationFailedException("failed");
+		final Object[] results = new Object[2];
+
+		Thread[] threads = new Thread[results.length];
+		for (int i = 0; i < threads.length; ++i) {
+			final int n = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						results[n] = singleFlight.execute("key", new SingleFlight.Call<String>() {
+							@Override
+							public String call() throws IOException, OperationFailedException {
+								started.countDown();
+								try {
+									release.await();
+								} catch (InterruptedException e) {
+									throw new IOException(e);
+								}
+								throw failure;
+							}
+						});
+					} catch (Exception e) {
+						results[n] = e;
+					}
+				}
+			};
+			threads[i].start();
+			if (i == 0) {
+				started.await();
+			}
+		}
+		while (singleFlight.getSharedCount() < 1) {
+			Thread.sleep(10);
+		}
+		release.countDown();
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		assertSame(failure, results[0]);
+		assertSame(failure, results[1]);
+		assertTrue(singleFlight.getExecutionCount() == 1);
+	}
+
+	@Test
+	public void testForget() throws Exception {
+		final SingleFlight singleFlight = new SingleFlight();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Object[] result = new Object[1];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					result[0] = singleFlight.execute("key", new SingleFlight.Call<String>() {
+						@Override
+						public String call() throws IOException {
+							started.countDown();
+							try {
+								release.await();
+							} catch (InterruptedException e) {
+								throw new IOException(e);
+							}
+							return "old";
+						}
+					});
+				} catch (Exception e) {
+					result[0] = e;
+				}
+			}
+		};
+		reader.start();
+		started.await();
+		// 書き込みの後に来た呼び出しは、書き込みより前に始まった読み出しに合流しない
+		singleFlight.forget("key");
+		String value = singleFlight.execute("key", new SingleFlight.Call<String>() {
+			@Override
+			public String call() {
+				return "new";
+			}
+		});
+		assertEquals("new", value);
+		assertEquals(0, singleFlight.getSharedCount());
+		release.countDown();
+		reader.join();
+		assertEquals("old", result[0]);
+	}
+}
@@ -148,4 +148,110 @@ public class SocketManagerTest {
 			assertTrue(String.valueOf(i), !pool[i].equals(pool[6]));
 		}
 	}
+
+	/**
+	 * 期限切れのソケットがプールから整理されるかテスト
+	 */
+	@Test
+	public void testReapExpiredSockets() throws Exception {
+		SocketManager manager = new SocketManager(endpoints, 5);
+		try {
+			manager.setSocketTimeToLiveInMilli(100);
+			SocketStreams[] pool = new SocketStreams[3];
+			for (int i = 0; i < pool.length; i++) {
+				pool[i] = manager.aquire();
+			}
+			for (int i = 0; i < pool.length; i++) {
+				manager.recycle(pool[i]);
+			}
+			assertEquals(3, manager.queue.size());
+			Thread.sleep(150);
+			assertEquals(3, manager.reapExpiredSockets());
+			assertEquals(0, manager.queue.size());
+			assertEquals(0, manager.activeSocketCount.get());
+		} finally {
+			manager.shutdown();
+		}
+	}
+
+	/**
+	 * 保守用のスレッドがSocketManagerごとに作られず、デーモンスレッドであるかテスト
+	 */
+	@Test
+	public void testSharedMaintenanceScheduler() throws Exception {
+		SocketManager manager1 = new SocketManager(endpoints, 1);
+		SocketManager manager2 = new SocketManager(endpoints, 1);
+		try {
+			assertTrue(manager1.maintenanceService == manager2.maintenanceService);
+			final Thread[] thread = new Thread[1];
+			manager1.maintenanceService.submit(new Runnable() {
+				@Override
+				public void run() {
+					thread[0] = Thread.currentThread();
+				}
+			}).get();
+			assertTrue(thread[0].isDaemon());
+		} finally {
+			manager1.shutdown();
+			manager2.shutdown();
+		}
+	}
+
+	/**
+	 * オフラインから復帰した後、再びオフラインになっても復帰するかテスト
+	 */
+	@Test
+	public void testMarkOnlineAgain() throws Exception {
+		SocketManager manager = new SocketManager(endpoints, 1);
+		try {
+			manager.setDelayToMarkOnlineInMillis(100);
+			Endpoint endpoint = manager.getEndpointAt(0);
+			for (int i = 0; i < 2; i++) {
+				endpoint.markEndpointOffline(true);
+				assertEquals(endpoints[0] + " (offline)", str(endpoint));
+				Thread.sleep(500);
+				assertEquals(String.valueOf(i), endpoints[0], str(endpoint));
+			}
+		} finally {
+			manager.shutdown();
+		}
+	}
+
+	/**
+	 * shutdownでオンラインにするのを待っているタスクが取り消されるかテスト
+	 */
+	@Test
+	public void testShutdownCancelsMarkOnline() throws Exception {
+		SocketManager manager = new SocketManager(endpoints, 1);
+		manager.setDelayToMarkOnlineInMillis(300);
+		Endpoint endpoint = manager.getEndpointAt(0);
+		endpoint.markEndpointOffline(true);
+		Thread.sleep(100);
+		manager.shutdown();
+		Thread.sleep(500);
+		assertEquals(endpoints[0] + " (offline)", str(endpoint));
+	}
+
+	/**
+	 * 接続できてオンラインになった場合に、オンラインにするのを待っているタスクが取り消されるかテスト
+	 */
+	@Test
+	public void testOnlineCancelsMarkOnline() throws Exception {
+		SocketManager manager = new SocketManager(endpoints, 1);
+		try {
+			manager.setDelayToMarkOnlineInMillis(300);
+			Endpoint endpoint = manager.getEndpointAt(0);
+			endpoint.markEndpointOffline(true);
+			Thread.sleep(100);
+			// ソケットを開けた場合と同じく、待ち時間の経過前にオンラインにする
+			endpoint.markEndpointOffline(false);
+			manager.setDelayToMarkOnlineInMillis(5000);
+			endpoint.markEndpointOffline(true);
+			Thread.sleep(500);
+			// 以前のタスクが再びオフラインになったエンドポイントをオンラインにしない
+			assertEquals(endpoints[0] + " (offline)", str(endpoint));
+		} finally {
+			manager.shutdown();
+		}
+	}
 }
@@ -0,0 +1,69 @@
+package mitonize.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ValueFingerprintsTest {
+	static ByteBuffer bytes(String s) {
+		return ByteBuffer.wrap(s.getBytes());
+	}
+
+	@Test
+	public void testUnchanged() {
+		ValueFingerprints fingerprints = new ValueFingerprints(10);
+		assertFalse(fingerprints.isUnchanged("key1", bytes("value1"), null, 0));
+		fingerprints.written("key1", bytes("value1"), null, 0);
+		assertTrue(fingerprints.isUnchanged("key1", bytes("value1"), null, 0));
+		assertFalse(fingerprints.isUnchanged("key1", bytes("value2"), null, 0));
+		assertFalse(fingerprints.isUnchanged("key1", bytes("value1"), new String[] {"tag1"}, 0));
+		assertFalse(fingerprints.isUnchanged("key1", bytes("value1"), null, 60));
+		assertEquals(1, fingerprints.getSuppressedCount());
+
+		fingerprints.invalidate("key1");
+		assertFalse(fingerprints.isUnchanged("key1", bytes("value1"), null, 0));
+	}
+
+	@Test
+	public void testRefresh() throws Exception {
+		ValueFingerprints fingerprints = new ValueFingerprints(10);
+		fingerprints.written("key1", bytes("value1"), new String[] {"tag1"}, 1);
+		assertTrue(fingerprints.isUnchanged("key1", bytes("value1"), new String[] {"tag1"}, 1));
+		// 有効時間の半分を過ぎたら書き込み直す
+		Thread.sleep(600);
+		assertFalse(fingerprints.isUnchanged("key1", bytes("value1"), new String[] {"tag1"}, 1));
+
+		fingerprints.setMaxTrustInMillis(0);
+		fingerprints.written("key2", bytes("value2"), null, 0);
+		assertFalse(fingerprints.isUnchanged("key2", bytes("value2"), null, 0));
+	}
+
+	@Test
+	public void testRead() {
+		ValueFingerprints fingerprints = new ValueFingerprints(10);
+		// 読み出しただけでは省略しない
+		fingerprints.read("key1", bytes("value1"));
+		assertFalse(fingerprints.isUnchanged("key1", bytes("value1"), null, 0));
+
+		fingerprints.written("key1", bytes("value1"), null, 0);
+		fingerprints.read("key1", bytes("value1"));
+		assertTrue(fingerprints.isUnchanged("key1", bytes("value1"), null, 0));
+		// 他のプロセスが書き換えた値を読み出した
+		fingerprints.read("key1", bytes("other"));
+		assertFalse(fingerprints.isUnchanged("key1", bytes("value1"), null, 0));
+	}
+
+	@Test
+	public void testEviction() {
+		ValueFingerprints fingerprints = new ValueFingerprints(2);
+		fingerprints.written("key1", bytes("value1"), null, 0);
+		fingerprints.written("key2", bytes("value2"), null, 0);
+		fingerprints.written("key3", bytes("value3"), null, 0);
+		assertEquals(2, fingerprints.size());
+		assertFalse(fingerprints.isUnchanged("key1", bytes("value1"), null, 0));
+	}
+}
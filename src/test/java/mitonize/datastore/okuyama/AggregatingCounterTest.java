@@ -0,0 +1,53 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AggregatingCounterTest {
+
+	@Test
+	public void testFlush() throws Exception {
+		InMemoryOkuyamaClientFactory factory = new InMemoryOkuyamaClientFactory();
+		AggregatingCounter counter = new AggregatingCounter(factory);
+		for (int i = 0; i < 1000; ++i) {
+			counter.increment("key1");
+		}
+		counter.add("key2", 5);
+		counter.decrement("key2");
+		assertEquals(1000, counter.getPendingDelta("key1"));
+
+		counter.flush();
+		assertEquals(2, factory.getStore().getRequestCount());
+		assertEquals("1000", factory.createClient().getObjectValue("key1"));
+		assertEquals("4", factory.createClient().getObjectValue("key2"));
+		assertEquals(0, counter.getPendingDelta("key1"));
+
+		// 加算のないキーは送信しない
+		counter.add("key1", -10);
+		counter.flush();
+		assertEquals(5, factory.getStore().getRequestCount());
+		assertEquals("990", factory.createClient().getObjectValue("key1"));
+	}
+
+	@Test
+	public void testScheduledFlush() throws Exception {
+		InMemoryOkuyamaClientFactory factory = new InMemoryOkuyamaClientFactory();
+		AggregatingCounter counter = new AggregatingCounter(factory);
+		counter.setFlushIntervalInMillis(20);
+		counter.start();
+		try {
+			counter.add("key1", 3);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (counter.getRequestCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals("3", factory.createClient().getObjectValue("key1"));
+		} finally {
+			counter.close();
+		}
+		counter.add("key1", 2);
+		counter.close();
+		assertEquals("5", factory.createClient().getObjectValue("key1"));
+	}
+}
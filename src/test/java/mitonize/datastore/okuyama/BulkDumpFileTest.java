@@ -0,0 +1,68 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BulkDumpFileTest {
+	static byte[] dump(BulkDumpFile.Record... records) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		BulkDumpFile.Writer writer = new BulkDumpFile.Writer(bos);
+		for (BulkDumpFile.Record record: records) {
+			writer.write(record);
+		}
+		writer.finish();
+		return bos.toByteArray();
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		byte[] payload = new byte[1000];
+		Arrays.fill(payload, (byte) 0xff);
+		ByteBuffer sliced = ByteBuffer.wrap(payload, 10, 20).slice();
+		byte[] b = dump(new BulkDumpFile.Record("キー1", new String[] {"tag1", "タグ2"}, 60, ByteBuffer.wrap(payload)),
+				new BulkDumpFile.Record("key2", null, 0, sliced),
+				new BulkDumpFile.Record("key3", null, 0, ByteBuffer.allocate(0)));
+
+		BulkDumpFile.Reader reader = new BulkDumpFile.Reader(new ByteArrayInputStream(b));
+		BulkDumpFile.Record record = reader.read();
+		assertEquals("キー1", record.key);
+		assertArrayEquals(new String[] {"tag1", "タグ2"}, record.tags);
+		assertEquals(60, record.age);
+		assertEquals(ByteBuffer.wrap(payload), record.payload);
+		record = reader.read();
+		assertEquals("key2", record.key);
+		assertNull(record.tags);
+		assertEquals(20, record.payload.remaining());
+		assertEquals(0, reader.read().payload.remaining());
+		assertNull(reader.read());
+	}
+
+	@Test
+	public void testTruncated() throws Exception {
+		byte[] b = dump(new BulkDumpFile.Record("key1", null, 0, ByteBuffer.wrap(new byte[100])));
+		BulkDumpFile.Reader reader = new BulkDumpFile.Reader(new ByteArrayInputStream(Arrays.copyOf(b, b.length - 4)));
+		reader.read();
+		try {
+			reader.read();
+			fail();
+		} catch (EOFException e) {
+			// 終端が無い
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotDumpFile() throws Exception {
+		new BulkDumpFile.Reader(new ByteArrayInputStream("1,true,OK\n".getBytes()));
+	}
+}
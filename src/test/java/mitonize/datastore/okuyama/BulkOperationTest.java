@@ -0,0 +1,319 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static mitonize.datastore.okuyama.FakeOkuyamaServer.b64;
+import static mitonize.datastore.okuyama.FakeOkuyamaServer.unb64;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import mitonize.datastore.OperationFailedException;
+
+public class BulkOperationTest {
+	static final int TAG_KEYS = 2500;
+
+	FakeOkuyamaServer server;
+	OkuyamaClientImpl2 client;
+	ExecutorService bulkExecutor;
+	final Set<String> removed = Collections.synchronizedSet(new HashSet<String>());
+	final Set<Integer> connections = Collections.synchronizedSet(new HashSet<Integer>());
+	final Map<String, String[]> stored = new ConcurrentHashMap<String, String[]>();
+	/** タグ "chunked" で取得するキー "big" の値(Base64エンコード済み) */
+	volatile String chunkedValue;
+	/** 追加(プロトコル6)を反映した後、応答を返さずに切断する回数 */
+	final AtomicInteger dropAdds = new AtomicInteger();
+	/** 削除(プロトコル5)に応答する回数。超えると反映せずに切断する。負の場合は切断しない */
+	final AtomicInteger removesBeforeDrop = new AtomicInteger(-1);
+	/** 削除済みのキーの削除に存在しないと応答する場合は true */
+	volatile boolean removeOnce;
+
+	/**
+	 * 格納(プロトコル1、6)、削除(プロトコル5)、複数キーの取得(プロトコル22)、タグのキーの取得(プロトコル3)と
+	 * タグの値の取得(プロトコル23)に応答するサーバを起動する。
+	 * 削除では "missing" で始まるキーは存在しないものとし、"error" で始まるキーは失敗を返す。
+	 */
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeOkuyamaServer() {
+			@Override
+			void handle(Socket socket) throws Exception {
+				BulkOperationTest.this.handle(socket);
+			}
+		};
+		client = server.createClient(2);
+		bulkExecutor = ParallelPipeline.newExecutor();
+		client.setBulkExecutor(bulkExecutor);
+	}
+
+	void handle(Socket socket) throws Exception {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		OutputStream os = socket.getOutputStream();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			StringBuilder sb = new StringBuilder();
+			String[] columns = line.split(",");
+			if (columns[0].equals("5")) {
+				connections.add(socket.getPort());
+				String key = unb64(columns[1]);
+				if (removesBeforeDrop.getAndDecrement() == 0) {
+					break;
+				}
+				if (key.startsWith("missing") || (removeOnce && removed.contains(key))) {
+					sb.append("5,false,\n");
+				} else if (key.startsWith("error")) {
+					sb.append("5,false,NG\n");
+				} else {
+					removed.add(key);
+					sb.append("5,true,").append(b64("value")).append('\n');
+				}
+			} else if (columns[0].equals("1")) {
+				connections.add(socket.getPort());
+				stored.put(unb64(columns[1]), columns);
+				sb.append("1,true,OK\n");
+			} else if (columns[0].equals("6")) {
+				if (stored.containsKey(unb64(columns[1]))) {
+					sb.append("6,false,NG:Data has already exists\n");
+				} else {
+					stored.put(unb64(columns[1]), columns);
+					if (dropAdds.getAndDecrement() > 0) {
+						break;
+					}
+					sb.append("6,true,OK\n");
+				}
+			} else if (columns[0].equals("22")) {
+				for (int i = 1; i < columns.length; ++i) {
+					String[] value = stored.get(unb64(columns[i]));
+					if (value != null) {
+						sb.append("22,true,").append(value[4]).append('\n');
+					} else {
+						sb.append("22,false,\n");
+					}
+				}
+				sb.append("END\n");
+			} else if (columns[0].equals("23") && unb64(columns[1]).equals("chunked")) {
+				sb.append("23,true,").append(b64("big")).append(',').append(chunkedValue).append('\n');
+				sb.append("END\n");
+			} else if (columns[0].equals("23")) {
+				for (int i = 0; i < 3; ++i) {
+					sb.append("23,true,").append(b64("key" + i)).append(',').append(b64("value" + i)).append('\n');
+				}
+				sb.append("23,false,\n");
+				sb.append("END\n");
+			} else if (columns[0].equals("3")) {
+				if (unb64(columns[1]).equals("empty")) {
+					sb.append("4,false,\n");
+				} else if (unb64(columns[1]).equals("chunked")) {
+					sb.append("4,true,").append(b64("big")).append('\n');
+				} else {
+					sb.append("4,true,");
+					for (int i = 0; i < TAG_KEYS; ++i) {
+						sb.append(i == 0 ? "" : ":").append(b64("key" + i));
+					}
+					sb.append('\n');
+				}
+			}
+			os.write(sb.toString().getBytes());
+			os.flush();
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+		client.socketManager.shutdown();
+		bulkExecutor.shutdown();
+	}
+
+	@Test
+	public void testRemoveByTag() throws Exception {
+		final ArrayList<Long> progress = new ArrayList<Long>();
+		long count = client.removeByTag("tag1", 3, new BulkProgressListener() {
+			@Override
+			public void progress(long processed, long succeeded) {
+				progress.add(processed);
+			}
+		});
+		assertEquals(TAG_KEYS, count);
+		assertEquals(TAG_KEYS, removed.size());
+		// 1000件ごとのバッチで通知する
+		assertEquals(3, progress.size());
+		assertEquals(Long.valueOf(TAG_KEYS), Collections.max(progress));
+		assertTrue(connections.size() > 1);
+
+		assertEquals(0, client.removeByTag("empty", 3, null));
+	}
+
+	@Test
+	public void testRemoveAll() throws Exception {
+		ArrayList<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 1500; ++i) {
+			keys.add((i % 3 == 0 ? "missing" : "key") + i);
+		}
+		assertEquals(1000, client.removeAll(keys, 1, null));
+		assertEquals(1000, removed.size());
+		assertEquals(2000, client.removeAll(keys, 2, null) + client.removeAll(keys, 4, null));
+		// 呼び出しごとにスレッドを生成せず、共有のエグゼキュータのスレッドを使い回す
+		assertTrue(((ThreadPoolExecutor) bulkExecutor).getLargestPoolSize() <= 4);
+	}
+
+	@Test
+	public void testRemoveAllRetry() throws Exception {
+		ArrayList<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 10; ++i) {
+			keys.add("key" + i);
+		}
+		removeOnce = true;
+		// 5件の削除に応答した後に切断されてリトライする
+		removesBeforeDrop.set(5);
+		assertEquals(10, client.removeAll(keys, 1, null));
+		assertEquals(10, removed.size());
+	}
+
+	@Test
+	public void testRemoveAllFailure() throws Exception {
+		ArrayList<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 3000; ++i) {
+			keys.add((i == 1200 ? "error" : "key") + i);
+		}
+		try {
+			client.removeAll(keys, 2, null);
+			fail();
+		} catch (OperationFailedException e) {
+			assertEquals("NG", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testDeleteObjectValue() throws Exception {
+		assertTrue(client.deleteObjectValue("key1"));
+		assertFalse(client.deleteObjectValue("missing1"));
+		assertTrue(removed.contains("key1"));
+	}
+
+	@Test
+	public void testSetMulti() throws Exception {
+		LinkedHashMap<String, Object> entries = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < 2500; ++i) {
+			entries.put("key" + i, "value" + i);
+		}
+		final long[] last = new long[2];
+		Map<String, Boolean> results = client.setMulti(entries, new String[] {"tag1", "tag2"}, 60, 3, new BulkProgressListener() {
+			@Override
+			public void progress(long processed, long succeeded) {
+				last[0] = Math.max(last[0], processed);
+				last[1] = Math.max(last[1], succeeded);
+			}
+		});
+		assertEquals(2500, results.size());
+		assertEquals("key0", results.keySet().iterator().next());
+		assertFalse(results.containsValue(Boolean.FALSE));
+		assertEquals(2500, last[0]);
+		assertEquals(2500, last[1]);
+		assertTrue(connections.size() > 1);
+
+		String[] columns = stored.get("key2499");
+		assertEquals(b64("tag1") + ":" + b64("tag2"), columns[2]);
+		assertEquals("value2499", unb64(columns[4]));
+		assertEquals("60", columns[5]);
+	}
+
+	@Test
+	public void testAddMulti() throws Exception {
+		LinkedHashMap<String, Object> entries = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < 10; ++i) {
+			entries.put("key" + i, "value" + i);
+		}
+		client.setMulti(Collections.<String, Object>singletonMap("key3", "old"), null, 0, 1, null);
+		Map<String, Boolean> results = client.addMulti(entries, null, 0, 2, null);
+		for (int i = 0; i < 10; ++i) {
+			assertEquals(i != 3, results.get("key" + i));
+		}
+		assertEquals("(B)", stored.get("key0")[2]);
+		assertEquals("old", unb64(stored.get("key3")[4]));
+	}
+
+	@Test
+	public void testAddMultiRetry() throws Exception {
+		LinkedHashMap<String, Object> entries = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < 10; ++i) {
+			entries.put("key" + i, "value" + i);
+		}
+		client.setMulti(Collections.<String, Object>singletonMap("key3", "old"), null, 0, 1, null);
+		// 最初の追加を反映した後に切断されてリトライする
+		dropAdds.set(1);
+		Map<String, Boolean> results = client.addMulti(entries, null, 0, 1, null);
+		for (int i = 0; i < 10; ++i) {
+			assertEquals(i != 3, results.get("key" + i));
+		}
+	}
+
+	@Test
+	public void testExportAndLoad() throws Exception {
+		OkuyamaBulkTool tool = new OkuyamaBulkTool(client);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		// 2つのタグで同じキーを取得するが、1回だけ書き出す
+		assertEquals(3, tool.export(new String[] {"tag1", "tag2"}, 300, bos));
+
+		BulkDumpFile.Reader reader = new BulkDumpFile.Reader(new ByteArrayInputStream(bos.toByteArray()));
+		BulkDumpFile.Record record = reader.read();
+		assertEquals("key0", record.key);
+		assertArrayEquals(new String[] {"tag1", "tag2"}, record.tags);
+		assertEquals(300, record.age);
+		assertEquals("value0", new String(record.payload.array(), record.payload.position(), record.payload.remaining()));
+
+		assertEquals(3, tool.load(new ByteArrayInputStream(bos.toByteArray()), 2));
+		String[] columns = stored.get("key2");
+		assertEquals(b64("tag1") + ":" + b64("tag2"), columns[2]);
+		assertEquals("value2", unb64(columns[4]));
+		assertEquals("300", columns[5]);
+	}
+
+	@Test
+	public void testExportChunks() throws Exception {
+		ByteBuffer encoded = client.encodeValue("chunked-value", "big");
+		ChunkManifest manifest = new ChunkManifest("big", encoded, 4);
+		chunkedValue = b64(client.serializeObject(manifest, "big"));
+		String[] chunkKeys = manifest.chunkKeys();
+		// 最後の断片は欠けている
+		for (int i = 0; i < chunkKeys.length - 1; ++i) {
+			stored.put(chunkKeys[i], new String[] {"1", b64(chunkKeys[i]), "(B)", "0", b64(manifest.chunk(encoded, i)), "0"});
+		}
+		OkuyamaBulkTool tool = new OkuyamaBulkTool(client);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		assertEquals(chunkKeys.length, tool.export(new String[] {"chunked"}, 0, bos));
+
+		BulkDumpFile.Reader reader = new BulkDumpFile.Reader(new ByteArrayInputStream(bos.toByteArray()));
+		assertEquals("big", reader.read().key);
+		for (int i = 0; i < chunkKeys.length - 1; ++i) {
+			BulkDumpFile.Record record = reader.read();
+			assertEquals(chunkKeys[i], record.key);
+			assertNull(record.tags);
+			assertEquals(manifest.chunk(encoded, i), record.payload);
+		}
+		assertNull(reader.read());
+	}
+}
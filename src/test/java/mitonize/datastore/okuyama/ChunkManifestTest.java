@@ -0,0 +1,113 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import mitonize.datastore.DefaultCompressionStrategy;
+import mitonize.datastore.OperationFailedException;
+
+public class ChunkManifestTest {
+	@Test
+	public void testSplitAndAssemble() {
+		byte[] bytes = new byte[2500];
+		new Random(1).nextBytes(bytes);
+		ByteBuffer encoded = ByteBuffer.wrap(bytes);
+		ChunkManifest manifest = new ChunkManifest("key1", encoded, 1000);
+		assertEquals(3, manifest.count);
+		assertEquals(2500, manifest.length);
+		String[] keys = manifest.chunkKeys();
+		assertEquals("key1#chunk#" + manifest.version + "#2", keys[2]);
+
+		ByteBuffer[] chunks = new ByteBuffer[manifest.count];
+		int total = 0;
+		for (int i = 0; i < chunks.length; ++i) {
+			chunks[i] = manifest.chunk(encoded, i);
+			total += chunks[i].remaining();
+		}
+		assertEquals(2500, total);
+		assertEquals(encoded, manifest.assemble(chunks));
+
+		// 別の書き込みの断片が混ざるとチェックサムが一致しない
+		chunks[1] = ByteBuffer.allocate(chunks[1].remaining());
+		assertNull(manifest.assemble(chunks));
+		chunks[1] = ByteBuffer.allocate(1);
+		assertNull(manifest.assemble(chunks));
+	}
+
+	@Test
+	public void testVersion() {
+		ByteBuffer encoded = ByteBuffer.wrap(new byte[100]);
+		ChunkManifest m1 = new ChunkManifest("key1", encoded, 10);
+		ChunkManifest m2 = new ChunkManifest("key1", encoded, 10);
+		assertFalse(m1.version.equals(m2.version));
+		assertFalse(m1.chunkKeys()[0].equals(m2.chunkKeys()[0]));
+	}
+
+	@Test
+	public void testKey() {
+		ChunkManifest manifest = new ChunkManifest("key#1", ByteBuffer.wrap(new byte[100]), 10);
+		assertEquals("key#1", manifest.key());
+	}
+
+	@Test
+	public void testReadAfterOverwrite() throws Exception {
+		final Map<String, ByteBuffer> store = new HashMap<String, ByteBuffer>();
+		OkuyamaClientImpl2 client = new OkuyamaClientImpl2(null, true, false, null) {
+			@Override
+			ByteBuffer[] getMultiObjectRaw(String... keys) throws IOException, OperationFailedException {
+				ByteBuffer[] raws = new ByteBuffer[keys.length];
+				for (int i = 0; i < keys.length; ++i) {
+					raws[i] = store.get(keys[i]);
+				}
+				return raws;
+			}
+		};
+		ChunkManifest old = new ChunkManifest("key1", ByteBuffer.wrap(new byte[100]), 10);
+		// 読み出す前に上書きされ、古い断片は削除された
+		ByteBuffer encoded = client.encodeValue("value2", "key1");
+		ChunkManifest current = new ChunkManifest("key1", encoded, 2);
+		store.put("key1", client.serializeObject(current, "key1"));
+		String[] chunkKeys = current.chunkKeys();
+		for (int i = 0; i < chunkKeys.length; ++i) {
+			store.put(chunkKeys[i], current.chunk(encoded, i));
+		}
+		assertEquals("value2", client.readChunkedValue(old));
+
+		// 断片が欠けたまま目録が変わらなければ存在しないものとする
+		store.remove(chunkKeys[0]);
+		assertNull(client.readChunkedValue(current));
+
+		// 目録が削除されていれば存在しないものとする
+		store.remove("key1");
+		assertNull(client.readChunkedValue(old));
+
+		// 分割しない値で上書きされていればその値を返す
+		store.put("key1", client.encodeValue("value3", "key1"));
+		assertEquals("value3", client.readChunkedValue(old));
+		assertTrue(store.containsKey(chunkKeys[1]));
+	}
+
+	@Test
+	public void testIsReference() throws Exception {
+		OkuyamaClientImpl2 client = new OkuyamaClientImpl2(null, true, false, new DefaultCompressionStrategy());
+		ByteBuffer encoded = ByteBuffer.wrap(new byte[100]);
+		assertTrue(OkuyamaClientImpl2.isReference(client.encodeValue(new ChunkManifest("key1", encoded, 10), "key1")));
+		assertTrue(OkuyamaClientImpl2.isReference(client.encodeValue(new ContentReference(encoded), "key1")));
+		// 目録や参照でない値は復元せずに判別する
+		HashMap<String, String> map = new HashMap<String, String>();
+		map.put("manifest", "mitonize.datastore.okuyama.ChunkManifest");
+		assertFalse(OkuyamaClientImpl2.isReference(client.encodeValue(map, "key1")));
+		assertFalse(OkuyamaClientImpl2.isReference(client.encodeValue("mitonize.datastore.okuyama.ChunkManifest", "key1")));
+		assertFalse(OkuyamaClientImpl2.isReference(ByteBuffer.allocate(0)));
+	}
+}
@@ -0,0 +1,272 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import mitonize.datastore.KeyValueConsistencyException;
+import mitonize.datastore.OperationFailedException;
+import mitonize.datastore.SocketManager;
+import mitonize.datastore.SocketStreams;
+import mitonize.datastore.ValueFingerprints;
+import mitonize.datastore.ValueUpdater;
+import mitonize.datastore.VersionedValue;
+
+public class ChunkedValueTest {
+	static final int CHUNK_SIZE = 64;
+
+	ServerSocket serverSocket;
+	OkuyamaClientImpl2 client;
+	/** キーと格納したバイト列(Base64デコードしたもの) */
+	final Map<String, ByteBuffer> store = new HashMap<String, ByteBuffer>();
+	final Map<String, Integer> versions = new HashMap<String, Integer>();
+
+	/**
+	 * 通信を伴う操作をマップで実行するクライアントを生成する。ソケットは取得できるだけでよいため、
+	 * 接続を受け付けないサーバソケットに接続する。
+	 */
+	@Before
+	public void setUp() throws Exception {
+		serverSocket = new ServerSocket(0);
+		SocketManager socketManager = new SocketManager(new String[] {"localhost:" + serverSocket.getLocalPort()}, 1);
+		client = new OkuyamaClientImpl2(socketManager, true, false, null) {
+			@Override
+			void executePipelined(SocketStreams socket, List<? extends PipelinedRequest> requests, Object[] results) throws IOException, OperationFailedException {
+				for (int i = 0; i < results.length; ++i) {
+					results[i] = execute(requests.get(i));
+				}
+			}
+
+			Object execute(PipelinedRequest request) throws IOException, OperationFailedException {
+				if (request instanceof GetVersionCheckRequest) {
+					String key = ((GetVersionCheckRequest) request).key;
+					ByteBuffer raw = store.get(key);
+					return raw == null ? null : new VersionedValue(raw.duplicate(), String.valueOf(versions.get(key)));
+				}
+				if (request instanceof RemoveRequest) {
+					return store.remove(((RemoveRequest) request).key) != null;
+				}
+				SetRequest set = (SetRequest) request;
+				ByteBuffer raw = set.encoded != null ? set.encoded : encodeValue(set.value, set.key);
+				if (request instanceof AddRequest) {
+					return add(set.key, raw);
+				} else if (request instanceof SetVersionCheckRequest) {
+					return setVersionCheck(set.key, raw, ((SetVersionCheckRequest) request).version);
+				}
+				return put(set.key, raw);
+			}
+
+			@Override
+			ByteBuffer[] getMultiObjectRaw(String... keys) throws IOException, OperationFailedException {
+				ByteBuffer[] raws = new ByteBuffer[keys.length];
+				for (int i = 0; i < keys.length; ++i) {
+					ByteBuffer raw = store.get(keys[i]);
+					raws[i] = raw == null ? null : raw.duplicate();
+				}
+				return raws;
+			}
+
+			@Override
+			boolean _setObjectValue(String key, Object value, ByteBuffer encoded, String[] tags, long age) throws IOException, OperationFailedException {
+				return put(key, encoded != null ? encoded : encodeValue(value, key));
+			}
+
+			@Override
+			boolean _addObjectValue(String key, Object value, ByteBuffer encoded, String[] tags, long age) throws IOException, OperationFailedException {
+				return add(key, encoded != null ? encoded : encodeValue(value, key));
+			}
+
+			@Override
+			boolean _setObjectValueVersionCheck(String key, Object value, ByteBuffer encoded, String version, String[] tags, long age) throws IOException, OperationFailedException {
+				Object result = setVersionCheck(key, encoded != null ? encoded : encodeValue(value, key), version);
+				if (result instanceof KeyValueConsistencyException) {
+					throw (KeyValueConsistencyException) result;
+				}
+				return true;
+			}
+		};
+		client.setChunkSize(CHUNK_SIZE);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.socketManager.shutdown();
+		serverSocket.close();
+	}
+
+	boolean put(String key, ByteBuffer raw) {
+		Integer version = versions.get(key);
+		versions.put(key, version == null ? 1 : version + 1);
+		store.put(key, raw);
+		return true;
+	}
+
+	boolean add(String key, ByteBuffer raw) {
+		if (store.containsKey(key)) {
+			return false;
+		}
+		return put(key, raw);
+	}
+
+	Object setVersionCheck(String key, ByteBuffer raw, String version) {
+		if (!store.containsKey(key) || !String.valueOf(versions.get(key)).equals(version)) {
+			return new KeyValueConsistencyException("NG:Data has already been updated");
+		}
+		return put(key, raw);
+	}
+
+	static String large(String prefix) {
+		StringBuilder sb = new StringBuilder(prefix);
+		while (sb.length() < CHUNK_SIZE * 3) {
+			sb.append(sb.length());
+		}
+		return sb.toString();
+	}
+
+	Object read(String key) throws Exception {
+		return client.decodeValue(store.get(key).duplicate());
+	}
+
+	ChunkManifest manifest(String key) throws Exception {
+		Object value = client.decodeLocal(store.get(key).duplicate());
+		return value instanceof ChunkManifest ? (ChunkManifest) value : null;
+	}
+
+	/** 値のキー以外に残っている断片のキー */
+	List<String> chunkKeys() {
+		ArrayList<String> keys = new ArrayList<String>();
+		for (String key: store.keySet()) {
+			if (key.contains("#chunk#")) {
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	@Test
+	public void testUpdateChunkedValue() throws Exception {
+		client.setObjectValue("key1", large("a"), null, 0);
+		ChunkManifest old = manifest("key1");
+		assertEquals(old.count, chunkKeys().size());
+
+		// 分割して格納されていた値を大きな値に更新すると、新しい断片に格納して以前の断片を削除する
+		final String updated = large("b");
+		assertEquals(updated, client.updateObjectValue("key1", new ValueUpdater() {
+			@Override
+			public Object update(Object current) {
+				assertEquals(large("a"), current);
+				return updated;
+			}
+		}, null, 0));
+		ChunkManifest current = manifest("key1");
+		assertFalse(old.version.equals(current.version));
+		assertEquals(updated, read("key1"));
+		assertEquals(new HashSet<String>(Arrays.asList(current.chunkKeys())), new HashSet<String>(chunkKeys()));
+
+		// 小さな値に更新すると断片は残らない
+		client.updateObjectValue("key1", new ValueUpdater() {
+			@Override
+			public Object update(Object current) {
+				return "small";
+			}
+		}, null, 0);
+		assertEquals("small", read("key1"));
+		assertTrue(chunkKeys().isEmpty());
+	}
+
+	@Test
+	public void testAddChunkedValue() throws Exception {
+		assertTrue(client.addObjectValue("key1", large("a"), null, 0));
+		assertEquals(large("a"), read("key1"));
+		int chunks = chunkKeys().size();
+		// 既に存在する場合は格納した断片を削除する
+		assertFalse(client.addObjectValue("key1", large("b"), null, 0));
+		assertEquals(large("a"), read("key1"));
+		assertEquals(chunks, chunkKeys().size());
+	}
+
+	@Test
+	public void testSetVersionCheckChunkedValue() throws Exception {
+		client.setObjectValue("key1", "small", null, 0);
+		String version = String.valueOf(versions.get("key1"));
+		assertTrue(client.setObjectValueVersionCheck("key1", large("a"), version, null, 0));
+		assertEquals(large("a"), read("key1"));
+		int chunks = chunkKeys().size();
+		// 競合した場合は格納した断片を削除する
+		try {
+			client.setObjectValueVersionCheck("key1", large("b"), version, null, 0);
+			fail();
+		} catch (KeyValueConsistencyException e) {
+		}
+		assertEquals(large("a"), read("key1"));
+		assertEquals(chunks, chunkKeys().size());
+	}
+
+	@Test
+	public void testSetObjectValues() throws Exception {
+		List<OkuyamaClientImpl2.SetRequest> requests = Arrays.asList(
+				client.new SetRequest("key1", "small", null, 0),
+				client.new SetRequest("key2", large("a"), null, 0));
+		Object[] results = client.setObjectValues(requests);
+		assertArrayEquals(new Object[] { Boolean.TRUE, Boolean.TRUE }, results);
+		assertEquals("small", read("key1"));
+		assertEquals(large("a"), read("key2"));
+		assertTrue(manifest("key2") != null);
+	}
+
+	@Test
+	public void testDeduplicatedValueFingerprint() throws Exception {
+		ValueFingerprints fingerprints = new ValueFingerprints(100);
+		client.setValueFingerprints(fingerprints);
+		client.setDeduplication(CHUNK_SIZE, null);
+		assertTrue(client.setObjectValue("key1", large("a"), null, 0));
+		assertTrue(client.decodeLocal(store.get("key1").duplicate()) instanceof ContentReference);
+		// 参照を格納した値と同じ値の書き込みは省略する
+		assertTrue(client.setObjectValue("key1", large("a"), null, 0));
+		assertEquals(Integer.valueOf(1), versions.get("key1"));
+		assertEquals(1, fingerprints.getSuppressedCount());
+	}
+
+	@Test
+	public void testMaxValueSize() throws Exception {
+		client.setChunkSize(0);
+		client.setMaxValueSize(CHUNK_SIZE);
+		try {
+			client.addObjectValue("key1", large("a"), null, 0);
+			fail();
+		} catch (OperationFailedException e) {
+		}
+		Object[] results = client.setObjectValues(Arrays.asList(client.new SetRequest("key1", large("a"), null, 0)));
+		assertTrue(results[0] instanceof OperationFailedException);
+		assertTrue(store.isEmpty());
+	}
+
+	@Test
+	public void testTransactionRejectsChunkedValue() throws Exception {
+		OkuyamaTransaction tx = new OkuyamaTransaction(client);
+		tx.set("key1", "small", null, 0);
+		tx.set("key2", large("a"), null, 0);
+		try {
+			tx.commit();
+			fail();
+		} catch (OperationFailedException e) {
+		}
+		assertTrue(store.isEmpty());
+	}
+}
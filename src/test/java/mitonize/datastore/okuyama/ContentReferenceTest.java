@@ -0,0 +1,26 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ContentReferenceTest {
+	@Test
+	public void testBlobKey() {
+		ContentReference r1 = new ContentReference(ByteBuffer.wrap("template".getBytes()));
+		ContentReference r2 = new ContentReference(ByteBuffer.wrap("template".getBytes()));
+		ContentReference r3 = new ContentReference(ByteBuffer.wrap("template2".getBytes()));
+		assertEquals(r1.blobKey, r2.blobKey);
+		assertFalse(r1.blobKey.equals(r3.blobKey));
+		assertEquals(8, r1.length);
+		assertEquals(ContentReference.KEY_PREFIX.length() + 64, r1.blobKey.length());
+	}
+
+	@Test
+	public void testSha256() {
+		assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", ContentReference.sha256(ByteBuffer.allocate(0)));
+	}
+}
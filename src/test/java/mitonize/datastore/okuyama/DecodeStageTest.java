@@ -0,0 +1,50 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import mitonize.datastore.Base64;
+
+public class DecodeStageTest {
+	static ByteBuffer field(OkuyamaClientImpl2 client, Object value) throws Exception {
+		return Base64.encodeBuffer(client.encodeValue(value, "key"));
+	}
+
+	@Test
+	public void testOrderPreserved() throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			OkuyamaClientImpl2 client = new OkuyamaClientImpl2(null, true, false, null);
+			client.setDecodePool(pool, 16);
+			OkuyamaClientImpl2.DecodeStage stage = client.new DecodeStage();
+			for (int i = 0; i < 200; ++i) {
+				if (i % 10 == 0) {
+					stage.add(null);
+				} else if (i % 2 == 0) {
+					stage.add(field(client, new Date(i)));
+				} else {
+					stage.add(field(client, "v" + i));
+				}
+			}
+			Object[] values = stage.finish();
+			assertEquals(200, values.length);
+			for (int i = 0; i < 200; ++i) {
+				if (i % 10 == 0) {
+					assertNull(values[i]);
+				} else if (i % 2 == 0) {
+					assertEquals(new Date(i), values[i]);
+				} else {
+					assertEquals("v" + i, values[i]);
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
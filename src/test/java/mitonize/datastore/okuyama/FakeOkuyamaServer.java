@@ -0,0 +1,96 @@
+package mitonize.datastore.okuyama;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import mitonize.datastore.Base64;
+import mitonize.datastore.SocketManager;
+
+/**
+ * テスト用に決まった応答を返すサーバ。接続ごとにスレッドを起動して {@link #handle(Socket)} を呼び出し、
+ * 戻るか例外が発生すると接続を閉じる。
+ */
+abstract class FakeOkuyamaServer implements Closeable {
+	final ServerSocket serverSocket;
+
+	static String b64(String s) {
+		ByteBuffer b = Base64.encodeBuffer(ByteBuffer.wrap(s.getBytes()));
+		return new String(b.array(), b.position(), b.remaining());
+	}
+
+	static String b64(ByteBuffer b) {
+		ByteBuffer e = Base64.encodeBuffer(b.duplicate());
+		return new String(e.array(), e.position(), e.remaining());
+	}
+
+	static String unb64(String s) {
+		ByteBuffer b = Base64.decodeBuffer(ByteBuffer.wrap(s.getBytes()));
+		return new String(b.array(), b.position(), b.remaining());
+	}
+
+	/**
+	 * 空いているポートで接続の受け付けを開始する。
+	 * @throws IOException サーバソケットを開けない場合
+	 */
+	FakeOkuyamaServer() throws IOException {
+		serverSocket = new ServerSocket(0);
+		Thread server = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = serverSocket.accept();
+						Thread handler = new Thread() {
+							@Override
+							public void run() {
+								try {
+									handle(socket);
+								} catch (Exception e) {
+									// 応答せずに切断する
+								} finally {
+									try {
+										socket.close();
+									} catch (IOException e) {
+									}
+								}
+							}
+						};
+						handler.setDaemon(true);
+						handler.start();
+					}
+				} catch (Exception e) {
+					// サーバソケットを閉じると終了する
+				}
+			}
+		};
+		server.setDaemon(true);
+		server.start();
+	}
+
+	/**
+	 * 1つの接続のリクエストに応答する。
+	 * @param socket 受け付けたソケット
+	 * @throws Exception 接続を切断する場合
+	 */
+	abstract void handle(Socket socket) throws Exception;
+
+	/**
+	 * このサーバに接続するクライアントを生成する。
+	 * @param maxPoolSize ソケットプールの最大数
+	 * @return クライアント
+	 * @throws UnknownHostException ホスト名が解決できない場合
+	 */
+	OkuyamaClientImpl2 createClient(int maxPoolSize) throws UnknownHostException {
+		SocketManager socketManager = new SocketManager(new String[] {"localhost:" + serverSocket.getLocalPort()}, maxPoolSize);
+		return new OkuyamaClientImpl2(socketManager, true, false, null);
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+}
@@ -0,0 +1,457 @@
+package mitonize.datastore.okuyama;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mitonize.datastore.CloseableIterator;
+import mitonize.datastore.KeyList;
+import mitonize.datastore.KeyValueConsistencyException;
+import mitonize.datastore.OperationFailedException;
+import mitonize.datastore.Pair;
+import mitonize.datastore.ValueUpdater;
+import mitonize.datastore.VersionedValue;
+
+/**
+ * テスト用にメモリ上で値を保持するクライアント。有効時間とバージョンを模擬する。
+ */
+public class InMemoryOkuyamaClient implements OkuyamaClient {
+	static class Entry {
+		final Object value;
+		final long version;
+		final long expiresAt;
+
+		Entry(Object value, long version, long expiresAt) {
+			this.value = value;
+			this.version = version;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * 複数のクライアントで共有するデータ。
+	 */
+	public static class Store {
+		final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+		final HashMap<String, LinkedHashSet<String>> tags = new HashMap<String, LinkedHashSet<String>>();
+		final AtomicInteger requestCount = new AtomicInteger();
+		long nextVersion = 1;
+
+		public int getRequestCount() {
+			return requestCount.get();
+		}
+
+		synchronized Entry get(String key) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.expiresAt > 0 && entry.expiresAt <= System.currentTimeMillis()) {
+				entries.remove(key);
+				return null;
+			}
+			return entry;
+		}
+
+		synchronized void put(String key, Object value, String[] tags, long age) {
+			long expiresAt = age > 0 ? System.currentTimeMillis() + age * 1000 : 0;
+			entries.put(key, new Entry(value, nextVersion++, expiresAt));
+			if (tags != null) {
+				for (String tag: tags) {
+					LinkedHashSet<String> keys = this.tags.get(tag);
+					if (keys == null) {
+						keys = new LinkedHashSet<String>();
+						this.tags.put(tag, keys);
+					}
+					keys.add(key);
+				}
+			}
+		}
+	}
+
+	final Store store;
+
+	public InMemoryOkuyamaClient(Store store) {
+		this.store = store;
+	}
+
+	@Override
+	public String getMasterNodeVersion() throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		return "0.9.6";
+	}
+
+	@Override
+	public long initClient() throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		return 2560 * 1024;
+	}
+
+	@Override
+	public boolean setObjectValue(String key, Object value, String[] tags, long age) throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		store.put(key, value, tags, age);
+		return true;
+	}
+
+	@Override
+	public Object getObjectValue(String key) throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		Entry entry = store.get(key);
+		return entry == null ? null : entry.value;
+	}
+
+	@Override
+	public Object removeObjectValue(String key) throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		synchronized (store) {
+			Entry entry = store.get(key);
+			store.entries.remove(key);
+			return entry == null ? null : entry.value;
+		}
+	}
+
+	@Override
+	public Map<String, Boolean> setMulti(Map<String, ?> entries, String[] tags, long age, int concurrency, BulkProgressListener listener) throws IOException, OperationFailedException {
+		LinkedHashMap<String, Boolean> stored = new LinkedHashMap<String, Boolean>();
+		for (Map.Entry<String, ?> e: entries.entrySet()) {
+			stored.put(e.getKey(), setObjectValue(e.getKey(), e.getValue(), tags, age));
+		}
+		if (listener != null) {
+			listener.progress(entries.size(), entries.size());
+		}
+		return stored;
+	}
+
+	@Override
+	public Map<String, Boolean> addMulti(Map<String, ?> entries, String[] tags, long age, int concurrency, BulkProgressListener listener) throws IOException, OperationFailedException {
+		LinkedHashMap<String, Boolean> stored = new LinkedHashMap<String, Boolean>();
+		long count = 0;
+		for (Map.Entry<String, ?> e: entries.entrySet()) {
+			boolean added = addObjectValue(e.getKey(), e.getValue(), tags, age);
+			stored.put(e.getKey(), added);
+			if (added) {
+				++count;
+			}
+		}
+		if (listener != null) {
+			listener.progress(entries.size(), count);
+		}
+		return stored;
+	}
+
+	@Override
+	public boolean deleteObjectValue(String key) throws IOException, OperationFailedException {
+		return removeObjectValue(key) != null;
+	}
+
+	@Override
+	public long removeAll(Collection<String> keys, int concurrency, BulkProgressListener listener) throws IOException, OperationFailedException {
+		long removed = 0;
+		for (String key: keys) {
+			if (deleteObjectValue(key)) {
+				++removed;
+			}
+		}
+		if (listener != null) {
+			listener.progress(keys.size(), removed);
+		}
+		return removed;
+	}
+
+	@Override
+	public long removeByTag(String tag, int concurrency, BulkProgressListener listener) throws IOException, OperationFailedException {
+		String[] keys;
+		try {
+			keys = getTagKeys(tag, false);
+		} catch (OperationFailedException e) {
+			keys = new String[0];
+		}
+		return removeAll(Arrays.asList(keys), concurrency, listener);
+	}
+
+	@Override
+	public boolean addObjectValue(String key, Object value, String[] tags, long age) throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		synchronized (store) {
+			if (store.get(key) != null) {
+				return false;
+			}
+			store.put(key, value, tags, age);
+			return true;
+		}
+	}
+
+	@Override
+	public String[] getTagKeys(String tag, boolean withDeletedKeys) throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		synchronized (store) {
+			LinkedHashSet<String> keys = store.tags.get(tag);
+			if (keys == null) {
+				throw new OperationFailedException("");
+			}
+			ArrayList<String> list = new ArrayList<String>();
+			for (String key: keys) {
+				if (withDeletedKeys || store.get(key) != null) {
+					list.add(key);
+				}
+			}
+			return list.toArray(new String[list.size()]);
+		}
+	}
+
+	@Override
+	public Object[] getMultiObjectValues(String... keys) throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		ArrayList<Object> list = new ArrayList<Object>();
+		for (String key: keys) {
+			Entry entry = store.get(key);
+			if (entry != null) {
+				list.add(entry.value);
+			}
+		}
+		return list.toArray();
+	}
+
+	@Override
+	public LazyValue[] getMultiLazyValues(String... keys) throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		LazyValue[] values = new LazyValue[keys.length];
+		for (int i = 0; i < keys.length; ++i) {
+			Entry entry = store.get(keys[i]);
+			values[i] = entry == null ? null : LazyValue.of(entry.value);
+		}
+		return values;
+	}
+
+	@Override
+	public Pair[] getLazyPairsByTag(String tag) throws IOException, OperationFailedException {
+		Pair[] pairs = getPairsByTag(tag);
+		for (int i = 0; i < pairs.length; ++i) {
+			pairs[i] = new Pair(pairs[i].getKey(), LazyValue.of(pairs[i].getValue()));
+		}
+		return pairs;
+	}
+
+	@Override
+	public CloseableIterator<Pair> iteratePairsByTag(String tag) throws IOException {
+		try {
+			return iterate(Arrays.asList(getPairsByTag(tag)));
+		} catch (OperationFailedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public CloseableIterator<String> iterateTagKeys(String tag, boolean withDeletedKeys) throws IOException {
+		try {
+			return iterate(Arrays.asList(getTagKeys(tag, withDeletedKeys)));
+		} catch (OperationFailedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public CloseableIterator<Pair> iterateMultiObjectValues(String... keys) throws IOException {
+		store.requestCount.incrementAndGet();
+		ArrayList<Pair> pairs = new ArrayList<Pair>();
+		for (String key: keys) {
+			Entry entry = store.get(key);
+			pairs.add(new Pair(key, entry == null ? null : entry.value));
+		}
+		return iterate(pairs);
+	}
+
+	@Override
+	public KeyList getTagKeyList(String tag, boolean withDeletedKeys) throws IOException, OperationFailedException {
+		return KeyList.of(getTagKeys(tag, withDeletedKeys));
+	}
+
+	@Override
+	public Object[] getMultiObjectValues(KeyList keys, int from, int to) throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		Object[] values = new Object[to - from];
+		for (int i = from; i < to; ++i) {
+			Entry entry = store.get(keys.get(i));
+			values[i - from] = entry == null ? null : entry.value;
+		}
+		return values;
+	}
+
+	@Override
+	public String[] getMultiTagKeys(String[] tags, boolean and) throws IOException, OperationFailedException {
+		LinkedHashSet<String> result = null;
+		for (String tag: tags) {
+			List<String> keys;
+			try {
+				keys = Arrays.asList(getTagKeys(tag, false));
+			} catch (OperationFailedException e) {
+				// キーを持たないタグ
+				keys = new ArrayList<String>();
+			}
+			if (result == null) {
+				result = new LinkedHashSet<String>(keys);
+			} else if (and) {
+				result.retainAll(keys);
+			} else {
+				result.addAll(keys);
+			}
+		}
+		return result == null ? new String[0] : result.toArray(new String[result.size()]);
+	}
+
+	@Override
+	public Pair[] getMultiTagPairs(String[] tags, boolean and) throws IOException, OperationFailedException {
+		ArrayList<Pair> pairs = new ArrayList<Pair>();
+		for (String key: getMultiTagKeys(tags, and)) {
+			Entry entry = store.get(key);
+			if (entry != null) {
+				pairs.add(new Pair(key, entry.value));
+			}
+		}
+		return pairs.toArray(new Pair[pairs.size()]);
+	}
+
+	static <T> CloseableIterator<T> iterate(List<T> list) {
+		final Iterator<T> it = list.iterator();
+		return new CloseableIterator<T>() {
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public T next() {
+				return it.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Override
+	public Pair[] getPairsByTag(String tag) throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		synchronized (store) {
+			ArrayList<Pair> list = new ArrayList<Pair>();
+			LinkedHashSet<String> keys = store.tags.get(tag);
+			if (keys != null) {
+				for (String key: keys) {
+					Entry entry = store.get(key);
+					if (entry != null) {
+						list.add(new Pair(key, entry.value));
+					}
+				}
+			}
+			return list.toArray(new Pair[list.size()]);
+		}
+	}
+
+	@Override
+	public VersionedValue getObjectValueVersionCheck(String key) throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		Entry entry = store.get(key);
+		return entry == null ? null : new VersionedValue(entry.value, String.valueOf(entry.version));
+	}
+
+	@Override
+	public VersionedValue[] getMultiObjectValuesVersionCheck(String... keys) throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		VersionedValue[] values = new VersionedValue[keys.length];
+		for (int i = 0; i < keys.length; ++i) {
+			Entry entry = store.get(keys[i]);
+			values[i] = entry == null ? null : new VersionedValue(entry.value, String.valueOf(entry.version));
+		}
+		return values;
+	}
+
+	@Override
+	public boolean setObjectValueVersionCheck(String key, Object value, String version, String[] tags, long age)
+			throws IOException, OperationFailedException, KeyValueConsistencyException {
+		store.requestCount.incrementAndGet();
+		synchronized (store) {
+			Entry entry = store.get(key);
+			if (entry == null || !String.valueOf(entry.version).equals(version)) {
+				throw new KeyValueConsistencyException("NG:Data has already been updated");
+			}
+			store.put(key, value, tags, age);
+			return true;
+		}
+	}
+
+	@Override
+	public Object updateObjectValue(String key, ValueUpdater updater, String[] tags, long age) throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		synchronized (store) {
+			Entry entry = store.get(key);
+			Object current = entry == null ? null : entry.value;
+			Object value;
+			try {
+				value = updater.update(current);
+			} catch (Exception e) {
+				throw new OperationFailedException("Failed to update value", e);
+			}
+			if (value == null) {
+				return current;
+			}
+			store.put(key, value, tags, age);
+			return value;
+		}
+	}
+
+	@Override
+	public long incrValue(String key, long delta) throws IOException, OperationFailedException {
+		store.requestCount.incrementAndGet();
+		synchronized (store) {
+			Entry entry = store.get(key);
+			long value = delta;
+			if (entry != null) {
+				try {
+					value = Long.parseLong(entry.value.toString()) + delta;
+				} catch (NumberFormatException e) {
+					throw new OperationFailedException("NG:Not a number");
+				}
+			}
+			store.put(key, Long.toString(value), null, 0);
+			return value;
+		}
+	}
+
+	@Override
+	public long decrValue(String key, long delta) throws IOException, OperationFailedException {
+		synchronized (store) {
+			if (store.get(key) == null) {
+				store.requestCount.incrementAndGet();
+				store.put(key, "0", null, 0);
+				return 0;
+			}
+			return incrValue(key, -delta);
+		}
+	}
+
+	/**
+	 * 格納されている値を取得する。テストの検証用。
+	 * @return キーと値
+	 */
+	public Map<String, Object> snapshot() {
+		synchronized (store) {
+			HashMap<String, Object> map = new HashMap<String, Object>();
+			for (Map.Entry<String, Entry> e: store.entries.entrySet()) {
+				map.put(e.getKey(), e.getValue().value);
+			}
+			return map;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package mitonize.datastore.okuyama;
+
+/**
+ * {@link InMemoryOkuyamaClient}を生成するテスト用のファクトリ。生成したクライアントはデータを共有する。
+ */
+public class InMemoryOkuyamaClientFactory implements OkuyamaClientFactory {
+	final InMemoryOkuyamaClient.Store store = new InMemoryOkuyamaClient.Store();
+
+	@Override
+	public InMemoryOkuyamaClient createClient() {
+		return new InMemoryOkuyamaClient(store);
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	public InMemoryOkuyamaClient.Store getStore() {
+		return store;
+	}
+}
@@ -0,0 +1,36 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+public class LazyValueTest {
+	@Test
+	public void testDecodeOnFirstAccess() throws Exception {
+		OkuyamaClientImpl2 client = new OkuyamaClientImpl2(null, true, false, null);
+		Date date = new Date();
+		LazyValue value = new LazyValue(client, client.encodeValue(date, "key1"));
+		assertFalse(value.isDecoded());
+		assertTrue(value.getEncodedLength() > 0);
+		Object decoded = value.get();
+		assertEquals(date, decoded);
+		assertTrue(value.isDecoded());
+		assertSame(decoded, value.get());
+
+		LazyValue str = new LazyValue(client, client.encodeValue("abc", "key2"));
+		assertEquals("abc", str.get());
+	}
+
+	@Test
+	public void testOf() throws Exception {
+		LazyValue value = LazyValue.of("abc");
+		assertTrue(value.isDecoded());
+		assertEquals(-1, value.getEncodedLength());
+		assertEquals("abc", value.get());
+	}
+}
@@ -0,0 +1,133 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import mitonize.datastore.NearCache;
+import mitonize.datastore.OperationFailedException;
+import mitonize.datastore.VersionedValue;
+
+public class NearCacheRevalidatorTest {
+	InMemoryOkuyamaClient store;
+	OkuyamaClientImpl2 client;
+	NearCache cache;
+	OkuyamaClientFactoryImpl factory;
+	/** パイプライン化したリクエストを実行した回数 */
+	int executions;
+	/** 問い合わせに失敗したことにするキー */
+	final Set<String> failures = new HashSet<String>();
+
+	/**
+	 * バージョンの問い合わせを {@link InMemoryOkuyamaClient} で実行するクライアントを生成する。
+	 */
+	@Before
+	public void setUp() throws Exception {
+		store = new InMemoryOkuyamaClient(new InMemoryOkuyamaClient.Store());
+		client = new OkuyamaClientImpl2(null, true, false, null) {
+			@Override
+			Object[] executePipelined(List<? extends PipelinedRequest> requests) throws IOException, OperationFailedException {
+				++executions;
+				Object[] results = new Object[requests.size()];
+				for (int i = 0; i < results.length; ++i) {
+					String key = ((GetVersionCheckRequest) requests.get(i)).key;
+					if (failures.contains(key)) {
+						results[i] = new OperationFailedException("NG");
+						continue;
+					}
+					VersionedValue versioned = store.getObjectValueVersionCheck(key);
+					results[i] = versioned == null ? null : new VersionedValue(encodeValue(versioned.getValue(), key), versioned.getVersion());
+				}
+				return results;
+			}
+		};
+		cache = new NearCache(100);
+		cache.setDefaultTimeToLiveInMillis(60000);
+		factory = new OkuyamaClientFactoryImpl(new String[] {"localhost:1"}, 1) {
+			@Override
+			public OkuyamaClient createClient() {
+				return client;
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		factory.destroy();
+	}
+
+	/** データストアの値をバージョンと共にニアキャッシュに格納する */
+	void cache(String key) throws Exception {
+		VersionedValue versioned = store.getObjectValueVersionCheck(key);
+		cache.put(key, versioned.getValue(), 10, versioned.getVersion(), cache.stamp(key));
+	}
+
+	@Test
+	public void testUnchanged() throws Exception {
+		store.setObjectValue("a", "1", null, 0);
+		cache("a");
+		NearCache.Entry entry = cache.lookup("a");
+		Thread.sleep(10);
+		new NearCacheRevalidator(factory, cache).revalidate(client, cache.hottestEntries(10));
+		// バージョンが変わっていなければ有効期限を延長する
+		NearCache.Entry renewed = cache.lookup("a");
+		assertEquals("1", renewed.getValue());
+		assertEquals(entry.getVersion(), renewed.getVersion());
+		assertTrue(renewed.getExpiresAt() > entry.getExpiresAt());
+		assertEquals(0, cache.getStatistics().getStaleCount());
+	}
+
+	@Test
+	public void testChanged() throws Exception {
+		store.setObjectValue("a", "1", null, 0);
+		cache("a");
+		String version = cache.lookup("a").getVersion();
+		store.setObjectValue("a", "2", null, 0);
+		new NearCacheRevalidator(factory, cache).revalidate(client, cache.hottestEntries(10));
+		// バージョンが変わっていれば新しい値で置き換える
+		NearCache.Entry refreshed = cache.lookup("a");
+		assertEquals("2", refreshed.getValue());
+		assertEquals(store.getObjectValueVersionCheck("a").getVersion(), refreshed.getVersion());
+		assertTrue(!version.equals(refreshed.getVersion()));
+		assertEquals(1, cache.getStatistics().getStaleCount());
+	}
+
+	@Test
+	public void testRemoved() throws Exception {
+		store.setObjectValue("a", "1", null, 0);
+		store.setObjectValue("b", "2", null, 0);
+		cache("a");
+		cache("b");
+		store.removeObjectValue("a");
+		failures.add("b");
+		new NearCacheRevalidator(factory, cache).revalidate(client, cache.hottestEntries(10));
+		// 削除されていたエントリは破棄し、確認できなかったエントリはそのまま残す
+		assertNull(cache.lookup("a"));
+		assertEquals("2", cache.lookup("b").getValue());
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		for (int i = 0; i < 5; ++i) {
+			store.setObjectValue("key" + i, String.valueOf(i), null, 0);
+			cache("key" + i);
+		}
+		store.setObjectValue("key4", "new", null, 0);
+		cache.setRevalidationMaxEntries(10);
+		cache.setRevalidationBatchSize(2);
+		assertEquals(5, new NearCacheRevalidator(factory, cache).revalidate());
+		// 1回に問い合わせる数ごとにパイプライン化する
+		assertEquals(3, executions);
+		assertEquals("new", cache.lookup("key4").getValue());
+		assertEquals(5, cache.getStatistics().getRevalidationCount());
+	}
+}
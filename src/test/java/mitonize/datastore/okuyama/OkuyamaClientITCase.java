@@ -1,5 +1,6 @@
 package mitonize.datastore.okuyama;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
@@ -8,9 +9,11 @@ import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Random;
 
 import org.junit.BeforeClass;
 import org.junit.Ignore;
@@ -18,9 +21,12 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import mitonize.datastore.KeyList;
 import mitonize.datastore.KeyValueConsistencyException;
+import mitonize.datastore.NearCache;
 import mitonize.datastore.OperationFailedException;
 import mitonize.datastore.Pair;
+import mitonize.datastore.ValueUpdater;
 import mitonize.datastore.VersionedValue;
 
 public class OkuyamaClientITCase {
@@ -268,6 +274,52 @@ public class OkuyamaClientITCase {
 		log(METHOD_NAME, Arrays.toString(strs));
 	}
 
+	@Test
+	public void test4_1_tagcache() throws IOException, OperationFailedException {
+		String[] endpoints = System.getProperty(OKUYAMA_ENDPOINTS, "127.0.0.1:8888").split(",");
+		OkuyamaClientFactoryImpl cachedFactory = new OkuyamaClientFactoryImpl(endpoints, 2, compatibility, verbose);
+		NearCache tagCache = new NearCache(100);
+		cachedFactory.setTagCache(tagCache);
+		try {
+			OkuyamaClient client = cachedFactory.createClient();
+			String tag = "tagcache_" + System.currentTimeMillis();
+			client.setObjectValue("TAGCACHE1", "1", new String[]{tag}, 0);
+			assertEquals(1, client.getTagKeys(tag, false).length);
+			assertEquals(1, client.getTagKeys(tag, false).length);
+			assertEquals(1, tagCache.getStatistics().getHitCount());
+
+			// タグを指定した書き込みで無効化される
+			client.setObjectValue("TAGCACHE2", "2", new String[]{tag}, 0);
+			assertEquals(2, client.getTagKeys(tag, false).length);
+		} finally {
+			cachedFactory.destroy();
+		}
+	}
+
+	@Test
+	public void test4_2_requestscope() throws IOException, OperationFailedException {
+		OkuyamaClient client = factory.createClient();
+		client.setObjectValue("SCOPE1", "1", null, 0);
+		client.setObjectValue("SCOPE2", "2", null, 0);
+		client.removeObjectValue("SCOPE3");
+
+		OkuyamaRequestScope scope = factory.openRequestScope();
+		try {
+			scope.prefetch("SCOPE1", "SCOPE2", "SCOPE3");
+			assertEquals("1", client.getObjectValue("SCOPE1"));
+			assertEquals(3, scope.getMissCount());
+			assertEquals("2", factory.createClient().getObjectValue("SCOPE2"));
+			assertNull(client.getObjectValue("SCOPE3"));
+			assertEquals(2, scope.getHitCount());
+
+			client.setObjectValue("SCOPE1", "1-new", null, 0);
+			assertEquals("1-new", client.getObjectValue("SCOPE1"));
+			assertEquals(3, scope.getMissCount());
+		} finally {
+			scope.close();
+		}
+	}
+
 	@Test
 	public void test5_0() throws IOException, OperationFailedException {
 		final String METHOD_NAME = "test5_0";
@@ -312,6 +364,179 @@ public class OkuyamaClientITCase {
 		client.removeObjectValue(key);
 	}
 
+	@Test
+	public void test13_incr() throws IOException, OperationFailedException {
+		OkuyamaClient client = factory.createClient();
+		client.removeObjectValue("COUNTER1");
+		assertEquals(5, client.incrValue("COUNTER1", 5));
+		assertEquals(8, client.incrValue("COUNTER1", 3));
+		assertEquals(6, client.decrValue("COUNTER1", 2));
+		assertEquals("6", client.getObjectValue("COUNTER1"));
+
+		AggregatingCounter counter = new AggregatingCounter(factory);
+		for (int i = 0; i < 100; ++i) {
+			counter.increment("COUNTER1");
+		}
+		counter.close();
+		assertEquals(1, counter.getRequestCount());
+		assertEquals("106", client.getObjectValue("COUNTER1"));
+	}
+
+	@Test
+	public void test16_update() throws Exception {
+		OkuyamaClient client = factory.createClient();
+		client.removeObjectValue("UPDATE1");
+		final ValueUpdater increment = new ValueUpdater() {
+			@Override
+			public Object update(Object current) {
+				return current == null ? 1L : (Long) current + 1;
+			}
+		};
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						OkuyamaClient c = factory.createClient();
+						for (int j = 0; j < 25; ++j) {
+							c.updateObjectValue("UPDATE1", increment, null, 0);
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		assertEquals(100L, client.getObjectValue("UPDATE1"));
+		log("test16_update", factory.getConflictRetryPolicy().getConflictRate());
+	}
+
+	@Test
+	public void test16_transaction() throws IOException, OperationFailedException {
+		OkuyamaClient client = factory.createClient();
+		client.setObjectValue("TX1", "1", null, 0);
+		client.setObjectValue("TX2", "2", null, 0);
+		client.removeObjectValue("TX3");
+
+		OkuyamaTransaction tx = factory.beginTransaction();
+		Object[] values = tx.read("TX1", "TX2", "TX3");
+		assertEquals(Arrays.asList("1", "2", null), Arrays.asList(values));
+		tx.set("TX1", "1-tx", null, 0);
+		tx.set("TX3", "3-tx", null, 0);
+		assertTrue(tx.commit().isEmpty());
+		assertEquals("1-tx", client.getObjectValue("TX1"));
+		assertEquals("3-tx", client.getObjectValue("TX3"));
+
+		tx = factory.beginTransaction();
+		tx.read("TX1", "TX2");
+		tx.set("TX1", "1-conflict", null, 0);
+		tx.set("TX2", "2-conflict", null, 0);
+		client.setObjectValue("TX2", "2-other", null, 0);
+		assertEquals(Arrays.asList("TX2"), tx.commit());
+		// 書き込みに成功したキーは書き戻される
+		assertEquals("1-tx", client.getObjectValue("TX1"));
+		assertEquals("2-other", client.getObjectValue("TX2"));
+	}
+
+	@Test
+	public void test1_chunked() throws IOException, OperationFailedException {
+		OkuyamaClientImpl2 client = (OkuyamaClientImpl2) factory.createClient();
+		client.setChunkSize(1000);
+		Random random = new Random(1);
+		byte[] large = new byte[10000];
+		random.nextBytes(large);
+		assertTrue(client.setObjectValue("CHUNKED1", large, null, 0));
+		assertArrayEquals(large, (byte[]) client.getObjectValue("CHUNKED1"));
+		assertArrayEquals(large, (byte[]) client.getMultiObjectValues("CHUNKED1")[0]);
+
+		// 置き換えると以前の断片は削除される
+		ChunkManifest previous = client.readManifest("CHUNKED1");
+		random.nextBytes(large);
+		assertTrue(client.setObjectValue("CHUNKED1", large, null, 0));
+		assertNull(client.getMultiObjectRaw(previous.chunkKeys())[0]);
+		assertArrayEquals(large, (byte[]) client.removeObjectValue("CHUNKED1"));
+		assertNull(client.getObjectValue("CHUNKED1"));
+
+		client.setChunkSize(0);
+		client.setMaxValueSize(1000);
+		try {
+			client.setObjectValue("CHUNKED1", large, null, 0);
+			fail();
+		} catch (OperationFailedException e) {
+			// 送信する前に失敗する
+		}
+	}
+
+	@Test
+	public void test1_deduplicated() throws IOException, OperationFailedException {
+		OkuyamaClientImpl2 client = (OkuyamaClientImpl2) factory.createClient();
+		client.setDeduplication(100, null);
+		byte[] template = new byte[1000];
+		new Random(2).nextBytes(template);
+		assertTrue(client.setObjectValue("DEDUP1", template, null, 0));
+		assertTrue(client.setObjectValue("DEDUP2", template, null, 0));
+		assertArrayEquals(template, (byte[]) client.getObjectValue("DEDUP1"));
+		assertArrayEquals(template, (byte[]) client.getObjectValue("DEDUP2"));
+		// 内容は1つだけ格納される
+		ByteBuffer raw = client.getMultiObjectRaw("DEDUP1")[0];
+		assertTrue(raw.remaining() < template.length);
+		assertArrayEquals(template, (byte[]) client.removeObjectValue("DEDUP1"));
+		assertArrayEquals(template, (byte[]) client.getObjectValue("DEDUP2"));
+	}
+
+	@Test
+	public void test23_lazy() throws IOException, OperationFailedException {
+		OkuyamaClient client = factory.createClient();
+		client.setObjectValue("LAZY1", new Date(1000), new String[] {"LAZYTAG"}, 0);
+		client.setObjectValue("LAZY2", "value2", new String[] {"LAZYTAG"}, 0);
+		client.removeObjectValue("LAZY3");
+
+		LazyValue[] values = client.getMultiLazyValues("LAZY1", "LAZY2", "LAZY3");
+		assertFalse(values[0].isDecoded());
+		assertEquals(new Date(1000), values[0].get());
+		assertEquals("value2", values[1].get());
+		assertNull(values[2]);
+
+		Pair[] pairs = client.getLazyPairsByTag("LAZYTAG");
+		assertEquals(2, pairs.length);
+		for (Pair pair: pairs) {
+			assertTrue(pair.getValue() instanceof LazyValue);
+		}
+	}
+
+	@Test
+	public void test3_keyList() throws IOException, OperationFailedException {
+		OkuyamaClient client = factory.createClient();
+		client.setObjectValue("KEYLIST1", "value1", new String[] {"KEYLISTTAG"}, 0);
+		client.setObjectValue("KEYLIST2", "value2", new String[] {"KEYLISTTAG"}, 0);
+
+		KeyList keys = client.getTagKeyList("KEYLISTTAG", false);
+		assertEquals(Arrays.asList(client.getTagKeys("KEYLISTTAG", false)), keys);
+		Object[] values = client.getMultiObjectValues(keys, 0, keys.size());
+		for (int i = 0; i < keys.size(); ++i) {
+			assertEquals(client.getObjectValue(keys.get(i)), values[i]);
+		}
+	}
+
+	@Test
+	public void test3_multiTag() throws IOException, OperationFailedException {
+		OkuyamaClient client = factory.createClient();
+		client.setObjectValue("MULTITAG1", "value1", new String[] {"MTAG_A", "MTAG_B"}, 0);
+		client.setObjectValue("MULTITAG2", "value2", new String[] {"MTAG_A"}, 0);
+		client.setObjectValue("MULTITAG3", "value3", new String[] {"MTAG_B"}, 0);
+
+		assertEquals(Arrays.asList("MULTITAG1"), Arrays.asList(client.getMultiTagKeys(new String[] {"MTAG_A", "MTAG_B"}, true)));
+		assertEquals(3, client.getMultiTagKeys(new String[] {"MTAG_A", "MTAG_B"}, false).length);
+		Pair[] pairs = client.getMultiTagPairs(new String[] {"MTAG_A", "MTAG_B"}, true);
+		assertEquals(1, pairs.length);
+		assertEquals("value1", pairs[0].getValue());
+	}
+
 	@Test
 	public void test15_0() throws IOException, OperationFailedException {
 		final String METHOD_NAME = "test15_0";
@@ -337,6 +562,21 @@ public class OkuyamaClientITCase {
 		fail("KeyValueConsistencyException must be thrown");
 	}
 
+	@Test
+	public void test15_2_multi() throws IOException, OperationFailedException {
+		OkuyamaClient client = factory.createClient();
+
+		client.setObjectValue("HOGE15_0", "値0", null, 0);
+		client.setObjectValue("HOGE15_1", "値1", null, 0);
+		client.removeObjectValue("HOGE15_X");
+		VersionedValue[] values = client.getMultiObjectValuesVersionCheck("HOGE15_0", "HOGE15_X", "HOGE15_1");
+		assertEquals(3, values.length);
+		assertEquals("値0", values[0].getValue());
+		assertNull(values[1]);
+		assertEquals("値1", values[2].getValue());
+		assertEquals(client.getObjectValueVersionCheck("HOGE15_1").getVersion(), values[2].getVersion());
+	}
+
 	@Test
 	public void test22_0() throws IOException, OperationFailedException {
 		final String METHOD_NAME = "test22_0";
@@ -0,0 +1,148 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import mitonize.datastore.CacheLoader;
+import mitonize.datastore.OperationFailedException;
+
+public class OkuyamaLoadingCacheTest {
+	InMemoryOkuyamaClientFactory factory;
+	AtomicInteger loads;
+	CacheLoader<Integer, String> loader;
+	/** 置き換えを呼び出し元のスレッドで実行する */
+	Executor direct = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	@Before
+	public void setUp() {
+		factory = new InMemoryOkuyamaClientFactory();
+		loads = new AtomicInteger();
+		loader = new CacheLoader<Integer, String>() {
+			@Override
+			public String load(Integer key) throws Exception {
+				if (key < 0) {
+					return null;
+				}
+				return "value" + key + "-" + loads.incrementAndGet();
+			}
+		};
+	}
+
+	@Test
+	public void testLoadOnMiss() throws Exception {
+		OkuyamaLoadingCache<Integer, String> cache = new OkuyamaLoadingCache<Integer, String>(factory, "user:", loader);
+		assertEquals("value1-1", cache.get(1));
+		assertEquals("value1-1", cache.get(1));
+		assertEquals(1, cache.getLoadCount());
+		assertEquals("value1-1", factory.createClient().getObjectValue("user:1"));
+
+		assertNull(cache.get(-1));
+		assertNull(factory.createClient().getObjectValue("user:-1"));
+	}
+
+	@Test
+	public void testAddLosesToOtherProcess() throws Exception {
+		OkuyamaLoadingCache<Integer, String> cache = new OkuyamaLoadingCache<Integer, String>(factory, "user:", new CacheLoader<Integer, String>() {
+			@Override
+			public String load(Integer key) throws Exception {
+				// 読み込んでいる間に他のプロセスが格納する
+				factory.createClient().setObjectValue("user:" + key, "other", null, 0);
+				return "mine";
+			}
+		});
+		assertEquals("other", cache.get(1));
+	}
+
+	@Test
+	public void testRefreshAhead() throws Exception {
+		OkuyamaLoadingCache<Integer, String> cache = new OkuyamaLoadingCache<Integer, String>(factory, "user:", loader);
+		cache.setAgeInSeconds(1);
+		cache.setRefreshAheadRatio(0.1);
+		cache.setRefreshExecutor(direct);
+
+		assertEquals("value1-1", cache.get(1));
+		Thread.sleep(150);
+		// 置き換えの時期を過ぎた参照では現在の値を返し、置き換える
+		assertEquals("value1-1", cache.get(1));
+		assertEquals(1, cache.getRefreshCount());
+		assertEquals("value1-2", cache.get(1));
+	}
+
+	@Test
+	public void testSkipRefreshWhenOtherProcessRefreshed() throws Exception {
+		OkuyamaLoadingCache<Integer, String> cache = new OkuyamaLoadingCache<Integer, String>(factory, "user:", loader);
+		cache.setAgeInSeconds(1);
+		cache.setRefreshAheadRatio(0.1);
+		cache.setRefreshExecutor(direct);
+
+		cache.get(1);
+		Thread.sleep(150);
+		cache.get(1);
+		assertEquals(2, cache.getLoadCount());
+		// 置き換えた値を参照した時にバージョンを記録する
+		assertEquals("value1-2", cache.get(1));
+
+		// 他のプロセスが置き換えた
+		factory.createClient().setObjectValue("user:1", "other", null, 1);
+		Thread.sleep(150);
+		assertEquals("other", cache.get(1));
+		assertEquals(2, cache.getLoadCount());
+		assertEquals(1, cache.getRefreshSkipCount());
+	}
+
+	@Test
+	public void testUndeserializableValue() throws Exception {
+		OkuyamaLoadingCache<Integer, String> cache = new OkuyamaLoadingCache<Integer, String>(factory, "user:", loader);
+		// クライアントはデシリアライズできなかった値を ClassNotFoundException として返す
+		factory.createClient().setObjectValue("user:1", new ClassNotFoundException("Missing"), null, 0);
+		try {
+			cache.get(1);
+			fail();
+		} catch (OperationFailedException e) {
+			assertTrue(e.getCause() instanceof ClassNotFoundException);
+		}
+	}
+
+	@Test
+	public void testConcurrentMissLoadsOnce() throws Exception {
+		final OkuyamaLoadingCache<Integer, String> cache = new OkuyamaLoadingCache<Integer, String>(factory, "user:", new CacheLoader<Integer, String>() {
+			@Override
+			public String load(Integer key) throws Exception {
+				loads.incrementAndGet();
+				Thread.sleep(200);
+				return "value";
+			}
+		});
+		Thread[] threads = new Thread[5];
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						cache.get(1);
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		assertEquals(1, loads.get());
+	}
+}
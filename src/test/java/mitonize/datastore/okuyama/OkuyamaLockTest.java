@@ -0,0 +1,124 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class OkuyamaLockTest {
+
+	@Test
+	public void testTryLock() throws Exception {
+		InMemoryOkuyamaClientFactory factory = new InMemoryOkuyamaClientFactory();
+		OkuyamaLock lock1 = new OkuyamaLock(factory, "lock1", 30);
+		OkuyamaLock lock2 = new OkuyamaLock(factory, "lock1", 30);
+		lock1.setAutoRenewal(false);
+		lock2.setAutoRenewal(false);
+
+		assertTrue(lock1.tryLock());
+		assertTrue(lock1.isHeld());
+		assertFalse(lock2.tryLock());
+		assertFalse(lock2.tryLock(30, TimeUnit.MILLISECONDS));
+
+		assertTrue(lock1.renew());
+		assertTrue(lock1.unlock());
+		assertFalse(lock1.isHeld());
+		// 解放済みの値をバージョンを確認して置き換える
+		assertTrue(lock2.tryLock());
+		assertTrue(lock2.getFencingToken() > lock1.getFencingToken());
+		lock2.close();
+		assertFalse(lock2.isHeld());
+	}
+
+	@Test
+	public void testSharedInstance() throws Exception {
+		InMemoryOkuyamaClientFactory factory = new InMemoryOkuyamaClientFactory();
+		final OkuyamaLock lock = new OkuyamaLock(factory, "lock1", 30);
+		lock.setAutoRenewal(false);
+		assertTrue(lock.tryLock());
+
+		final AtomicBoolean acquired = new AtomicBoolean();
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					// 他のスレッドが保持している間は取得できず、解放を待つ
+					if (!lock.tryLock()) {
+						acquired.set(lock.tryLock(5, TimeUnit.SECONDS));
+						lock.unlock();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		waiter.start();
+		Thread.sleep(100);
+		assertTrue(lock.unlock());
+		waiter.join(5000);
+		assertTrue(acquired.get());
+		assertFalse(lock.isHeld());
+	}
+
+	@Test
+	public void testLostLease() throws Exception {
+		InMemoryOkuyamaClientFactory factory = new InMemoryOkuyamaClientFactory();
+		OkuyamaLock lock1 = new OkuyamaLock(factory, "lock1", 1);
+		OkuyamaLock lock2 = new OkuyamaLock(factory, "lock1", 30);
+		lock1.setAutoRenewal(false);
+		lock2.setAutoRenewal(false);
+
+		assertTrue(lock1.tryLock());
+		// リースが切れるのを待って取得する
+		assertTrue(lock2.tryLock(5, TimeUnit.SECONDS));
+		assertFalse(lock1.renew());
+		assertFalse(lock1.isHeld());
+		// 他のプロセスが取得したロックは解放しない
+		assertFalse(lock1.unlock());
+		assertTrue(lock2.isHeld());
+		assertEquals(2, lock2.getFencingToken());
+		assertTrue(lock2.unlock());
+	}
+
+	@Test
+	public void testAutoRenewal() throws Exception {
+		InMemoryOkuyamaClientFactory factory = new InMemoryOkuyamaClientFactory();
+		OkuyamaLock lock1 = new OkuyamaLock(factory, "lock1", 1);
+		OkuyamaLock lock2 = new OkuyamaLock(factory, "lock1", 30);
+		lock2.setAutoRenewal(false);
+		assertTrue(lock1.tryLock());
+		try {
+			// リースより長く待っても延長されているため取得できない
+			assertFalse(lock2.tryLock(1500, TimeUnit.MILLISECONDS));
+			assertTrue(lock1.isHeld());
+		} finally {
+			lock1.unlock();
+		}
+	}
+
+	@Test
+	public void testRenewalThread() throws Exception {
+		InMemoryOkuyamaClientFactory factory = new InMemoryOkuyamaClientFactory();
+		OkuyamaLock lock = new OkuyamaLock(factory, "lock1", 30);
+		assertTrue(lock.tryLock());
+		// 保持している間だけ専用のスレッドで延長する
+		Thread renewal = renewalThread("lock1");
+		assertTrue(renewal != null && renewal.isDaemon());
+		assertTrue(lock.unlock());
+		renewal.join(5000);
+		assertFalse(renewal.isAlive());
+	}
+
+	static Thread renewalThread(String name) {
+		for (Thread thread: Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("okuyama-lock-renewal-" + name) && thread.isAlive()) {
+				return thread;
+			}
+		}
+		return null;
+	}
+}
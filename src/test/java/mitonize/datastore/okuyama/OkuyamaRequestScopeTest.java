@@ -0,0 +1,96 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class OkuyamaRequestScopeTest {
+
+	@Test
+	public void testRemember() {
+		ThreadLocal<OkuyamaRequestScope> holder = new ThreadLocal<OkuyamaRequestScope>();
+		OkuyamaRequestScope scope = OkuyamaRequestScope.open(holder);
+		assertSame(scope, holder.get());
+
+		assertNull(scope.lookup("key1"));
+		scope.remember("key1", "value1");
+		scope.remember("key2", null);
+		assertEquals("value1", scope.lookup("key1"));
+		assertSame(OkuyamaRequestScope.ABSENT, scope.lookup("key2"));
+		assertEquals(2, scope.getHitCount());
+
+		scope.forget("key1");
+		assertNull(scope.lookup("key1"));
+
+		scope.close();
+		assertNull(holder.get());
+		assertNull(scope.lookup("key2"));
+	}
+
+	@Test
+	public void testNested() {
+		ThreadLocal<OkuyamaRequestScope> holder = new ThreadLocal<OkuyamaRequestScope>();
+		OkuyamaRequestScope outer = OkuyamaRequestScope.open(holder);
+		outer.remember("key1", "value1");
+		OkuyamaRequestScope inner = OkuyamaRequestScope.open(holder);
+		assertSame(outer, inner);
+		inner.close();
+		// 外側のスコープが閉じるまでは記録が残る
+		assertEquals("value1", holder.get().lookup("key1"));
+		outer.close();
+		assertNull(holder.get());
+	}
+
+	@Test
+	public void testPrefetch() {
+		ThreadLocal<OkuyamaRequestScope> holder = new ThreadLocal<OkuyamaRequestScope>();
+		OkuyamaRequestScope scope = OkuyamaRequestScope.open(holder);
+		try {
+			scope.remember("key1", "value1");
+			scope.prefetch("key1", "key2", "key3");
+			assertTrue(scope.hasPendingKeys());
+			scope.remember("key3", "value3");
+			assertEquals(Arrays.asList("key2"), scope.drainPendingKeys());
+			assertFalse(scope.hasPendingKeys());
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void testAlignedWithRememberedAbsent() throws Exception {
+		ThreadLocal<OkuyamaRequestScope> holder = new ThreadLocal<OkuyamaRequestScope>();
+		final ArrayList<String> requested = new ArrayList<String>();
+		OkuyamaClientImpl2 client = new OkuyamaClientImpl2(null, true, false, null) {
+			@Override
+			Object[] fetchMultiObjectValues(String... keys) {
+				requested.addAll(Arrays.asList(keys));
+				Object[] values = new Object[keys.length];
+				for (int i = 0; i < keys.length; ++i) {
+					values[i] = "fetched:" + keys[i];
+				}
+				return values;
+			}
+		};
+		client.setRequestScope(holder);
+		OkuyamaRequestScope scope = OkuyamaRequestScope.open(holder);
+		try {
+			scope.remember("absent", null);
+			scope.remember("key1", "value1");
+			Object[] values = client.getMultiObjectValuesAligned("absent", "key2", "key1", "key2", "key3");
+			assertArrayEquals(new Object[] {null, "fetched:key2", "value1", "fetched:key2", "fetched:key3"}, values);
+			// 重複したキーや記憶していたキーは取得しない
+			assertEquals(Arrays.asList("key2", "key3"), requested);
+		} finally {
+			scope.close();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import mitonize.datastore.KeyValueConsistencyException;
+import mitonize.datastore.OperationFailedException;
+import mitonize.datastore.VersionedValue;
+
+public class OkuyamaTransactionTest {
+	InMemoryOkuyamaClient store;
+	OkuyamaClientImpl2 client;
+	/** パイプライン化したリクエストを実行した回数 */
+	int executions;
+	/** 指定した回数目の実行の前に呼び出す処理 */
+	int interceptAt;
+	Runnable intercept;
+
+	/**
+	 * パイプライン化したリクエストを {@link InMemoryOkuyamaClient} で実行するクライアントを生成する。
+	 */
+	@Before
+	public void setUp() {
+		store = new InMemoryOkuyamaClient(new InMemoryOkuyamaClient.Store());
+		client = new OkuyamaClientImpl2(null, true, false, null) {
+			@Override
+			Object[] executePipelined(List<? extends PipelinedRequest> requests) throws IOException, OperationFailedException {
+				if (++executions == interceptAt) {
+					intercept.run();
+				}
+				Object[] results = new Object[requests.size()];
+				for (int i = 0; i < results.length; ++i) {
+					results[i] = execute(requests.get(i));
+				}
+				return results;
+			}
+
+			Object execute(PipelinedRequest request) throws IOException, OperationFailedException {
+				if (request instanceof GetVersionCheckRequest) {
+					String key = ((GetVersionCheckRequest) request).key;
+					VersionedValue versioned = store.getObjectValueVersionCheck(key);
+					return versioned == null ? null : new VersionedValue(encodeValue(versioned.getValue(), key), versioned.getVersion());
+				}
+				if (request instanceof RemoveRequest) {
+					return store.deleteObjectValue(((RemoveRequest) request).key);
+				}
+				SetRequest set = (SetRequest) request;
+				Object value = set.encoded == null ? set.value : decodeValue(set.encoded.duplicate());
+				if (request instanceof SetVersionCheckRequest) {
+					try {
+						return store.setObjectValueVersionCheck(set.key, value, ((SetVersionCheckRequest) request).version, set.tags, set.age);
+					} catch (KeyValueConsistencyException e) {
+						return e;
+					}
+				} else if (request instanceof AddRequest) {
+					return store.addObjectValue(set.key, value, set.tags, set.age);
+				}
+				return store.setObjectValue(set.key, value, set.tags, set.age);
+			}
+		};
+	}
+
+	@Test
+	public void testRollback() throws Exception {
+		store.setObjectValue("a", "1", null, 0);
+		store.setObjectValue("b", "2", null, 0);
+		OkuyamaTransaction tx = new OkuyamaTransaction(client);
+		tx.read("a", "b", "c");
+		store.setObjectValue("b", "other", null, 0);
+		tx.set("a", "10", null, 0);
+		tx.set("b", "20", null, 0);
+		tx.set("c", "30", null, 0);
+		assertEquals(Collections.singletonList("b"), tx.commit());
+		assertEquals("1", store.getObjectValue("a"));
+		assertEquals("other", store.getObjectValue("b"));
+		assertNull(store.getObjectValue("c"));
+	}
+
+	@Test
+	public void testRollbackSkipsConcurrentWrite() throws Exception {
+		store.setObjectValue("a", "1", null, 0);
+		store.setObjectValue("b", "2", null, 0);
+		OkuyamaTransaction tx = new OkuyamaTransaction(client);
+		tx.read("a", "b", "c");
+		store.setObjectValue("b", "other", null, 0);
+		tx.set("a", "10", null, 0);
+		tx.set("b", "20", null, 0);
+		tx.set("c", "30", null, 0);
+		// 書き込みの後、書き戻す前に他のクライアントが更新する
+		interceptAt = 3;
+		intercept = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					store.setObjectValue("a", "concurrent", null, 0);
+					store.setObjectValue("c", "concurrent", null, 0);
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		assertEquals(Collections.singletonList("b"), tx.commit());
+		assertEquals("concurrent", store.getObjectValue("a"));
+		assertEquals("concurrent", store.getObjectValue("c"));
+	}
+}
@@ -0,0 +1,148 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import mitonize.datastore.OperationFailedException;
+import mitonize.datastore.PersistentCache;
+import mitonize.datastore.VersionedValue;
+
+public class PersistentCacheRevalidatorTest {
+	File directory;
+	InMemoryOkuyamaClient store;
+	OkuyamaClientImpl2 client;
+	PersistentCache cache;
+	OkuyamaClientFactoryImpl factory;
+	/** パイプライン化したリクエストを実行した回数 */
+	int executions;
+
+	/**
+	 * バージョンの問い合わせを {@link InMemoryOkuyamaClient} で実行するクライアントを生成する。
+	 */
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("persistent-cache", "");
+		directory.delete();
+		store = new InMemoryOkuyamaClient(new InMemoryOkuyamaClient.Store());
+		client = new OkuyamaClientImpl2(null, true, false, null) {
+			@Override
+			Object[] executePipelined(List<? extends PipelinedRequest> requests) throws IOException, OperationFailedException {
+				++executions;
+				Object[] results = new Object[requests.size()];
+				for (int i = 0; i < results.length; ++i) {
+					String key = ((GetVersionCheckRequest) requests.get(i)).key;
+					VersionedValue versioned = store.getObjectValueVersionCheck(key);
+					results[i] = versioned == null ? null : new VersionedValue(encodeValue(versioned.getValue(), key), versioned.getVersion());
+				}
+				return results;
+			}
+		};
+		factory = new OkuyamaClientFactoryImpl(new String[] {"localhost:1"}, 1) {
+			@Override
+			public OkuyamaClient createClient() {
+				return client;
+			}
+		};
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		factory.destroy();
+		if (cache != null) {
+			cache.close();
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file: files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * データストアの値をバージョンと共に永続キャッシュに格納し、開き直して未検証のエントリとする。
+	 */
+	void restart(String... keys) throws Exception {
+		PersistentCache previous = new PersistentCache(directory, 64 * 1024);
+		for (String key: keys) {
+			VersionedValue versioned = store.getObjectValueVersionCheck(key);
+			previous.put(key, client.encodeValue(versioned.getValue(), key), versioned.getVersion(), previous.stamp(key));
+		}
+		previous.close();
+		cache = new PersistentCache(directory, 64 * 1024);
+	}
+
+	Object read(String key) throws Exception {
+		VersionedValue versioned = cache.get(key);
+		return versioned == null ? null : client.decodeValue((ByteBuffer) versioned.getValue());
+	}
+
+	@Test
+	public void testUnchanged() throws Exception {
+		store.setObjectValue("a", "1", null, 0);
+		restart("a");
+		assertEquals("1", read("a"));
+		assertEquals(1, new PersistentCacheRevalidator(factory, cache).revalidate());
+		// バージョンが変わっていなければ検証済みとしてそのまま残す
+		assertEquals(0, cache.getUnverifiedCount());
+		assertEquals("1", read("a"));
+		assertEquals(0, new PersistentCacheRevalidator(factory, cache).revalidate());
+		assertEquals(1, executions);
+	}
+
+	@Test
+	public void testChanged() throws Exception {
+		store.setObjectValue("a", "1", null, 0);
+		restart("a");
+		store.setObjectValue("a", "2", null, 0);
+		// 再検証するまでは再起動前の値を返す
+		assertEquals("1", read("a"));
+		new PersistentCacheRevalidator(factory, cache).revalidate();
+		// バージョンが変わっていれば新しい値で置き換える
+		assertEquals("2", read("a"));
+		assertEquals(store.getObjectValueVersionCheck("a").getVersion(), cache.get("a").getVersion());
+		assertEquals(0, cache.getUnverifiedCount());
+	}
+
+	@Test
+	public void testRemoved() throws Exception {
+		store.setObjectValue("a", "1", null, 0);
+		restart("a");
+		store.removeObjectValue("a");
+		assertEquals("1", read("a"));
+		new PersistentCacheRevalidator(factory, cache).revalidate();
+		// 削除されていたエントリは破棄する
+		assertNull(read("a"));
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		for (int i = 0; i < 3; ++i) {
+			store.setObjectValue("key" + i, String.valueOf(i), null, 0);
+		}
+		restart("key0", "key1", "key2");
+		cache.setRevalidationBatchSize(2);
+		PersistentCacheRevalidator revalidator = new PersistentCacheRevalidator(factory, cache);
+		// 参照されていないエントリは再検証しない
+		assertEquals(0, revalidator.revalidate());
+		for (int i = 0; i < 3; ++i) {
+			read("key" + i);
+		}
+		// 1回に問い合わせる数を超えたエントリは次の実行で再検証する
+		assertEquals(2, revalidator.revalidate());
+		assertEquals(1, cache.getUnverifiedCount());
+		assertEquals(1, revalidator.revalidate());
+		assertEquals(0, cache.getUnverifiedCount());
+		assertEquals(2, executions);
+	}
+}
@@ -0,0 +1,114 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static mitonize.datastore.okuyama.FakeOkuyamaServer.b64;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import mitonize.datastore.CloseableIterator;
+import mitonize.datastore.Pair;
+
+public class StreamingIteratorTest {
+	FakeOkuyamaServer server;
+	OkuyamaClientImpl2 client;
+
+	/**
+	 * リクエストの種類ごとに決まった応答を返すサーバを起動する。
+	 */
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeOkuyamaServer() {
+			@Override
+			void handle(Socket socket) throws Exception {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+				OutputStream os = socket.getOutputStream();
+				String line;
+				while ((line = reader.readLine()) != null) {
+					StringBuilder sb = new StringBuilder();
+					if (line.startsWith("23,")) {
+						for (int i = 0; i < 100; ++i) {
+							sb.append("23,true,").append(b64("key" + i)).append(',').append(b64("value" + i)).append('\n');
+							if (i % 10 == 0) {
+								sb.append("23,false,\n");
+							}
+						}
+						sb.append("END\n");
+					} else if (line.startsWith("3,")) {
+						sb.append("4,true,").append(b64("key0")).append(':').append(b64("key1")).append(':').append(b64("key2")).append('\n');
+					} else if (line.startsWith("22,")) {
+						sb.append("22,true,").append(b64("value0")).append('\n');
+						sb.append("22,false,\n");
+						sb.append("END\n");
+					}
+					os.write(sb.toString().getBytes());
+					os.flush();
+				}
+			}
+		};
+		client = server.createClient(2);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+		client.socketManager.shutdown();
+	}
+
+	@Test
+	public void testPairsByTag() throws Exception {
+		CloseableIterator<Pair> it = client.iteratePairsByTag("tag1");
+		int count = 0;
+		while (it.hasNext()) {
+			Pair pair = it.next();
+			assertEquals("key" + count, pair.getKey());
+			assertEquals("value" + count, pair.getValue());
+			++count;
+		}
+		assertEquals(100, count);
+		it.close();
+
+		// 途中で閉じても次のリクエストに影響しない
+		it = client.iteratePairsByTag("tag1");
+		assertEquals("key0", it.next().getKey());
+		it.close();
+		assertFalse(it.hasNext());
+		it = client.iteratePairsByTag("tag1");
+		assertEquals("key0", it.next().getKey());
+		it.close();
+	}
+
+	@Test
+	public void testTagKeys() throws Exception {
+		CloseableIterator<String> it = client.iterateTagKeys("tag1", false);
+		ArrayList<String> keys = new ArrayList<String>();
+		while (it.hasNext()) {
+			keys.add(it.next());
+		}
+		assertEquals(3, keys.size());
+		assertEquals("key2", keys.get(2));
+	}
+
+	@Test
+	public void testMultiValues() throws Exception {
+		CloseableIterator<Pair> it = client.iterateMultiObjectValues("key0", "key1");
+		Pair pair = it.next();
+		assertEquals("key0", pair.getKey());
+		assertEquals("value0", pair.getValue());
+		pair = it.next();
+		assertEquals("key1", pair.getKey());
+		assertNull(pair.getValue());
+		assertFalse(it.hasNext());
+		// 最後まで読み出したソケットは再利用できる
+		assertEquals(3, client.getTagKeys("tag1", false).length);
+	}
+}
@@ -0,0 +1,96 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import mitonize.datastore.NearCache;
+import mitonize.datastore.OperationFailedException;
+
+public class TagKeysCacheTest {
+	InMemoryOkuyamaClient store;
+	OkuyamaClientImpl2 client;
+	NearCache cache;
+	/** タグに対応するキーの一覧を問い合わせた回数 */
+	int fetches;
+
+	/**
+	 * 読み書きを {@link InMemoryOkuyamaClient} で実行するクライアントを生成する。
+	 */
+	@Before
+	public void setUp() {
+		store = new InMemoryOkuyamaClient(new InMemoryOkuyamaClient.Store());
+		client = new OkuyamaClientImpl2(null, true, false, null) {
+			@Override
+			String[] _getTagKeys(String tag, boolean withDeletedKeys) throws IOException, OperationFailedException {
+				++fetches;
+				return store.getTagKeys(tag, withDeletedKeys);
+			}
+
+			@Override
+			boolean _setObjectValue(String key, Object value, ByteBuffer encoded, String[] tags, long age) throws IOException, OperationFailedException {
+				return store.setObjectValue(key, value, tags, age);
+			}
+
+			@Override
+			Object _removeObjectValue(String key) throws IOException, OperationFailedException {
+				return store.removeObjectValue(key);
+			}
+		};
+		cache = new NearCache(100);
+		cache.setDefaultTimeToLiveInMillis(60000);
+		client.setTagCache(cache);
+	}
+
+	@Test
+	public void testHit() throws Exception {
+		store.setObjectValue("a", "1", new String[] { "t" }, 0);
+		assertArrayEquals(new String[] { "a" }, client.getTagKeys("t", false));
+		assertArrayEquals(new String[] { "a" }, client.getTagKeys("t", false));
+		assertEquals(1, fetches);
+		// 削除済みのキーを含むかどうかで別の一覧として扱う
+		assertArrayEquals(new String[] { "a" }, client.getTagKeys("t", true));
+		assertEquals(2, fetches);
+	}
+
+	@Test
+	public void testInvalidateOnSet() throws Exception {
+		store.setObjectValue("a", "1", new String[] { "t" }, 0);
+		assertArrayEquals(new String[] { "a" }, client.getTagKeys("t", false));
+		// タグを指定しない書き込みでは一覧は変わらない
+		client.setObjectValue("b", "2", null, 0);
+		assertArrayEquals(new String[] { "a" }, client.getTagKeys("t", false));
+		assertEquals(1, fetches);
+		client.setObjectValue("c", "3", new String[] { "t" }, 0);
+		assertArrayEquals(new String[] { "a", "c" }, client.getTagKeys("t", false));
+		assertEquals(2, fetches);
+	}
+
+	@Test
+	public void testInvalidateOnRemove() throws Exception {
+		store.setObjectValue("a", "1", new String[] { "t" }, 0);
+		store.setObjectValue("b", "2", new String[] { "t" }, 0);
+		assertArrayEquals(new String[] { "a", "b" }, client.getTagKeys("t", false));
+		client.removeObjectValue("a");
+		assertArrayEquals(new String[] { "b" }, client.getTagKeys("t", false));
+		assertEquals(2, fetches);
+	}
+
+	@Test
+	public void testExpire() throws Exception {
+		cache.setDefaultTimeToLiveInMillis(50);
+		store.setObjectValue("a", "1", new String[] { "t" }, 0);
+		assertArrayEquals(new String[] { "a" }, client.getTagKeys("t", false));
+		// 他のプロセスによる書き込みは有効期間が過ぎると反映される
+		store.setObjectValue("b", "2", new String[] { "t" }, 0);
+		assertArrayEquals(new String[] { "a" }, client.getTagKeys("t", false));
+		Thread.sleep(100);
+		assertArrayEquals(new String[] { "a", "b" }, client.getTagKeys("t", false));
+		assertEquals(2, fetches);
+	}
+}
@@ -0,0 +1,36 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TagKeysMergerTest {
+	static List<String> merge(boolean and, String[]... lists) {
+		OkuyamaClientImpl2.TagKeysMerger merger = new OkuyamaClientImpl2.TagKeysMerger(and);
+		for (String[] keys: lists) {
+			merger.begin();
+			for (String key: keys) {
+				merger.item(key);
+			}
+			merger.end();
+		}
+		return new ArrayList<String>(merger.result);
+	}
+
+	@Test
+	public void testAnd() {
+		assertEquals(Arrays.asList("b", "c"), merge(true, new String[] {"a", "b", "c"}, new String[] {"c", "b", "d"}));
+		assertEquals(Arrays.asList("c"), merge(true, new String[] {"a", "b", "c"}, new String[] {"c", "b"}, new String[] {"c"}));
+		assertEquals(Arrays.asList(), merge(true, new String[] {"a"}, new String[] {}));
+	}
+
+	@Test
+	public void testOr() {
+		assertEquals(Arrays.asList("a", "b", "c", "d"), merge(false, new String[] {"a", "b", "c"}, new String[] {"c", "b", "d"}));
+		assertEquals(Arrays.asList("a"), merge(false, new String[] {}, new String[] {"a"}));
+	}
+}
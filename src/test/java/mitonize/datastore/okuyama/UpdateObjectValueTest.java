@@ -0,0 +1,100 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static mitonize.datastore.okuyama.FakeOkuyamaServer.b64;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import mitonize.datastore.ValueUpdater;
+
+public class UpdateObjectValueTest {
+	FakeOkuyamaServer server;
+	OkuyamaClientImpl2 client;
+	/** 接続を切断する読み出し(プロトコル15)の回数 */
+	final AtomicInteger dropReads = new AtomicInteger();
+	/** 書き込み(プロトコル16)で接続を切断する場合は true */
+	volatile boolean dropWrite = false;
+	final AtomicInteger writes = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeOkuyamaServer() {
+			@Override
+			void handle(Socket socket) throws IOException {
+				UpdateObjectValueTest.this.handle(socket);
+			}
+		};
+		client = server.createClient(1);
+	}
+
+	void handle(Socket socket) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		OutputStream os = socket.getOutputStream();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.startsWith("15,")) {
+				if (dropReads.getAndDecrement() > 0) {
+					return;
+				}
+				os.write(("15,true," + b64("1") + ",v1\n").getBytes());
+			} else if (line.startsWith("16,")) {
+				writes.incrementAndGet();
+				if (dropWrite) {
+					// 書き込みは反映したが、応答を返す前に切断する
+					return;
+				}
+				os.write("16,true,OK\n".getBytes());
+			}
+			os.flush();
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+		client.socketManager.shutdown();
+	}
+
+	static class Increment implements ValueUpdater {
+		int calls = 0;
+
+		@Override
+		public Object update(Object current) {
+			++calls;
+			return String.valueOf(Integer.parseInt((String) current) + 1);
+		}
+	}
+
+	@Test
+	public void testRetryOnRead() throws Exception {
+		dropReads.set(1);
+		Increment updater = new Increment();
+		assertEquals("2", client.updateObjectValue("key1", updater, null, 0));
+		assertEquals(1, updater.calls);
+		assertEquals(1, writes.get());
+	}
+
+	@Test
+	public void testNoRetryAfterWrite() throws Exception {
+		dropWrite = true;
+		Increment updater = new Increment();
+		try {
+			client.updateObjectValue("key1", updater, null, 0);
+			fail();
+		} catch (IOException e) {
+			// 書き込みが反映された可能性があるためリトライしない
+		}
+		assertEquals(1, updater.calls);
+		assertEquals(1, writes.get());
+	}
+}
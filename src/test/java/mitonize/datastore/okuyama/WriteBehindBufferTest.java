@@ -0,0 +1,111 @@
+package mitonize.datastore.okuyama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import mitonize.datastore.OperationFailedException;
+
+public class WriteBehindBufferTest {
+
+	@Test
+	public void testCoalesce() throws Exception {
+		InMemoryOkuyamaClientFactory factory = new InMemoryOkuyamaClientFactory();
+		WriteBehindBuffer buffer = new WriteBehindBuffer(factory, 10);
+		buffer.setObjectValue("key1", "value1", null, 0);
+		buffer.setObjectValue("key1", "value2", null, 0);
+		buffer.setObjectValue("key2", "value3", null, 0);
+		assertEquals(2, buffer.size());
+		assertEquals(1, buffer.getCoalescedCount());
+		assertNull(factory.createClient().getObjectValue("key1"));
+
+		buffer.flush();
+		Map<String, Object> stored = factory.createClient().snapshot();
+		assertEquals("value2", stored.get("key1"));
+		assertEquals("value3", stored.get("key2"));
+		assertEquals(2, buffer.getFlushedCount());
+		assertEquals(0, buffer.size());
+		buffer.close();
+	}
+
+	@Test
+	public void testBackgroundFlush() throws Exception {
+		InMemoryOkuyamaClientFactory factory = new InMemoryOkuyamaClientFactory();
+		WriteBehindBuffer buffer = new WriteBehindBuffer(factory, 10);
+		buffer.setMaxDelayInMillis(20);
+		buffer.start();
+		try {
+			buffer.setObjectValue("key1", "value1", new String[] {"tag1"}, 0);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (buffer.getFlushedCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals("value1", factory.createClient().getObjectValue("key1"));
+			assertEquals(1, factory.createClient().getTagKeys("tag1", false).length);
+		} finally {
+			buffer.close();
+		}
+	}
+
+	@Test
+	public void testCloseFlushesPending() throws Exception {
+		InMemoryOkuyamaClientFactory factory = new InMemoryOkuyamaClientFactory();
+		WriteBehindBuffer buffer = new WriteBehindBuffer(factory, 10);
+		buffer.setMaxDelayInMillis(60000);
+		buffer.start();
+		buffer.setObjectValue("key1", "value1", null, 0);
+		buffer.close();
+		assertEquals("value1", factory.createClient().getObjectValue("key1"));
+		try {
+			buffer.setObjectValue("key2", "value2", null, 0);
+			fail();
+		} catch (IllegalStateException e) {
+			// 閉じた後は受け付けない
+		}
+	}
+
+	@Test
+	public void testOverflowPolicy() throws Exception {
+		InMemoryOkuyamaClientFactory factory = new InMemoryOkuyamaClientFactory();
+		WriteBehindBuffer buffer = new WriteBehindBuffer(factory, 2);
+		buffer.setObjectValue("key1", "value1", null, 0);
+		buffer.setObjectValue("key2", "value2", null, 0);
+		// 既にあるキーの置き換えは一杯でも受け付ける
+		buffer.setObjectValue("key2", "value2-2", null, 0);
+
+		buffer.setOverflowPolicy(WriteBehindBuffer.OverflowPolicy.REJECT);
+		try {
+			buffer.setObjectValue("key3", "value3", null, 0);
+			fail();
+		} catch (OperationFailedException e) {
+			// 一杯のため受け付けない
+		}
+
+		buffer.setOverflowPolicy(WriteBehindBuffer.OverflowPolicy.BLOCK);
+		buffer.setMaxBlockInMillis(10);
+		try {
+			buffer.setObjectValue("key3", "value3", null, 0);
+			fail();
+		} catch (OperationFailedException e) {
+			// 書き込むスレッドがないため空かない
+		}
+
+		buffer.setOverflowPolicy(WriteBehindBuffer.OverflowPolicy.WRITE_THROUGH);
+		buffer.setObjectValue("key3", "value3", null, 0);
+		assertEquals("value3", factory.createClient().getObjectValue("key3"));
+		assertEquals(2, buffer.size());
+
+		buffer.setOverflowPolicy(WriteBehindBuffer.OverflowPolicy.DISCARD_OLDEST);
+		buffer.setObjectValue("key4", "value4", null, 0);
+		assertEquals(1, buffer.getDiscardedCount());
+		buffer.close();
+		Map<String, Object> stored = factory.createClient().snapshot();
+		assertNull(stored.get("key1"));
+		assertEquals("value2-2", stored.get("key2"));
+		assertEquals("value4", stored.get("key4"));
+	}
+}